@@ -0,0 +1,98 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoPoint;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class AreaSelectorTest
+        extends TestCase
+{
+    public void testBoxContains()
+    {
+        AreaSelector.Area area = new AreaSelector.Area(points(0, 0, 10, 10), true);
+
+        assertEquals(4, area.getVertexCount());
+        assertTrue(area.contains(5, 5));
+        assertTrue(area.contains(10, 0));
+        assertFalse(area.contains(11, 5));
+        assertTrue(area.contains(new GeoEnvelope(1, 9, 1, 9)));
+        assertFalse(area.contains(new GeoEnvelope(1, 12, 1, 9)));
+    }
+
+
+    public void testLassoContains()
+    {
+        // a U shape open to the top
+        AreaSelector.Area area = new AreaSelector.Area(
+                points(0, 0, 10, 0, 10, 10, 7, 10, 7, 3, 3, 3, 3, 10, 0, 10), false);
+
+        assertTrue(area.contains(1, 5));
+        assertTrue(area.contains(8, 5));
+        assertFalse(area.contains(5, 5));
+        assertTrue(area.contains(new GeoEnvelope(1, 9, 1, 2)));
+        // the corners are inside, the top edge crosses the notch
+        assertFalse(area.contains(new GeoEnvelope(1, 9, 1, 9)));
+    }
+
+
+    public void testLassoContainsGeometry()
+    {
+        AreaSelector.Area area = new AreaSelector.Area(
+                points(0, 0, 10, 0, 10, 10, 7, 10, 7, 3, 3, 3, 3, 10, 0, 10), false);
+
+        assertTrue(area.contains(new GeoPoint(1, 1)));
+        assertFalse(area.contains(new GeoPoint(5, 5)));
+        assertTrue(area.contains(line(1, 1, 9, 1, 9, 9)));
+        // both ends are inside the arms, the line passes over the notch
+        assertFalse(area.contains(line(1, 8, 9, 8)));
+    }
+
+
+    protected static List<GeoPoint> points(double... coordinates)
+    {
+        List<GeoPoint> points = new ArrayList<>(coordinates.length / 2);
+        for (int i = 0; i < coordinates.length; i += 2) {
+            points.add(new GeoPoint(coordinates[i], coordinates[i + 1]));
+        }
+        return points;
+    }
+
+
+    protected static GeoLineString line(double... coordinates)
+    {
+        GeoLineString line = new GeoLineString();
+        for (GeoPoint point : points(coordinates)) {
+            line.add(point);
+        }
+        return line;
+    }
+}
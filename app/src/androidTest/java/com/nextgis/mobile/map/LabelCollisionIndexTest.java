@@ -0,0 +1,130 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.graphics.RectF;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class LabelCollisionIndexTest
+        extends TestCase
+{
+    // a screen of 6 x 5 tiles with 100 labelled features on every tile
+    protected static final int  CANDIDATE_COUNT = 3000;
+    protected static final long FRAME_TIME      = 16;
+
+
+    public void testCollides()
+    {
+        LabelCollisionIndex index = new LabelCollisionIndex();
+        index.insert(getLabel("a", 10, 10, 90, 30));
+
+        assertTrue(index.collides(new RectF(80, 20, 150, 40)));
+        assertFalse(index.collides(new RectF(91, 10, 150, 30)));
+        assertFalse(index.collides(new RectF(200, 200, 260, 220)));
+    }
+
+
+    public void testCollidesAcrossCells()
+    {
+        LabelCollisionIndex index = new LabelCollisionIndex();
+        // covers the cells of the both signs around the origin
+        index.insert(getLabel("a", -70, -10, 70, 10));
+
+        assertTrue(index.collides(new RectF(-100, -5, -60, 5)));
+        assertTrue(index.collides(new RectF(60, -5, 100, 5)));
+    }
+
+
+    public void testQueryReportsLabelOnce()
+    {
+        LabelCollisionIndex index = new LabelCollisionIndex();
+        LabelEngine.Label wide = getLabel("wide", 0, 0, 300, 20);
+        LabelEngine.Label small = getLabel("small", 400, 400, 420, 410);
+        index.insert(wide);
+        index.insert(small);
+
+        List<LabelEngine.Label> result = new ArrayList<>();
+        index.query(new RectF(100, 0, 500, 500), result);
+        assertEquals(2, result.size());
+        assertTrue(result.contains(wide));
+        assertTrue(result.contains(small));
+
+        result.clear();
+        index.query(new RectF(0, 100, 300, 300), result);
+        assertTrue(result.isEmpty());
+    }
+
+
+    public void testCollisionFrameTime()
+    {
+        // the first pass warms up the code, the second one is measured
+        placeCandidates();
+        long start = System.nanoTime();
+        int placed = placeCandidates();
+        long time = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(placed > 0);
+        // the candidates of a screen of tiles are placed within a frame
+        assertTrue("placement took " + time + " ms", time < FRAME_TIME);
+    }
+
+
+    /**
+     * Place greedily as LabelEngine does the candidates of a screen of dense tiles
+     *
+     * @return the count of placed labels
+     */
+    protected static int placeCandidates()
+    {
+        LabelCollisionIndex index = new LabelCollisionIndex();
+        int placed = 0;
+        for (int i = 0; i < CANDIDATE_COUNT; i++) {
+            float x = (i * 7919) % 1536, y = (i * 104729) % 1280;
+            LabelEngine.Label label = getLabel(String.valueOf(i), x, y, x + 60, y + 14);
+            if (!index.collides(label.getBounds())) {
+                index.insert(label);
+                placed++;
+            }
+        }
+        return placed;
+    }
+
+
+    protected static LabelEngine.Label getLabel(
+            String text,
+            float left,
+            float top,
+            float right,
+            float bottom)
+    {
+        LabelEngine.Label label = new LabelEngine.Label(text, left, top, true);
+        label.getBounds().set(left, top, right, bottom);
+        return label;
+    }
+}
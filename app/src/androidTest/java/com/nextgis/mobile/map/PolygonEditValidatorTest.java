@@ -0,0 +1,208 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+public class PolygonEditValidatorTest
+        extends TestCase
+{
+    /**
+     * Random vertex moves, inserts and deletes on integer coordinates, so the edits often make
+     * touching and collinear segments, against a full validation of every state
+     */
+    public void testAgreesWithFullValidation()
+    {
+        Random random = new Random(7);
+        for (int test = 0; test < 200; test++) {
+            List<List<double[]>> rings = new ArrayList<>();
+            List<Integer> polygons = new ArrayList<>();
+            int polygonCount = 1 + random.nextInt(2);
+            for (int polygon = 0; polygon < polygonCount; polygon++) {
+                rings.add(star(5 + random.nextInt(20), polygon * 1000, 400, random));
+                polygons.add(polygon);
+                if (random.nextBoolean()) {
+                    rings.add(star(3 + random.nextInt(5), polygon * 1000, 100, random));
+                    polygons.add(polygon);
+                }
+            }
+
+            PolygonEditValidator validator = new PolygonEditValidator();
+            for (int step = 0; step < 60; step++) {
+                GeoGeometry geometry = getGeometry(rings, polygons, polygonCount);
+                if (step == 0) {
+                    validator.setGeometry(geometry);
+                } else {
+                    validator.update(geometry);
+                }
+
+                assertEquals("test " + test + ", step " + step, null != findIntersection(geometry),
+                        null != validator.getFault());
+                edit(rings.get(random.nextInt(rings.size())), random);
+            }
+        }
+    }
+
+
+    public void testEditTime()
+    {
+        Random random = new Random(7);
+        int count = 20000;
+        List<double[]> ring = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double angle = 2 * Math.PI * i / count;
+            double radius = 10000 + random.nextDouble();
+            ring.add(new double[] {radius * Math.cos(angle), radius * Math.sin(angle)});
+        }
+        GeoPolygon polygon = new GeoPolygon();
+        for (GeoPoint point : toRing(ring).getPoints()) {
+            polygon.add(point);
+        }
+
+        PolygonEditValidator validator = new PolygonEditValidator();
+        validator.setGeometry(polygon);
+        assertNull(validator.getFault());
+
+        int edits = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < edits; i++) {
+            int index = random.nextInt(count);
+            double[] point = ring.get(index);
+            validator.moveVertex(0, index, point[0] + random.nextDouble() * 0.1, point[1]);
+            assertNull(validator.getFault());
+        }
+        long edit = (System.nanoTime() - start) / edits;
+
+        start = System.nanoTime();
+        assertNull(PolygonValidator.validate(polygon));
+        long full = System.nanoTime() - start;
+
+        Log.d(TAG, "Checked an edit of " + count + " vertices in " + edit / 1000
+                + " us, a full validation in " + full / 1000 + " us");
+        assertTrue("edit " + edit + " ns, full " + full + " ns", edit < full);
+    }
+
+
+    protected static PolygonValidator.Fault findIntersection(GeoGeometry geometry)
+    {
+        PolygonValidator validator = new PolygonValidator(PolygonValidator.getPolygons(geometry));
+        validator.collectRings();
+        return validator.findIntersection();
+    }
+
+
+    protected static void edit(
+            List<double[]> ring,
+            Random random)
+    {
+        int index = random.nextInt(ring.size());
+        double[] point = ring.get(index);
+        double[] next = ring.get((index + 1) % ring.size());
+        switch (random.nextInt(3)) {
+            case 0:
+                ring.set(index, new double[] {
+                        point[0] + random.nextInt(5) - 2, point[1] + random.nextInt(5) - 2});
+                break;
+            case 1:
+                ring.add(index + 1, new double[] {
+                        Math.round((point[0] + next[0]) / 2) + random.nextInt(3) - 1,
+                        Math.round((point[1] + next[1]) / 2) + random.nextInt(3) - 1});
+                break;
+            default:
+                if (ring.size() > 3) {
+                    ring.remove(random.nextInt(ring.size()));
+                }
+                break;
+        }
+    }
+
+
+    protected static List<double[]> star(
+            int count,
+            double centerX,
+            double radius,
+            Random random)
+    {
+        List<double[]> ring = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double angle = 2 * Math.PI * i / count;
+            double distance = radius * (0.7 + 0.3 * random.nextDouble());
+            ring.add(new double[] {
+                    Math.round(centerX + distance * Math.cos(angle)),
+                    Math.round(distance * Math.sin(angle))});
+        }
+        return ring;
+    }
+
+
+    protected static GeoGeometry getGeometry(
+            List<List<double[]>> rings,
+            List<Integer> polygons,
+            int polygonCount)
+    {
+        GeoMultiPolygon multiPolygon = new GeoMultiPolygon();
+        GeoPolygon polygon = null;
+        int last = -1;
+        for (int i = 0; i < rings.size(); i++) {
+            GeoLinearRing ring = toRing(rings.get(i));
+            if (polygons.get(i) != last) {
+                polygon = new GeoPolygon();
+                for (GeoPoint point : ring.getPoints()) {
+                    polygon.add(point);
+                }
+                multiPolygon.add(polygon);
+                last = polygons.get(i);
+            } else {
+                polygon.addInnerRing(ring);
+            }
+        }
+        return polygonCount == 1 ? polygon : multiPolygon;
+    }
+
+
+    protected static GeoLinearRing toRing(List<double[]> points)
+    {
+        GeoLinearRing ring = new GeoLinearRing();
+        for (double[] point : points) {
+            ring.add(new GeoPoint(point[0], point[1]));
+        }
+        ring.add(new GeoPoint(points.get(0)[0], points.get(0)[1]));
+        return ring;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+public class PolygonValidatorTest
+        extends TestCase
+{
+    protected static final int  BENCHMARK_VERTICES  = 20000;
+    protected static final int  BENCHMARK_RUNS      = 5;
+    // a loose bound against a quadratic check, not a device speed test
+    protected static final long MAX_VALIDATION_TIME = 500;
+
+
+    public void testValid()
+    {
+        assertNull(PolygonValidator.validate(polygon(ring(0, 0, 10, 0, 10, 10, 0, 10))));
+        assertNull(PolygonValidator.validate(
+                polygon(ring(0, 0, 10, 0, 10, 10, 0, 10), ring(2, 2, 4, 2, 4, 4, 2, 4))));
+    }
+
+
+    public void testSelfIntersection()
+    {
+        PolygonValidator.Fault fault =
+                PolygonValidator.validate(polygon(ring(0, 0, 10, 10, 10, 0, 0, 10)));
+
+        assertNotNull(fault);
+        assertEquals(PolygonValidator.SELF_INTERSECTION, fault.getType());
+        assertEquals(5, fault.getLocation().getX(), 1e-9);
+        assertEquals(5, fault.getLocation().getY(), 1e-9);
+    }
+
+
+    public void testRingOutside()
+    {
+        PolygonValidator.Fault fault = PolygonValidator.validate(
+                polygon(ring(0, 0, 10, 0, 10, 10, 0, 10), ring(20, 2, 24, 2, 24, 4, 20, 4)));
+
+        assertNotNull(fault);
+        assertEquals(PolygonValidator.RING_OUTSIDE, fault.getType());
+    }
+
+
+    public void testRingsIntersection()
+    {
+        PolygonValidator.Fault fault = PolygonValidator.validate(
+                polygon(ring(0, 0, 10, 0, 10, 10, 0, 10), ring(2, 2, 5, 2, 5, 5, 2, 5),
+                        ring(4, 4, 7, 4, 7, 7, 4, 7)));
+
+        assertNotNull(fault);
+        assertEquals(PolygonValidator.RINGS_INTERSECTION, fault.getType());
+    }
+
+
+    public void testIslandInHole()
+    {
+        GeoMultiPolygon multiPolygon = new GeoMultiPolygon();
+        multiPolygon.add(polygon(ring(0, 0, 10, 0, 10, 10, 0, 10), ring(2, 2, 8, 2, 8, 8, 2, 8)));
+        multiPolygon.add(polygon(ring(3, 3, 5, 3, 5, 5, 3, 5)));
+
+        assertNull(PolygonValidator.validate(multiPolygon));
+    }
+
+
+    /**
+     * Random rings in general position against the pairwise checks of the polygon
+     */
+    public void testAgreesWithPairwiseChecks()
+    {
+        Random random = new Random(1);
+        for (int test = 0; test < 2000; test++) {
+            double[] coordinates = new double[(4 + random.nextInt(12)) * 2];
+            for (int i = 0; i < coordinates.length; i++) {
+                coordinates[i] = random.nextDouble() * 8;
+            }
+            GeoPolygon polygon = polygon(ring(coordinates));
+
+            assertEquals("ring " + test, polygon.intersects(),
+                    null != PolygonValidator.validate(polygon));
+        }
+    }
+
+
+    /**
+     * The grid check of a large polygon after a warm-up pass, the pairwise checks it replaces take
+     * seconds on such a polygon
+     */
+    public void testValidationTime()
+    {
+        GeoPolygon polygon = polygon(circle(BENCHMARK_VERTICES, new Random(1)));
+        assertNull(PolygonValidator.validate(polygon));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            assertNull(PolygonValidator.validate(polygon));
+        }
+        long time = (System.nanoTime() - start) / BENCHMARK_RUNS / 1000000;
+
+        Log.d(TAG, "Validated " + BENCHMARK_VERTICES + " vertices in " + time + " ms");
+        assertTrue("validation took " + time + " ms", time < MAX_VALIDATION_TIME);
+    }
+
+
+    protected static GeoLinearRing circle(
+            int count,
+            Random random)
+    {
+        double[] coordinates = new double[count * 2];
+        for (int i = 0; i < count; i++) {
+            double angle = 2 * Math.PI * i / count;
+            double radius = 10000 + random.nextDouble();
+            coordinates[i * 2] = radius * Math.cos(angle);
+            coordinates[i * 2 + 1] = radius * Math.sin(angle);
+        }
+        return ring(coordinates);
+    }
+
+
+    protected static GeoLinearRing ring(double... coordinates)
+    {
+        GeoLinearRing ring = new GeoLinearRing();
+        for (int i = 0; i < coordinates.length; i += 2) {
+            ring.add(new GeoPoint(coordinates[i], coordinates[i + 1]));
+        }
+        ring.add(new GeoPoint(coordinates[0], coordinates[1]));
+        return ring;
+    }
+
+
+    protected static GeoPolygon polygon(
+            GeoLinearRing outer,
+            GeoLinearRing... holes)
+    {
+        GeoPolygon polygon = new GeoPolygon();
+        for (GeoPoint point : outer.getPoints()) {
+            polygon.add(point);
+        }
+        for (GeoLinearRing hole : holes) {
+            polygon.addInnerRing(hole);
+        }
+        return polygon;
+    }
+}
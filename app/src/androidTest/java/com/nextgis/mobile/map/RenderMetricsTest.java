@@ -0,0 +1,102 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+
+public class RenderMetricsTest
+        extends AndroidTestCase
+{
+    public void testDisabledRecordsNothing()
+    {
+        RenderMetrics metrics = new RenderMetrics();
+        metrics.onFrame(5000000);
+
+        assertEquals(0, metrics.getFrameCount());
+        assertEquals(0f, metrics.getFramePercentile(50));
+    }
+
+
+    public void testFramePercentiles()
+    {
+        RenderMetrics metrics = new RenderMetrics();
+        metrics.setEnabled(true);
+        for (int i = 100; i >= 1; i--) {
+            metrics.onFrame(i * 1000000L);
+        }
+
+        assertEquals(100, metrics.getFrameCount());
+        assertEquals(50f, metrics.getFramePercentile(50));
+        assertEquals(90f, metrics.getFramePercentile(90));
+        assertEquals(100f, metrics.getFramePercentile(100));
+    }
+
+
+    public void testFrameHistoryKeepsRecentFrames()
+    {
+        RenderMetrics metrics = new RenderMetrics();
+        metrics.setEnabled(true);
+        for (int i = 0; i < RenderMetrics.FRAME_HISTORY; i++) {
+            metrics.onFrame(100000000L);
+        }
+        for (int i = 0; i < RenderMetrics.FRAME_HISTORY; i++) {
+            metrics.onFrame(1000000L);
+        }
+
+        assertEquals(RenderMetrics.FRAME_HISTORY, metrics.getFrameCount());
+        assertEquals(1f, metrics.getFramePercentile(100));
+
+        metrics.reset();
+        assertEquals(0, metrics.getFrameCount());
+    }
+
+
+    public void testExportCsv()
+            throws IOException
+    {
+        RenderMetrics metrics = new RenderMetrics();
+        metrics.setEnabled(true);
+        metrics.onFrame(2000000);
+        metrics.onFrame(4000000);
+
+        File file = new File(getContext().getCacheDir(), "render_metrics_test.csv");
+        metrics.exportCsv(file);
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            assertTrue(reader.readLine().startsWith("layer_id,"));
+            assertEquals("", reader.readLine());
+            assertTrue(reader.readLine().startsWith("frames,"));
+            assertEquals("2,2.00,4.00,4.00,4.00", reader.readLine());
+        } finally {
+            reader.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.util;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.Html;
+import android.text.Spanned;
+import android.text.style.URLSpan;
+import android.util.Log;
+
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import static com.nextgis.maplib.util.GeoConstants.FTDate;
+import static com.nextgis.maplib.util.GeoConstants.FTDateTime;
+import static com.nextgis.maplib.util.GeoConstants.FTString;
+import static com.nextgis.maplib.util.GeoConstants.FTTime;
+
+
+public class AttributeFormattersTest
+        extends AndroidTestCase
+{
+    protected static final String TAG = "AttributeFormatters";
+
+    // a feature of the attribute view: a real, a date and a few strings
+    protected static final int FEATURES = 2000;
+
+
+    public void testFormatReal()
+    {
+        AttributeFormatters formatters = AttributeFormatters.getInstance(getContext());
+        NumberFormat nf = NumberFormat.getInstance();
+        nf.setMaximumFractionDigits(4);
+        nf.setGroupingUsed(false);
+
+        assertEquals(nf.format(12345.678912), formatters.formatReal(12345.678912));
+        assertEquals(nf.format(-0.5), formatters.formatReal(-0.5));
+    }
+
+
+    public void testFormatDateTime()
+    {
+        AttributeFormatters formatters = AttributeFormatters.getInstance(getContext());
+        long millis = 1234567890000L;
+
+        assertEquals(new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault()).format(new Date(millis)),
+                formatters.formatDateTime(millis, FTDate));
+        assertEquals(new SimpleDateFormat("HH:mm", Locale.getDefault()).format(new Date(millis)),
+                formatters.formatDateTime(millis, FTTime));
+        assertEquals(new SimpleDateFormat("dd/MM/yyyy HH:mm", Locale.getDefault()).format(new Date(millis)),
+                formatters.formatDateTime(millis, FTDateTime));
+        assertEquals(millis + "", formatters.formatDateTime(millis, FTString));
+    }
+
+
+    public void testStripHtml()
+    {
+        AttributeFormatters formatters = AttributeFormatters.getInstance(getContext());
+
+        assertEquals("", formatters.stripHtml(null));
+        assertEquals("plain text", formatters.stripHtml("plain text"));
+        assertEquals(Html.fromHtml("<b>bold</b> &amp; text").toString(),
+                formatters.stripHtml("<b>bold</b> &amp; text"));
+    }
+
+
+    public void testLinkify()
+    {
+        AttributeFormatters formatters = AttributeFormatters.getInstance(getContext());
+
+        assertFalse(formatters.linkify("not a link") instanceof Spanned);
+
+        CharSequence link = formatters.linkify("nextgis.com");
+        assertTrue(link instanceof Spanned);
+        URLSpan[] spans = ((Spanned) link).getSpans(0, link.length(), URLSpan.class);
+        assertEquals(1, spans.length);
+        assertEquals("http://nextgis.com", spans[0].getURL());
+    }
+
+
+    public void testFormatsReused()
+    {
+        AttributeFormatters formatters = AttributeFormatters.getInstance(getContext());
+        AttributeFormatters.Formats formats = formatters.mFormats.get();
+        NumberFormat real = formats.getReal();
+        SimpleDateFormat dateTime = formats.getDateFormat(FTDateTime);
+
+        for (int i = 0; i < FEATURES; i++) {
+            formatShared(formatters, i);
+        }
+
+        assertSame(formats, formatters.mFormats.get());
+        assertSame(real, formats.getReal());
+        assertSame(dateTime, formats.getDateFormat(FTDateTime));
+    }
+
+
+    /**
+     * The allocations of the shared formatters against the formatters created for every value as
+     * the attribute view did before. The allocation counts do not depend on the JIT state as the
+     * times do.
+     */
+    public void testFormatAllocations()
+    {
+        AttributeFormatters formatters = AttributeFormatters.getInstance(getContext());
+
+        // the first pass creates the formats of the thread and loads the classes
+        int created = 0, shared = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            for (int i = 0; i < FEATURES; i++) {
+                formatCreated(i);
+            }
+            Debug.stopAllocCounting();
+            created = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            for (int i = 0; i < FEATURES; i++) {
+                formatShared(formatters, i);
+            }
+            Debug.stopAllocCounting();
+            shared = Debug.getThreadAllocCount();
+        }
+
+        Log.d(TAG, "Formatted " + FEATURES + " features: created " + created + " allocations, "
+                + "shared " + shared + " allocations");
+        assertTrue("created " + created + ", shared " + shared, shared < created);
+    }
+
+
+    protected static void formatCreated(int feature)
+    {
+        NumberFormat nf = NumberFormat.getInstance();
+        nf.setMaximumFractionDigits(4);
+        nf.setGroupingUsed(false);
+        nf.format(feature * 1.5);
+
+        new SimpleDateFormat("dd/MM/yyyy HH:mm", Locale.getDefault()).format(new Date(feature * 60000L));
+
+        for (int i = 0; i < 3; i++) {
+            String text = Html.fromHtml("value " + feature).toString();
+            Pattern.compile(AttributeFormatters.URL_PATTERN).matcher(text).matches();
+        }
+    }
+
+
+    protected static void formatShared(
+            AttributeFormatters formatters,
+            int feature)
+    {
+        formatters.formatReal(feature * 1.5);
+        formatters.formatDateTime(feature * 60000L, FTDateTime);
+
+        for (int i = 0; i < 3; i++) {
+            formatters.linkify(formatters.stripHtml("value " + feature));
+        }
+    }
+}
@@ -51,6 +51,7 @@ import com.nextgis.maplibui.mapui.VectorLayerUI;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
 import com.nextgis.mobile.activity.SettingsActivity;
 import com.nextgis.mobile.fragment.SettingsFragment;
+import com.nextgis.mobile.map.GeometryMeasureStore;
 
 import java.io.File;
 import java.io.IOException;
@@ -80,6 +81,8 @@ public class MainApplication extends GISApplication
         updateFromOldVersion();
 
         super.onCreate();
+
+        GeometryMeasureStore.getInstance(this).observe(getAuthority());
     }
 
     private void updateFromOldVersion() {
@@ -0,0 +1,92 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.activity;
+
+import android.os.Bundle;
+import android.widget.FrameLayout;
+import android.widget.Toast;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplibui.activity.NGActivity;
+import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.mobile.MainApplication;
+import com.nextgis.mobile.R;
+import com.nextgis.mobile.map.AttributeTablePager;
+import com.nextgis.mobile.map.AttributeTableView;
+
+import static com.nextgis.maplib.util.Constants.NOT_FOUND;
+
+
+public class AttributeTableActivity
+        extends NGActivity
+        implements AttributeTableView.OnHeaderClickListener
+{
+    protected AttributeTablePager mPager;
+    protected AttributeTableView  mTable;
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_attribute_table);
+        setToolbar(R.id.main_toolbar);
+
+        int layerId = getIntent().getIntExtra(ConstantsUI.KEY_LAYER_ID, NOT_FOUND);
+        ILayer layer = ((MainApplication) getApplication()).getMap().getLayerById(layerId);
+        if (!(layer instanceof VectorLayer)) {
+            Toast.makeText(this, R.string.error_layer_not_inited, Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        setTitle(layer.getName());
+        mPager = new AttributeTablePager(this, (VectorLayer) layer);
+        mTable = new AttributeTableView(this);
+        mTable.setPager(mPager);
+        mTable.setOnHeaderClickListener(this);
+        ((FrameLayout) findViewById(R.id.fl_attribute_table)).addView(mTable);
+    }
+
+
+    @Override
+    public void onHeaderClick(int column)
+    {
+        // a click on the sorted column reverses the order
+        boolean ascending = column != mPager.getSortColumn() || !mPager.isSortAscending();
+        mPager.setSort(column, ascending);
+        mTable.onSortChanged();
+    }
+
+
+    @Override
+    protected void onDestroy()
+    {
+        if (null != mPager)
+            mPager.shutdown();
+        super.onDestroy();
+    }
+}
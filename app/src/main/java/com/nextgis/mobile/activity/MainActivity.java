@@ -52,6 +52,7 @@ import android.util.Pair;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.nextgis.maplib.api.GpsEventListener;
@@ -275,6 +276,21 @@ public class MainActivity extends NGActivity
                     mMapFragment.refresh();
                 }
                 return true;
+            case R.id.menu_search:
+                if (null != mMapFragment) {
+                    mMapFragment.showAttributeSearch();
+                }
+                return true;
+            case R.id.menu_filter:
+                if (null != mMapFragment) {
+                    mMapFragment.showFeatureFilter();
+                }
+                return true;
+            case R.id.menu_export_metrics:
+                if (null != mMapFragment) {
+                    mMapFragment.exportRenderMetrics();
+                }
+                return true;
             case R.id.menu_edit_save:
                 return mMapFragment.saveEdits();
             case R.id.menu_edit_undo:
@@ -329,6 +345,19 @@ public class MainActivity extends NGActivity
     }
 
 
+    public synchronized void onRefresh(boolean isRefresh, int percent) {
+        onRefresh(isRefresh);
+        if (!isRefresh || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+            return;
+
+        MenuItem refreshItem = mToolbar.getMenu().findItem(R.id.menu_refresh);
+        if (null != refreshItem && null != refreshItem.getActionView()) {
+            TextView progress = (TextView) refreshItem.getActionView().findViewById(R.id.refreshingPercent);
+            if (progress != null)
+                progress.setText(percent < 100 ? String.valueOf(percent) : "");
+        }
+    }
+
     public synchronized void onRefresh(boolean isRefresh) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
             MenuItem refreshItem = mToolbar.getMenu().findItem(R.id.menu_refresh);
@@ -766,6 +795,12 @@ public class MainActivity extends NGActivity
             setTrackItem(menu.findItem(R.id.menu_track), title, icon);
         }
 
+        MenuItem exportMetrics = menu.findItem(R.id.menu_export_metrics);
+        if (null != exportMetrics) {
+            exportMetrics.setVisible(PreferenceManager.getDefaultSharedPreferences(this)
+                    .getBoolean(SettingsConstants.KEY_PREF_SHOW_RENDER_METRICS, false));
+        }
+
         if (mMapFragment.isEditMode())
             showEditToolbar();
 
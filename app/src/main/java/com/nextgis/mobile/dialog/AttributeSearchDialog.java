@@ -0,0 +1,152 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.dialog;
+
+import android.app.Dialog;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v7.app.AlertDialog;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.nextgis.maplibui.dialog.NGDialog;
+import com.nextgis.mobile.R;
+import com.nextgis.mobile.map.AttributeSearchIndex;
+import com.nextgis.mobile.map.TiledMapView;
+
+import java.util.List;
+
+public class AttributeSearchDialog extends NGDialog {
+    protected static final int SEARCH_LIMIT = 100;
+
+    private OnFeatureChooseListener mListener;
+    private TiledMapView mMap;
+    private ArrayAdapter<AttributeSearchIndex.Hit> mAdapter;
+    private TextView mEmpty;
+
+    public interface OnFeatureChooseListener {
+        void onFeatureChosen(AttributeSearchIndex.Hit hit);
+    }
+
+    public AttributeSearchDialog setOnFeatureChooseListener(OnFeatureChooseListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public AttributeSearchDialog setMap(TiledMapView map) {
+        mMap = map;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        super.onCreateDialog(savedInstanceState);
+
+        View view = View.inflate(mContext, R.layout.dialog_attribute_search, null);
+        final EditText search = (EditText) view.findViewById(R.id.et_search);
+        final ListView results = (ListView) view.findViewById(R.id.lv_results);
+        mEmpty = (TextView) view.findViewById(R.id.tv_empty);
+
+        mAdapter = new ArrayAdapter<AttributeSearchIndex.Hit>(mContext, android.R.layout.simple_list_item_2, android.R.id.text1) {
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                View item = super.getView(position, convertView, parent);
+                AttributeSearchIndex.Hit hit = getItem(position);
+                ((TextView) item.findViewById(android.R.id.text1)).setText(hit.getSnippet());
+                ((TextView) item.findViewById(android.R.id.text2)).setText(hit.getLayer().getName());
+                return item;
+            }
+        };
+        results.setAdapter(mAdapter);
+        results.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                if (mListener != null)
+                    mListener.onFeatureChosen(mAdapter.getItem(position));
+                dismiss();
+            }
+        });
+
+        search.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                search(s.toString());
+            }
+        });
+
+        // the outdated indexes are built while the user types
+        if (mMap != null)
+            mMap.prepareAttributeSearch();
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(mContext);
+        builder.setTitle(mTitle).setView(view).setNegativeButton(android.R.string.cancel, null);
+        return builder.create();
+    }
+
+    @Override
+    public void onDestroyView() {
+        if (mMap != null)
+            mMap.cancelAttributeSearch();
+        super.onDestroyView();
+    }
+
+    private void search(String text) {
+        if (mMap == null)
+            return;
+
+        if (TextUtils.isEmpty(text.trim())) {
+            mMap.cancelAttributeSearch();
+            mAdapter.clear();
+            mEmpty.setVisibility(View.GONE);
+            return;
+        }
+
+        mMap.searchAttributes(text, SEARCH_LIMIT, new AttributeSearchIndex.OnSearchListener() {
+            @Override
+            public void onSearchFinished(List<AttributeSearchIndex.Hit> hits) {
+                mAdapter.clear();
+                for (AttributeSearchIndex.Hit hit : hits)
+                    mAdapter.add(hit);
+                mEmpty.setVisibility(hits.isEmpty() ? View.VISIBLE : View.GONE);
+            }
+        });
+    }
+}
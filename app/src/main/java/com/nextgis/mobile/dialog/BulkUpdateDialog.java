@@ -0,0 +1,84 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.dialog;
+
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v7.app.AlertDialog;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
+
+import com.nextgis.maplibui.dialog.NGDialog;
+import com.nextgis.mobile.R;
+
+public class BulkUpdateDialog extends NGDialog {
+    private OnValueChooseListener mListener;
+    private String[] mFields;
+
+    public interface OnValueChooseListener {
+        void OnValueChosen(int field, String value);
+    }
+
+    public BulkUpdateDialog setOnValueChooseListener(OnValueChooseListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public BulkUpdateDialog setFields(String[] fields) {
+        mFields = fields;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        super.onCreateDialog(savedInstanceState);
+
+        View view = View.inflate(mContext, R.layout.dialog_bulk_update, null);
+        final Spinner field = (Spinner) view.findViewById(R.id.sp_field);
+        final EditText value = (EditText) view.findViewById(R.id.et_value);
+
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(mContext, android.R.layout.simple_spinner_item,
+                null == mFields ? new String[0] : mFields);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        field.setAdapter(adapter);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(mContext);
+        builder.setTitle(mTitle).setView(view).setNegativeButton(android.R.string.cancel, null)
+            .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    if (mListener != null && field.getSelectedItemPosition() >= 0)
+                        mListener.OnValueChosen(field.getSelectedItemPosition(), value.getText().toString());
+                }
+            });
+        AlertDialog dialog = builder.create();
+        dialog.setCanceledOnTouchOutside(false);
+        return dialog;
+    }
+}
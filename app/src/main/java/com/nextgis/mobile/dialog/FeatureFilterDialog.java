@@ -0,0 +1,106 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.dialog;
+
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v7.app.AlertDialog;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
+
+import com.nextgis.maplibui.dialog.NGDialog;
+import com.nextgis.mobile.R;
+
+public class FeatureFilterDialog extends NGDialog {
+    private OnFilterChooseListener mListener;
+    private String[] mLayers;
+    private String[] mExpressions;
+    private int mSelected;
+
+    public interface OnFilterChooseListener {
+        void onFilterChosen(int layer, String expression);
+    }
+
+    public FeatureFilterDialog setOnFilterChooseListener(OnFilterChooseListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * @param layers the layer names
+     * @param expressions the current filter expressions of the layers
+     * @param selected the initially chosen layer
+     */
+    public FeatureFilterDialog setLayers(String[] layers, String[] expressions, int selected) {
+        mLayers = layers;
+        mExpressions = expressions;
+        mSelected = selected;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        super.onCreateDialog(savedInstanceState);
+
+        View view = View.inflate(mContext, R.layout.dialog_feature_filter, null);
+        final Spinner layer = (Spinner) view.findViewById(R.id.sp_layer);
+        final EditText filter = (EditText) view.findViewById(R.id.et_filter);
+
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(mContext, android.R.layout.simple_spinner_item,
+                null == mLayers ? new String[0] : mLayers);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        layer.setAdapter(adapter);
+        layer.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                filter.setText(mExpressions[position]);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        if (null != mLayers && mSelected < mLayers.length)
+            layer.setSelection(mSelected);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(mContext);
+        builder.setTitle(mTitle).setView(view).setNegativeButton(android.R.string.cancel, null)
+            .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    if (mListener != null && layer.getSelectedItemPosition() >= 0)
+                        mListener.onFilterChosen(layer.getSelectedItemPosition(), filter.getText().toString());
+                }
+            });
+        AlertDialog dialog = builder.create();
+        dialog.setCanceledOnTouchOutside(false);
+        return dialog;
+    }
+}
@@ -23,19 +23,14 @@
 
 package com.nextgis.mobile.fragment;
 
-import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.TypedArray;
-import android.database.Cursor;
-import android.graphics.Color;
-import android.location.Location;
-import android.net.Uri;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
-import android.text.Html;
+import android.support.v7.app.AlertDialog;
+import android.text.Spanned;
+import android.text.method.LinkMovementMethod;
 import android.util.DisplayMetrics;
 import android.view.Display;
 import android.view.LayoutInflater;
@@ -43,75 +38,45 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.webkit.WebView;
-import android.webkit.WebViewClient;
+import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
+import android.widget.HorizontalScrollView;
+import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
-import com.keenfin.easypicker.PhotoPicker;
 import com.nextgis.maplib.api.IGISApplication;
-import com.nextgis.maplib.datasource.Field;
-import com.nextgis.maplib.datasource.GeoGeometryFactory;
-import com.nextgis.maplib.datasource.GeoLineString;
-import com.nextgis.maplib.datasource.GeoMultiLineString;
-import com.nextgis.maplib.datasource.GeoMultiPoint;
-import com.nextgis.maplib.datasource.GeoMultiPolygon;
-import com.nextgis.maplib.datasource.GeoPoint;
-import com.nextgis.maplib.datasource.GeoPolygon;
 import com.nextgis.maplib.map.VectorLayer;
-import com.nextgis.maplib.util.Constants;
-import com.nextgis.maplib.util.GeoConstants;
-import com.nextgis.maplib.util.LocationUtil;
 import com.nextgis.maplibui.GISApplication;
 import com.nextgis.maplibui.api.IVectorLayerUI;
-import com.nextgis.maplibui.control.PhotoGallery;
 import com.nextgis.maplibui.fragment.BottomToolbar;
 import com.nextgis.maplibui.overlay.EditLayerOverlay;
 import com.nextgis.maplibui.util.ControlHelper;
-import com.nextgis.maplibui.util.SettingsConstantsUI;
 import com.nextgis.mobile.R;
 import com.nextgis.mobile.activity.MainActivity;
+import com.nextgis.mobile.map.FeatureFilterRegistry;
+import com.nextgis.mobile.map.FeatureIdList;
+import com.nextgis.mobile.util.ThumbnailCache;
 
-import java.io.IOException;
-import java.text.NumberFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static com.nextgis.maplib.util.GeoConstants.CRS_WEB_MERCATOR;
-import static com.nextgis.maplib.util.GeoConstants.CRS_WGS84;
-import static com.nextgis.maplib.util.GeoConstants.FTDate;
-import static com.nextgis.maplib.util.GeoConstants.FTDateTime;
-import static com.nextgis.maplib.util.GeoConstants.FTTime;
-import static com.nextgis.maplib.util.GeoConstants.GTLineString;
-import static com.nextgis.maplib.util.GeoConstants.GTMultiLineString;
-import static com.nextgis.maplib.util.GeoConstants.GTMultiPoint;
-import static com.nextgis.maplib.util.GeoConstants.GTMultiPolygon;
-import static com.nextgis.maplib.util.GeoConstants.GTPoint;
-import static com.nextgis.maplib.util.GeoConstants.GTPolygon;
 
 
 public class AttributesFragment
         extends Fragment
 {
-    protected static final String IP_ADDRESS = "((25[0-5]|2[0-4][0-9]|[0-1][0-9]{2}|[1-9][0-9]|[1-9])\\.(25[0-5]|2[0-4]"
-            + "[0-9]|[0-1][0-9]{2}|[1-9][0-9]|[1-9]|0)\\.(25[0-5]|2[0-4][0-9]|[0-1]"
-            + "[0-9]{2}|[1-9][0-9]|[1-9]|0)\\.(25[0-5]|2[0-4][0-9]|[0-1][0-9]{2}"
-            + "|[1-9][0-9]|[0-9]))";
-    protected static final String URL_PATTERN = "^(?i)(https?://)?(([\\da-z\\.-]+)\\.([a-z\\.]{2,6})|" + IP_ADDRESS + ")([\\/\\w\\,\\s \\.-]*)*\\/?$";
     protected static final String KEY_ITEM_ID       = "item_id";
     protected static final String KEY_ITEM_POSITION = "item_pos";
 
-    private LinearLayout    mAttributes;
-    private VectorLayer     mLayer;
-    private List<Long>      mFeatureIDs;
+    private ListView             mAttributes;
+    private AttributesAdapter    mAdapter;
+    private FrameLayout          mGalleryContainer;
+    private VectorLayer          mLayer;
+    private FeatureIdList        mFeatureIDs;
+    private AttributesPrefetcher mPrefetcher;
 
     private long        mItemId;
     private int         mItemPosition;
@@ -154,7 +119,11 @@ public class AttributesFragment
             view.setLayoutParams(lp);
         }
 
-        mAttributes = (LinearLayout) view.findViewById(R.id.ll_attributes);
+        mAttributes = (ListView) view.findViewById(R.id.lv_attributes);
+        mGalleryContainer = new FrameLayout(getContext());
+        mAttributes.addFooterView(mGalleryContainer, null, false);
+        mAdapter = new AttributesAdapter();
+        mAttributes.setAdapter(mAdapter);
         return view;
     }
 
@@ -162,6 +131,9 @@ public class AttributesFragment
     @Override
     public void onResume() {
         super.onResume();
+        // the feature may be edited meanwhile
+        if (null != mPrefetcher)
+            mPrefetcher.clear();
         setAttributes();
         ((MainActivity) getActivity()).setActionBarState(isTablet());
     }
@@ -181,6 +153,16 @@ public class AttributesFragment
     }
 
 
+    @Override
+    public void onDestroy()
+    {
+        if (null != mPrefetcher)
+            mPrefetcher.shutdown();
+        mPrefetcher = null;
+        super.onDestroy();
+    }
+
+
     @Override
     public void onDestroyView()
     {
@@ -199,14 +181,12 @@ public class AttributesFragment
         if (mLayer == null)
             return;
 
-        mFeatureIDs = mLayer.query(null); // get all feature IDs
+        // the ids are read by the prefetcher, the moving to the neighbours waits for them
+        mFeatureIDs = null;
 
-        for (int i = 0; i < mFeatureIDs.size(); i++) {
-            if (mFeatureIDs.get(i) == mItemId) {
-                mItemPosition = i;
-                break;
-            }
-        }
+        if (null != mPrefetcher)
+            mPrefetcher.shutdown();
+        mPrefetcher = null;
 
         setAttributes();
     }
@@ -217,232 +197,115 @@ public class AttributesFragment
         if (mAttributes == null)
             return;
 
-        mAttributes.removeAllViews();
-
-        int[] attrs = new int[] {android.R.attr.textColorPrimary};
-        TypedArray ta = getContext().obtainStyledAttributes(attrs);
-        String textColor = Integer.toHexString(ta.getColor(0, Color.BLACK)).substring(2);
-        ta.recycle();
-
-        final WebView webView = new WebView(getContext());
-        webView.setVerticalScrollBarEnabled(false);
-        String data = "<!DOCTYPE html><html><head><meta charset='utf-8'><style>body{word-wrap:break-word;color:#" + textColor + ";font-family:Roboto Light,sans-serif;font-weight:300;line-height:1.15em}.flat-table{table-layout:fixed;margin-bottom:20px;width:100%;border-collapse:collapse;border:none;box-shadow:inset 1px -1px #ccc,inset -1px 1px #ccc}.flat-table td{box-shadow:inset -1px -1px #ccc,inset -1px -1px #ccc;padding:.5em}.flat-table tr{-webkit-transition:background .3s,box-shadow .3s;-moz-transition:background .3s,box-shadow .3s;transition:background .3s,box-shadow .3s}</style></head><body><table class='flat-table'><tbody>";
-
         FragmentActivity activity = getActivity();
         if (null == activity)
             return;
 
-        ((MainActivity) activity).setSubtitle(String.format(getString(R.string.features_count_attributes), mItemPosition + 1, mFeatureIDs.size()));
+        setSubtitle();
         checkNearbyItems();
 
-        try {
-            data = parseAttributes(data);
-        } catch (RuntimeException e) {
-            e.printStackTrace();
+        boolean newPrefetcher = null == mPrefetcher;
+        if (newPrefetcher) {
+            IGISApplication app = (GISApplication) activity.getApplication();
+            mPrefetcher = new AttributesPrefetcher(activity, app, mLayer);
         }
 
-        data += "</tbody></table></body></html>";
-        webView.loadDataWithBaseURL(null, data, "text/html", "UTF-8", null);
-        mAttributes.addView(webView);
-        webView.setWebViewClient(new WebViewClient() {
+        mPrefetcher.get(mItemId, new AttributesPrefetcher.OnAttributesListener() {
             @Override
-            public void onPageFinished(WebView view, String url) {
-                webView.setBackgroundColor(Color.TRANSPARENT);
-            }
-            public boolean shouldOverrideUrlLoading(WebView view, String url) {
-                view.getContext().startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(url)));
-                return true;
+            public void onAttributesLoaded(AttributesPrefetcher.FeatureAttributes attributes) {
+                showAttributes(attributes);
             }
         });
 
-        IGISApplication app = (GISApplication) getActivity().getApplication();
-        final Map<String, Integer> mAttaches = new HashMap<>();
-        PhotoGallery.getAttaches(app, mLayer, mItemId, mAttaches, false);
-
-        if (mAttaches.size() > 0) {
-            final PhotoPicker gallery = new PhotoPicker(getActivity(), true);
-            int px = ControlHelper.dpToPx(16, getResources());
-            gallery.setPadding(px, 0, px, 0);
-            gallery.post(new Runnable() {
+        // after the shown feature, so it is not delayed by the id query
+        if (newPrefetcher) {
+            mPrefetcher.loadFeatureIds(new AttributesPrefetcher.OnFeatureIdsListener() {
                 @Override
-                public void run() {
-                    gallery.restoreImages(new ArrayList<>(mAttaches.keySet()));
+                public void onFeatureIdsLoaded(FeatureIdList featureIds) {
+                    mFeatureIDs = featureIds;
+                    mItemPosition = Math.max(featureIds.indexOf(mItemId), 0);
+                    if (null != getActivity()) {
+                        setSubtitle();
+                        checkNearbyItems();
+                    }
                 }
             });
-
-            mAttributes.addView(gallery);
         }
     }
 
-    private String parseAttributes(String data) throws RuntimeException {
-        String selection = Constants.FIELD_ID + " = ?";
-        Cursor attributes = mLayer.query(null, selection, new String[]{mItemId + ""}, null, null);
-        if (null == attributes || attributes.getCount() == 0)
-            return data;
-
-        if (attributes.moveToFirst()) {
-            for (int i = 0; i < attributes.getColumnCount(); i++) {
-                String column = attributes.getColumnName(i);
-                String text;
-
-                if (column.startsWith(Constants.FIELD_GEOM_))
-                    continue;
-
-                if (column.equals(Constants.FIELD_GEOM)) {
-                    switch (mLayer.getGeometryType()) {
-                        case GTPoint:
-                            try {
-                                GeoPoint pt = (GeoPoint) GeoGeometryFactory.fromBlob(attributes.getBlob(i));
-                                data += getRow(getString(R.string.coordinates), formatCoordinates(pt));
-                            } catch (IOException | ClassNotFoundException e) {
-                                e.printStackTrace();
-                            }
-                            continue;
-                        case GTMultiPoint:
-                            try {
-                                GeoMultiPoint mpt = (GeoMultiPoint) GeoGeometryFactory.fromBlob(attributes.getBlob(i));
-                                data += getRow(getString(R.string.center), formatCoordinates(mpt.getEnvelope().getCenter()));
-                            } catch (IOException | ClassNotFoundException e) {
-                                e.printStackTrace();
-                            }
-                            continue;
-                        case GTLineString:
-                            try {
-                                GeoLineString line = (GeoLineString) GeoGeometryFactory.fromBlob(attributes.getBlob(i));
-                                data += getRow(getString(R.string.length), LocationUtil.formatLength(getContext(), line.getLength(), 3));
-                            } catch (IOException | ClassNotFoundException e) {
-                                e.printStackTrace();
-                            }
-                            continue;
-                        case GTMultiLineString:
-                            try {
-                                GeoMultiLineString multiline = (GeoMultiLineString) GeoGeometryFactory.fromBlob(attributes.getBlob(i));
-                                data += getRow(getString(R.string.length), LocationUtil.formatLength(getContext(), multiline.getLength(), 3));
-                            } catch (IOException | ClassNotFoundException e) {
-                                e.printStackTrace();
-                            }
-                            continue;
-                        case GTPolygon:
-                            try {
-                                GeoPolygon polygon = (GeoPolygon) GeoGeometryFactory.fromBlob(attributes.getBlob(i));
-                                data += getRow(getString(R.string.perimeter), LocationUtil.formatLength(getContext(), polygon.getPerimeter(), 3));
-                                data += getRow(getString(R.string.area), LocationUtil.formatArea(getContext(), polygon.getArea()));
-                            } catch (IOException | ClassNotFoundException e) {
-                                e.printStackTrace();
-                            }
-                            continue;
-                        case GTMultiPolygon:
-                            try {
-                                GeoMultiPolygon polygon = (GeoMultiPolygon) GeoGeometryFactory.fromBlob(attributes.getBlob(i));
-                                data += getRow(getString(R.string.perimeter), LocationUtil.formatLength(getContext(), polygon.getPerimeter(), 3));
-                                data += getRow(getString(R.string.area), LocationUtil.formatArea(getContext(), polygon.getArea()));
-                            } catch (IOException | ClassNotFoundException e) {
-                                e.printStackTrace();
-                            }
-                            continue;
-                        default:
-                            continue;
-                    }
-                }
-
-                Field field = mLayer.getFieldByName(column);
-                int fieldType = field != null ? field.getType() : Constants.NOT_FOUND;
-                switch (fieldType) {
-                    case GeoConstants.FTInteger:
-                        text = attributes.getInt(i) + "";
-                        break;
-                    case GeoConstants.FTReal:
-                        NumberFormat nf = NumberFormat.getInstance();
-                        nf.setMaximumFractionDigits(4);
-                        nf.setGroupingUsed(false);
-                        text = nf.format(attributes.getDouble(i));
-                        break;
-                    case GeoConstants.FTDate:
-                    case GeoConstants.FTTime:
-                    case GeoConstants.FTDateTime:
-                        text = formatDateTime(attributes.getLong(i), fieldType);
-                        break;
-                    default:
-                        text = toString(attributes.getString(i));
-                        Pattern pattern = Pattern.compile(URL_PATTERN);
-                        Matcher match = pattern.matcher(text);
-                        while (match.matches()) {
-                            String url = text.substring(match.start(), match.end());
-                            text = text.replaceFirst(URL_PATTERN, "<a href = '" + url + "'>" + url + "</a>");
-                            match = pattern.matcher(text.substring(match.start() + url.length() * 2 + 17));
-                        }
-                        break;
-                }
 
-                if (field != null && column.equals(Constants.FIELD_ID))
-                    field.setAlias(getString(R.string.id));
-
-                data += getRow(field != null ? field.getAlias() : "", text);
-            }
-        }
-
-        attributes.close();
-        return data;
+    private void setSubtitle()
+    {
+        MainActivity activity = (MainActivity) getActivity();
+        if (null == mFeatureIDs)
+            activity.setSubtitle(null);
+        else
+            activity.setSubtitle(String.format(getString(R.string.features_count_attributes), mItemPosition + 1, mFeatureIDs.size()));
     }
 
 
-    protected String getRow(String column, String text) {
-        column = column == null ? "" : toString(column);
-        text = text == null ? "" : text;
-        return String.format("<tr><td>%s</td><td>%s</td></tr><tr>", column, text);
-    }
-
+    private void showAttributes(AttributesPrefetcher.FeatureAttributes attributes)
+    {
+        // the user may have moved to another feature meanwhile
+        if (mAttributes == null || attributes.getFeatureId() != mItemId)
+            return;
 
-    protected String toString(String text) {
-        return text == null ? "" : Html.fromHtml(text).toString();
-    }
+        mAdapter.setRows(attributes.getRows());
+        mAttributes.setSelection(0);
+        mGalleryContainer.removeAllViews();
 
+        Map<String, Integer> attaches = attributes.getAttaches();
 
-    protected String formatCoordinates(GeoPoint pt) {
-        pt.setCRS(CRS_WEB_MERCATOR);
-        pt.project(CRS_WGS84);
+        if (attaches.size() > 0) {
+            // the photos are shown by their cached thumbnails, a full photo is decoded on click only
+            int px = ControlHelper.dpToPx(16, getResources());
+            int size = mPrefetcher.getThumbnailSize();
+            LinearLayout gallery = new LinearLayout(getContext());
+            gallery.setPadding(px, 0, px, 0);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
-        int format = Integer.parseInt(prefs.getString(SettingsConstantsUI.KEY_PREF_COORD_FORMAT, Location.FORMAT_DEGREES + ""));
-        int fraction = prefs.getInt(SettingsConstantsUI.KEY_PREF_COORD_FRACTION, 6);
+            for (final String path : attaches.keySet()) {
+                ImageView image = new ImageView(getContext());
+                LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(size, size);
+                lp.rightMargin = px / 2;
+                image.setLayoutParams(lp);
+                image.setScaleType(ImageView.ScaleType.CENTER_CROP);
+                image.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        showPhoto(path);
+                    }
+                });
 
-        String lat = getString(com.nextgis.maplibui.R.string.latitude_caption_short) + ": " +
-                LocationUtil.formatLatitude(pt.getY(), format, fraction, getResources());
-        String lon = getString(com.nextgis.maplibui.R.string.longitude_caption_short) + ": " +
-                LocationUtil.formatLongitude(pt.getX(), format, fraction, getResources());
+                ThumbnailCache.getInstance().load(path, size, image);
+                gallery.addView(image);
+            }
 
-        return lat + "<br \\>" + lon;
+            HorizontalScrollView scroll = new HorizontalScrollView(getContext());
+            scroll.addView(gallery);
+            mGalleryContainer.addView(scroll);
+        }
     }
 
 
-    protected String formatDateTime(long millis, int type) {
-        String result = millis + "";
-        SimpleDateFormat sdf = null;
-
-        switch (type) {
-            case FTDate:
-                sdf = new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault());
-                break;
-            case FTTime:
-                sdf = new SimpleDateFormat("HH:mm", Locale.getDefault());
-                break;
-            case FTDateTime:
-                sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm", Locale.getDefault());
-                break;
-        }
-
-        if (sdf != null)
-            try {
-                result = sdf.format(new Date(millis));
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    private void showPhoto(String path)
+    {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        ImageView image = new ImageView(getContext());
+        image.setAdjustViewBounds(true);
+        ThumbnailCache.getInstance().load(path, Math.min(metrics.widthPixels, metrics.heightPixels), image);
 
-        return result;
+        new AlertDialog.Builder(getContext()).setView(image).setPositiveButton(android.R.string.ok, null).show();
     }
 
-
     private void checkNearbyItems() {
+        if (null == mFeatureIDs) {
+            if (mBottomMenu != null) {
+                ControlHelper.setEnabled(mBottomMenu.findItem(R.id.menu_prev), false);
+                ControlHelper.setEnabled(mBottomMenu.findItem(R.id.menu_next), false);
+            }
+            return;
+        }
+
         boolean hasNext = mItemPosition + 1 <= mFeatureIDs.size() - 1;
         boolean hasPrevious = mItemPosition - 1 >= 0;
 
@@ -455,6 +318,9 @@ public class AttributesFragment
 
     public void selectItem(boolean isNext)
     {
+        if (null == mFeatureIDs)
+            return;
+
         boolean hasItem = false;
 
         if (isNext) {
@@ -571,4 +437,68 @@ public class AttributesFragment
 
         checkNearbyItems();
     }
-}
\ No newline at end of file
+
+
+    protected class AttributesAdapter extends BaseAdapter {
+        private List<AttributesPrefetcher.Row> mRows;
+
+        public AttributesAdapter() {
+            mRows = new ArrayList<>();
+        }
+
+        public void setRows(List<AttributesPrefetcher.Row> rows) {
+            mRows = rows;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mRows.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public boolean isEnabled(int position) {
+            return false;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView;
+            ViewHolder holder;
+            if (view == null) {
+                LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+                view = inflater.inflate(R.layout.item_attribute, parent, false);
+                holder = new ViewHolder();
+                holder.name = (TextView) view.findViewById(R.id.tv_attribute_name);
+                holder.value = (TextView) view.findViewById(R.id.tv_attribute_value);
+                view.setTag(holder);
+            } else {
+                holder = (ViewHolder) view.getTag();
+            }
+
+            AttributesPrefetcher.Row row = mRows.get(position);
+            holder.name.setText(row.getName());
+            holder.value.setText(row.getValue());
+            // only the links are clickable
+            holder.value.setMovementMethod(row.getValue() instanceof Spanned ? LinkMovementMethod.getInstance() : null);
+
+            return view;
+        }
+    }
+
+
+    protected static class ViewHolder {
+        TextView name;
+        TextView value;
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.fragment;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+
+import com.nextgis.maplib.api.IGISApplication;
+import com.nextgis.maplib.datasource.Field;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.LocationUtil;
+import com.nextgis.maplibui.control.PhotoGallery;
+import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.mobile.R;
+import com.nextgis.mobile.map.FeatureFilterRegistry;
+import com.nextgis.mobile.map.FeatureIdList;
+import com.nextgis.mobile.map.GeometryMeasureStore;
+import com.nextgis.mobile.util.AttributeFormatters;
+import com.nextgis.mobile.util.ThumbnailCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.nextgis.maplib.util.GeoConstants.GTLineString;
+import static com.nextgis.maplib.util.GeoConstants.GTMultiLineString;
+import static com.nextgis.maplib.util.GeoConstants.GTMultiPoint;
+import static com.nextgis.maplib.util.GeoConstants.GTMultiPolygon;
+import static com.nextgis.maplib.util.GeoConstants.GTPoint;
+import static com.nextgis.maplib.util.GeoConstants.GTPolygon;
+
+/**
+ * Prepares the displayed attributes of the features in the background: the shown one and the
+ * ones around it, so the previous and the next features are shown without a query and a geometry
+ * measurement. The feature ids to move through are read in the background too.
+ */
+public class AttributesPrefetcher
+{
+    /**
+     * The number of the features prepared before and after the shown one
+     */
+    protected static final int PREFETCH_DEPTH = 3;
+    protected static final int CACHE_SIZE     = PREFETCH_DEPTH * 4 + 1;
+
+    protected static final int THUMBNAIL_SIZE_DP = 96;
+
+    protected final Context              mContext;
+    protected final AttributeFormatters  mFormatters;
+    protected final GeometryMeasureStore mMeasures;
+    protected final IGISApplication      mApp;
+    protected final VectorLayer          mLayer;
+    protected final ExecutorService      mExecutor;
+    protected final ExecutorService      mLoader;
+    protected final Handler              mHandler;
+    protected final int                  mThumbnailSize;
+
+    protected final LruCache<Long, LoadTask> mCache;
+
+    // used on the main thread only
+    protected FeatureIdList mFeatureIDs;
+    protected long          mLastFeatureId;
+
+
+    public AttributesPrefetcher(
+            Context context,
+            IGISApplication app,
+            VectorLayer layer)
+    {
+        mContext = context.getApplicationContext();
+        mFormatters = AttributeFormatters.getInstance(mContext);
+        mMeasures = GeometryMeasureStore.getInstance(mContext);
+        mApp = app;
+        mLayer = layer;
+        mExecutor = Executors.newSingleThreadExecutor();
+        mLoader = Executors.newSingleThreadExecutor();
+        mHandler = new Handler(Looper.getMainLooper());
+        mCache = new LruCache<>(CACHE_SIZE);
+        mThumbnailSize = ControlHelper.dpToPx(THUMBNAIL_SIZE_DP, mContext.getResources());
+    }
+
+
+    public interface OnAttributesListener
+    {
+        /**
+         * Called on the main thread
+         */
+        void onAttributesLoaded(FeatureAttributes attributes);
+    }
+
+
+    public interface OnFeatureIdsListener
+    {
+        /**
+         * Called on the main thread
+         */
+        void onFeatureIdsLoaded(FeatureIdList featureIds);
+    }
+
+
+    /**
+     * Read the ids of the layer features without the ones rejected by the layer filter after the
+     * queued loads. The neighbours of the last requested feature are prepared once the ids are
+     * read.
+     */
+    public void loadFeatureIds(final OnFeatureIdsListener listener)
+    {
+        if (mLoader.isShutdown()) {
+            return;
+        }
+
+        mLoader.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final FeatureIdList featureIds =
+                        FeatureFilterRegistry.getInstance(mContext).getFeatureIds(mLayer);
+                mHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (mLoader.isShutdown()) {
+                            return;
+                        }
+
+                        mFeatureIDs = featureIds;
+                        int position = featureIds.indexOf(mLastFeatureId);
+                        if (position >= 0) {
+                            prefetch(position);
+                        }
+                        listener.onFeatureIdsLoaded(featureIds);
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Get the attributes of the feature and start to prepare its neighbours. The listener is
+     * called at once if the attributes are ready. A queued prefetch of the feature is moved ahead
+     * of the others, a running one is waited for. Called on the main thread.
+     */
+    public void get(
+            final long featureId,
+            final OnAttributesListener listener)
+    {
+        if (mLoader.isShutdown()) {
+            return;
+        }
+
+        LoadTask task = mCache.get(featureId);
+        FeatureAttributes attributes = null != task && task.isDone() ? getResult(task) : null;
+        if (null != attributes) {
+            listener.onAttributesLoaded(attributes);
+        } else {
+            if (null == task || task.isDone() || task.unschedule()) {
+                task = newTask(featureId);
+                mCache.put(featureId, task);
+                mLoader.execute(task);
+            }
+
+            final LoadTask loading = task;
+            mLoader.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final FeatureAttributes attributes = getResult(loading);
+                    if (null == attributes) {
+                        return;
+                    }
+
+                    mHandler.post(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            if (!mLoader.isShutdown()) {
+                                listener.onAttributesLoaded(attributes);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        mLastFeatureId = featureId;
+        int position = null == mFeatureIDs ? -1 : mFeatureIDs.indexOf(featureId);
+        if (position >= 0) {
+            prefetch(position);
+        }
+    }
+
+
+    /**
+     * @return the result of the task, waits for a running one, null if the task is not ready
+     * and is not running or has failed
+     */
+    protected static FeatureAttributes getResult(LoadTask task)
+    {
+        if (null == task || task.isCancelled()) {
+            return null;
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+     * @return the size of the attached photo thumbnails in pixels
+     */
+    public int getThumbnailSize()
+    {
+        return mThumbnailSize;
+    }
+
+
+    /**
+     * Drop the prepared attributes, e.g. a feature is edited
+     */
+    public void clear()
+    {
+        for (LoadTask task : mCache.snapshot().values()) {
+            task.cancel(false);
+        }
+        mCache.evictAll();
+    }
+
+
+    public void shutdown()
+    {
+        clear();
+        mExecutor.shutdownNow();
+        mLoader.shutdownNow();
+    }
+
+
+    protected void prefetch(int position)
+    {
+        // the nearest first, the next one before the previous one
+        for (int i = 1; i <= PREFETCH_DEPTH; i++) {
+            prefetchFeature(position + i);
+            prefetchFeature(position - i);
+        }
+
+        // the thumbnails after all attributes, they are slower and needed later
+        prefetchThumbnails(position + 1);
+        prefetchThumbnails(position - 1);
+    }
+
+
+    protected void prefetchThumbnails(int position)
+    {
+        if (position < 0 || position >= mFeatureIDs.size() || mExecutor.isShutdown()) {
+            return;
+        }
+
+        final LoadTask task = mCache.get(mFeatureIDs.get(position));
+        if (null == task) {
+            return;
+        }
+
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                FeatureAttributes attributes = getResult(task);
+                if (null == attributes) {
+                    return;
+                }
+
+                ThumbnailCache thumbnails = ThumbnailCache.getInstance();
+                for (String path : attributes.getAttaches().keySet()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    thumbnails.get(path, mThumbnailSize);
+                }
+            }
+        });
+    }
+
+
+    protected void prefetchFeature(int position)
+    {
+        if (position < 0 || position >= mFeatureIDs.size() || mExecutor.isShutdown()) {
+            return;
+        }
+
+        long featureId = mFeatureIDs.get(position);
+        LoadTask task = mCache.get(featureId);
+        if (null != task && !task.isCancelled()) {
+            return;
+        }
+
+        task = newTask(featureId);
+        mCache.put(featureId, task);
+        mExecutor.execute(task);
+    }
+
+
+    protected LoadTask newTask(final long featureId)
+    {
+        return new LoadTask(new Callable<FeatureAttributes>()
+        {
+            @Override
+            public FeatureAttributes call()
+            {
+                return load(featureId);
+            }
+        });
+    }
+
+
+    protected FeatureAttributes load(long featureId)
+    {
+        Map<String, Integer> attaches = new HashMap<>();
+        PhotoGallery.getAttaches(mApp, mLayer, featureId, attaches, false);
+
+        List<Row> rows = new ArrayList<>();
+        try {
+            parseAttributes(featureId, rows);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        return new FeatureAttributes(featureId, rows, attaches);
+    }
+
+
+    protected void parseAttributes(long featureId, List<Row> rows) throws RuntimeException {
+        // the geometry itself is read for points only, other measures are stored precomputed
+        List<String> projection = new ArrayList<>();
+        projection.add(Constants.FIELD_ID);
+        if (mLayer.getGeometryType() == GTPoint)
+            projection.add(Constants.FIELD_GEOM);
+        for (Field field : mLayer.getFields()) {
+            String name = field.getName();
+            if (!name.equals(Constants.FIELD_ID) && !name.startsWith(Constants.FIELD_GEOM))
+                projection.add(name);
+        }
+
+        String selection = Constants.FIELD_ID + " = ?";
+        Cursor attributes = mLayer.query(projection.toArray(new String[projection.size()]), selection, new String[]{featureId + ""}, null, null);
+        if (null == attributes)
+            return;
+
+        if (attributes.getCount() == 0) {
+            attributes.close();
+            return;
+        }
+
+        if (attributes.moveToFirst()) {
+            for (int i = 0; i < attributes.getColumnCount(); i++) {
+                String column = attributes.getColumnName(i);
+                CharSequence text;
+
+                if (column.startsWith(Constants.FIELD_GEOM_))
+                    continue;
+
+                if (column.equals(Constants.FIELD_GEOM)) {
+                    try {
+                        GeoPoint pt = (GeoPoint) GeoGeometryFactory.fromBlob(attributes.getBlob(i));
+                        rows.add(getRow(getString(R.string.coordinates), mFormatters.formatCoordinates(pt)));
+                    } catch (IOException | ClassNotFoundException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
+
+                Field field = mLayer.getFieldByName(column);
+                int fieldType = field != null ? field.getType() : Constants.NOT_FOUND;
+                switch (fieldType) {
+                    case GeoConstants.FTInteger:
+                        text = attributes.getInt(i) + "";
+                        break;
+                    case GeoConstants.FTReal:
+                        text = mFormatters.formatReal(attributes.getDouble(i));
+                        break;
+                    case GeoConstants.FTDate:
+                    case GeoConstants.FTTime:
+                    case GeoConstants.FTDateTime:
+                        text = mFormatters.formatDateTime(attributes.getLong(i), fieldType);
+                        break;
+                    default:
+                        text = mFormatters.linkify(mFormatters.stripHtml(attributes.getString(i)));
+                        break;
+                }
+
+                if (field != null && column.equals(Constants.FIELD_ID))
+                    field.setAlias(getString(R.string.id));
+
+                rows.add(getRow(field != null ? field.getAlias() : "", text));
+
+                if (column.equals(Constants.FIELD_ID))
+                    parseMeasures(featureId, rows);
+            }
+        }
+
+        attributes.close();
+    }
+
+
+    protected void parseMeasures(long featureId, List<Row> rows) {
+        int type = mLayer.getGeometryType();
+        if (type == GTPoint)
+            return;
+
+        GeometryMeasureStore.Measures measures = mMeasures.get(mLayer, featureId);
+        if (null == measures)
+            return;
+
+        switch (type) {
+            case GTMultiPoint:
+                rows.add(getRow(getString(R.string.center), mFormatters.formatCoordinates(measures.getEnvelope().getCenter())));
+                break;
+            case GTLineString:
+            case GTMultiLineString:
+                rows.add(getRow(getString(R.string.length), LocationUtil.formatLength(mContext, measures.getLength(), 3)));
+                break;
+            case GTPolygon:
+            case GTMultiPolygon:
+                rows.add(getRow(getString(R.string.perimeter), LocationUtil.formatLength(mContext, measures.getPerimeter(), 3)));
+                rows.add(getRow(getString(R.string.area), LocationUtil.formatArea(mContext, measures.getArea())));
+                break;
+        }
+    }
+
+
+    protected String getString(int resId) {
+        return mContext.getString(resId);
+    }
+
+
+    protected Row getRow(String column, CharSequence text) {
+        column = mFormatters.stripHtml(column);
+        text = text == null ? "" : text;
+        return new Row(column, text);
+    }
+
+
+    protected static class LoadTask
+            extends FutureTask<FeatureAttributes>
+    {
+        protected final AtomicBoolean mStarted;
+
+
+        public LoadTask(Callable<FeatureAttributes> callable)
+        {
+            super(callable);
+            mStarted = new AtomicBoolean();
+        }
+
+
+        @Override
+        public void run()
+        {
+            if (mStarted.compareAndSet(false, true)) {
+                super.run();
+            }
+        }
+
+
+        /**
+         * @return true if the task is not started and will not run
+         */
+        public boolean unschedule()
+        {
+            return mStarted.compareAndSet(false, true) && cancel(false);
+        }
+    }
+
+
+    /**
+     * The displayed attributes of a feature
+     */
+    public static class FeatureAttributes
+    {
+        protected final long                 mFeatureId;
+        protected final List<Row>            mRows;
+        protected final Map<String, Integer> mAttaches;
+
+
+        public FeatureAttributes(
+                long featureId,
+                List<Row> rows,
+                Map<String, Integer> attaches)
+        {
+            mFeatureId = featureId;
+            mRows = rows;
+            mAttaches = attaches;
+        }
+
+
+        public long getFeatureId()
+        {
+            return mFeatureId;
+        }
+
+
+        /**
+         * @return the fields and the geometry measures
+         */
+        public List<Row> getRows()
+        {
+            return mRows;
+        }
+
+
+        public Map<String, Integer> getAttaches()
+        {
+            return mAttaches;
+        }
+    }
+
+
+    public static class Row
+    {
+        protected final String       mName;
+        protected final CharSequence mValue;
+
+
+        public Row(
+                String name,
+                CharSequence value)
+        {
+            mName = name;
+            mValue = value;
+        }
+
+
+        public String getName()
+        {
+            return mName;
+        }
+
+
+        /**
+         * @return the formatted value, an url value is a link
+         */
+        public CharSequence getValue()
+        {
+            return mValue;
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.app.Activity;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
@@ -36,6 +37,7 @@ import android.graphics.Paint;
 import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
@@ -45,8 +47,10 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AlertDialog;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
@@ -66,6 +70,7 @@ import com.nextgis.maplib.api.GpsEventListener;
 import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.api.ILayerView;
 import com.nextgis.maplib.datasource.Feature;
+import com.nextgis.maplib.datasource.Field;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoGeometry;
 import com.nextgis.maplib.datasource.GeoGeometryFactory;
@@ -89,7 +94,6 @@ import com.nextgis.maplibui.api.MapViewEventListener;
 import com.nextgis.maplibui.dialog.ChooseLayerDialog;
 import com.nextgis.maplibui.fragment.BottomToolbar;
 import com.nextgis.maplibui.fragment.CompassFragment;
-import com.nextgis.maplibui.mapui.MapViewOverlays;
 import com.nextgis.maplibui.overlay.CurrentLocationOverlay;
 import com.nextgis.maplibui.overlay.CurrentTrackOverlay;
 import com.nextgis.maplibui.overlay.EditLayerOverlay;
@@ -101,18 +105,41 @@ import com.nextgis.maplibui.util.NotificationHelper;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
 import com.nextgis.mobile.MainApplication;
 import com.nextgis.mobile.R;
+import com.nextgis.mobile.activity.AttributeTableActivity;
 import com.nextgis.mobile.activity.MainActivity;
-
+import com.nextgis.mobile.dialog.AttributeSearchDialog;
+import com.nextgis.mobile.dialog.BulkUpdateDialog;
+import com.nextgis.mobile.dialog.FeatureFilterDialog;
+import com.nextgis.mobile.map.AreaSelector;
+import com.nextgis.mobile.map.AttributeSearchIndex;
+import com.nextgis.mobile.map.BulkFeatureOperations;
+import com.nextgis.mobile.map.FeatureFilterRegistry;
+import com.nextgis.mobile.map.FeatureHitTester;
+import com.nextgis.mobile.map.FeatureIdList;
+import com.nextgis.mobile.map.LocationMarkerOverlay;
+import com.nextgis.mobile.map.PolygonValidator;
+import com.nextgis.mobile.map.RenderMetrics;
+import com.nextgis.mobile.map.SelectionAreaView;
+import com.nextgis.mobile.map.SnappingEditLayerOverlay;
+import com.nextgis.mobile.map.TiledMapView;
+
+import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
 import static com.nextgis.maplib.util.Constants.FIELD_GEOM;
 import static com.nextgis.maplib.util.Constants.FIELD_ID;
 import static com.nextgis.maplib.util.Constants.NOT_FOUND;
+import static com.nextgis.mobile.util.SettingsConstants.KEY_PREF_CLUSTER_POINTS;
 import static com.nextgis.mobile.util.SettingsConstants.KEY_PREF_SHOW_COMPASS;
 import static com.nextgis.mobile.util.SettingsConstants.KEY_PREF_SHOW_MEASURING;
 import static com.nextgis.mobile.util.SettingsConstants.KEY_PREF_SHOW_SCALE_RULER;
+import static com.nextgis.mobile.util.SettingsConstants.KEY_PREF_SHOW_RENDER_METRICS;
 import static com.nextgis.mobile.util.SettingsConstants.KEY_PREF_SHOW_ZOOM_CONTROLS;
 
 /**
@@ -125,7 +152,7 @@ public class MapFragment
 
     protected MainApplication      mApp;
     protected MainActivity         mActivity;
-    protected MapViewOverlays      mMap;
+    protected TiledMapView         mMap;
     protected FloatingActionButton mivZoomIn;
     protected FloatingActionButton mivZoomOut;
     protected FloatingActionButton mRuler;
@@ -139,26 +166,30 @@ public class MapFragment
     protected TextView mScaleRulerText;
     protected ImageView mScaleRuler;
 
-    protected RelativeLayout         mMapRelativeLayout;
-    protected GpsEventSource         mGpsEventSource;
-    protected View                   mMainButton;
-    protected int                    mMode;
-    protected CurrentLocationOverlay mCurrentLocationOverlay;
-    protected CurrentTrackOverlay    mCurrentTrackOverlay;
-    protected EditLayerOverlay       mEditLayerOverlay;
-    protected RulerOverlay           mRulerOverlay;
-    protected GeoPoint               mCurrentCenter;
-    protected VectorLayer            mSelectedLayer;
+    protected RelativeLayout           mMapRelativeLayout;
+    protected GpsEventSource           mGpsEventSource;
+    protected View                     mMainButton;
+    protected int                      mMode;
+    protected CurrentLocationOverlay   mCurrentLocationOverlay;
+    protected CurrentTrackOverlay      mCurrentTrackOverlay;
+    protected SnappingEditLayerOverlay mEditLayerOverlay;
+    protected RulerOverlay             mRulerOverlay;
+    protected GeoPoint                 mCurrentCenter;
+    protected VectorLayer              mSelectedLayer;
+    protected SelectionAreaView        mSelectionAreaView;
 
     protected int mCoordinatesFormat, mCoordinatesFraction;
     protected ChooseLayerDialog mChooseLayerDialog;
     protected Vibrator mVibrator;
+    protected String mMapBackground;
+    protected SparseArray<Float> mLayerDrawProgress = new SparseArray<>();
 
     public static final int MODE_NORMAL        = 0;
     public static final int MODE_SELECT_ACTION = 1;
     public static final int MODE_EDIT          = 2;
     public static final int MODE_INFO          = 3;
     public static final int MODE_EDIT_BY_WALK  = 4;
+    public static final int MODE_SELECT_AREA   = 5;
 
     protected static final String KEY_MODE = "mode";
     protected static final String BUNDLE_KEY_LAYER = "layer";
@@ -193,10 +224,10 @@ public class MapFragment
         mVibrator = (Vibrator) mActivity.getSystemService(Context.VIBRATOR_SERVICE);
         mGpsEventSource = mApp.getGpsEventSource();
 
-        mMap = new MapViewOverlays(mActivity, (MapDrawable) mApp.getMap());
+        mMap = new TiledMapView(mActivity, (MapDrawable) mApp.getMap());
         mMap.setId(R.id.map_view);
 
-        mEditLayerOverlay = new EditLayerOverlay(mActivity, mMap);
+        mEditLayerOverlay = new SnappingEditLayerOverlay(mActivity, mMap);
     }
 
     public void restartGpsListener() {
@@ -287,8 +318,10 @@ public class MapFragment
 
             if (id != NOT_FOUND) {
                 mEditLayerOverlay.setSelectedFeature(id);
-                if (mSelectedLayer != null)
+                if (mSelectedLayer != null) {
                     mSelectedLayer.showFeature(id);
+                    FeatureFilterRegistry.getInstance(mActivity).setHidden(mSelectedLayer, id, false);
+                }
                 setMode(MODE_SELECT_ACTION);
             }
         } else if (mEditLayerOverlay.getSelectedFeatureGeometry() != null)
@@ -302,38 +335,21 @@ public class MapFragment
             return false;
         }
 
-        if (geometry instanceof GeoPolygon) {
-            if (((GeoPolygon) geometry).intersects()) {
-                Toast.makeText(getContext(), R.string.self_intersection, Toast.LENGTH_SHORT).show();
-                return false;
-            }
-
-            if (!((GeoPolygon) geometry).isHolesInside()) {
-                Toast.makeText(getContext(), R.string.ring_outside, Toast.LENGTH_SHORT).show();
-                return false;
-            }
-
-            if (((GeoPolygon) geometry).isHolesIntersect()) {
-                Toast.makeText(getContext(), R.string.rings_intersection, Toast.LENGTH_SHORT).show();
-                return false;
-            }
-        }
-
-        if (geometry instanceof GeoMultiPolygon) {
-            if (((GeoMultiPolygon) geometry).isSelfIntersects()) {
-                Toast.makeText(getContext(), R.string.self_intersection, Toast.LENGTH_SHORT).show();
-                return false;
-            }
-
-            if (!((GeoMultiPolygon) geometry).isHolesInside()) {
-                Toast.makeText(getContext(), R.string.ring_outside, Toast.LENGTH_SHORT).show();
-                return false;
-            }
-
-            if (((GeoMultiPolygon) geometry).isHolesIntersect()) {
-                Toast.makeText(getContext(), R.string.rings_intersection, Toast.LENGTH_SHORT).show();
-                return false;
+        PolygonValidator.Fault fault = PolygonValidator.validate(geometry);
+        mMap.setFault(null == fault ? null : fault.getLocation());
+        if (null != fault) {
+            switch (fault.getType()) {
+                case PolygonValidator.SELF_INTERSECTION:
+                    Toast.makeText(getContext(), R.string.self_intersection, Toast.LENGTH_SHORT).show();
+                    break;
+                case PolygonValidator.RING_OUTSIDE:
+                    Toast.makeText(getContext(), R.string.ring_outside, Toast.LENGTH_SHORT).show();
+                    break;
+                case PolygonValidator.RINGS_INTERSECTION:
+                    Toast.makeText(getContext(), R.string.rings_intersection, Toast.LENGTH_SHORT).show();
+                    break;
             }
+            return false;
         }
 
         return true;
@@ -406,6 +422,17 @@ public class MapFragment
     protected void setMode(int mode) {
         mMode = mode;
 
+        if (mode != MODE_SELECT_AREA)
+            hideSelectionArea();
+
+        if (mode != MODE_EDIT && mode != MODE_EDIT_BY_WALK)
+            mMap.setFault(null);
+
+        if (mode == MODE_EDIT && mSelectedLayer != null)
+            mEditLayerOverlay.startSnapping(mSelectedLayer);
+        else
+            mEditLayerOverlay.stopSnapping();
+
         hideMainButton();
         hideAddByTapButton();
         hideRulerButton();
@@ -501,6 +528,14 @@ public class MapFragment
                                     case R.id.menu_feature_attributes:
                                         setMode(MODE_INFO);
                                         break;
+                                    case R.id.menu_feature_select_area:
+                                        setMode(MODE_SELECT_AREA);
+                                        break;
+                                    case R.id.menu_layer_attribute_table:
+                                        Intent table = new Intent(mActivity, AttributeTableActivity.class);
+                                        table.putExtra(ConstantsUI.KEY_LAYER_ID, mSelectedLayer.getId());
+                                        startActivity(table);
+                                        break;
                                 }
 
                                 return true;
@@ -509,6 +544,57 @@ public class MapFragment
 
                 mEditLayerOverlay.setMode(EditLayerOverlay.MODE_HIGHLIGHT);
                 break;
+            case MODE_SELECT_AREA:
+                if (mSelectedLayer == null) {
+                    setMode(MODE_NORMAL);
+                    return;
+                }
+
+                mSelectedLayer.setLocked(true);
+                toolbar.setTitle(null);
+                toolbar.getMenu().clear();
+                toolbar.inflateMenu(R.menu.select_area);
+                toolbar.getMenu().findItem(mSelectionAreaView.isBox() ? R.id.menu_select_box : R.id.menu_select_lasso).setChecked(true);
+                toolbar.setNavigationIcon(R.drawable.ic_action_cancel_dark);
+
+                toolbar.setNavigationOnClickListener(
+                        new View.OnClickListener() {
+                            @Override
+                            public void onClick(View view) {
+                                setMode(MODE_NORMAL);
+                            }
+                        });
+
+                toolbar.setOnMenuItemClickListener(
+                        new BottomToolbar.OnMenuItemClickListener() {
+                            @Override
+                            public boolean onMenuItemClick(MenuItem item) {
+                                switch (item.getItemId()) {
+                                    case R.id.menu_select_box:
+                                    case R.id.menu_select_lasso:
+                                        item.setChecked(true);
+                                        mSelectionAreaView.setBox(item.getItemId() == R.id.menu_select_box);
+                                        break;
+                                    case R.id.menu_selection_delete:
+                                        deleteSelection();
+                                        break;
+                                    case R.id.menu_selection_update:
+                                        updateSelection();
+                                        break;
+                                    case R.id.menu_selection_export:
+                                        exportSelection();
+                                        break;
+                                }
+
+                                return true;
+                            }
+                        });
+
+                mEditLayerOverlay.setSelectedFeature(null);
+                mEditLayerOverlay.setMode(EditLayerOverlay.MODE_NONE);
+                mSelectionAreaView.setVisibility(View.VISIBLE);
+                Toast.makeText(getContext(), R.string.draw_selection_area, Toast.LENGTH_SHORT).show();
+                break;
             case MODE_INFO:
                 if (mSelectedLayer == null) {
                     setMode(MODE_NORMAL);
@@ -573,6 +659,11 @@ public class MapFragment
             return;
         }
 
+        if (mMode == MODE_SELECT_AREA) {
+            defineSelectionMenuItems();
+            return;
+        }
+
         boolean noFeature = mEditLayerOverlay.getSelectedFeatureGeometry() == null;
         long featureId = mEditLayerOverlay.getSelectedFeatureId();
 
@@ -607,9 +698,166 @@ public class MapFragment
     }
 
 
+    protected void defineSelectionMenuItems() {
+        AreaSelector.Selection selection = mMap.getSelection();
+        int count = null == selection ? 0 : selection.size();
+        mActivity.setTitle(getString(R.string.features_selected, count));
+        mActivity.setSubtitle(mSelectedLayer.getName());
+
+        BottomToolbar toolbar = mActivity.getBottomToolbar();
+        int[] items = new int[]{R.id.menu_selection_delete, R.id.menu_selection_update, R.id.menu_selection_export};
+        for (int id : items) {
+            MenuItem item = toolbar.getMenu().findItem(id);
+            if (item != null)
+                ControlHelper.setEnabled(item, count > 0);
+        }
+    }
+
+
+    protected void hideSelectionArea() {
+        if (mSelectionAreaView != null)
+            mSelectionAreaView.setVisibility(View.GONE);
+
+        if (mMap != null)
+            mMap.setSelection(null);
+    }
+
+
+    protected void selectArea(float[] points, boolean isBox) {
+        if (mSelectedLayer == null)
+            return;
+
+        mMap.selectArea(mSelectedLayer, points, isBox, new AreaSelector.OnSelectionListener() {
+            @Override
+            public void onSelectionFinished(AreaSelector.Selection selection) {
+                if (mMode != MODE_SELECT_AREA || selection.getLayer() != mSelectedLayer)
+                    return;
+
+                mMap.setSelection(selection);
+                defineMenuItems();
+            }
+        });
+    }
+
+
+    protected void deleteSelection() {
+        final AreaSelector.Selection selection = mMap.getSelection();
+        if (null == selection || selection.size() == 0)
+            return;
+
+        new AlertDialog.Builder(mActivity)
+                .setMessage(getString(R.string.delete_features_confirm, selection.size()))
+                .setNegativeButton(android.R.string.cancel, null)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final VectorLayer layer = selection.getLayer();
+                        final FeatureIdList ids = selection.getIds();
+                        mMap.setSelection(null);
+                        defineMenuItems();
+                        runBulkOperation(new Runnable() {
+                            @Override
+                            public void run() {
+                                BulkFeatureOperations.delete(layer, ids);
+                            }
+                        }, getString(R.string.features_deleted, ids.size()), null);
+                    }
+                }).show();
+    }
+
+
+    protected void updateSelection() {
+        final AreaSelector.Selection selection = mMap.getSelection();
+        if (null == selection || selection.size() == 0)
+            return;
+
+        final List<Field> fields = new ArrayList<>();
+        for (Field field : selection.getLayer().getFields()) {
+            if (BulkFeatureOperations.isUpdatable(field))
+                fields.add(field);
+        }
+
+        if (fields.isEmpty()) {
+            Toast.makeText(getContext(), R.string.no_updatable_fields, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String[] aliases = new String[fields.size()];
+        for (int i = 0; i < fields.size(); i++)
+            aliases[i] = fields.get(i).getAlias();
+
+        BulkUpdateDialog dialog = new BulkUpdateDialog();
+        dialog.setFields(aliases).setOnValueChooseListener(new BulkUpdateDialog.OnValueChooseListener() {
+            @Override
+            public void OnValueChosen(int field, final String value) {
+                final Field chosen = fields.get(field);
+                runBulkOperation(new Runnable() {
+                    @Override
+                    public void run() {
+                        BulkFeatureOperations.update(selection.getLayer(), selection.getIds(), chosen, value);
+                    }
+                }, getString(R.string.features_updated, selection.size()), getString(R.string.invalid_field_value));
+            }
+        }).setTitle(getString(R.string.set_field_value))
+                .show(mActivity.getSupportFragmentManager(), "bulk_update");
+    }
+
+
+    protected void exportSelection() {
+        final AreaSelector.Selection selection = mMap.getSelection();
+        if (null == selection || selection.size() == 0)
+            return;
+
+        String name = selection.getLayer().getPath().getName() + "_" +
+                new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".csv";
+        final File file = new File(mMap.getMap().getPath(), name);
+        runBulkOperation(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BulkFeatureOperations.exportCsv(selection.getLayer(), selection.getIds(), file);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, getString(R.string.selection_exported, file.getPath()), getString(R.string.selection_export_failed));
+    }
+
+
+    /**
+     * Run the operation in the background and show the message when it is finished
+     *
+     * @param failMessage the message if the operation throws a runtime exception
+     */
+    protected void runBulkOperation(final Runnable operation, final String doneMessage, final String failMessage) {
+        // the application context outlives the fragment if it is closed during the operation
+        final Context context = mActivity.getApplicationContext();
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... voids) {
+                try {
+                    operation.run();
+                    return doneMessage;
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    return failMessage;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String message) {
+                if (null != message)
+                    Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+            }
+        }.execute();
+    }
+
+
     public void deleteFeature() {
         final long selectedFeatureId = mEditLayerOverlay.getSelectedFeatureId();
+        final FeatureFilterRegistry filters = FeatureFilterRegistry.getInstance(mActivity);
         mSelectedLayer.hideFeature(selectedFeatureId);
+        filters.setHidden(mSelectedLayer, selectedFeatureId, true);
         mEditLayerOverlay.setSelectedFeature(null);
         defineMenuItems();
         final VectorLayer layer = mSelectedLayer;
@@ -619,6 +867,7 @@ public class MapFragment
                     @Override
                     public void onClick(View v) {
                         layer.showFeature(selectedFeatureId);
+                        filters.setHidden(layer, selectedFeatureId, false);
                         mEditLayerOverlay.setSelectedFeature(selectedFeatureId);
                         defineMenuItems();
                     }
@@ -629,8 +878,10 @@ public class MapFragment
                         super.onDismissed(snackbar, event);
                         if (event == DISMISS_EVENT_MANUAL)
                             return;
-                        if (event != DISMISS_EVENT_ACTION)
+                        if (event != DISMISS_EVENT_ACTION) {
                             layer.deleteAddChanges(selectedFeatureId);
+                            filters.setHidden(layer, selectedFeatureId, false);
+                        }
                     }
 
                     @Override
@@ -654,7 +905,7 @@ public class MapFragment
     {
         View view = inflater.inflate(R.layout.fragment_map, container, false);
 
-        mCurrentLocationOverlay = new CurrentLocationOverlay(mActivity, mMap);
+        mCurrentLocationOverlay = new LocationMarkerOverlay(mActivity, mMap);
         mCurrentLocationOverlay.setStandingMarker(R.mipmap.ic_location_standing);
         mCurrentLocationOverlay.setMovingMarker(R.mipmap.ic_location_moving);
         mCurrentLocationOverlay.setAutopanningEnabled(true);
@@ -677,6 +928,21 @@ public class MapFragment
         }
         mMap.invalidate();
 
+        mSelectionAreaView = new SelectionAreaView(mActivity);
+        mSelectionAreaView.setVisibility(View.GONE);
+        mSelectionAreaView.setOnAreaDrawnListener(new SelectionAreaView.OnAreaDrawnListener() {
+            @Override
+            public void onAreaDrawn(float[] points, boolean isBox) {
+                selectArea(points, isBox);
+            }
+        });
+        if (mMapRelativeLayout != null) {
+            mMapRelativeLayout.addView(
+                    mSelectionAreaView, 1, new RelativeLayout.LayoutParams(
+                            RelativeLayout.LayoutParams.MATCH_PARENT,
+                            RelativeLayout.LayoutParams.MATCH_PARENT));
+        }
+
         mMainButton = view.findViewById(R.id.multiple_actions);
         mAddPointButton = (FloatingActionButton) view.findViewById(R.id.add_point_by_tap);
         mAddPointButton.setOnClickListener(this);
@@ -708,6 +974,17 @@ public class MapFragment
     }
 
 
+    @Override
+    public void onDestroy()
+    {
+        if (mMap != null) {
+            mMap.release();
+        }
+
+        super.onDestroy();
+    }
+
+
     @Override
     public void onDestroyView()
     {
@@ -831,29 +1108,30 @@ public class MapFragment
             float percent)
     {
         //Log.d(Constants.TAG, "onLayerDrawFinished: " + id + " percent " + percent);
-        /*if (percent >= 1.0)
-            mLayerDrawn++;
-        MainActivity activity = (MainActivity) mActivity;
-        if (null != activity){
+        if (null == mActivity)
+            return;
+
+        if (id == mMap.getMap().getId()) {
             if (percent >= 1.0) {
-                if (id == mMap.getTopVisibleLayerId()) {
-                    activity.onRefresh(false, 0);
-                } else {
-                    activity.onRefresh(true, (mLayerDrawn * 100) / mMap.getVisibleLayerCount());
-                }
-            }
-        }*/
-        if (percent >= 1.0 && id == mMap.getMap().getId()) {
-            if (null != mActivity) {
+                mLayerDrawProgress.clear();
                 mActivity.onRefresh(false);
             }
+            return;
         }
+
+        mLayerDrawProgress.put(id, percent);
+        float total = 0;
+        for (int i = 0; i < mLayerDrawProgress.size(); i++)
+            total += mLayerDrawProgress.valueAt(i);
+
+        mActivity.onRefresh(true, (int) (total * 100 / mLayerDrawProgress.size()));
     }
 
 
     @Override
     public void onLayerDrawStarted()
     {
+        mLayerDrawProgress.clear();
         if (null != mActivity) {
             mActivity.onRefresh(true);
         }
@@ -988,6 +1266,7 @@ public class MapFragment
             edit.putLong(SettingsConstantsUI.KEY_PREF_SCROLL_Y, Double.doubleToRawLongBits(point.getY()));
 
             mMap.removeListener(this);
+            mMap.cancelHitTest();
         }
         edit.commit();
 
@@ -1022,7 +1301,13 @@ public class MapFragment
             mRuler.setVisibility(View.GONE);
 
         if (null != mMap) {
-            mMap.getMap().setBackground(mApp.getMapBackground());
+            mMap.setMapBackground(mApp.getMapBackground());
+            String mapBackground = prefs.getString(SettingsConstantsUI.KEY_PREF_MAP_BG, null);
+            final boolean isBackgroundChanged = mMapBackground != null && !mMapBackground.equals(mapBackground);
+            mMapBackground = mapBackground;
+            final boolean isClusteringChanged = mMap.setClusterPoints(prefs.getBoolean(KEY_PREF_CLUSTER_POINTS, false));
+            mMap.setShowMetrics(prefs.getBoolean(KEY_PREF_SHOW_RENDER_METRICS, false));
+
             float mMapZoom;
             try {
                 mMapZoom = prefs.getFloat(SettingsConstantsUI.KEY_PREF_ZOOM_LEVEL, mMap.getMinZoom());
@@ -1044,7 +1329,14 @@ public class MapFragment
             mMap.post(new Runnable() {
                 @Override
                 public void run() {
-                    refresh();
+                    // tiles rendered before pause are still valid unless the background or the
+                    // point layers mode changed
+                    if (isClusteringChanged)
+                        mMap.refresh();
+                    else if (isBackgroundChanged)
+                        mMap.recomposite();
+                    else
+                        mMap.drawMapDrawable();
                 }
             });
         }
@@ -1421,52 +1713,27 @@ public class MapFragment
             return;
         }
 
-        double dMinX = event.getX() - mTolerancePX;
-        double dMaxX = event.getX() + mTolerancePX;
-        double dMinY = event.getY() - mTolerancePX;
-        double dMaxY = event.getY() + mTolerancePX;
-
-        GeoEnvelope mapEnv = mMap.screenToMap(new GeoEnvelope(dMinX, dMaxX, dMinY, dMaxY));
-        if (null == mapEnv) {
-            return;
-        }
-
-        //show actions dialog
-        List<ILayer> layers = mMap.getVectorLayersByType(GeoConstants.GTAnyCheck);
-        List<Long> items = null;
-        VectorLayer vectorLayer = null;
-        boolean intersects = false;
-        for (ILayer layer : layers) {
-            if (!layer.isValid()) {
-                continue;
-            }
-            ILayerView layerView = (ILayerView) layer;
-            if (!layerView.isVisible()) {
-                continue;
-            }
-
-            vectorLayer = (VectorLayer) layer;
-            items = vectorLayer.query(mapEnv);
-            if (!items.isEmpty()) {
-                intersects = true;
-                break;
-            }
-        }
+        //show actions dialog for the nearest feature
+        mMap.hitTest(event.getX(), event.getY(), mTolerancePX, new FeatureHitTester.OnHitTestListener()
+        {
+            @Override
+            public void onHitTestFinished(List<FeatureHitTester.Hit> hits)
+            {
+                if (hits.isEmpty() || !(mMode == MODE_NORMAL || mMode == MODE_SELECT_ACTION)) {
+                    return;
+                }
 
-        if (intersects) {
-            if (mSelectedLayer != null)
-                mSelectedLayer.setLocked(false);
+                FeatureHitTester.Hit hit = hits.get(0);
+                if (mSelectedLayer != null)
+                    mSelectedLayer.setLocked(false);
 
-            mSelectedLayer = vectorLayer;
-            mEditLayerOverlay.setSelectedLayer(vectorLayer);
-            for (int i = 0; i < items.size(); i++) {    // FIXME hack for bad RTree cache
-                long featureId = items.get(i);
-                GeoGeometry geometry = mSelectedLayer.getGeometryForId(featureId);
-                if (geometry != null)
-                    mEditLayerOverlay.setSelectedFeature(featureId);
+                mSelectedLayer = hit.getLayer();
+                mEditLayerOverlay.setSelectedLayer(mSelectedLayer);
+                mEditLayerOverlay.setSelectedFeature(hit.getFeatureId());
+                setMode(MODE_SELECT_ACTION);
+                mMap.postInvalidate();
             }
-            setMode(MODE_SELECT_ACTION);
-        }
+        });
 
         showOverlayPoint(event);
         //set select action mode
@@ -1552,8 +1819,12 @@ public class MapFragment
 
                 break;
             default:
-                if (!mRulerOverlay.isMeasuring())
+                if (!mRulerOverlay.isMeasuring()) {
+                    if (mMode == MODE_NORMAL && mMap.zoomToCluster(event.getX(), event.getY(), mTolerancePX))
+                        break;
+
                     hideOverlayPoint();
+                }
                 break;
         }
     }
@@ -1562,21 +1833,21 @@ public class MapFragment
     @Override
     public void panStart(MotionEvent e)
     {
-
+        mMap.cancelRender();
     }
 
 
     @Override
     public void panMoveTo(MotionEvent e)
     {
-
+        mMap.cancelRender();
     }
 
 
     @Override
     public void panStop()
     {
-
+        mMap.drawMapDrawable();
     }
 
 
@@ -1814,8 +2085,122 @@ public class MapFragment
     public void refresh()
     {
         if (null != mMap) {
-            mMap.drawMapDrawable();
+            mMap.refresh();
+        }
+    }
+
+
+    public void showAttributeSearch()
+    {
+        if (null == mMap || !(mMode == MODE_NORMAL || mMode == MODE_SELECT_ACTION)) {
+            return;
         }
+
+        AttributeSearchDialog dialog = new AttributeSearchDialog();
+        dialog.setMap(mMap).setOnFeatureChooseListener(new AttributeSearchDialog.OnFeatureChooseListener()
+        {
+            @Override
+            public void onFeatureChosen(AttributeSearchIndex.Hit hit)
+            {
+                if (!(mMode == MODE_NORMAL || mMode == MODE_SELECT_ACTION)) {
+                    return;
+                }
+
+                if (mSelectedLayer != null)
+                    mSelectedLayer.setLocked(false);
+
+                mSelectedLayer = hit.getLayer();
+                mEditLayerOverlay.setSelectedLayer(mSelectedLayer);
+                mEditLayerOverlay.setSelectedFeature(hit.getFeatureId());
+                setMode(MODE_SELECT_ACTION);
+                mMap.zoomToFeature(hit.getLayer(), hit.getFeatureId());
+            }
+        }).setTitle(getString(R.string.search_attributes))
+                .show(mActivity.getSupportFragmentManager(), "attribute_search");
+    }
+
+
+    public void showFeatureFilter()
+    {
+        if (null == mMap) {
+            return;
+        }
+
+        final FeatureFilterRegistry filters = FeatureFilterRegistry.getInstance(mActivity);
+        final List<VectorLayer> layers = new ArrayList<>();
+        for (ILayer layer : mMap.getVectorLayersByType(GeoConstants.GTAnyCheck)) {
+            if (layer.isValid()) {
+                layers.add((VectorLayer) layer);
+            }
+        }
+        if (layers.isEmpty()) {
+            return;
+        }
+
+        String[] names = new String[layers.size()];
+        String[] expressions = new String[layers.size()];
+        for (int i = 0; i < layers.size(); i++) {
+            names[i] = layers.get(i).getName();
+            expressions[i] = filters.getExpression(layers.get(i));
+        }
+
+        FeatureFilterDialog dialog = new FeatureFilterDialog();
+        dialog.setLayers(names, expressions, Math.max(layers.indexOf(mSelectedLayer), 0))
+                .setOnFilterChooseListener(new FeatureFilterDialog.OnFilterChooseListener()
+        {
+            @Override
+            public void onFilterChosen(
+                    int layer,
+                    String expression)
+            {
+                try {
+                    filters.setFilter(layers.get(layer), expression);
+                } catch (ParseException e) {
+                    Toast.makeText(mActivity, getString(R.string.invalid_filter,
+                            e.getErrorOffset() + 1, e.getMessage()), Toast.LENGTH_LONG).show();
+                }
+            }
+        }).setTitle(getString(R.string.filter_features))
+                .show(mActivity.getSupportFragmentManager(), "feature_filter");
+    }
+
+
+    public void exportRenderMetrics()
+    {
+        if (null == mMap) {
+            return;
+        }
+
+        String name = "render_metrics_" +
+                new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".csv";
+        final File file = new File(mMap.getMap().getPath(), name);
+        final RenderMetrics metrics = mMap.getMetrics();
+        final Context context = mActivity.getApplicationContext();
+
+        // the application context outlives the fragment if it is closed during the export
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... voids)
+            {
+                try {
+                    metrics.exportCsv(file);
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+
+
+            @Override
+            protected void onPostExecute(Boolean result)
+            {
+                String message = result ? context.getString(
+                        R.string.render_metrics_exported, file.getPath()) : context.getString(
+                        R.string.render_metrics_export_failed);
+                Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+            }
+        }.execute();
     }
 
     public boolean isDialogShown() {
@@ -0,0 +1,474 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.mobile.util.ArrayUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the layer features which lie inside a box or a freehand lasso area. The candidates are
+ * taken from the layer spatial index, a feature which envelope is inside the area is selected
+ * without reading its geometry, the others are tested vertex by vertex. The selection runs in the
+ * background and only the result of the latest request is delivered.
+ */
+public class AreaSelector
+{
+    protected final SpatialIndexRegistry mIndexes;
+    protected final ExecutorService      mExecutor;
+    protected final Handler              mHandler;
+    protected final AtomicInteger        mGeneration;
+
+
+    public interface OnSelectionListener
+    {
+        /**
+         * Called on the main thread
+         */
+        void onSelectionFinished(Selection selection);
+    }
+
+
+    public AreaSelector(SpatialIndexRegistry indexes)
+    {
+        mIndexes = indexes;
+        mExecutor = Executors.newSingleThreadExecutor();
+        mHandler = new Handler(Looper.getMainLooper());
+        mGeneration = new AtomicInteger();
+    }
+
+
+    /**
+     * @param area
+     *         The area vertices in map units, a box is given by two opposite corners
+     */
+    public void select(
+            final VectorLayer layer,
+            final List<GeoPoint> area,
+            final boolean isBox,
+            final OnSelectionListener listener)
+    {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final Selection selection = select(layer, new Area(area, isBox), generation);
+                if (null == selection) {
+                    return;
+                }
+
+                mHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (generation == mGeneration.get()) {
+                            listener.onSelectionFinished(selection);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    public void cancel()
+    {
+        mGeneration.incrementAndGet();
+    }
+
+
+    public void shutdown()
+    {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+
+    protected Selection select(
+            VectorLayer layer,
+            Area area,
+            int generation)
+    {
+        GeoEnvelope bounds = area.getEnvelope();
+        FeatureIdList candidates = new FeatureIdList();
+        List<GeoEnvelope> envelopes = new ArrayList<>();
+        if (!mIndexes.query(layer, bounds, candidates, envelopes)) {
+            // the stored index is being built, the layer cache is used meanwhile
+            List<Long> cachedIds = layer.query(bounds);
+            if (null != cachedIds) {
+                candidates.addAll(cachedIds);
+                candidates.sort();
+            }
+            envelopes = null;
+        }
+
+        Selection selection = new Selection(layer, area, candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            if (generation != mGeneration.get()) {
+                return null;
+            }
+
+            long id = candidates.get(i);
+            GeoEnvelope envelope = null == envelopes ? null : envelopes.get(i);
+            if (null == envelope || !area.contains(envelope)) {
+                GeoGeometry geometry = layer.getGeometryForId(id);
+                if (null == geometry || !area.contains(geometry)) {
+                    continue;
+                }
+                envelope = geometry.getEnvelope();
+            }
+
+            selection.add(id, (envelope.getMinX() + envelope.getMaxX()) / 2,
+                    (envelope.getMinY() + envelope.getMaxY()) / 2);
+        }
+        return selection;
+    }
+
+
+    /**
+     * A box or a simple polygon in map units
+     */
+    public static class Area
+    {
+        protected final double[]    mX;
+        protected final double[]    mY;
+        protected final boolean     mIsBox;
+        protected final GeoEnvelope mEnvelope;
+
+
+        public Area(
+                List<GeoPoint> points,
+                boolean isBox)
+        {
+            mIsBox = isBox;
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (GeoPoint point : points) {
+                minX = Math.min(minX, point.getX());
+                minY = Math.min(minY, point.getY());
+                maxX = Math.max(maxX, point.getX());
+                maxY = Math.max(maxY, point.getY());
+            }
+            mEnvelope = new GeoEnvelope(minX, maxX, minY, maxY);
+
+            if (isBox) {
+                mX = new double[] {minX, maxX, maxX, minX};
+                mY = new double[] {minY, minY, maxY, maxY};
+            } else {
+                mX = new double[points.size()];
+                mY = new double[points.size()];
+                for (int i = 0; i < points.size(); i++) {
+                    mX[i] = points.get(i).getX();
+                    mY[i] = points.get(i).getY();
+                }
+            }
+        }
+
+
+        public GeoEnvelope getEnvelope()
+        {
+            return mEnvelope;
+        }
+
+
+        public int getVertexCount()
+        {
+            return mX.length;
+        }
+
+
+        public double getX(int vertex)
+        {
+            return mX[vertex];
+        }
+
+
+        public double getY(int vertex)
+        {
+            return mY[vertex];
+        }
+
+
+        public boolean contains(
+                double x,
+                double y)
+        {
+            if (x < mEnvelope.getMinX() || x > mEnvelope.getMaxX() || y < mEnvelope.getMinY()
+                    || y > mEnvelope.getMaxY()) {
+                return false;
+            }
+
+            if (mIsBox) {
+                return true;
+            }
+
+            boolean inside = false;
+            for (int i = 0, j = mX.length - 1; i < mX.length; j = i++) {
+                if ((mY[i] > y) != (mY[j] > y)
+                        && x < (mX[j] - mX[i]) * (y - mY[i]) / (mY[j] - mY[i]) + mX[i]) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+
+
+        /**
+         * @return true if the segment crosses the area boundary
+         */
+        public boolean crosses(
+                double ax,
+                double ay,
+                double bx,
+                double by)
+        {
+            if (mIsBox) {
+                // both ends are inside the box if it contains the geometry vertices
+                return false;
+            }
+
+            for (int i = 0, j = mX.length - 1; i < mX.length; j = i++) {
+                if (intersects(ax, ay, bx, by, mX[j], mY[j], mX[i], mY[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+
+        public boolean contains(GeoEnvelope envelope)
+        {
+            double minX = envelope.getMinX(), minY = envelope.getMinY();
+            double maxX = envelope.getMaxX(), maxY = envelope.getMaxY();
+            return contains(minX, minY) && contains(maxX, minY) && contains(maxX, maxY)
+                   && contains(minX, maxY) && !crosses(minX, minY, maxX, minY)
+                   && !crosses(maxX, minY, maxX, maxY) && !crosses(maxX, maxY, minX, maxY)
+                   && !crosses(minX, maxY, minX, minY);
+        }
+
+
+        public boolean contains(GeoGeometry geometry)
+        {
+            if (geometry instanceof GeoPoint) {
+                GeoPoint point = (GeoPoint) geometry;
+                return contains(point.getX(), point.getY());
+            }
+
+            if (geometry instanceof GeoLineString) {
+                return contains(((GeoLineString) geometry).getPoints());
+            }
+
+            if (geometry instanceof GeoPolygon) {
+                // the inner rings are inside the outer one
+                return contains(((GeoPolygon) geometry).getOuterRing().getPoints());
+            }
+
+            if (geometry instanceof GeoMultiPoint) {
+                GeoMultiPoint multiPoint = (GeoMultiPoint) geometry;
+                for (int i = 0; i < multiPoint.size(); i++) {
+                    if (!contains(multiPoint.get(i))) {
+                        return false;
+                    }
+                }
+                return multiPoint.size() > 0;
+            }
+
+            if (geometry instanceof GeoMultiLineString) {
+                GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+                for (int i = 0; i < multiLine.size(); i++) {
+                    if (!contains(multiLine.get(i))) {
+                        return false;
+                    }
+                }
+                return multiLine.size() > 0;
+            }
+
+            if (geometry instanceof GeoMultiPolygon) {
+                GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+                for (int i = 0; i < multiPolygon.size(); i++) {
+                    if (!contains(multiPolygon.get(i))) {
+                        return false;
+                    }
+                }
+                return multiPolygon.size() > 0;
+            }
+
+            return false;
+        }
+
+
+        protected boolean contains(List<GeoPoint> points)
+        {
+            if (points.isEmpty()) {
+                return false;
+            }
+
+            GeoPoint previous = null;
+            for (GeoPoint point : points) {
+                if (!contains(point.getX(), point.getY())) {
+                    return false;
+                }
+                if (null != previous && crosses(previous.getX(), previous.getY(), point.getX(),
+                        point.getY())) {
+                    return false;
+                }
+                previous = point;
+            }
+            return true;
+        }
+
+
+        protected static boolean intersects(
+                double ax,
+                double ay,
+                double bx,
+                double by,
+                double cx,
+                double cy,
+                double dx,
+                double dy)
+        {
+            double d1 = orientation(cx, cy, dx, dy, ax, ay);
+            double d2 = orientation(cx, cy, dx, dy, bx, by);
+            double d3 = orientation(ax, ay, bx, by, cx, cy);
+            double d4 = orientation(ax, ay, bx, by, dx, dy);
+            return (d1 > 0 && d2 < 0 || d1 < 0 && d2 > 0) && (d3 > 0 && d4 < 0 || d3 < 0 && d4 > 0);
+        }
+
+
+        protected static double orientation(
+                double ax,
+                double ay,
+                double bx,
+                double by,
+                double cx,
+                double cy)
+        {
+            return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        }
+    }
+
+
+    /**
+     * The selected feature ids and the centers of their envelopes. The centers are kept in the
+     * selection order, they are not bound to the ids which may be sorted.
+     */
+    public static class Selection
+    {
+        protected final VectorLayer   mLayer;
+        protected final Area          mArea;
+        protected final FeatureIdList mIds;
+        protected double[] mCenters;
+        protected int      mCenterCount;
+
+
+        public Selection(
+                VectorLayer layer,
+                Area area,
+                int capacity)
+        {
+            mLayer = layer;
+            mArea = area;
+            mIds = new FeatureIdList(capacity);
+            mCenters = new double[Math.max(capacity, 1) * 2];
+        }
+
+
+        protected void add(
+                long id,
+                double x,
+                double y)
+        {
+            int index = mCenterCount * 2;
+            if (index + 2 > mCenters.length) {
+                mCenters = ArrayUtil.copyOf(mCenters, mCenters.length * 2);
+            }
+            mCenters[index] = x;
+            mCenters[index + 1] = y;
+            mCenterCount++;
+            mIds.add(id);
+        }
+
+
+        public VectorLayer getLayer()
+        {
+            return mLayer;
+        }
+
+
+        public Area getArea()
+        {
+            return mArea;
+        }
+
+
+        public FeatureIdList getIds()
+        {
+            return mIds;
+        }
+
+
+        public int size()
+        {
+            return mIds.size();
+        }
+
+
+        public int getCenterCount()
+        {
+            return mCenterCount;
+        }
+
+
+        public double getCenterX(int position)
+        {
+            return mCenters[position * 2];
+        }
+
+
+        public double getCenterY(int position)
+        {
+            return mCenters[position * 2 + 1];
+        }
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.Field;
+import com.nextgis.maplib.map.MapBase;
+import com.nextgis.maplib.map.MapContentProviderHelper;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Full-text index of the string fields of the vector layers. Each layer table has its own FTS
+ * table with the feature id as the document id, kept current by the triggers of the layer table,
+ * so the changes made by the editing and the sync are indexed alike. The index is rebuilt when the
+ * string fields of the layer change, e.g. the layer table is created again.
+ * <p/>
+ * The hits are ranked by the matched words per word of the feature text, so a long text matching
+ * a word many times does not rank above a short one matching it once. All matches of every layer
+ * are ranked and only the best ones are kept, FTS3 returns the matches in the document order.
+ */
+public class AttributeSearchIndex
+{
+    protected static final String FTS_SUFFIX     = "_fts";
+    protected static final String INSERT_TRIGGER = "_fts_insert";
+    protected static final String UPDATE_TRIGGER = "_fts_update";
+    protected static final String DELETE_TRIGGER = "_fts_delete";
+
+    // the tokenizer folding the case of all letters is not built in before SQLite 3.7.13
+    protected static final String[] TOKENIZERS = {"unicode61", "simple"};
+
+    protected final ExecutorService mExecutor;
+    protected final Handler         mHandler;
+    protected final AtomicInteger   mGeneration;
+
+
+    public interface OnSearchListener
+    {
+        /**
+         * Called on the main thread
+         *
+         * @param hits
+         *         The found features, the best matches first
+         */
+        void onSearchFinished(List<Hit> hits);
+    }
+
+
+    public AttributeSearchIndex()
+    {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mHandler = new Handler(Looper.getMainLooper());
+        mGeneration = new AtomicInteger();
+    }
+
+
+    /**
+     * Find the features having all words of the text as word prefixes in their string fields
+     *
+     * @param layers
+     *         The searched layers
+     * @param listener
+     *         The listener to receive the result, it is not called if a newer search is started
+     */
+    public void search(
+            final List<VectorLayer> layers,
+            String text,
+            final int limit,
+            final OnSearchListener listener)
+    {
+        final int generation = mGeneration.incrementAndGet();
+        final String match = getMatch(text);
+
+        mExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // the worst kept hit is on the top of the queue
+                PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, HIT_ORDER);
+                if (null != match) {
+                    for (int i = 0; i < layers.size(); i++) {
+                        if (generation != mGeneration.get()) {
+                            return;
+                        }
+                        searchLayer(layers.get(i), i, match, limit, best);
+                    }
+                }
+
+                final List<Hit> result = new ArrayList<>(best);
+                for (VectorLayer layer : layers) {
+                    if (generation != mGeneration.get()) {
+                        return;
+                    }
+                    readSnippets(layer, match, result);
+                }
+                Collections.sort(result, Collections.reverseOrder(HIT_ORDER));
+
+                mHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (generation == mGeneration.get()) {
+                            listener.onSearchFinished(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Build the missing or outdated indexes of the layers in the background, so the first search
+     * does not wait for them
+     */
+    public void prepare(final List<VectorLayer> layers)
+    {
+        mExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (VectorLayer layer : layers) {
+                    prepare(layer);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Drop the indexes of the deleted layer tables in the background, the triggers are dropped
+     * with the tables
+     */
+    public void dropOrphans()
+    {
+        mExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    SQLiteDatabase db = getDatabase();
+                    List<String> tables = new ArrayList<>();
+                    Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master AS fts "
+                            + "WHERE type = 'table' AND sql LIKE 'CREATE VIRTUAL TABLE%' "
+                            + "AND name LIKE ? ESCAPE '\\' AND NOT EXISTS (SELECT 1 "
+                            + "FROM sqlite_master WHERE type = 'table' AND name || ? = fts.name)",
+                            new String[] {"%\\" + FTS_SUFFIX, FTS_SUFFIX});
+                    try {
+                        while (cursor.moveToNext()) {
+                            tables.add(cursor.getString(0));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+
+                    synchronized (AttributeSearchIndex.this) {
+                        for (String table : tables) {
+                            db.execSQL("DROP TABLE IF EXISTS \"" + table + "\"");
+                        }
+                    }
+                } catch (SQLException | ClassCastException e) {
+                    Log.w(TAG, "Failed to drop the indexes of the deleted layers: "
+                            + e.getMessage());
+                }
+            }
+        });
+    }
+
+
+    public void cancel()
+    {
+        mGeneration.incrementAndGet();
+    }
+
+
+    public void shutdown()
+    {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+
+    /**
+     * Rank all matches of the layer and keep the best ones of all layers in the queue
+     */
+    protected void searchLayer(
+            VectorLayer layer,
+            int layerOrder,
+            String match,
+            int limit,
+            PriorityQueue<Hit> best)
+    {
+        if (!prepare(layer)) {
+            return;
+        }
+
+        String fts = getFtsTable(layer);
+        Cursor cursor = null;
+        try {
+            // the words of the text are told by the spaces, the fields are joined by them
+            cursor = getDatabase().rawQuery("SELECT docid, offsets(\"" + fts + "\"), "
+                    + "length(content) - length(replace(content, ' ', '')) + 1 FROM \"" + fts
+                    + "\" WHERE \"" + fts + "\" MATCH ?", new String[] {match});
+            while (cursor.moveToNext()) {
+                double score =
+                        getMatchCount(cursor.getString(1)) / Math.sqrt(cursor.getInt(2));
+                Hit worst = best.peek();
+                if (best.size() >= limit && null != worst && score < worst.mScore) {
+                    continue;
+                }
+
+                best.add(new Hit(layer, layerOrder, cursor.getLong(0), score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Failed to search " + layer.getName() + ": " + e.getMessage());
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+
+    /**
+     * Read the snippets of the hits of the layer, only of the kept hits as they are slow to make
+     */
+    protected void readSnippets(
+            VectorLayer layer,
+            String match,
+            List<Hit> hits)
+    {
+        LongSparseArray<Hit> layerHits = new LongSparseArray<>();
+        StringBuilder ids = new StringBuilder();
+        for (Hit hit : hits) {
+            if (hit.mLayer == layer) {
+                layerHits.put(hit.mFeatureId, hit);
+                ids.append(ids.length() > 0 ? "," : "").append(hit.mFeatureId);
+            }
+        }
+        if (layerHits.size() == 0) {
+            return;
+        }
+
+        String fts = getFtsTable(layer);
+        Cursor cursor = null;
+        try {
+            cursor = getDatabase().rawQuery("SELECT docid, snippet(\"" + fts + "\", '', '', "
+                    + "'...') FROM \"" + fts + "\" WHERE \"" + fts + "\" MATCH ? AND docid IN ("
+                    + ids + ")", new String[] {match});
+            while (cursor.moveToNext()) {
+                Hit hit = layerHits.get(cursor.getLong(0));
+                if (null != hit) {
+                    hit.mSnippet = cursor.getString(1);
+                }
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Failed to search " + layer.getName() + ": " + e.getMessage());
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+
+    /**
+     * Create or rebuild the index of the layer if its string fields differ from the indexed ones
+     *
+     * @return false if the layer has no string fields or the index cannot be built
+     */
+    protected boolean prepare(VectorLayer layer)
+    {
+        String table = layer.getPath().getName();
+        String fts = getFtsTable(layer);
+
+        List<String> columns = new ArrayList<>();
+        for (Field field : layer.getFields()) {
+            if (field.getType() == GeoConstants.FTString) {
+                columns.add(field.getName());
+            }
+        }
+
+        SQLiteDatabase db;
+        try {
+            db = getDatabase();
+        } catch (ClassCastException e) {
+            return false;
+        }
+
+        String insert = "CREATE TRIGGER \"" + table + INSERT_TRIGGER + "\" AFTER INSERT ON \""
+                + table + "\" BEGIN INSERT INTO \"" + fts + "\" (docid, content) VALUES (NEW."
+                + FIELD_ID + ", " + getContent(columns, "NEW.") + "); END";
+        String update = "CREATE TRIGGER \"" + table + UPDATE_TRIGGER + "\" AFTER UPDATE OF "
+                + getColumns(columns) + FIELD_ID + " ON \"" + table + "\" BEGIN DELETE FROM \""
+                + fts + "\" WHERE docid = OLD." + FIELD_ID + "; INSERT INTO \"" + fts
+                + "\" (docid, content) VALUES (NEW." + FIELD_ID + ", "
+                + getContent(columns, "NEW.") + "); END";
+        String delete = "CREATE TRIGGER \"" + table + DELETE_TRIGGER + "\" AFTER DELETE ON \""
+                + table + "\" BEGIN DELETE FROM \"" + fts + "\" WHERE docid = OLD." + FIELD_ID
+                + "; END";
+
+        synchronized (this) {
+            // the trigger text holds the indexed fields, it is the version of the index
+            if (!columns.isEmpty() && insert.equals(getTriggerSql(db, table + INSERT_TRIGGER))) {
+                return true;
+            }
+
+            db.beginTransaction();
+            try {
+                db.execSQL("DROP TRIGGER IF EXISTS \"" + table + INSERT_TRIGGER + "\"");
+                db.execSQL("DROP TRIGGER IF EXISTS \"" + table + UPDATE_TRIGGER + "\"");
+                db.execSQL("DROP TRIGGER IF EXISTS \"" + table + DELETE_TRIGGER + "\"");
+                db.execSQL("DROP TABLE IF EXISTS \"" + fts + "\"");
+
+                if (!columns.isEmpty()) {
+                    createFtsTable(db, fts);
+                    db.execSQL("INSERT INTO \"" + fts + "\" (docid, content) SELECT " + FIELD_ID
+                            + ", " + getContent(columns, "") + " FROM \"" + table + "\"");
+                    db.execSQL(insert);
+                    db.execSQL(update);
+                    db.execSQL(delete);
+                }
+                db.setTransactionSuccessful();
+            } catch (SQLException e) {
+                Log.w(TAG, "Failed to index " + table + ": " + e.getMessage());
+                return false;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        return !columns.isEmpty();
+    }
+
+
+    protected static void createFtsTable(
+            SQLiteDatabase db,
+            String fts)
+    {
+        for (int i = 0; ; i++) {
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE \"" + fts + "\" USING fts3(content, tokenize="
+                        + TOKENIZERS[i] + ")");
+                return;
+            } catch (SQLException e) {
+                // an unknown tokenizer, the last one is always there
+                if (i == TOKENIZERS.length - 1) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+
+    protected static String getTriggerSql(
+            SQLiteDatabase db,
+            String trigger)
+    {
+        Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE type = 'trigger' AND name = ?",
+                new String[] {trigger});
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    protected static String getColumns(List<String> columns)
+    {
+        StringBuilder result = new StringBuilder();
+        for (String column : columns) {
+            result.append('"').append(column).append("\", ");
+        }
+        return result.toString();
+    }
+
+
+    protected static String getContent(
+            List<String> columns,
+            String prefix)
+    {
+        StringBuilder content = new StringBuilder();
+        for (String column : columns) {
+            if (content.length() > 0) {
+                content.append(" || ' ' || ");
+            }
+            content.append("coalesce(").append(prefix).append('"').append(column).append("\", '')");
+        }
+        return content.toString();
+    }
+
+
+    /**
+     * @return the FTS query of the word prefixes of the text or null if it has no words
+     */
+    protected static String getMatch(String text)
+    {
+        StringBuilder match = new StringBuilder();
+        // the FTS syntax characters are word separators for the default tokenizer anyway
+        for (String word : text.split("[\\s\"*^():\\-]+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(word).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+
+    /**
+     * @return the number of the matched words, the offsets are four numbers per match
+     */
+    protected static int getMatchCount(String offsets)
+    {
+        if (TextUtils.isEmpty(offsets)) {
+            return 0;
+        }
+
+        int numbers = 1;
+        for (int i = 0; i < offsets.length(); i++) {
+            if (offsets.charAt(i) == ' ') {
+                numbers++;
+            }
+        }
+        return numbers / 4;
+    }
+
+
+    protected static String getFtsTable(VectorLayer layer)
+    {
+        return layer.getPath().getName() + FTS_SUFFIX;
+    }
+
+
+    protected static SQLiteDatabase getDatabase()
+    {
+        return ((MapContentProviderHelper) MapBase.getInstance()).getDatabase(false);
+    }
+
+
+    /**
+     * The worse hits first, the lower layers are worse among equally good matches
+     */
+    protected static final Comparator<Hit> HIT_ORDER = new Comparator<Hit>()
+    {
+        @Override
+        public int compare(
+                Hit lhs,
+                Hit rhs)
+        {
+            int result = Double.compare(lhs.mScore, rhs.mScore);
+            return 0 != result ? result : lhs.mLayerOrder - rhs.mLayerOrder;
+        }
+    };
+
+
+    public static class Hit
+    {
+        protected final VectorLayer mLayer;
+        protected final int         mLayerOrder;
+        protected final long        mFeatureId;
+        protected final double      mScore;
+
+        protected String mSnippet;
+
+
+        public Hit(
+                VectorLayer layer,
+                int layerOrder,
+                long featureId,
+                double score)
+        {
+            mLayer = layer;
+            mLayerOrder = layerOrder;
+            mFeatureId = featureId;
+            mScore = score;
+        }
+
+
+        public VectorLayer getLayer()
+        {
+            return mLayer;
+        }
+
+
+        public long getFeatureId()
+        {
+            return mFeatureId;
+        }
+
+
+        public String getSnippet()
+        {
+            return mSnippet;
+        }
+    }
+}
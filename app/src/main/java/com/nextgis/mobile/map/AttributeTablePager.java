@@ -0,0 +1,636 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.nextgis.maplib.datasource.Field;
+import com.nextgis.maplib.map.MapBase;
+import com.nextgis.maplib.map.MapContentProviderHelper;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.mobile.R;
+import com.nextgis.mobile.util.AttributeFormatters;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Pages the attribute rows of a layer for a table view. The rows are read in windows of
+ * {@link #PAGE_SIZE} off the main thread and only the recently shown windows are kept, so a layer
+ * of any size takes the memory of a few pages. The sort is done by SQLite with an index created on
+ * the sorted field on demand.
+ * <p>
+ * A page is read after the sort key (the sorted value and the id) of the last row of the previous
+ * page, not at a row offset, so SQLite seeks to the page in the index instead of stepping over all
+ * rows before it. The keys of the read pages are kept, a page far from the known ones is reached by
+ * reading only the keys of the pages before it.
+ */
+public class AttributeTablePager
+{
+    public static final int PAGE_SIZE = 100;
+
+    protected static final int CACHE_PAGES = 16;
+    /**
+     * Pages around the visible ones which are loaded ahead of scrolling
+     */
+    protected static final int PAGE_MARGIN = 1;
+
+    protected final VectorLayer         mLayer;
+    protected final AttributeFormatters mFormatters;
+    protected final List<Field>         mFields;
+    protected final String[]            mColumns;
+    protected final String              mIdAlias;
+    protected final ExecutorService     mExecutor;
+    protected final Handler             mHandler;
+    protected final Set<Integer>        mLoading;
+
+    protected final LruCache<Integer, Page> mPages;
+
+    // used on the executor thread only
+    protected final SparseArray<PageKey> mPageKeys;
+    protected int                        mKeysGeneration;
+
+    protected OnPageLoadedListener mListener;
+    protected int                  mRowCount;
+    protected int                  mSortColumn;
+    protected boolean              mSortAscending;
+    protected int                  mGeneration;
+    protected int                  mFirstVisiblePage, mLastVisiblePage;
+
+
+    public interface OnPageLoadedListener
+    {
+        /**
+         * Called on the main thread when the row count is known or a page is loaded
+         */
+        void onPageLoaded();
+    }
+
+
+    public AttributeTablePager(
+            Context context,
+            VectorLayer layer)
+    {
+        mLayer = layer;
+        mFormatters = AttributeFormatters.getInstance(context);
+        mIdAlias = context.getString(R.string.id);
+        mExecutor = Executors.newSingleThreadExecutor();
+        mHandler = new Handler(Looper.getMainLooper());
+        mPages = new LruCache<>(CACHE_PAGES);
+        mPageKeys = new SparseArray<>();
+        mLoading = new HashSet<>();
+        mRowCount = -1;
+        mSortColumn = -1;
+        mSortAscending = true;
+
+        // the geometry is not shown
+        mFields = new ArrayList<>();
+        List<String> columns = new ArrayList<>();
+        columns.add(FIELD_ID);
+        for (Field field : layer.getFields()) {
+            if (!FIELD_ID.equals(field.getName())) {
+                mFields.add(field);
+                columns.add(field.getName());
+            }
+        }
+        mColumns = columns.toArray(new String[columns.size()]);
+
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final int count = queryRowCount();
+                mHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        mRowCount = count;
+                        requestPages();
+                        notifyListener();
+                    }
+                });
+            }
+        });
+    }
+
+
+    public void setOnPageLoadedListener(OnPageLoadedListener listener)
+    {
+        mListener = listener;
+    }
+
+
+    /**
+     * @return the row count or -1 if it is not counted yet
+     */
+    public int getRowCount()
+    {
+        return mRowCount;
+    }
+
+
+    public int getColumnCount()
+    {
+        return mColumns.length;
+    }
+
+
+    public String getColumnName(int column)
+    {
+        return column == 0 ? mIdAlias : mFields.get(column - 1).getAlias();
+    }
+
+
+    public int getSortColumn()
+    {
+        return mSortColumn;
+    }
+
+
+    public boolean isSortAscending()
+    {
+        return mSortAscending;
+    }
+
+
+    /**
+     * Sort the rows by the column, the loaded pages are dropped
+     *
+     * @param column
+     *         The column or -1 to show the rows in the storage order
+     */
+    public synchronized void setSort(
+            int column,
+            boolean ascending)
+    {
+        mSortColumn = column;
+        mSortAscending = ascending;
+        mGeneration++;
+        mPages.evictAll();
+        mLoading.clear();
+
+        if (column > 0) {
+            final String field = mColumns[column];
+            mExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    createIndex(field);
+                }
+            });
+        }
+        requestPages();
+    }
+
+
+    /**
+     * Load the pages of the visible rows and the ones around them
+     */
+    public synchronized void setVisibleRows(
+            int firstRow,
+            int lastRow)
+    {
+        mFirstVisiblePage = Math.max(0, firstRow / PAGE_SIZE - PAGE_MARGIN);
+        mLastVisiblePage = Math.max(0, lastRow) / PAGE_SIZE + PAGE_MARGIN;
+        requestPages();
+    }
+
+
+    /**
+     * @return the formatted value or null if the row is not loaded yet
+     */
+    public String getValue(
+            int row,
+            int column)
+    {
+        Page page = mPages.get(row / PAGE_SIZE);
+        if (null == page) {
+            return null;
+        }
+
+        String[] values = page.getRow(row % PAGE_SIZE);
+        return null == values ? "" : values[column];
+    }
+
+
+    public synchronized void shutdown()
+    {
+        mListener = null;
+        mGeneration++;
+        mExecutor.shutdownNow();
+    }
+
+
+    protected void requestPages()
+    {
+        if (mRowCount < 0 || mExecutor.isShutdown()) {
+            return;
+        }
+
+        int lastPage = Math.min(mLastVisiblePage, (mRowCount - 1) / PAGE_SIZE);
+        for (int page = mFirstVisiblePage; page <= lastPage; page++) {
+            if (null == mPages.get(page) && !mLoading.contains(page)) {
+                mLoading.add(page);
+                mExecutor.execute(new PageTask(page, mGeneration));
+            }
+        }
+    }
+
+
+    protected boolean isWanted(
+            int page,
+            int generation)
+    {
+        return generation == mGeneration && page >= mFirstVisiblePage
+                && page <= mLastVisiblePage;
+    }
+
+
+    protected void notifyListener()
+    {
+        if (null != mListener) {
+            mListener.onPageLoaded();
+        }
+    }
+
+
+    protected int queryRowCount()
+    {
+        Cursor cursor = mLayer.query(new String[] {"COUNT(*)"}, null, null, null, null);
+        if (null == cursor) {
+            return 0;
+        }
+
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Create an index on the sorted field if there is none, so the sort and the page keys are
+     * resolved by the index instead of sorting the whole table for each page. The index entries
+     * are ordered by the value and the row id, as the pages are.
+     */
+    protected void createIndex(String field)
+    {
+        String table = mLayer.getPath().getName();
+        String index = "\"" + table + "_" + field + "_idx\"";
+        try {
+            MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+            SQLiteDatabase db = map.getDatabase(false);
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + index + " ON \"" + table + "\" (\""
+                    + field + "\")");
+        } catch (SQLException | ClassCastException e) {
+            Log.w(TAG, "Failed to create the index of the field " + field + ": " + e.getMessage());
+        }
+    }
+
+
+    protected String getSortOrder(int column, boolean ascending)
+    {
+        String direction = ascending ? " ASC" : " DESC";
+        if (column <= 0) {
+            return FIELD_ID + direction;
+        }
+
+        // the id makes the order of equal values stable between the pages
+        return "\"" + mColumns[column] + "\"" + direction + ", " + FIELD_ID + direction;
+    }
+
+
+    protected Page loadPage(
+            int page,
+            int sortColumn,
+            boolean ascending,
+            int generation)
+    {
+        if (generation != mKeysGeneration) {
+            mPageKeys.clear();
+            mKeysGeneration = generation;
+        }
+
+        String[] projection = new String[mColumns.length];
+        for (int i = 0; i < mColumns.length; i++) {
+            projection[i] = "\"" + mColumns[i] + "\"";
+        }
+
+        PageKey after = page == 0 ? null : findPageKey(page - 1, sortColumn, ascending);
+        if (page > 0 && null == after) {
+            // there are no rows before the page, the row count has changed
+            return new Page(new String[0][]);
+        }
+
+        List<String> args = new ArrayList<>();
+        String selection = getKeySelection(after, sortColumn, ascending, args);
+        Cursor cursor = mLayer.query(projection, selection,
+                args.toArray(new String[args.size()]), getSortOrder(sortColumn, ascending),
+                PAGE_SIZE + "");
+        if (null == cursor) {
+            return new Page(new String[0][]);
+        }
+
+        try {
+            String[][] rows = new String[cursor.getCount()][];
+            int row = 0;
+            while (cursor.moveToNext() && row < rows.length) {
+                String[] values = new String[mColumns.length];
+                values[0] = cursor.getString(0);
+                for (int i = 1; i < mColumns.length; i++) {
+                    values[i] = format(cursor, i, mFields.get(i - 1).getType());
+                }
+                rows[row++] = values;
+
+                if (row == PAGE_SIZE) {
+                    mPageKeys.put(page, readKey(cursor, sortColumn, 0));
+                }
+            }
+            return new Page(rows);
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * @return the key of the last row of the page or null if there are no rows to fill the page,
+     * the keys of the pages between the nearest known one and the page are read on the way
+     */
+    protected PageKey findPageKey(
+            int page,
+            int sortColumn,
+            boolean ascending)
+    {
+        int known = page;
+        while (known >= 0 && null == mPageKeys.get(known)) {
+            known--;
+        }
+
+        String[] projection = sortColumn > 0
+                ? new String[] {FIELD_ID, "\"" + mColumns[sortColumn] + "\""}
+                : new String[] {FIELD_ID};
+        String order = getSortOrder(sortColumn, ascending);
+
+        PageKey key = known >= 0 ? mPageKeys.get(known) : null;
+        for (int current = known + 1; current <= page; current++) {
+            // the last row of the page is read from the index only
+            List<String> args = new ArrayList<>();
+            String selection = getKeySelection(key, sortColumn, ascending, args);
+            Cursor cursor = mLayer.query(projection, selection,
+                    args.toArray(new String[args.size()]), order,
+                    (PAGE_SIZE - 1) + ", 1");
+            if (null == cursor) {
+                return null;
+            }
+
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                key = readKey(cursor, sortColumn, 1);
+            } finally {
+                cursor.close();
+            }
+            mPageKeys.put(current, key);
+        }
+        return key;
+    }
+
+
+    /**
+     * @param valueColumn
+     *         The cursor column of the sorted value, the id is in the first column
+     */
+    protected PageKey readKey(
+            Cursor cursor,
+            int sortColumn,
+            int valueColumn)
+    {
+        long id = cursor.getLong(0);
+        if (sortColumn <= 0) {
+            return new PageKey(null, id);
+        }
+
+        if (cursor.isNull(valueColumn)) {
+            return new PageKey(null, id);
+        }
+
+        // the value is bound as a string argument, the numbers are read exactly
+        String value;
+        switch (mFields.get(sortColumn - 1).getType()) {
+            case GeoConstants.FTInteger:
+            case GeoConstants.FTDate:
+            case GeoConstants.FTTime:
+            case GeoConstants.FTDateTime:
+                value = Long.toString(cursor.getLong(valueColumn));
+                break;
+            case GeoConstants.FTReal:
+                value = Double.toString(cursor.getDouble(valueColumn));
+                break;
+            default:
+                value = cursor.getString(valueColumn);
+                break;
+        }
+        return new PageKey(value, id);
+    }
+
+
+    /**
+     * @return the selection of the rows after the key in the sort order or null for the first
+     * page, the NULL values go first in the ascending order as SQLite sorts them
+     */
+    protected String getKeySelection(
+            PageKey after,
+            int sortColumn,
+            boolean ascending,
+            List<String> args)
+    {
+        if (null == after) {
+            return null;
+        }
+
+        String next = ascending ? " > ?" : " < ?";
+        args.add(Long.toString(after.mId));
+        if (sortColumn <= 0) {
+            return FIELD_ID + next;
+        }
+
+        // parenthesized, the layer may add its own conditions
+        String field = "\"" + mColumns[sortColumn] + "\"";
+        if (null == after.mValue) {
+            return ascending
+                   ? "((" + field + " IS NULL AND " + FIELD_ID + next + ") OR " + field
+                     + " IS NOT NULL)"
+                   : "(" + field + " IS NULL AND " + FIELD_ID + next + ")";
+        }
+
+        args.add(0, after.mValue);
+        args.add(0, after.mValue);
+        String selection = field + next + " OR (" + field + " = ? AND " + FIELD_ID + next + ")";
+        return "(" + (ascending ? selection : selection + " OR " + field + " IS NULL") + ")";
+    }
+
+
+    protected String format(
+            Cursor cursor,
+            int column,
+            int fieldType)
+    {
+        if (cursor.isNull(column)) {
+            return "";
+        }
+
+        switch (fieldType) {
+            case GeoConstants.FTReal:
+                return mFormatters.formatReal(cursor.getDouble(column));
+            case GeoConstants.FTDate:
+            case GeoConstants.FTTime:
+            case GeoConstants.FTDateTime:
+                return mFormatters.formatDateTime(cursor.getLong(column), fieldType);
+            default:
+                return mFormatters.stripHtml(cursor.getString(column));
+        }
+    }
+
+
+    protected class PageTask
+            implements Runnable
+    {
+        protected final int mPage;
+        protected final int mGeneration;
+
+
+        public PageTask(
+                int page,
+                int generation)
+        {
+            mPage = page;
+            mGeneration = generation;
+        }
+
+
+        @Override
+        public void run()
+        {
+            final int sortColumn;
+            final boolean ascending;
+            synchronized (AttributeTablePager.this) {
+                if (mGeneration != AttributeTablePager.this.mGeneration) {
+                    return;
+                }
+                sortColumn = mSortColumn;
+                ascending = mSortAscending;
+            }
+
+            // a fling passes many pages, the ones already scrolled away are skipped
+            final Page page = isWantedNow()
+                              ? loadPage(mPage, sortColumn, ascending, mGeneration)
+                              : null;
+            mHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (mGeneration != AttributeTablePager.this.mGeneration) {
+                        return;
+                    }
+
+                    mLoading.remove(mPage);
+                    if (null != page) {
+                        mPages.put(mPage, page);
+                        notifyListener();
+                    } else {
+                        requestPages();
+                    }
+                }
+            });
+        }
+
+
+        protected boolean isWantedNow()
+        {
+            synchronized (AttributeTablePager.this) {
+                return isWanted(mPage, mGeneration);
+            }
+        }
+    }
+
+
+    protected static class PageKey
+    {
+        /**
+         * The sorted value, null for NULL or if the rows are sorted by the id
+         */
+        protected final String mValue;
+        protected final long   mId;
+
+
+        public PageKey(
+                String value,
+                long id)
+        {
+            mValue = value;
+            mId = id;
+        }
+    }
+
+
+    protected static class Page
+    {
+        protected final String[][] mRows;
+
+
+        public Page(String[][] rows)
+        {
+            mRows = rows;
+        }
+
+
+        public String[] getRow(int index)
+        {
+            return index < mRows.length ? mRows[index] : null;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.support.v4.view.ViewCompat;
+import android.support.v4.widget.ScrollerCompat;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Scrollable grid of the attribute table. Only the visible rows and columns are drawn and only
+ * their pages are requested from the pager, the header row stays on top.
+ */
+public class AttributeTableView
+        extends View
+        implements AttributeTablePager.OnPageLoadedListener
+{
+    protected static final float  TEXT_SIZE_SP        = 14;
+    protected static final float  CELL_PADDING_DP     = 8;
+    protected static final float  MIN_COLUMN_WIDTH_DP = 64;
+    protected static final float  MAX_COLUMN_WIDTH_DP = 200;
+    protected static final String PLACEHOLDER         = "…";
+    protected static final String SORT_ASCENDING      = " ▲";
+    protected static final String SORT_DESCENDING     = " ▼";
+
+    protected final Paint           mTextPaint;
+    protected final Paint           mHeaderPaint;
+    protected final Paint           mLinePaint;
+    protected final float           mPadding;
+    protected final float           mMinColumnWidth;
+    protected final float           mMaxColumnWidth;
+    protected final int             mRowHeight;
+    protected final int             mTextColor;
+    protected final int             mPlaceholderColor;
+    protected final ScrollerCompat  mScroller;
+    protected final GestureDetector mGestureDetector;
+
+    protected AttributeTablePager   mPager;
+    protected OnHeaderClickListener mHeaderClickListener;
+    protected int[]                 mColumnOffsets;
+    protected int                   mOffsetX, mOffsetY;
+
+
+    public interface OnHeaderClickListener
+    {
+        void onHeaderClick(int column);
+    }
+
+
+    public AttributeTableView(Context context)
+    {
+        super(context);
+        float density = context.getResources().getDisplayMetrics().density;
+        float scaledDensity = context.getResources().getDisplayMetrics().scaledDensity;
+        mPadding = CELL_PADDING_DP * density;
+        mMinColumnWidth = MIN_COLUMN_WIDTH_DP * density;
+        mMaxColumnWidth = MAX_COLUMN_WIDTH_DP * density;
+
+        TypedArray ta = context.obtainStyledAttributes(new int[] {android.R.attr.textColorPrimary});
+        mTextColor = ta.getColor(0, Color.BLACK);
+        ta.recycle();
+        mPlaceholderColor = Color.argb(0x60, Color.red(mTextColor), Color.green(mTextColor),
+                Color.blue(mTextColor));
+
+        mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setTextSize(TEXT_SIZE_SP * scaledDensity);
+        mTextPaint.setColor(mTextColor);
+        mHeaderPaint = new Paint();
+        mHeaderPaint.setColor(Color.argb(0x20, 0x80, 0x80, 0x80));
+        mLinePaint = new Paint();
+        mLinePaint.setColor(Color.rgb(0xcc, 0xcc, 0xcc));
+
+        Paint.FontMetrics metrics = mTextPaint.getFontMetrics();
+        mRowHeight = (int) Math.ceil(metrics.descent - metrics.ascent + mPadding * 2);
+
+        mScroller = ScrollerCompat.create(context);
+        mGestureDetector = new GestureDetector(context, new GestureListener());
+    }
+
+
+    public void setPager(AttributeTablePager pager)
+    {
+        mPager = pager;
+        mPager.setOnPageLoadedListener(this);
+        mOffsetX = mOffsetY = 0;
+        measureColumns();
+        invalidate();
+    }
+
+
+    public void setOnHeaderClickListener(OnHeaderClickListener listener)
+    {
+        mHeaderClickListener = listener;
+    }
+
+
+    /**
+     * Show the new sort of the pager from the first row
+     */
+    public void onSortChanged()
+    {
+        mScroller.abortAnimation();
+        mOffsetY = 0;
+        measureColumns();
+        clampOffsets();
+        invalidate();
+    }
+
+
+    @Override
+    public void onPageLoaded()
+    {
+        clampOffsets();
+        invalidate();
+    }
+
+
+    /**
+     * The column widths are taken from the headers, the values do not change them while scrolling
+     */
+    protected void measureColumns()
+    {
+        int count = mPager.getColumnCount();
+        mColumnOffsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            float width = mTextPaint.measureText(getHeader(i)) + mPadding * 2;
+            width = Math.max(mMinColumnWidth, Math.min(mMaxColumnWidth, width));
+            mColumnOffsets[i + 1] = mColumnOffsets[i] + (int) Math.ceil(width);
+        }
+    }
+
+
+    protected String getHeader(int column)
+    {
+        String name = mPager.getColumnName(column);
+        if (column == mPager.getSortColumn()) {
+            return name + (mPager.isSortAscending() ? SORT_ASCENDING : SORT_DESCENDING);
+        }
+        return name;
+    }
+
+
+    protected int getContentWidth()
+    {
+        return null == mColumnOffsets ? 0 : mColumnOffsets[mColumnOffsets.length - 1];
+    }
+
+
+    protected int getContentHeight()
+    {
+        return null == mPager ? 0 : (Math.max(0, mPager.getRowCount()) + 1) * mRowHeight;
+    }
+
+
+    protected int getMaxOffsetX()
+    {
+        return Math.max(0, getContentWidth() - getWidth());
+    }
+
+
+    protected int getMaxOffsetY()
+    {
+        return Math.max(0, getContentHeight() - getHeight());
+    }
+
+
+    protected void clampOffsets()
+    {
+        mOffsetX = Math.max(0, Math.min(getMaxOffsetX(), mOffsetX));
+        mOffsetY = Math.max(0, Math.min(getMaxOffsetY(), mOffsetY));
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        super.onDraw(canvas);
+        if (null == mPager) {
+            return;
+        }
+
+        int columnCount = mPager.getColumnCount();
+        int firstColumn = 0;
+        while (firstColumn < columnCount - 1 && mColumnOffsets[firstColumn + 1] <= mOffsetX) {
+            firstColumn++;
+        }
+
+        int rowCount = Math.max(0, mPager.getRowCount());
+        int firstRow = mOffsetY / mRowHeight;
+        int lastRow = Math.min(rowCount - 1, (mOffsetY + getHeight() - mRowHeight) / mRowHeight);
+        mPager.setVisibleRows(firstRow, lastRow);
+
+        float baseline = mPadding - mTextPaint.getFontMetrics().ascent;
+        int width = getWidth();
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            int top = (row + 1) * mRowHeight - mOffsetY;
+            for (int column = firstColumn; column < columnCount; column++) {
+                int left = mColumnOffsets[column] - mOffsetX;
+                if (left >= width) {
+                    break;
+                }
+
+                String value = mPager.getValue(row, column);
+                mTextPaint.setColor(null == value ? mPlaceholderColor : mTextColor);
+                drawCell(canvas, null == value ? PLACEHOLDER : value, column, left, top + baseline);
+            }
+            canvas.drawLine(0, top + mRowHeight, width, top + mRowHeight, mLinePaint);
+        }
+
+        // the header over the rows
+        mTextPaint.setColor(mTextColor);
+        canvas.drawRect(0, 0, width, mRowHeight, mHeaderPaint);
+        for (int column = firstColumn; column < columnCount; column++) {
+            int left = mColumnOffsets[column] - mOffsetX;
+            if (left >= width) {
+                break;
+            }
+            drawCell(canvas, getHeader(column), column, left, baseline);
+            canvas.drawLine(left, 0, left, getHeight(), mLinePaint);
+        }
+        canvas.drawLine(0, mRowHeight, width, mRowHeight, mLinePaint);
+    }
+
+
+    protected void drawCell(
+            Canvas canvas,
+            String text,
+            int column,
+            int left,
+            float baseline)
+    {
+        float maxWidth = mColumnOffsets[column + 1] - mColumnOffsets[column] - mPadding * 2;
+        int count = mTextPaint.breakText(text, true, maxWidth, null);
+        canvas.drawText(text, 0, count, left + mPadding, baseline, mTextPaint);
+    }
+
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event)
+    {
+        return mGestureDetector.onTouchEvent(event) || super.onTouchEvent(event);
+    }
+
+
+    @Override
+    public void computeScroll()
+    {
+        if (mScroller.computeScrollOffset()) {
+            mOffsetX = mScroller.getCurrX();
+            mOffsetY = mScroller.getCurrY();
+            clampOffsets();
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+
+    @Override
+    protected void onSizeChanged(
+            int w,
+            int h,
+            int oldw,
+            int oldh)
+    {
+        super.onSizeChanged(w, h, oldw, oldh);
+        clampOffsets();
+    }
+
+
+    protected class GestureListener
+            extends GestureDetector.SimpleOnGestureListener
+    {
+        @Override
+        public boolean onDown(MotionEvent e)
+        {
+            mScroller.abortAnimation();
+            return true;
+        }
+
+
+        @Override
+        public boolean onScroll(
+                MotionEvent e1,
+                MotionEvent e2,
+                float distanceX,
+                float distanceY)
+        {
+            mOffsetX += (int) distanceX;
+            mOffsetY += (int) distanceY;
+            clampOffsets();
+            invalidate();
+            return true;
+        }
+
+
+        @Override
+        public boolean onFling(
+                MotionEvent e1,
+                MotionEvent e2,
+                float velocityX,
+                float velocityY)
+        {
+            mScroller.fling(mOffsetX, mOffsetY, (int) -velocityX, (int) -velocityY, 0,
+                    getMaxOffsetX(), 0, getMaxOffsetY());
+            ViewCompat.postInvalidateOnAnimation(AttributeTableView.this);
+            return true;
+        }
+
+
+        @Override
+        public boolean onSingleTapUp(MotionEvent e)
+        {
+            if (e.getY() > mRowHeight || null == mHeaderClickListener) {
+                return false;
+            }
+
+            float x = e.getX() + mOffsetX;
+            for (int column = 0; column < mPager.getColumnCount(); column++) {
+                if (x < mColumnOffsets[column + 1]) {
+                    mHeaderClickListener.onHeaderClick(column);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.PointF;
+
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplibui.api.Overlay;
+import com.nextgis.maplibui.mapui.MapViewOverlays;
+
+/**
+ * Bottom overlay which shows the tiled back buffer instead of the map drawable bitmap
+ */
+public class BackBufferOverlay
+        extends Overlay
+{
+    protected TiledBackBuffer mBuffer;
+
+
+    public BackBufferOverlay(
+            Context context,
+            MapViewOverlays mapViewOverlays,
+            TiledBackBuffer buffer)
+    {
+        super(context, mapViewOverlays);
+        mBuffer = buffer;
+    }
+
+
+    @Override
+    public void draw(
+            Canvas canvas,
+            MapDrawable mapDrawable)
+    {
+        mBuffer.draw(canvas, 0, 0);
+    }
+
+
+    @Override
+    public void drawOnPanning(
+            Canvas canvas,
+            PointF currentMouseOffset)
+    {
+        mBuffer.draw(canvas, currentMouseOffset.x, currentMouseOffset.y);
+    }
+
+
+    @Override
+    public void drawOnZooming(
+            Canvas canvas,
+            PointF currentFocusLocation,
+            float scale)
+    {
+        int count = canvas.save();
+        canvas.scale(scale, scale, currentFocusLocation.x, currentFocusLocation.y);
+        mBuffer.draw(canvas, 0, 0);
+        canvas.restoreToCount(count);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.nextgis.maplib.datasource.Field;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static com.nextgis.maplib.util.Constants.FIELD_GEOM;
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+import static com.nextgis.maplib.util.GeoConstants.CRS_WGS84;
+
+/**
+ * Operations on a set of layer features, e.g. a multiple selection. The operations are slow for
+ * large sets and should be called off the main thread.
+ */
+public class BulkFeatureOperations
+{
+    protected static final int QUERY_CHUNK_SIZE = 500;
+
+
+    /**
+     * Delete the features and record the changes to be synchronized
+     */
+    public static void delete(
+            VectorLayer layer,
+            FeatureIdList ids)
+    {
+        for (int i = 0; i < ids.size(); i++) {
+            layer.deleteAddChanges(ids.get(i));
+        }
+    }
+
+
+    /**
+     * Set the field value of the features and record the changes to be synchronized
+     *
+     * @param value
+     *         The value text, an empty text clears the field
+     *
+     * @throws NumberFormatException
+     *         if the text is not a value of the field type
+     */
+    public static void update(
+            VectorLayer layer,
+            FeatureIdList ids,
+            Field field,
+            String value)
+    {
+        ContentValues values = new ContentValues();
+        putValue(values, field, value);
+
+        for (int i = 0; i < ids.size(); i++) {
+            layer.updateAddChanges(values, ids.get(i));
+        }
+    }
+
+
+    /**
+     * @return true if the field value can be set by {@link #update(VectorLayer, FeatureIdList,
+     * Field, String)}
+     */
+    public static boolean isUpdatable(Field field)
+    {
+        switch (field.getType()) {
+            case GeoConstants.FTInteger:
+            case GeoConstants.FTReal:
+            case GeoConstants.FTString:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    protected static void putValue(
+            ContentValues values,
+            Field field,
+            String value)
+    {
+        value = value.trim();
+        if (value.length() == 0) {
+            values.putNull(field.getName());
+            return;
+        }
+
+        switch (field.getType()) {
+            case GeoConstants.FTInteger:
+                values.put(field.getName(), Long.parseLong(value));
+                break;
+            case GeoConstants.FTReal:
+                values.put(field.getName(), Double.parseDouble(value));
+                break;
+            default:
+                values.put(field.getName(), value);
+                break;
+        }
+    }
+
+
+    /**
+     * Write the features as CSV with the fields and the geometry in WKT (WGS 84)
+     */
+    public static void exportCsv(
+            VectorLayer layer,
+            FeatureIdList ids,
+            File file)
+            throws IOException
+    {
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            boolean hasHeader = false;
+            for (int start = 0; start < ids.size(); start += QUERY_CHUNK_SIZE) {
+                Cursor cursor = layer.query(null, getIdSelection(ids, start), null, FIELD_ID, null);
+                if (null == cursor) {
+                    continue;
+                }
+
+                try {
+                    if (!hasHeader) {
+                        writeHeader(writer, cursor);
+                        hasHeader = true;
+                    }
+                    while (cursor.moveToNext()) {
+                        writeRow(writer, cursor);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    protected static String getIdSelection(
+            FeatureIdList ids,
+            int start)
+    {
+        StringBuilder selection = new StringBuilder(FIELD_ID).append(" IN (");
+        int end = Math.min(start + QUERY_CHUNK_SIZE, ids.size());
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                selection.append(',');
+            }
+            selection.append(ids.get(i));
+        }
+        return selection.append(')').toString();
+    }
+
+
+    protected static void writeHeader(
+            Writer writer,
+            Cursor cursor)
+            throws IOException
+    {
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            String column = cursor.getColumnName(i);
+            writer.write(escape(FIELD_GEOM.equals(column) ? "wkt" : column));
+        }
+        writer.write('\n');
+    }
+
+
+    protected static void writeRow(
+            Writer writer,
+            Cursor cursor)
+            throws IOException
+    {
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+
+            if (FIELD_GEOM.equals(cursor.getColumnName(i))) {
+                writer.write(escape(getWkt(cursor.getBlob(i))));
+            } else if (!cursor.isNull(i)) {
+                writer.write(escape(cursor.getString(i)));
+            }
+        }
+        writer.write('\n');
+    }
+
+
+    protected static String getWkt(byte[] blob)
+    {
+        if (null == blob) {
+            return "";
+        }
+
+        try {
+            GeoGeometry geometry = GeoGeometryFactory.fromBlob(blob);
+            if (null == geometry || !geometry.project(CRS_WGS84)) {
+                return "";
+            }
+            return geometry.toWKT(true);
+        } catch (IOException | ClassNotFoundException e) {
+            return "";
+        }
+    }
+
+
+    protected static String escape(String value)
+    {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
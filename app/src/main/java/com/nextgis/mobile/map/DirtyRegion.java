@@ -0,0 +1,74 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.graphics.Rect;
+
+/**
+ * Screen region changed since the last frame. Changes are merged into one bounding rectangle
+ * until the whole view is marked dirty.
+ */
+public class DirtyRegion
+{
+    protected final Rect mBounds;
+    protected boolean mFull;
+
+
+    public DirtyRegion()
+    {
+        mBounds = new Rect();
+    }
+
+
+    public synchronized void add(Rect bounds)
+    {
+        if (!mFull) {
+            mBounds.union(bounds);
+        }
+    }
+
+
+    /**
+     * Mark the whole view dirty
+     */
+    public synchronized void addAll()
+    {
+        mFull = true;
+    }
+
+
+    /**
+     * Move the region into the bounds and clear it
+     *
+     * @return false if the whole view is dirty
+     */
+    public synchronized boolean take(Rect bounds)
+    {
+        boolean partial = !mFull;
+        bounds.set(mBounds);
+        mBounds.setEmpty();
+        mFull = false;
+        return partial;
+    }
+}
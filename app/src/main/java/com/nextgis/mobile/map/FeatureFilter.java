@@ -0,0 +1,876 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.database.Cursor;
+
+import com.nextgis.maplib.datasource.Field;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+
+/**
+ * Attribute filter expression of a layer, e.g. {@code species = 'pine' AND dbh > 30}. The
+ * expression is parsed once into a tree, which is compiled to a SQL where clause with bound string
+ * literals or is evaluated on a cursor row when SQL cannot express it.
+ * <p/>
+ * Supported are the comparisons {@code = != <> < <= > >=} of a field with a number or a quoted
+ * string, {@code [NOT] LIKE}, {@code [NOT] IN (...)}, {@code IS [NOT] NULL}, {@code AND},
+ * {@code OR}, {@code NOT} and parentheses. Fields may be double quoted. Nulls follow the SQL rules:
+ * a comparison with a null is neither true nor false.
+ */
+public class FeatureFilter
+{
+    protected final String               mExpression;
+    protected final Node                 mRoot;
+    protected final Map<String, Integer> mFieldTypes;
+    protected final String               mWhere;
+    protected final String[]             mWhereArgs;
+
+
+    protected FeatureFilter(
+            String expression,
+            Node root,
+            Map<String, Integer> fieldTypes)
+    {
+        mExpression = expression;
+        mRoot = root;
+        mFieldTypes = fieldTypes;
+
+        if (root.isCompilable()) {
+            StringBuilder where = new StringBuilder();
+            List<String> args = new ArrayList<>();
+            root.toSql(where, args);
+            mWhere = where.toString();
+            mWhereArgs = args.toArray(new String[args.size()]);
+        } else {
+            mWhere = null;
+            mWhereArgs = null;
+        }
+    }
+
+
+    /**
+     * @throws ParseException
+     *         if the expression is malformed or refers to a field the layer has not
+     */
+    public static FeatureFilter parse(
+            String expression,
+            VectorLayer layer)
+            throws ParseException
+    {
+        Map<String, Integer> layerFields = new HashMap<>();
+        layerFields.put(FIELD_ID, GeoConstants.FTInteger);
+        for (Field field : layer.getFields()) {
+            layerFields.put(field.getName(), field.getType());
+        }
+
+        Parser parser = new Parser(expression, layerFields);
+        Node root = parser.parseExpression();
+        if (parser.mToken.mType != TokenType.END) {
+            throw new ParseException("Unexpected " + parser.mToken.mText, parser.mToken.mPosition);
+        }
+        return new FeatureFilter(expression, root, parser.mUsedFields);
+    }
+
+
+    public String getExpression()
+    {
+        return mExpression;
+    }
+
+
+    /**
+     * @return the where clause or null if the filter has to be evaluated in memory
+     */
+    public String getWhere()
+    {
+        return mWhere;
+    }
+
+
+    public String[] getWhereArgs()
+    {
+        return mWhereArgs;
+    }
+
+
+    /**
+     * @return the fields the expression refers to
+     */
+    public List<String> getFields()
+    {
+        return new ArrayList<>(mFieldTypes.keySet());
+    }
+
+
+    /**
+     * Evaluate the expression on the current cursor row, the cursor must have the columns of
+     * {@link #getFields()}
+     */
+    public boolean matches(Cursor cursor)
+    {
+        return Boolean.TRUE.equals(mRoot.evaluate(new Row(cursor, mFieldTypes)));
+    }
+
+
+    protected static class Row
+    {
+        protected final Cursor               mCursor;
+        protected final Map<String, Integer> mFieldTypes;
+
+
+        public Row(
+                Cursor cursor,
+                Map<String, Integer> fieldTypes)
+        {
+            mCursor = cursor;
+            mFieldTypes = fieldTypes;
+        }
+
+
+        /**
+         * @return the field value as a Double for the numeric and date fields, as a String for
+         * others or null
+         */
+        public Object getValue(String field)
+        {
+            int column = mCursor.getColumnIndex(field);
+            if (column < 0 || mCursor.isNull(column)) {
+                return null;
+            }
+
+            switch (mFieldTypes.get(field)) {
+                case GeoConstants.FTInteger:
+                case GeoConstants.FTReal:
+                case GeoConstants.FTDate:
+                case GeoConstants.FTTime:
+                case GeoConstants.FTDateTime:
+                    return mCursor.getDouble(column);
+                default:
+                    return mCursor.getString(column);
+            }
+        }
+    }
+
+
+    protected interface Node
+    {
+        boolean isCompilable();
+
+        void toSql(
+                StringBuilder sql,
+                List<String> args);
+
+        /**
+         * @return the truth value or null for unknown
+         */
+        Boolean evaluate(Row row);
+    }
+
+
+    protected static class Logical
+            implements Node
+    {
+        protected final boolean mAnd;
+        protected final Node    mLeft;
+        protected final Node    mRight;
+
+
+        public Logical(
+                boolean and,
+                Node left,
+                Node right)
+        {
+            mAnd = and;
+            mLeft = left;
+            mRight = right;
+        }
+
+
+        @Override
+        public boolean isCompilable()
+        {
+            return mLeft.isCompilable() && mRight.isCompilable();
+        }
+
+
+        @Override
+        public void toSql(
+                StringBuilder sql,
+                List<String> args)
+        {
+            sql.append('(');
+            mLeft.toSql(sql, args);
+            sql.append(mAnd ? " AND " : " OR ");
+            mRight.toSql(sql, args);
+            sql.append(')');
+        }
+
+
+        @Override
+        public Boolean evaluate(Row row)
+        {
+            Boolean left = mLeft.evaluate(row);
+            if (null != left && left != mAnd) {
+                return left;
+            }
+            Boolean right = mRight.evaluate(row);
+            if (null != right && right != mAnd) {
+                return right;
+            }
+            return null == left || null == right ? null : mAnd;
+        }
+    }
+
+
+    protected static class Not
+            implements Node
+    {
+        protected final Node mNode;
+
+
+        public Not(Node node)
+        {
+            mNode = node;
+        }
+
+
+        @Override
+        public boolean isCompilable()
+        {
+            return mNode.isCompilable();
+        }
+
+
+        @Override
+        public void toSql(
+                StringBuilder sql,
+                List<String> args)
+        {
+            sql.append("NOT ");
+            mNode.toSql(sql, args);
+        }
+
+
+        @Override
+        public Boolean evaluate(Row row)
+        {
+            Boolean value = mNode.evaluate(row);
+            return null == value ? null : !value;
+        }
+    }
+
+
+    protected static class Comparison
+            implements Node
+    {
+        protected final String mField;
+        protected final String mOperator;
+        protected final Object mValue;
+
+
+        public Comparison(
+                String field,
+                String operator,
+                Object value)
+        {
+            mField = field;
+            mOperator = operator;
+            mValue = value;
+        }
+
+
+        @Override
+        public boolean isCompilable()
+        {
+            return true;
+        }
+
+
+        @Override
+        public void toSql(
+                StringBuilder sql,
+                List<String> args)
+        {
+            sql.append(quote(mField)).append(' ').append(mOperator).append(' ');
+            appendValue(mValue, sql, args);
+        }
+
+
+        @Override
+        public Boolean evaluate(Row row)
+        {
+            Object value = row.getValue(mField);
+            if (null == value) {
+                return null;
+            }
+
+            int result = compare(value, mValue);
+            switch (mOperator) {
+                case "=":
+                    return result == 0;
+                case "<>":
+                    return result != 0;
+                case "<":
+                    return result < 0;
+                case "<=":
+                    return result <= 0;
+                case ">":
+                    return result > 0;
+                default:
+                    return result >= 0;
+            }
+        }
+    }
+
+
+    protected static class In
+            implements Node
+    {
+        protected final String       mField;
+        protected final List<Object> mValues;
+
+
+        public In(
+                String field,
+                List<Object> values)
+        {
+            mField = field;
+            mValues = values;
+        }
+
+
+        @Override
+        public boolean isCompilable()
+        {
+            return true;
+        }
+
+
+        @Override
+        public void toSql(
+                StringBuilder sql,
+                List<String> args)
+        {
+            sql.append(quote(mField)).append(" IN (");
+            for (int i = 0; i < mValues.size(); i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                appendValue(mValues.get(i), sql, args);
+            }
+            sql.append(')');
+        }
+
+
+        @Override
+        public Boolean evaluate(Row row)
+        {
+            Object value = row.getValue(mField);
+            if (null == value) {
+                return null;
+            }
+
+            for (Object item : mValues) {
+                if (compare(value, item) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+
+    protected static class IsNull
+            implements Node
+    {
+        protected final String mField;
+
+
+        public IsNull(String field)
+        {
+            mField = field;
+        }
+
+
+        @Override
+        public boolean isCompilable()
+        {
+            return true;
+        }
+
+
+        @Override
+        public void toSql(
+                StringBuilder sql,
+                List<String> args)
+        {
+            sql.append(quote(mField)).append(" IS NULL");
+        }
+
+
+        @Override
+        public Boolean evaluate(Row row)
+        {
+            return null == row.getValue(mField);
+        }
+    }
+
+
+    /**
+     * SQLite folds the case of ASCII letters only, so a pattern with other letters is matched in
+     * memory to stay case insensitive
+     */
+    protected static class Like
+            implements Node
+    {
+        protected final String  mField;
+        protected final String  mPattern;
+        protected final Pattern mRegex;
+
+
+        public Like(
+                String field,
+                String pattern)
+        {
+            mField = field;
+            mPattern = pattern;
+
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '%' || c == '_') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '%' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            mRegex = Pattern.compile(regex.toString(),
+                    Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+        }
+
+
+        @Override
+        public boolean isCompilable()
+        {
+            for (int i = 0; i < mPattern.length(); i++) {
+                if (mPattern.charAt(i) > 127) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        @Override
+        public void toSql(
+                StringBuilder sql,
+                List<String> args)
+        {
+            sql.append(quote(mField)).append(" LIKE ?");
+            args.add(mPattern);
+        }
+
+
+        @Override
+        public Boolean evaluate(Row row)
+        {
+            Object value = row.getValue(mField);
+            if (null == value) {
+                return null;
+            }
+            return mRegex.matcher(toText(value)).matches();
+        }
+    }
+
+
+    protected static String quote(String field)
+    {
+        return "\"" + field + "\"";
+    }
+
+
+    protected static void appendValue(
+            Object value,
+            StringBuilder sql,
+            List<String> args)
+    {
+        if (value instanceof Double) {
+            sql.append(toText(value));
+        } else {
+            sql.append('?');
+            args.add((String) value);
+        }
+    }
+
+
+    protected static String toText(Object value)
+    {
+        if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+                return Long.toString((long) number);
+            }
+            return Double.toString(number);
+        }
+        return (String) value;
+    }
+
+
+    /**
+     * Compare as SQLite does for the column affinity: numbers to numbers, a number to a text
+     * converted to a number if it looks like one, otherwise the texts
+     */
+    protected static int compare(
+            Object value,
+            Object literal)
+    {
+        if (value instanceof Double && literal instanceof String) {
+            try {
+                literal = Double.parseDouble((String) literal);
+            } catch (NumberFormatException e) {
+                // numbers are less than texts in SQLite
+                return -1;
+            }
+        } else if (value instanceof String && literal instanceof Double) {
+            return toText(value).compareTo(toText(literal));
+        }
+
+        if (value instanceof Double) {
+            return Double.compare((Double) value, (Double) literal);
+        }
+        return ((String) value).compareTo((String) literal);
+    }
+
+
+    protected enum TokenType
+    {
+        IDENTIFIER, QUOTED_IDENTIFIER, NUMBER, STRING, OPERATOR, END
+    }
+
+
+    protected static class Token
+    {
+        protected final TokenType mType;
+        protected final String    mText;
+        protected final int       mPosition;
+
+
+        public Token(
+                TokenType type,
+                String text,
+                int position)
+        {
+            mType = type;
+            mText = text;
+            mPosition = position;
+        }
+
+
+        public boolean isKeyword(String keyword)
+        {
+            return mType == TokenType.IDENTIFIER && mText.equalsIgnoreCase(keyword);
+        }
+
+
+        public boolean isOperator(String operator)
+        {
+            return mType == TokenType.OPERATOR && mText.equals(operator);
+        }
+    }
+
+
+    /**
+     * Recursive descent parser, OR binds weaker than AND, AND weaker than NOT
+     */
+    protected static class Parser
+    {
+        protected final String               mText;
+        protected final Map<String, Integer> mLayerFields;
+        protected final Map<String, Integer> mUsedFields;
+
+        protected int   mPosition;
+        protected Token mToken;
+
+
+        public Parser(
+                String text,
+                Map<String, Integer> layerFields)
+                throws ParseException
+        {
+            mText = text;
+            mLayerFields = layerFields;
+            mUsedFields = new HashMap<>();
+            next();
+        }
+
+
+        public Node parseExpression()
+                throws ParseException
+        {
+            Node node = parseAnd();
+            while (mToken.isKeyword("OR")) {
+                next();
+                node = new Logical(false, node, parseAnd());
+            }
+            return node;
+        }
+
+
+        protected Node parseAnd()
+                throws ParseException
+        {
+            Node node = parseNot();
+            while (mToken.isKeyword("AND")) {
+                next();
+                node = new Logical(true, node, parseNot());
+            }
+            return node;
+        }
+
+
+        protected Node parseNot()
+                throws ParseException
+        {
+            if (mToken.isKeyword("NOT")) {
+                next();
+                return new Not(parseNot());
+            }
+
+            if (mToken.isOperator("(")) {
+                next();
+                Node node = parseExpression();
+                expectOperator(")");
+                return node;
+            }
+
+            return parsePredicate();
+        }
+
+
+        protected Node parsePredicate()
+                throws ParseException
+        {
+            String field = parseField();
+
+            if (mToken.isKeyword("IS")) {
+                next();
+                boolean negated = mToken.isKeyword("NOT");
+                if (negated) {
+                    next();
+                }
+                expectKeyword("NULL");
+                Node node = new IsNull(field);
+                return negated ? new Not(node) : node;
+            }
+
+            boolean negated = mToken.isKeyword("NOT");
+            if (negated) {
+                next();
+            }
+
+            Node node;
+            if (mToken.isKeyword("LIKE")) {
+                next();
+                if (mToken.mType != TokenType.STRING) {
+                    throw error("A quoted pattern expected");
+                }
+                node = new Like(field, mToken.mText);
+                next();
+            } else if (mToken.isKeyword("IN")) {
+                next();
+                expectOperator("(");
+                List<Object> values = new ArrayList<>();
+                values.add(parseValue());
+                while (mToken.isOperator(",")) {
+                    next();
+                    values.add(parseValue());
+                }
+                expectOperator(")");
+                node = new In(field, values);
+            } else if (negated) {
+                throw error("LIKE or IN expected");
+            } else if (mToken.mType == TokenType.OPERATOR && !mToken.isOperator("(")
+                    && !mToken.isOperator(")") && !mToken.isOperator(",")) {
+                String operator = mToken.isOperator("!=") ? "<>" : mToken.mText;
+                next();
+                node = new Comparison(field, operator, parseValue());
+            } else {
+                throw error("An operator expected");
+            }
+
+            return negated ? new Not(node) : node;
+        }
+
+
+        protected String parseField()
+                throws ParseException
+        {
+            if (mToken.mType != TokenType.IDENTIFIER
+                    && mToken.mType != TokenType.QUOTED_IDENTIFIER) {
+                throw error("A field expected");
+            }
+
+            Integer type = mLayerFields.get(mToken.mText);
+            if (null == type) {
+                throw error("Unknown field " + mToken.mText);
+            }
+
+            String field = mToken.mText;
+            mUsedFields.put(field, type);
+            next();
+            return field;
+        }
+
+
+        protected Object parseValue()
+                throws ParseException
+        {
+            Object value;
+            if (mToken.mType == TokenType.NUMBER) {
+                value = Double.parseDouble(mToken.mText);
+            } else if (mToken.mType == TokenType.STRING) {
+                value = mToken.mText;
+            } else {
+                throw error("A number or a quoted string expected");
+            }
+            next();
+            return value;
+        }
+
+
+        protected void expectOperator(String operator)
+                throws ParseException
+        {
+            if (!mToken.isOperator(operator)) {
+                throw error(operator + " expected");
+            }
+            next();
+        }
+
+
+        protected void expectKeyword(String keyword)
+                throws ParseException
+        {
+            if (!mToken.isKeyword(keyword)) {
+                throw error(keyword + " expected");
+            }
+            next();
+        }
+
+
+        protected ParseException error(String message)
+        {
+            return new ParseException(message, mToken.mPosition);
+        }
+
+
+        protected void next()
+                throws ParseException
+        {
+            int length = mText.length();
+            while (mPosition < length && Character.isWhitespace(mText.charAt(mPosition))) {
+                mPosition++;
+            }
+
+            int start = mPosition;
+            if (mPosition >= length) {
+                mToken = new Token(TokenType.END, "end", start);
+                return;
+            }
+
+            char c = mText.charAt(mPosition);
+            if (c == '\'' || c == '"') {
+                // a doubled quote is the quote itself
+                StringBuilder text = new StringBuilder();
+                mPosition++;
+                while (true) {
+                    if (mPosition >= length) {
+                        throw new ParseException("Unclosed quote", start);
+                    }
+                    char next = mText.charAt(mPosition++);
+                    if (next == c) {
+                        if (mPosition < length && mText.charAt(mPosition) == c) {
+                            mPosition++;
+                        } else {
+                            break;
+                        }
+                    }
+                    text.append(next);
+                }
+                mToken = new Token(c == '\'' ? TokenType.STRING : TokenType.QUOTED_IDENTIFIER,
+                        text.toString(), start);
+            } else if (Character.isLetter(c) || c == '_') {
+                while (mPosition < length && (Character.isLetterOrDigit(mText.charAt(mPosition))
+                        || mText.charAt(mPosition) == '_')) {
+                    mPosition++;
+                }
+                mToken = new Token(TokenType.IDENTIFIER, mText.substring(start, mPosition), start);
+            } else if (Character.isDigit(c) || c == '.' || c == '-') {
+                mPosition++;
+                while (mPosition < length && (Character.isDigit(mText.charAt(mPosition))
+                        || mText.charAt(mPosition) == '.')) {
+                    mPosition++;
+                }
+                String number = mText.substring(start, mPosition);
+                try {
+                    Double.parseDouble(number);
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Malformed number " + number, start);
+                }
+                mToken = new Token(TokenType.NUMBER, number, start);
+            } else {
+                String two = mText.substring(start, Math.min(start + 2, length));
+                if (two.equals("<=") || two.equals(">=") || two.equals("<>") || two.equals("!=")) {
+                    mPosition += 2;
+                    mToken = new Token(TokenType.OPERATOR, two, start);
+                } else if ("=<>(),".indexOf(c) >= 0) {
+                    mPosition++;
+                    mToken = new Token(TokenType.OPERATOR, String.valueOf(c), start);
+                } else {
+                    throw new ParseException(
+                            String.format(Locale.US, "Unexpected character %c", c), start);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.nextgis.maplib.api.IGISApplication;
+import com.nextgis.maplib.map.MapBase;
+import com.nextgis.maplib.map.MapContentProviderHelper;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Attribute filters of the vector layers, the features a filter rejects are not drawn, hit and
+ * navigated. The filters are stored in the preferences by the layer path names. The ids of the
+ * matching features are queried once and kept until the layer changes, so a check of a feature is
+ * a binary search.
+ * <p/>
+ * A field used by the filters repeatedly gets an index, the same one the attribute table sorts by.
+ * The uses are counted when a filter is set and the index is created in the background.
+ * <p/>
+ * The features hidden with {@link VectorLayer#hideFeature(long)}, e.g. while a deletion can be
+ * undone, are registered here too, so the tile renderer skips them as the rejected ones.
+ */
+public class FeatureFilterRegistry
+{
+    protected static final String KEY_PREF_FILTER = "feature_filter_";
+    protected static final String KEY_PREF_USES   = "feature_filter_uses_";
+    protected static final int    INDEX_USES      = 3;
+
+    protected static FeatureFilterRegistry sInstance;
+
+    protected final Context                      mContext;
+    protected final SharedPreferences            mPreferences;
+    protected final Map<String, LayerFilter>     mFilters;
+    protected final Map<String, Set<Long>>       mHidden;
+    protected final List<OnFilterChangeListener> mListeners;
+    protected final ExecutorService              mExecutor;
+
+
+    public interface OnFilterChangeListener
+    {
+        /**
+         * Called on the thread the filter is changed on, or on a binder thread after the features
+         * of a filtered layer change and its matching ids are dropped to be queried again
+         */
+        void onFilterChanged(VectorLayer layer);
+    }
+
+
+    protected FeatureFilterRegistry(Context context)
+    {
+        mContext = context.getApplicationContext();
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mFilters = new HashMap<>();
+        mHidden = new HashMap<>();
+        mListeners = new ArrayList<>();
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+
+    public static synchronized FeatureFilterRegistry getInstance(Context context)
+    {
+        if (null == sInstance) {
+            sInstance = new FeatureFilterRegistry(context);
+        }
+        return sInstance;
+    }
+
+
+    public synchronized void addListener(OnFilterChangeListener listener)
+    {
+        mListeners.add(listener);
+    }
+
+
+    public synchronized void removeListener(OnFilterChangeListener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+
+    /**
+     * Set the filter expression of the layer, an empty expression removes the filter
+     *
+     * @throws ParseException
+     *         if the expression is invalid, the previous filter is kept then
+     */
+    public void setFilter(
+            VectorLayer layer,
+            String expression)
+            throws ParseException
+    {
+        FeatureFilter filter = TextUtils.isEmpty(expression.trim()) ? null
+                : FeatureFilter.parse(expression.trim(), layer);
+        final String key = getKey(layer);
+
+        synchronized (this) {
+            LayerFilter previous = mFilters.remove(key);
+            if (null != previous) {
+                previous.close();
+            }
+            mFilters.put(key, new LayerFilter(layer, filter));
+        }
+
+        // the preferences are written in the background in the order of the changes
+        final String stored = null == filter ? null : filter.getExpression();
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (null == stored) {
+                    mPreferences.edit().remove(KEY_PREF_FILTER + key).commit();
+                } else {
+                    mPreferences.edit().putString(KEY_PREF_FILTER + key, stored).commit();
+                }
+            }
+        });
+
+        if (null != filter) {
+            countUses(layer, filter.getFields());
+        }
+
+        notifyListeners(layer);
+    }
+
+
+    /**
+     * Register the feature hidden with {@link VectorLayer#hideFeature(long)} or shown again, the
+     * listeners are told as on a filter change
+     */
+    public void setHidden(
+            VectorLayer layer,
+            long featureId,
+            boolean hidden)
+    {
+        String key = getKey(layer);
+
+        synchronized (this) {
+            // a new set on every change, so the returned sets are never changed
+            Set<Long> previous = mHidden.get(key);
+            Set<Long> ids = null == previous ? new HashSet<Long>() : new HashSet<>(previous);
+            if (hidden ? !ids.add(featureId) : !ids.remove(featureId)) {
+                return;
+            }
+
+            if (ids.isEmpty()) {
+                mHidden.remove(key);
+            } else {
+                mHidden.put(key, ids);
+            }
+        }
+
+        notifyListeners(layer);
+    }
+
+
+    protected void notifyListeners(VectorLayer layer)
+    {
+        List<OnFilterChangeListener> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<>(mListeners);
+        }
+
+        for (OnFilterChangeListener listener : listeners) {
+            listener.onFilterChanged(layer);
+        }
+    }
+
+
+    /**
+     * @return the hidden feature ids of the layer, not changed later, or null if there are none
+     */
+    public synchronized Set<Long> getHiddenIds(VectorLayer layer)
+    {
+        return mHidden.get(getKey(layer));
+    }
+
+
+    /**
+     * @return the filter expression of the layer or an empty string
+     */
+    public String getExpression(VectorLayer layer)
+    {
+        FeatureFilter filter = getLayerFilter(layer).mFilter;
+        return null == filter ? "" : filter.getExpression();
+    }
+
+
+    public boolean isFiltered(VectorLayer layer)
+    {
+        return null != getLayerFilter(layer).mFilter;
+    }
+
+
+    /**
+     * @return the ids of the features matching the filter of the layer in the ascending order or
+     * null if the layer is not filtered
+     */
+    public FeatureIdList getIds(VectorLayer layer)
+    {
+        return getLayerFilter(layer).getIds();
+    }
+
+
+    /**
+     * @return true if the layer is not filtered or its filter accepts the feature
+     */
+    public boolean accepts(
+            VectorLayer layer,
+            long featureId)
+    {
+        FeatureIdList ids = getIds(layer);
+        return null == ids || ids.contains(featureId);
+    }
+
+
+    /**
+     * @return the ids of the features matching the filter of the layer or of all its features in
+     * the ascending order
+     */
+    public FeatureIdList getFeatureIds(VectorLayer layer)
+    {
+        FeatureIdList ids = getIds(layer);
+        return null == ids ? FeatureIdList.fromLayer(layer) : ids;
+    }
+
+
+    protected synchronized LayerFilter getLayerFilter(VectorLayer layer)
+    {
+        String key = getKey(layer);
+        LayerFilter layerFilter = mFilters.get(key);
+        if (null == layerFilter || layerFilter.mLayer != layer) {
+            if (null != layerFilter) {
+                layerFilter.close();
+            }
+
+            FeatureFilter filter = null;
+            String expression = mPreferences.getString(KEY_PREF_FILTER + key, null);
+            if (null != expression) {
+                try {
+                    filter = FeatureFilter.parse(expression, layer);
+                } catch (ParseException e) {
+                    // e.g. the field is deleted, the layer is not filtered then
+                    Log.w(TAG, "Invalid filter of " + layer.getName() + ": " + e.getMessage());
+                }
+            }
+
+            layerFilter = new LayerFilter(layer, filter);
+            mFilters.put(key, layerFilter);
+        }
+        return layerFilter;
+    }
+
+
+    protected static String getKey(VectorLayer layer)
+    {
+        return layer.getPath().getName();
+    }
+
+
+    /**
+     * Count the use of the filter fields and create the index of a field on its repeated use, in
+     * the background
+     */
+    protected void countUses(
+            VectorLayer layer,
+            final List<String> fields)
+    {
+        final String table = layer.getPath().getName();
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (String field : fields) {
+                    countUse(table, field);
+                }
+            }
+        });
+    }
+
+
+    protected void countUse(
+            String table,
+            String field)
+    {
+        if (FIELD_ID.equals(field)) {
+            return;
+        }
+
+        String key = KEY_PREF_USES + table + "_" + field;
+        int uses = mPreferences.getInt(key, 0) + 1;
+        mPreferences.edit().putInt(key, uses).commit();
+        if (uses != INDEX_USES) {
+            return;
+        }
+
+        try {
+            MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+            SQLiteDatabase db = map.getDatabase(false);
+            db.execSQL("CREATE INDEX IF NOT EXISTS \"" + table + "_" + field + "_idx\" ON \""
+                    + table + "\" (\"" + field + "\")");
+        } catch (SQLException | ClassCastException e) {
+            Log.w(TAG, "Failed to create the index of the field " + field + ": " + e.getMessage());
+        }
+    }
+
+
+    protected class LayerFilter
+    {
+        protected final VectorLayer   mLayer;
+        protected final FeatureFilter mFilter;
+
+        protected FeatureIdList   mIds;
+        protected ContentObserver mObserver;
+
+
+        public LayerFilter(
+                VectorLayer layer,
+                FeatureFilter filter)
+        {
+            mLayer = layer;
+            mFilter = filter;
+        }
+
+
+        public synchronized FeatureIdList getIds()
+        {
+            if (null == mFilter) {
+                return null;
+            }
+
+            if (null == mIds) {
+                observe();
+                mIds = query();
+            }
+            return mIds;
+        }
+
+
+        /**
+         * Query the matching ids with the compiled where clause, or evaluate the filter on all
+         * features if it cannot be compiled or the query fails
+         */
+        protected FeatureIdList query()
+        {
+            if (null != mFilter.getWhere()) {
+                try {
+                    Cursor cursor = mLayer.query(new String[] {FIELD_ID}, mFilter.getWhere(),
+                            mFilter.getWhereArgs(), FIELD_ID + " ASC", null);
+                    if (null != cursor) {
+                        return readIds(cursor, false);
+                    }
+                } catch (SQLException e) {
+                    Log.w(TAG, "Failed to query the filter of " + mLayer.getName() + ": "
+                            + e.getMessage());
+                }
+            }
+
+            List<String> fields = mFilter.getFields();
+            if (!fields.contains(FIELD_ID)) {
+                fields.add(FIELD_ID);
+            }
+            Cursor cursor = mLayer.query(fields.toArray(new String[fields.size()]), null, null,
+                    FIELD_ID + " ASC", null);
+            return null == cursor ? new FeatureIdList() : readIds(cursor, true);
+        }
+
+
+        protected FeatureIdList readIds(
+                Cursor cursor,
+                boolean evaluate)
+        {
+            try {
+                int idColumn = cursor.getColumnIndex(FIELD_ID);
+                FeatureIdList ids = new FeatureIdList(evaluate ? 16 : cursor.getCount());
+                while (cursor.moveToNext()) {
+                    if (!evaluate || mFilter.matches(cursor)) {
+                        ids.add(cursor.getLong(idColumn));
+                    }
+                }
+                // the list is shared between threads, it is not changed after this
+                ids.sort();
+                return ids;
+            } finally {
+                cursor.close();
+            }
+        }
+
+
+        protected void observe()
+        {
+            if (null != mObserver || !(mContext instanceof IGISApplication)) {
+                return;
+            }
+
+            String authority = ((IGISApplication) mContext).getAuthority();
+            Uri uri = Uri.parse("content://" + authority + "/" + mLayer.getPath().getName());
+            // the listeners are told after the ids are dropped, so a redraw they start does not
+            // take the ids matching before the change
+            mObserver = new ContentObserver(null)
+            {
+                @Override
+                public void onChange(boolean selfChange)
+                {
+                    synchronized (LayerFilter.this) {
+                        if (null == mIds) {
+                            return;
+                        }
+                        mIds = null;
+                    }
+                    notifyListeners(mLayer);
+                }
+            };
+            mContext.getContentResolver().registerContentObserver(uri, true, mObserver);
+        }
+
+
+        public synchronized void close()
+        {
+            if (null != mObserver) {
+                mContext.getContentResolver().unregisterContentObserver(mObserver);
+                mObserver = null;
+            }
+            mIds = null;
+        }
+    }
+}
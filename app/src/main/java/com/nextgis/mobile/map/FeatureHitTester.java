@@ -0,0 +1,446 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the features under a screen point. The spatial indexes of the layers are queried in
+ * parallel off the main thread, the candidates are refined by the exact distance to their
+ * geometries and returned nearest first. The features rejected by the layer filters are not hit.
+ * Only the result of the latest request is delivered.
+ */
+public class FeatureHitTester
+{
+    protected final SpatialIndexRegistry  mIndexes;
+    protected final FeatureFilterRegistry mFilters;
+    protected final ExecutorService       mExecutor;
+    protected final ExecutorService       mQueryPool;
+    protected final Handler               mHandler;
+    protected final AtomicInteger         mGeneration;
+
+
+    public interface OnHitTestListener
+    {
+        /**
+         * Called on the main thread
+         *
+         * @param hits
+         *         The features within the tolerance, nearest first
+         */
+        void onHitTestFinished(List<Hit> hits);
+    }
+
+
+    public FeatureHitTester(
+            SpatialIndexRegistry indexes,
+            FeatureFilterRegistry filters)
+    {
+        mIndexes = indexes;
+        mFilters = filters;
+        mExecutor = Executors.newSingleThreadExecutor();
+        mQueryPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        mHandler = new Handler(Looper.getMainLooper());
+        mGeneration = new AtomicInteger();
+    }
+
+
+    /**
+     * @param layers
+     *         The layers to test, from the bottom to the top one
+     * @param point
+     *         The tested point in map units
+     * @param tolerance
+     *         The maximum distance to the feature in map units
+     * @param listener
+     *         The listener to receive the result, it is not called if a newer test is started
+     */
+    public void hitTest(
+            List<VectorLayer> layers,
+            GeoPoint point,
+            double tolerance,
+            final OnHitTestListener listener)
+    {
+        final int generation = mGeneration.incrementAndGet();
+        final GeoEnvelope envelope = new GeoEnvelope(point.getX() - tolerance,
+                point.getX() + tolerance, point.getY() - tolerance, point.getY() + tolerance);
+
+        final List<LayerHitTask> tasks = new ArrayList<>(layers.size());
+        for (int i = 0; i < layers.size(); i++) {
+            tasks.add(new LayerHitTask(layers.get(i), i, envelope, point, tolerance, generation));
+        }
+
+        mExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final List<Hit> hits = collectHits(tasks, generation);
+                if (null == hits) {
+                    return;
+                }
+
+                mHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (generation == mGeneration.get()) {
+                            listener.onHitTestFinished(hits);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Drop the result of the running test
+     */
+    public void cancel()
+    {
+        mGeneration.incrementAndGet();
+    }
+
+
+    public void shutdown()
+    {
+        cancel();
+        mExecutor.shutdownNow();
+        mQueryPool.shutdownNow();
+    }
+
+
+    protected List<Hit> collectHits(
+            List<LayerHitTask> tasks,
+            int generation)
+    {
+        List<Future<List<Hit>>> futures;
+        try {
+            futures = mQueryPool.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            return null;
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        for (Future<List<Hit>> future : futures) {
+            try {
+                hits.addAll(future.get());
+            } catch (InterruptedException e) {
+                return null;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (generation != mGeneration.get()) {
+            return null;
+        }
+
+        Collections.sort(hits, new Comparator<Hit>()
+        {
+            @Override
+            public int compare(
+                    Hit lhs,
+                    Hit rhs)
+            {
+                int result = Double.compare(lhs.mDistance, rhs.mDistance);
+                // upper layers first among equally near features
+                return 0 != result ? result : rhs.mLayerOrder - lhs.mLayerOrder;
+            }
+        });
+        return hits;
+    }
+
+
+    /**
+     * @return the distance from the point to the geometry not greater than the tolerance, the
+     * tolerance for the point inside an area far from its boundary or -1 for no hit
+     */
+    public static double getDistance(
+            GeoGeometry geometry,
+            GeoPoint point,
+            double tolerance)
+    {
+        double squareTolerance = tolerance * tolerance;
+
+        if (geometry instanceof GeoPoint) {
+            return toDistance(
+                    GeometrySimplifier.squareDistance(point, (GeoPoint) geometry), squareTolerance);
+        }
+
+        if (geometry instanceof GeoLineString) {
+            return toDistance(
+                    getSquareLineDistance(((GeoLineString) geometry).getPoints(), point),
+                    squareTolerance);
+        }
+
+        if (geometry instanceof GeoPolygon) {
+            return getPolygonDistance((GeoPolygon) geometry, point, tolerance);
+        }
+
+        double result = -1;
+        if (geometry instanceof GeoMultiPoint) {
+            GeoMultiPoint multiPoint = (GeoMultiPoint) geometry;
+            for (int i = 0; i < multiPoint.size(); i++) {
+                result = nearest(result, getDistance(multiPoint.get(i), point, tolerance));
+            }
+        } else if (geometry instanceof GeoMultiLineString) {
+            GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+            for (int i = 0; i < multiLine.size(); i++) {
+                result = nearest(result, getDistance(multiLine.get(i), point, tolerance));
+            }
+        } else if (geometry instanceof GeoMultiPolygon) {
+            GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+            for (int i = 0; i < multiPolygon.size(); i++) {
+                result = nearest(result, getPolygonDistance(multiPolygon.get(i), point, tolerance));
+            }
+        }
+
+        return result;
+    }
+
+
+    protected static double getPolygonDistance(
+            GeoPolygon polygon,
+            GeoPoint point,
+            double tolerance)
+    {
+        double squareDistance = getSquareLineDistance(polygon.getOuterRing().getPoints(), point);
+        boolean inside = contains(polygon.getOuterRing(), point);
+
+        for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+            GeoLinearRing ring = polygon.getInnerRing(i);
+            squareDistance = Math.min(squareDistance, getSquareLineDistance(ring.getPoints(), point));
+            if (inside && contains(ring, point)) {
+                inside = false;
+            }
+        }
+
+        double distance = toDistance(squareDistance, tolerance * tolerance);
+        if (distance < 0 && inside) {
+            // the boundaries and the other features near the point are more specific hits
+            return tolerance;
+        }
+
+        return distance;
+    }
+
+
+    protected static double getSquareLineDistance(
+            List<GeoPoint> points,
+            GeoPoint point)
+    {
+        if (points.isEmpty()) {
+            return Double.MAX_VALUE;
+        }
+
+        if (points.size() == 1) {
+            return GeometrySimplifier.squareDistance(point, points.get(0));
+        }
+
+        double result = Double.MAX_VALUE;
+        for (int i = 1; i < points.size(); i++) {
+            result = Math.min(result, GeometrySimplifier.squareSegmentDistance(
+                    point, points.get(i - 1), points.get(i)));
+        }
+        return result;
+    }
+
+
+    protected static boolean contains(
+            GeoLinearRing ring,
+            GeoPoint point)
+    {
+        List<GeoPoint> points = ring.getPoints();
+        double x = point.getX();
+        double y = point.getY();
+        boolean inside = false;
+
+        for (int i = 0, j = points.size() - 1; i < points.size(); j = i++) {
+            GeoPoint a = points.get(i);
+            GeoPoint b = points.get(j);
+            if ((a.getY() > y) != (b.getY() > y) &&
+                    x < (b.getX() - a.getX()) * (y - a.getY()) / (b.getY() - a.getY()) + a.getX()) {
+                inside = !inside;
+            }
+        }
+
+        return inside;
+    }
+
+
+    protected static double toDistance(
+            double squareDistance,
+            double squareTolerance)
+    {
+        return squareDistance <= squareTolerance ? Math.sqrt(squareDistance) : -1;
+    }
+
+
+    protected static double nearest(
+            double distance,
+            double other)
+    {
+        if (distance < 0) {
+            return other;
+        }
+        return other < 0 ? distance : Math.min(distance, other);
+    }
+
+
+    protected class LayerHitTask
+            implements Callable<List<Hit>>
+    {
+        protected final VectorLayer mLayer;
+        protected final int         mLayerOrder;
+        protected final GeoEnvelope mEnvelope;
+        protected final GeoPoint    mPoint;
+        protected final double      mTolerance;
+        protected final int         mGeneration;
+
+
+        public LayerHitTask(
+                VectorLayer layer,
+                int layerOrder,
+                GeoEnvelope envelope,
+                GeoPoint point,
+                double tolerance,
+                int generation)
+        {
+            mLayer = layer;
+            mLayerOrder = layerOrder;
+            mEnvelope = envelope;
+            mPoint = point;
+            mTolerance = tolerance;
+            mGeneration = generation;
+        }
+
+
+        @Override
+        public List<Hit> call()
+        {
+            List<Hit> hits = new ArrayList<>();
+            FeatureIdList ids = new FeatureIdList();
+            if (!mIndexes.query(mLayer, mEnvelope, ids)) {
+                // the stored index is being built, the layer cache is used meanwhile
+                List<Long> cachedIds = mLayer.query(mEnvelope);
+                if (null == cachedIds) {
+                    return hits;
+                }
+                ids.addAll(cachedIds);
+            }
+
+            FeatureIdList accepted = mFilters.getIds(mLayer);
+            for (int i = 0; i < ids.size(); i++) {
+                long id = ids.get(i);
+                if (mGeneration != FeatureHitTester.this.mGeneration.get()) {
+                    break;
+                }
+                if (null != accepted && !accepted.contains(id)) {
+                    continue;
+                }
+
+                // the layer cache may still hold the deleted features
+                GeoGeometry geometry = mLayer.getGeometryForId(id);
+                if (null == geometry) {
+                    continue;
+                }
+
+                double distance = getDistance(geometry, mPoint, mTolerance);
+                if (distance >= 0) {
+                    hits.add(new Hit(mLayer, mLayerOrder, id, distance));
+                }
+            }
+            return hits;
+        }
+    }
+
+
+    public static class Hit
+    {
+        protected final VectorLayer mLayer;
+        protected final int         mLayerOrder;
+        protected final long        mFeatureId;
+        protected final double      mDistance;
+
+
+        public Hit(
+                VectorLayer layer,
+                int layerOrder,
+                long featureId,
+                double distance)
+        {
+            mLayer = layer;
+            mLayerOrder = layerOrder;
+            mFeatureId = featureId;
+            mDistance = distance;
+        }
+
+
+        public VectorLayer getLayer()
+        {
+            return mLayer;
+        }
+
+
+        public long getFeatureId()
+        {
+            return mFeatureId;
+        }
+
+
+        /**
+         * @return the distance to the feature in map units
+         */
+        public double getDistance()
+        {
+            return mDistance;
+        }
+    }
+}
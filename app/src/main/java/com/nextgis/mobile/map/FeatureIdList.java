@@ -0,0 +1,185 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.database.Cursor;
+
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.mobile.util.ArrayUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+
+/**
+ * Feature ids in a primitive array. A sorted list finds the position of an id by a binary search.
+ * The queries do not change the list, so a list sorted before it is shared can be read from
+ * several threads.
+ */
+public class FeatureIdList
+{
+    protected static final int INITIAL_CAPACITY = 16;
+
+    protected long[]  mIds;
+    protected int     mSize;
+    protected boolean mSorted;
+
+
+    public FeatureIdList()
+    {
+        this(INITIAL_CAPACITY);
+    }
+
+
+    public FeatureIdList(int capacity)
+    {
+        mIds = new long[Math.max(capacity, 1)];
+        mSorted = true;
+    }
+
+
+    /**
+     * @return the ids of all layer features in the ascending order
+     */
+    public static FeatureIdList fromLayer(VectorLayer layer)
+    {
+        Cursor cursor = layer.query(new String[] {FIELD_ID}, null, null, FIELD_ID + " ASC", null);
+        if (null == cursor) {
+            return new FeatureIdList();
+        }
+
+        try {
+            FeatureIdList result = new FeatureIdList(cursor.getCount());
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    public void add(long id)
+    {
+        if (mSize == mIds.length) {
+            mIds = ArrayUtil.copyOf(mIds, mSize * 2);
+        }
+
+        if (mSize > 0 && id <= mIds[mSize - 1]) {
+            mSorted = false;
+        }
+        mIds[mSize++] = id;
+    }
+
+
+    public void addAll(List<Long> ids)
+    {
+        for (Long id : ids) {
+            add(id);
+        }
+    }
+
+
+    /**
+     * Sort the ids in the ascending order and remove the duplicates
+     */
+    public void sort()
+    {
+        if (mSorted) {
+            return;
+        }
+
+        Arrays.sort(mIds, 0, mSize);
+        int size = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (size == 0 || mIds[i] != mIds[size - 1]) {
+                mIds[size++] = mIds[i];
+            }
+        }
+        mSize = size;
+        mSorted = true;
+    }
+
+
+    public long get(int position)
+    {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + mSize);
+        }
+        return mIds[position];
+    }
+
+
+    /**
+     * @return the position of the id or -1 if there is no such id, the first one for an unsorted
+     * list with duplicates
+     */
+    public int indexOf(long id)
+    {
+        if (mSorted) {
+            int position = ArrayUtil.binarySearch(mIds, 0, mSize, id);
+            return position < 0 ? -1 : position;
+        }
+
+        for (int i = 0; i < mSize; i++) {
+            if (mIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    public boolean contains(long id)
+    {
+        return indexOf(id) >= 0;
+    }
+
+
+    public int size()
+    {
+        return mSize;
+    }
+
+
+    public boolean isEmpty()
+    {
+        return mSize == 0;
+    }
+
+
+    public void clear()
+    {
+        mSize = 0;
+        mSorted = true;
+    }
+
+
+    public long[] toArray()
+    {
+        return ArrayUtil.copyOf(mIds, mSize);
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * R-tree of the feature envelopes with linear node splits. A stored tree keeps only its entries
+ * and is packed again on read (sort-tile-recursive), which gives better nodes than the
+ * incremental inserts.
+ */
+public class FeatureRTree
+{
+    protected static final int MAX_ENTRIES = 16;
+    protected static final int MIN_ENTRIES = 6;
+
+    protected final Map<Long, Node> mEntries;
+    protected Node mRoot;
+
+
+    public FeatureRTree()
+    {
+        mEntries = new HashMap<>();
+        mRoot = new Node(true);
+    }
+
+
+    public int size()
+    {
+        return mEntries.size();
+    }
+
+
+    /**
+     * Insert the feature envelope or replace the previous one
+     */
+    public void insert(
+            long id,
+            GeoEnvelope envelope)
+    {
+        remove(id);
+
+        Node entry = new Node(id, envelope);
+        mEntries.put(id, entry);
+        insertEntry(entry);
+    }
+
+
+    /**
+     * @return true if the feature was in the tree
+     */
+    public boolean remove(long id)
+    {
+        Node entry = mEntries.remove(id);
+        if (null == entry) {
+            return false;
+        }
+
+        Node node = entry.mParent;
+        node.mChildren.remove(entry);
+
+        // remove the underfilled nodes up to the root and insert their entries again
+        List<Node> orphans = new ArrayList<>();
+        while (node != mRoot) {
+            Node parent = node.mParent;
+            if (node.mChildren.size() < MIN_ENTRIES) {
+                parent.mChildren.remove(node);
+                collectEntries(node, orphans);
+            } else {
+                node.updateBounds();
+            }
+            node = parent;
+        }
+        mRoot.updateBounds();
+
+        while (!mRoot.mLeaf && mRoot.mChildren.size() == 1) {
+            mRoot = mRoot.mChildren.get(0);
+            mRoot.mParent = null;
+        }
+        if (!mRoot.mLeaf && mRoot.mChildren.isEmpty()) {
+            mRoot = new Node(true);
+        }
+
+        for (Node orphan : orphans) {
+            insertEntry(orphan);
+        }
+        return true;
+    }
+
+
+    /**
+     * Collect the ids of the features which envelopes intersect the envelope
+     */
+    public void search(
+            GeoEnvelope envelope,
+            FeatureIdList result)
+    {
+        search(envelope, result, null);
+    }
+
+
+    /**
+     * Collect the ids of the features which envelopes intersect the envelope
+     *
+     * @param envelopes
+     *         The list to collect the feature envelopes in the order of the ids or null
+     */
+    public void search(
+            GeoEnvelope envelope,
+            FeatureIdList result,
+            List<GeoEnvelope> envelopes)
+    {
+        double minX = envelope.getMinX(), minY = envelope.getMinY();
+        double maxX = envelope.getMaxX(), maxY = envelope.getMaxY();
+
+        List<Node> stack = new ArrayList<>();
+        stack.add(mRoot);
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            for (Node child : node.mChildren) {
+                if (!child.intersects(minX, minY, maxX, maxY)) {
+                    continue;
+                }
+
+                if (node.mLeaf) {
+                    result.add(child.mId);
+                    if (null != envelopes) {
+                        envelopes.add(new GeoEnvelope(
+                                child.mMinX, child.mMaxX, child.mMinY, child.mMaxY));
+                    }
+                } else {
+                    stack.add(child);
+                }
+            }
+        }
+    }
+
+
+    public void write(DataOutput output)
+            throws IOException
+    {
+        output.writeInt(mEntries.size());
+        for (Node entry : mEntries.values()) {
+            output.writeLong(entry.mId);
+            output.writeDouble(entry.mMinX);
+            output.writeDouble(entry.mMinY);
+            output.writeDouble(entry.mMaxX);
+            output.writeDouble(entry.mMaxY);
+        }
+    }
+
+
+    public static FeatureRTree read(DataInput input)
+            throws IOException
+    {
+        int count = input.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid entry count " + count);
+        }
+
+        FeatureRTree tree = new FeatureRTree();
+        List<Node> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Node entry = new Node(input.readLong(), input.readDouble(), input.readDouble(),
+                    input.readDouble(), input.readDouble());
+            entries.add(entry);
+            tree.mEntries.put(entry.mId, entry);
+        }
+        tree.load(entries);
+        return tree;
+    }
+
+
+    /**
+     * Build the tree of the entries at once
+     */
+    public static FeatureRTree build(
+            FeatureIdList ids,
+            List<GeoEnvelope> envelopes)
+    {
+        FeatureRTree tree = new FeatureRTree();
+        List<Node> entries = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Node entry = new Node(ids.get(i), envelopes.get(i));
+            entries.add(entry);
+            tree.mEntries.put(entry.mId, entry);
+        }
+        tree.load(entries);
+        return tree;
+    }
+
+
+    protected void load(List<Node> entries)
+    {
+        if (entries.size() <= MAX_ENTRIES) {
+            mRoot = new Node(true);
+            for (Node entry : entries) {
+                mRoot.add(entry);
+            }
+            mRoot.updateBounds();
+            return;
+        }
+
+        List<Node> nodes = pack(entries, true);
+        while (nodes.size() > 1) {
+            nodes = pack(nodes, false);
+        }
+        mRoot = nodes.get(0);
+    }
+
+
+    protected static List<Node> pack(
+            List<Node> children,
+            boolean leaf)
+    {
+        int nodeCount = (children.size() + MAX_ENTRIES - 1) / MAX_ENTRIES;
+        int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+        int sliceSize = sliceCount * MAX_ENTRIES;
+
+        Collections.sort(children, new Comparator<Node>()
+        {
+            @Override
+            public int compare(
+                    Node lhs,
+                    Node rhs)
+            {
+                return Double.compare(lhs.mMinX + lhs.mMaxX, rhs.mMinX + rhs.mMaxX);
+            }
+        });
+
+        List<Node> nodes = new ArrayList<>(nodeCount);
+        for (int start = 0; start < children.size(); start += sliceSize) {
+            List<Node> slice = children.subList(start, Math.min(start + sliceSize, children.size()));
+            Collections.sort(slice, new Comparator<Node>()
+            {
+                @Override
+                public int compare(
+                        Node lhs,
+                        Node rhs)
+                {
+                    return Double.compare(lhs.mMinY + lhs.mMaxY, rhs.mMinY + rhs.mMaxY);
+                }
+            });
+
+            for (int i = 0; i < slice.size(); i += MAX_ENTRIES) {
+                Node node = new Node(leaf);
+                for (Node child : slice.subList(i, Math.min(i + MAX_ENTRIES, slice.size()))) {
+                    node.add(child);
+                }
+                node.updateBounds();
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+
+    protected void insertEntry(Node entry)
+    {
+        Node node = mRoot;
+        while (!node.mLeaf) {
+            node = chooseChild(node, entry);
+        }
+        node.add(entry);
+
+        // split the overflowed nodes up to the root
+        Node split = null;
+        while (null != node) {
+            if (null != split) {
+                node.add(split);
+            }
+            split = node.mChildren.size() > MAX_ENTRIES ? split(node) : null;
+            if (null == split) {
+                node.extend(entry);
+            }
+            node = node.mParent;
+        }
+
+        if (null != split) {
+            Node root = new Node(false);
+            root.add(mRoot);
+            root.add(split);
+            root.updateBounds();
+            mRoot = root;
+        }
+    }
+
+
+    protected static Node chooseChild(
+            Node node,
+            Node entry)
+    {
+        Node result = null;
+        double minEnlargement = Double.MAX_VALUE;
+        double minArea = Double.MAX_VALUE;
+        for (Node child : node.mChildren) {
+            double area = child.getArea();
+            double enlargement = child.getEnlargedArea(entry) - area;
+            if (enlargement < minEnlargement || enlargement == minEnlargement && area < minArea) {
+                result = child;
+                minEnlargement = enlargement;
+                minArea = area;
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Move a part of the node children to a new sibling node
+     */
+    protected static Node split(Node node)
+    {
+        List<Node> children = new ArrayList<>(node.mChildren);
+        int[] seeds = pickSeeds(children);
+
+        Node sibling = new Node(node.mLeaf);
+        node.mChildren.clear();
+        node.add(children.get(seeds[0]));
+        node.updateBounds();
+        sibling.add(children.get(seeds[1]));
+        sibling.updateBounds();
+
+        int left = children.size() - 2;
+        for (int i = 0; i < children.size(); i++) {
+            if (i == seeds[0] || i == seeds[1]) {
+                continue;
+            }
+
+            Node child = children.get(i);
+            Node target;
+            if (node.mChildren.size() + left == MIN_ENTRIES) {
+                target = node;
+            } else if (sibling.mChildren.size() + left == MIN_ENTRIES) {
+                target = sibling;
+            } else {
+                double nodeEnlargement = node.getEnlargedArea(child) - node.getArea();
+                double siblingEnlargement = sibling.getEnlargedArea(child) - sibling.getArea();
+                if (nodeEnlargement != siblingEnlargement) {
+                    target = nodeEnlargement < siblingEnlargement ? node : sibling;
+                } else if (node.getArea() != sibling.getArea()) {
+                    target = node.getArea() < sibling.getArea() ? node : sibling;
+                } else {
+                    target = node.mChildren.size() <= sibling.mChildren.size() ? node : sibling;
+                }
+            }
+
+            target.add(child);
+            target.extend(child);
+            left--;
+        }
+        return sibling;
+    }
+
+
+    /**
+     * @return the indexes of the two children farthest apart along any axis
+     */
+    protected static int[] pickSeeds(List<Node> children)
+    {
+        int highestMinX = 0, lowestMaxX = 0, highestMinY = 0, lowestMaxY = 0;
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+        for (int i = 0; i < children.size(); i++) {
+            Node child = children.get(i);
+            if (child.mMinX > children.get(highestMinX).mMinX) {
+                highestMinX = i;
+            }
+            if (child.mMaxX < children.get(lowestMaxX).mMaxX) {
+                lowestMaxX = i;
+            }
+            if (child.mMinY > children.get(highestMinY).mMinY) {
+                highestMinY = i;
+            }
+            if (child.mMaxY < children.get(lowestMaxY).mMaxY) {
+                lowestMaxY = i;
+            }
+            minX = Math.min(minX, child.mMinX);
+            maxX = Math.max(maxX, child.mMaxX);
+            minY = Math.min(minY, child.mMinY);
+            maxY = Math.max(maxY, child.mMaxY);
+        }
+
+        double separationX = (children.get(highestMinX).mMinX - children.get(lowestMaxX).mMaxX)
+                             / Math.max(maxX - minX, Double.MIN_VALUE);
+        double separationY = (children.get(highestMinY).mMinY - children.get(lowestMaxY).mMaxY)
+                             / Math.max(maxY - minY, Double.MIN_VALUE);
+
+        int first = separationX >= separationY ? highestMinX : highestMinY;
+        int second = separationX >= separationY ? lowestMaxX : lowestMaxY;
+        if (first == second) {
+            // all children overlap, any two of them will do
+            first = 0;
+            second = children.size() - 1;
+        }
+        return new int[] {first, second};
+    }
+
+
+    protected static void collectEntries(
+            Node node,
+            List<Node> result)
+    {
+        if (node.mLeaf) {
+            result.addAll(node.mChildren);
+            return;
+        }
+
+        for (Node child : node.mChildren) {
+            collectEntries(child, result);
+        }
+    }
+
+
+    /**
+     * A tree node or a feature entry of a leaf node
+     */
+    protected static class Node
+    {
+        protected final boolean    mLeaf;
+        protected final List<Node> mChildren;
+        protected final long       mId;
+
+        protected Node   mParent;
+        protected double mMinX, mMinY, mMaxX, mMaxY;
+
+
+        public Node(boolean leaf)
+        {
+            mLeaf = leaf;
+            mChildren = new ArrayList<>(MAX_ENTRIES + 1);
+            mId = -1;
+            setEmpty();
+        }
+
+
+        public Node(
+                long id,
+                GeoEnvelope envelope)
+        {
+            this(id, envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(),
+                    envelope.getMaxY());
+        }
+
+
+        public Node(
+                long id,
+                double minX,
+                double minY,
+                double maxX,
+                double maxY)
+        {
+            mLeaf = false;
+            mChildren = null;
+            mId = id;
+            mMinX = minX;
+            mMinY = minY;
+            mMaxX = maxX;
+            mMaxY = maxY;
+        }
+
+
+        public void add(Node child)
+        {
+            mChildren.add(child);
+            child.mParent = this;
+        }
+
+
+        public void updateBounds()
+        {
+            setEmpty();
+            for (Node child : mChildren) {
+                extend(child);
+            }
+        }
+
+
+        public void extend(Node other)
+        {
+            mMinX = Math.min(mMinX, other.mMinX);
+            mMinY = Math.min(mMinY, other.mMinY);
+            mMaxX = Math.max(mMaxX, other.mMaxX);
+            mMaxY = Math.max(mMaxY, other.mMaxY);
+        }
+
+
+        public boolean intersects(
+                double minX,
+                double minY,
+                double maxX,
+                double maxY)
+        {
+            return mMinX <= maxX && mMaxX >= minX && mMinY <= maxY && mMaxY >= minY;
+        }
+
+
+        public double getArea()
+        {
+            return mMaxX < mMinX ? 0 : (mMaxX - mMinX) * (mMaxY - mMinY);
+        }
+
+
+        public double getEnlargedArea(Node other)
+        {
+            if (mMaxX < mMinX) {
+                return other.getArea();
+            }
+
+            return (Math.max(mMaxX, other.mMaxX) - Math.min(mMinX, other.mMinX))
+                   * (Math.max(mMaxY, other.mMaxY) - Math.min(mMinY, other.mMinY));
+        }
+
+
+        protected void setEmpty()
+        {
+            mMinX = mMinY = Double.MAX_VALUE;
+            mMaxX = mMaxY = -Double.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.map.LayerGroup;
+import com.nextgis.maplib.map.MapBase;
+import com.nextgis.maplib.map.MapContentProviderHelper;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.nextgis.maplib.util.Constants.FIELD_GEOM;
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Geometry measures stored in a side table of every layer table keyed by the feature id, so the
+ * attributes of a feature are shown without reading and deserializing its geometry. The layer
+ * table itself is not changed, its readers do not see the measures as attributes.
+ * <p/>
+ * The measures are computed when a feature change is notified by the content provider. The layer
+ * table triggers delete them on any geometry update or feature delete, so the measures of the
+ * features changed while the store does not observe, e.g. by a sync in another process, are not
+ * stale but missing and are computed on the first read. A change without a feature id (a bulk
+ * change or any change before API 16, where the changed uri is not passed) computes the missing
+ * measures of the layer or of all layers.
+ */
+public class GeometryMeasureStore
+{
+    public static final String COLUMN_FEATURE   = "feature_id";
+    public static final String COLUMN_LENGTH    = "length";
+    public static final String COLUMN_PERIMETER = "perimeter";
+    public static final String COLUMN_AREA      = "area";
+    public static final String COLUMN_MIN_X     = "min_x";
+    public static final String COLUMN_MAX_X     = "max_x";
+    public static final String COLUMN_MIN_Y     = "min_y";
+    public static final String COLUMN_MAX_Y     = "max_y";
+    public static final String COLUMN_VERTICES  = "vertices";
+
+    protected static final String[] COLUMNS = new String[] {
+            COLUMN_LENGTH, COLUMN_PERIMETER, COLUMN_AREA, COLUMN_MIN_X, COLUMN_MAX_X,
+            COLUMN_MIN_Y, COLUMN_MAX_Y, COLUMN_VERTICES};
+
+    protected static final String TABLE_SUFFIX   = "_measures";
+    protected static final String UPDATE_TRIGGER = "_measures_update";
+    protected static final String DELETE_TRIGGER = "_measures_delete";
+    protected static final int    REFRESH_BATCH  = 100;
+
+    protected static GeometryMeasureStore sInstance;
+
+    protected final Context         mContext;
+    protected final ExecutorService mExecutor;
+    protected final Set<String>     mPendingTables;
+
+    protected ContentObserver mObserver;
+    protected boolean         mRefreshAllPending;
+
+
+    protected GeometryMeasureStore(Context context)
+    {
+        mContext = context.getApplicationContext();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mPendingTables = new HashSet<>();
+    }
+
+
+    public static synchronized GeometryMeasureStore getInstance(Context context)
+    {
+        if (null == sInstance) {
+            sInstance = new GeometryMeasureStore(context);
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * Compute the measures of the changed features of all layers in the background
+     */
+    public synchronized void observe(String authority)
+    {
+        if (null != mObserver) {
+            return;
+        }
+
+        mObserver = new ContentObserver(null)
+        {
+            @Override
+            public void onChange(boolean selfChange)
+            {
+                onChange(selfChange, null);
+            }
+
+
+            @Override
+            public void onChange(
+                    boolean selfChange,
+                    Uri uri)
+            {
+                List<String> segments = null == uri ? null : uri.getPathSegments();
+                if (null == segments || segments.isEmpty()) {
+                    requestRefresh(null);
+                    return;
+                }
+
+                final String pathName = segments.get(0);
+                if (segments.size() != 2) {
+                    requestRefresh(pathName);
+                    return;
+                }
+
+                final long featureId;
+                try {
+                    featureId = Long.parseLong(segments.get(1));
+                } catch (NumberFormatException e) {
+                    requestRefresh(pathName);
+                    return;
+                }
+
+                mExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        ILayer layer = MapBase.getInstance().getLayerByPathName(pathName);
+                        if (layer instanceof VectorLayer) {
+                            update((VectorLayer) layer, featureId);
+                        }
+                    }
+                });
+            }
+        };
+        mContext.getContentResolver()
+                .registerContentObserver(Uri.parse("content://" + authority), true, mObserver);
+    }
+
+
+    /**
+     * Compute the missing measures of the layer table or of all layers in the background, the
+     * requests queued before the computation starts are done once
+     *
+     * @param pathName
+     *         The layer table or null for all layers
+     */
+    protected void requestRefresh(final String pathName)
+    {
+        synchronized (mPendingTables) {
+            if (mRefreshAllPending || null != pathName && !mPendingTables.add(pathName)) {
+                return;
+            }
+            if (null == pathName) {
+                mRefreshAllPending = true;
+                mPendingTables.clear();
+            }
+        }
+
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (mPendingTables) {
+                    if (null == pathName) {
+                        mRefreshAllPending = false;
+                    } else if (!mPendingTables.remove(pathName)) {
+                        // done by a refresh of all layers
+                        return;
+                    }
+                }
+
+                if (null == pathName) {
+                    refreshAll(MapBase.getInstance());
+                } else {
+                    ILayer layer = MapBase.getInstance().getLayerByPathName(pathName);
+                    if (layer instanceof VectorLayer) {
+                        refresh((VectorLayer) layer);
+                    }
+                }
+            }
+        });
+    }
+
+
+    protected void refreshAll(LayerGroup group)
+    {
+        for (int i = 0; i < group.getLayerCount(); i++) {
+            ILayer layer = group.getLayer(i);
+            if (layer instanceof LayerGroup) {
+                refreshAll((LayerGroup) layer);
+            } else if (layer instanceof VectorLayer) {
+                refresh((VectorLayer) layer);
+            }
+        }
+    }
+
+
+    /**
+     * Compute and store the missing measures of the layer features. The features are read in
+     * batches which are closed before the measures are stored, as the stored rows leave the
+     * selection.
+     */
+    protected void refresh(VectorLayer layer)
+    {
+        if (!prepare(layer)) {
+            return;
+        }
+
+        String selection = FIELD_GEOM + " IS NOT NULL AND " + FIELD_ID + " > ? AND " + FIELD_ID
+                + " NOT IN (SELECT " + COLUMN_FEATURE + " FROM \"" + getTable(layer) + TABLE_SUFFIX
+                + "\")";
+        long lastId = Long.MIN_VALUE;
+        List<Long> ids = new ArrayList<>(REFRESH_BATCH);
+        List<Measures> batch = new ArrayList<>(REFRESH_BATCH);
+        int count;
+        do {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            Cursor cursor = layer.query(new String[] {FIELD_ID, FIELD_GEOM}, selection,
+                    new String[] {lastId + ""}, FIELD_ID + " ASC", REFRESH_BATCH + "");
+            if (null == cursor) {
+                return;
+            }
+
+            ids.clear();
+            batch.clear();
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    try {
+                        batch.add(Measures.fromGeometry(
+                                GeoGeometryFactory.fromBlob(cursor.getBlob(1))));
+                        ids.add(lastId);
+                    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                        // skipped, the next batch starts after it
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (int i = 0; i < ids.size(); i++) {
+                store(layer, ids.get(i), batch.get(i));
+            }
+        } while (count == REFRESH_BATCH);
+    }
+
+
+    /**
+     * @return the stored measures of the feature, computed now if they are missing, or null if
+     * the feature has no geometry
+     */
+    public Measures get(
+            VectorLayer layer,
+            long featureId)
+    {
+        if (!prepare(layer)) {
+            return compute(layer, featureId);
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = getDatabase().query("\"" + getTable(layer) + TABLE_SUFFIX + "\"", COLUMNS,
+                    COLUMN_FEATURE + " = ?", new String[] {featureId + ""}, null, null, null);
+            if (cursor.moveToFirst()) {
+                return new Measures(cursor.getDouble(0), cursor.getDouble(1),
+                        cursor.getDouble(2), new GeoEnvelope(cursor.getDouble(3),
+                        cursor.getDouble(4), cursor.getDouble(5), cursor.getDouble(6)),
+                        cursor.getInt(7));
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Failed to read the geometry measures: " + e.getMessage());
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        return update(layer, featureId);
+    }
+
+
+    /**
+     * Compute and store the measures of the feature
+     */
+    protected Measures update(
+            VectorLayer layer,
+            long featureId)
+    {
+        Measures measures = compute(layer, featureId);
+        if (null != measures && prepare(layer)) {
+            store(layer, featureId, measures);
+        }
+        return measures;
+    }
+
+
+    protected void store(
+            VectorLayer layer,
+            long featureId,
+            Measures measures)
+    {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_FEATURE, featureId);
+        values.put(COLUMN_LENGTH, measures.getLength());
+        values.put(COLUMN_PERIMETER, measures.getPerimeter());
+        values.put(COLUMN_AREA, measures.getArea());
+        values.put(COLUMN_MIN_X, measures.getEnvelope().getMinX());
+        values.put(COLUMN_MAX_X, measures.getEnvelope().getMaxX());
+        values.put(COLUMN_MIN_Y, measures.getEnvelope().getMinY());
+        values.put(COLUMN_MAX_Y, measures.getEnvelope().getMaxY());
+        values.put(COLUMN_VERTICES, measures.getVertexCount());
+
+        // directly to the table: the provider would notify a change
+        try {
+            getDatabase().replace("\"" + getTable(layer) + TABLE_SUFFIX + "\"", null, values);
+        } catch (SQLException e) {
+            Log.w(TAG, "Failed to store the geometry measures: " + e.getMessage());
+        }
+    }
+
+
+    protected Measures compute(
+            VectorLayer layer,
+            long featureId)
+    {
+        Cursor cursor = layer.query(new String[] {FIELD_GEOM}, FIELD_ID + " = ?",
+                new String[] {featureId + ""}, null, null);
+        if (null == cursor) {
+            return null;
+        }
+
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return Measures.fromGeometry(GeoGeometryFactory.fromBlob(cursor.getBlob(0)));
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Create the measures table and the layer table triggers which delete the outdated measures
+     * if the table has none. The table is checked on every call, a layer can be deleted and
+     * created again with the same table name, then the measures left from the old table are
+     * deleted.
+     *
+     * @return false if the table cannot be changed
+     */
+    protected static synchronized boolean prepare(VectorLayer layer)
+    {
+        String table = getTable(layer);
+        try {
+            SQLiteDatabase db = getDatabase();
+            String[] names = {table + TABLE_SUFFIX, table + UPDATE_TRIGGER, table + DELETE_TRIGGER};
+            boolean exists = false;
+            int count = 0;
+            Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE name IN (?, ?, ?)",
+                    names);
+            try {
+                while (cursor.moveToNext()) {
+                    exists |= names[0].equals(cursor.getString(0));
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (count == names.length) {
+                return true;
+            }
+
+            String quoted = "\"" + table + "\"";
+            String measures = "\"" + names[0] + "\"";
+            String delete = " BEGIN DELETE FROM " + measures + " WHERE " + COLUMN_FEATURE
+                    + " = OLD." + FIELD_ID + "; END";
+            db.beginTransaction();
+            try {
+                // the triggers are dropped with the layer table
+                if (exists) {
+                    db.execSQL("DELETE FROM " + measures);
+                }
+
+                StringBuilder columns = new StringBuilder();
+                for (String column : COLUMNS) {
+                    columns.append(", ").append(column)
+                            .append(COLUMN_VERTICES.equals(column) ? " INTEGER" : " REAL");
+                }
+                db.execSQL("CREATE TABLE IF NOT EXISTS " + measures + " (" + COLUMN_FEATURE
+                        + " INTEGER PRIMARY KEY" + columns + ")");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + names[1] + "\" AFTER UPDATE OF \""
+                        + FIELD_GEOM + "\", " + FIELD_ID + " ON " + quoted + delete);
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + names[2] + "\" AFTER DELETE ON "
+                        + quoted + delete);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        } catch (SQLException | ClassCastException e) {
+            Log.w(TAG, "Failed to add the geometry measures to " + table + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    /**
+     * Drop the measures of the deleted layer tables in the background
+     */
+    public void dropOrphans()
+    {
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (GeometryMeasureStore.class) {
+                    try {
+                        SQLiteDatabase db = getDatabase();
+                        List<String> tables = new ArrayList<>();
+                        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master AS measures "
+                                + "WHERE type = 'table' AND name LIKE ? ESCAPE '\\' AND NOT EXISTS "
+                                + "(SELECT 1 FROM sqlite_master WHERE type = 'table' "
+                                + "AND name || ? = measures.name)",
+                                new String[] {"%\\" + TABLE_SUFFIX, TABLE_SUFFIX});
+                        try {
+                            while (cursor.moveToNext()) {
+                                tables.add(cursor.getString(0));
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+
+                        for (String table : tables) {
+                            db.execSQL("DROP TABLE IF EXISTS \"" + table + "\"");
+                        }
+                    } catch (SQLException | ClassCastException e) {
+                        Log.w(TAG, "Failed to drop the measures of the deleted layers: "
+                                + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+
+    protected static String getTable(VectorLayer layer)
+    {
+        return layer.getPath().getName();
+    }
+
+
+    protected static SQLiteDatabase getDatabase()
+    {
+        return ((MapContentProviderHelper) MapBase.getInstance()).getDatabase(false);
+    }
+
+
+    public static class Measures
+    {
+        protected final double      mLength;
+        protected final double      mPerimeter;
+        protected final double      mArea;
+        protected final GeoEnvelope mEnvelope;
+        protected final int         mVertexCount;
+
+
+        public Measures(
+                double length,
+                double perimeter,
+                double area,
+                GeoEnvelope envelope,
+                int vertexCount)
+        {
+            mLength = length;
+            mPerimeter = perimeter;
+            mArea = area;
+            mEnvelope = envelope;
+            mVertexCount = vertexCount;
+        }
+
+
+        public static Measures fromGeometry(GeoGeometry geometry)
+        {
+            double length = 0, perimeter = 0, area = 0;
+            if (geometry instanceof GeoLineString) {
+                length = ((GeoLineString) geometry).getLength();
+            } else if (geometry instanceof GeoMultiLineString) {
+                length = ((GeoMultiLineString) geometry).getLength();
+            } else if (geometry instanceof GeoPolygon) {
+                perimeter = ((GeoPolygon) geometry).getPerimeter();
+                area = ((GeoPolygon) geometry).getArea();
+            } else if (geometry instanceof GeoMultiPolygon) {
+                perimeter = ((GeoMultiPolygon) geometry).getPerimeter();
+                area = ((GeoMultiPolygon) geometry).getArea();
+            }
+
+            return new Measures(length, perimeter, area, geometry.getEnvelope(),
+                    GeometrySimplifier.getVertexCount(geometry));
+        }
+
+
+        public double getLength()
+        {
+            return mLength;
+        }
+
+
+        public double getPerimeter()
+        {
+            return mPerimeter;
+        }
+
+
+        public double getArea()
+        {
+            return mArea;
+        }
+
+
+        public GeoEnvelope getEnvelope()
+        {
+            return mEnvelope;
+        }
+
+
+        public int getVertexCount()
+        {
+            return mVertexCount;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+
+import java.util.List;
+
+/**
+ * Douglas-Peucker simplification of geometries for drawing. The ends of lines and the closing
+ * points of rings are always kept, so simplified rings stay closed.
+ */
+public class GeometrySimplifier
+{
+    /**
+     * @param geometry
+     *         The geometry to simplify
+     * @param tolerance
+     *         The maximum distance of the dropped vertices to the simplified shape in map units
+     *
+     * @return the simplified copy of lines and polygons, points are returned as is
+     */
+    public static GeoGeometry simplify(
+            GeoGeometry geometry,
+            double tolerance)
+    {
+        if (geometry instanceof GeoLinearRing) {
+            return simplifyRing((GeoLinearRing) geometry, tolerance);
+        }
+
+        if (geometry instanceof GeoLineString) {
+            GeoLineString line = new GeoLineString();
+            simplifyPoints(((GeoLineString) geometry).getPoints(), tolerance, line);
+            return line;
+        }
+
+        if (geometry instanceof GeoPolygon) {
+            return simplifyPolygon((GeoPolygon) geometry, tolerance);
+        }
+
+        if (geometry instanceof GeoMultiLineString) {
+            GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+            GeoMultiLineString result = new GeoMultiLineString();
+            for (int i = 0; i < multiLine.size(); i++) {
+                result.add(simplify(multiLine.get(i), tolerance));
+            }
+            return result;
+        }
+
+        if (geometry instanceof GeoMultiPolygon) {
+            GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+            GeoMultiPolygon result = new GeoMultiPolygon();
+            for (int i = 0; i < multiPolygon.size(); i++) {
+                result.add(simplifyPolygon(multiPolygon.get(i), tolerance));
+            }
+            return result;
+        }
+
+        // points have nothing to simplify
+        return geometry;
+    }
+
+
+    /**
+     * @return the number of vertices of the geometry
+     */
+    public static int getVertexCount(GeoGeometry geometry)
+    {
+        if (geometry instanceof GeoLineString) {
+            return ((GeoLineString) geometry).getPointCount();
+        }
+
+        if (geometry instanceof GeoPolygon) {
+            GeoPolygon polygon = (GeoPolygon) geometry;
+            int count = polygon.getOuterRing().getPointCount();
+            for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+                count += polygon.getInnerRing(i).getPointCount();
+            }
+            return count;
+        }
+
+        if (geometry instanceof GeoMultiLineString) {
+            GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+            int count = 0;
+            for (int i = 0; i < multiLine.size(); i++) {
+                count += multiLine.get(i).getPointCount();
+            }
+            return count;
+        }
+
+        if (geometry instanceof GeoMultiPolygon) {
+            GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+            int count = 0;
+            for (int i = 0; i < multiPolygon.size(); i++) {
+                count += getVertexCount(multiPolygon.get(i));
+            }
+            return count;
+        }
+
+        if (geometry instanceof GeoMultiPoint) {
+            return ((GeoMultiPoint) geometry).size();
+        }
+
+        return 1;
+    }
+
+
+    protected static GeoPolygon simplifyPolygon(
+            GeoPolygon polygon,
+            double tolerance)
+    {
+        GeoPolygon result = new GeoPolygon();
+        for (GeoPoint point : simplifyRing(polygon.getOuterRing(), tolerance).getPoints()) {
+            result.add(point);
+        }
+
+        for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+            result.addInnerRing(simplifyRing(polygon.getInnerRing(i), tolerance));
+        }
+        return result;
+    }
+
+
+    protected static GeoLinearRing simplifyRing(
+            GeoLinearRing ring,
+            double tolerance)
+    {
+        GeoLinearRing result = new GeoLinearRing();
+        List<GeoPoint> points = ring.getPoints();
+        int last = points.size() - 1;
+        if (last < 3) {
+            simplifyPoints(points, tolerance, result);
+            return result;
+        }
+
+        // the first and the last points of a ring are the same, split the ring at its farthest
+        // point so both halves have a base segment
+        GeoPoint first = points.get(0);
+        int split = 1;
+        double maxDistance = -1;
+        for (int i = 1; i < last; i++) {
+            double distance = squareDistance(first, points.get(i));
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                split = i;
+            }
+        }
+
+        boolean[] keep = new boolean[points.size()];
+        keep[split] = true;
+        markPoints(points, 0, split, tolerance * tolerance, keep);
+        markPoints(points, split, last, tolerance * tolerance, keep);
+        addMarkedPoints(points, keep, result);
+        return result;
+    }
+
+
+    protected static void simplifyPoints(
+            List<GeoPoint> points,
+            double tolerance,
+            GeoLineString result)
+    {
+        if (points.size() < 3) {
+            for (GeoPoint point : points) {
+                result.add(new GeoPoint(point));
+            }
+            return;
+        }
+
+        boolean[] keep = new boolean[points.size()];
+        markPoints(points, 0, points.size() - 1, tolerance * tolerance, keep);
+        addMarkedPoints(points, keep, result);
+    }
+
+
+    /**
+     * Mark the vertices to keep between the start and the end, the ends are kept too. The
+     * sections are processed with the explicit stack as long rings overflow a recursion.
+     */
+    protected static void markPoints(
+            List<GeoPoint> points,
+            int start,
+            int end,
+            double squareTolerance,
+            boolean[] keep)
+    {
+        keep[start] = true;
+        keep[end] = true;
+
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = start;
+        stack[top++] = end;
+
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            int farthest = -1;
+            double maxDistance = squareTolerance;
+            GeoPoint a = points.get(first);
+            GeoPoint b = points.get(last);
+            for (int i = first + 1; i < last; i++) {
+                double distance = squareSegmentDistance(points.get(i), a, b);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+
+            if (farthest < 0) {
+                continue;
+            }
+
+            keep[farthest] = true;
+            if (top + 4 > stack.length) {
+                int[] grown = new int[stack.length * 2];
+                System.arraycopy(stack, 0, grown, 0, top);
+                stack = grown;
+            }
+            stack[top++] = first;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = last;
+        }
+    }
+
+
+    protected static void addMarkedPoints(
+            List<GeoPoint> points,
+            boolean[] keep,
+            GeoLineString result)
+    {
+        for (int i = 0; i < keep.length; i++) {
+            if (keep[i]) {
+                result.add(new GeoPoint(points.get(i)));
+            }
+        }
+    }
+
+
+    protected static double squareDistance(
+            GeoPoint a,
+            GeoPoint b)
+    {
+        double dx = b.getX() - a.getX();
+        double dy = b.getY() - a.getY();
+        return dx * dx + dy * dy;
+    }
+
+
+    protected static double squareSegmentDistance(
+            GeoPoint point,
+            GeoPoint a,
+            GeoPoint b)
+    {
+        double x = a.getX();
+        double y = a.getY();
+        double dx = b.getX() - x;
+        double dy = b.getY() - y;
+
+        if (dx != 0 || dy != 0) {
+            double t = ((point.getX() - x) * dx + (point.getY() - y) * dy) / (dx * dx + dy * dy);
+            if (t > 1) {
+                x = b.getX();
+                y = b.getY();
+            } else if (t > 0) {
+                x += dx * t;
+                y += dy * t;
+            }
+        }
+
+        dx = point.getX() - x;
+        dy = point.getY() - y;
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grid index of placed labels in pixels of one zoom level. A label is registered in every
+ * cell its bounds cover, so a collision test checks only the labels of a few cells.
+ */
+public class LabelCollisionIndex
+{
+    public static final int CELL_SIZE = 64;
+
+    protected final Map<Long, List<LabelEngine.Label>> mCells;
+
+
+    public LabelCollisionIndex()
+    {
+        mCells = new HashMap<>();
+    }
+
+
+    public boolean collides(RectF bounds)
+    {
+        int maxColumn = getCell(bounds.right), maxRow = getCell(bounds.bottom);
+        for (int column = getCell(bounds.left); column <= maxColumn; column++) {
+            for (int row = getCell(bounds.top); row <= maxRow; row++) {
+                List<LabelEngine.Label> labels = mCells.get(MapTile.getKey(column, row));
+                if (null == labels) {
+                    continue;
+                }
+
+                for (LabelEngine.Label label : labels) {
+                    if (RectF.intersects(label.getBounds(), bounds)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+
+    public void insert(LabelEngine.Label label)
+    {
+        int maxColumn = getCell(label.getBounds().right), maxRow = getCell(label.getBounds().bottom);
+        for (int column = getCell(label.getBounds().left); column <= maxColumn; column++) {
+            for (int row = getCell(label.getBounds().top); row <= maxRow; row++) {
+                long key = MapTile.getKey(column, row);
+                List<LabelEngine.Label> labels = mCells.get(key);
+                if (null == labels) {
+                    labels = new ArrayList<>();
+                    mCells.put(key, labels);
+                }
+                labels.add(label);
+            }
+        }
+    }
+
+
+    /**
+     * Collect the labels intersecting the region, every label once
+     */
+    public void query(
+            RectF region,
+            List<LabelEngine.Label> result)
+    {
+        int minColumn = getCell(region.left), minRow = getCell(region.top);
+        int maxColumn = getCell(region.right), maxRow = getCell(region.bottom);
+        for (int column = minColumn; column <= maxColumn; column++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                List<LabelEngine.Label> labels = mCells.get(MapTile.getKey(column, row));
+                if (null == labels) {
+                    continue;
+                }
+
+                for (LabelEngine.Label label : labels) {
+                    // report the label only from the first of its cells inside the region
+                    if (column == Math.max(getCell(label.getBounds().left), minColumn)
+                            && row == Math.max(getCell(label.getBounds().top), minRow)
+                            && RectF.intersects(label.getBounds(), region)) {
+                        result.add(label);
+                    }
+                }
+            }
+        }
+    }
+
+
+    public static int getCell(float coordinate)
+    {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+}
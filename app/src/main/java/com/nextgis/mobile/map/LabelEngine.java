@@ -0,0 +1,351 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.support.v4.util.LongSparseArray;
+import android.util.TypedValue;
+
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplibui.util.SettingsConstantsUI;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+
+/**
+ * Map labels of vector layers. Candidate labels are collected by the vector render pass of every
+ * tile and placed greedily in the order they come, a label which collides with an already placed
+ * one is dropped. Placements are kept per zoom level, so a pan places only the labels of the new
+ * tiles and the placed labels do not jump.
+ * <p/>
+ * World pixels exceed the float precision at the large zooms, so the anchors are kept in double
+ * and the placed bounds are relative to the first tile placed on the zoom level.
+ * <p/>
+ * The label field of a layer is the one chosen in the layer settings
+ * ({@link SettingsConstantsUI#KEY_PREF_LAYER_LABEL}), layers labelled by the feature id are not
+ * labelled on the map.
+ */
+public class LabelEngine
+{
+    protected static final int   MAX_ZOOM_LEVELS = 3;
+    protected static final float TEXT_SIZE_SP    = 12;
+    protected static final float HALO_WIDTH_DP   = 2;
+    protected static final float LABEL_OFFSET_DP = 6;
+
+    protected final Map<Float, ZoomLabels>            mZoomLabels;
+    protected final Map<Integer, LongSparseArray<String>> mLabelTexts;
+    protected final Paint                             mTextPaint;
+    protected final Paint                             mHaloPaint;
+    protected final float                             mLabelOffset;
+    protected final RectF                             mRegion;
+    protected final List<Label>                       mVisibleLabels;
+
+
+    public LabelEngine(Context context)
+    {
+        mZoomLabels = new LinkedHashMap<Float, ZoomLabels>(MAX_ZOOM_LEVELS + 1, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Float, ZoomLabels> eldest)
+            {
+                return size() > MAX_ZOOM_LEVELS;
+            }
+        };
+        mLabelTexts = new HashMap<>();
+
+        float textSize = TypedValue.applyDimension(
+                TypedValue.COMPLEX_UNIT_SP, TEXT_SIZE_SP,
+                context.getResources().getDisplayMetrics());
+        float haloWidth = TypedValue.applyDimension(
+                TypedValue.COMPLEX_UNIT_DIP, HALO_WIDTH_DP,
+                context.getResources().getDisplayMetrics());
+        mLabelOffset = TypedValue.applyDimension(
+                TypedValue.COMPLEX_UNIT_DIP, LABEL_OFFSET_DP,
+                context.getResources().getDisplayMetrics());
+
+        mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setTextSize(textSize);
+        mTextPaint.setColor(Color.DKGRAY);
+
+        mHaloPaint = new Paint(mTextPaint);
+        mHaloPaint.setColor(Color.WHITE);
+        mHaloPaint.setStyle(Paint.Style.STROKE);
+        mHaloPaint.setStrokeWidth(haloWidth * 2);
+        mHaloPaint.setStrokeJoin(Paint.Join.ROUND);
+
+        mRegion = new RectF();
+        mVisibleLabels = new ArrayList<>();
+    }
+
+
+    /**
+     * @return the label field of the layer or null if the layer has no labels
+     */
+    public static String getLabelField(VectorLayer layer)
+    {
+        String field = layer.getPreferences()
+                .getString(SettingsConstantsUI.KEY_PREF_LAYER_LABEL, FIELD_ID);
+        if (FIELD_ID.equals(field) || null == layer.getFieldByName(field)) {
+            return null;
+        }
+        return field;
+    }
+
+
+    /**
+     * @return the label text of the feature, the texts of a layer are read at once
+     */
+    public String getLabelText(
+            VectorLayer layer,
+            String field,
+            long featureId)
+    {
+        LongSparseArray<String> texts;
+        synchronized (mLabelTexts) {
+            texts = mLabelTexts.get(layer.getId());
+            if (null == texts) {
+                texts = readLabelTexts(layer, field);
+                mLabelTexts.put(layer.getId(), texts);
+            }
+        }
+        return texts.get(featureId);
+    }
+
+
+    protected LongSparseArray<String> readLabelTexts(
+            VectorLayer layer,
+            String field)
+    {
+        LongSparseArray<String> texts = new LongSparseArray<>();
+        Cursor cursor = layer.query(new String[] {FIELD_ID, field}, null, null, null, null);
+        if (null == cursor) {
+            return texts;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                String text = cursor.getString(1);
+                if (null != text && text.length() > 0) {
+                    texts.put(cursor.getLong(0), text);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return texts;
+    }
+
+
+    /**
+     * @return true if the labels of the layer are placed on the tile
+     */
+    public synchronized boolean isTilePlaced(
+            int layerId,
+            MapTile tile)
+    {
+        ZoomLabels labels = mZoomLabels.get(tile.getZoom());
+        return null != labels && labels.mPlacedTiles.contains(getTileKey(layerId, tile));
+    }
+
+
+    /**
+     * Place the candidate labels of the layer collected on the tile
+     *
+     * @return true if any label is placed
+     */
+    public synchronized boolean placeTile(
+            MapTile tile,
+            int layerId,
+            List<Label> candidates)
+    {
+        ZoomLabels labels = mZoomLabels.get(tile.getZoom());
+        if (null == labels) {
+            labels = new ZoomLabels(
+                    (double) tile.getColumn() * TiledBackBuffer.TILE_SIZE,
+                    (double) tile.getRow() * TiledBackBuffer.TILE_SIZE);
+            mZoomLabels.put(tile.getZoom(), labels);
+        }
+
+        if (!labels.mPlacedTiles.add(getTileKey(layerId, tile))) {
+            return false;
+        }
+
+        boolean placed = false;
+        Paint.FontMetrics metrics = mTextPaint.getFontMetrics();
+        for (Label label : candidates) {
+            // point labels are to the right of the marker, others are centered on the feature
+            float width = mTextPaint.measureText(label.mText);
+            double left = label.mIsPoint ? label.mX + mLabelOffset : label.mX - width / 2;
+            double baseline = label.mY - (metrics.ascent + metrics.descent) / 2;
+            label.mBaseline = baseline;
+
+            float x = (float) (left - labels.mOriginX), y = (float) (baseline - labels.mOriginY);
+            label.mBounds.set(x, y + metrics.ascent, x + width, y + metrics.descent);
+
+            if (!labels.mIndex.collides(label.mBounds)) {
+                labels.mIndex.insert(label);
+                placed = true;
+            }
+        }
+        return placed;
+    }
+
+
+    /**
+     * Forget all placements, the labels of other layers may take the place of the layer labels
+     */
+    public synchronized void invalidateLayer(int layerId)
+    {
+        synchronized (mLabelTexts) {
+            mLabelTexts.remove(layerId);
+        }
+        mZoomLabels.clear();
+    }
+
+
+    public synchronized void clear()
+    {
+        synchronized (mLabelTexts) {
+            mLabelTexts.clear();
+        }
+        mZoomLabels.clear();
+    }
+
+
+    /**
+     * Draw the placed labels of the zoom level
+     *
+     * @param originX
+     *         World pixel shown at the left view edge
+     * @param originY
+     *         World pixel shown at the top view edge
+     */
+    public synchronized void draw(
+            Canvas canvas,
+            float zoom,
+            double originX,
+            double originY,
+            int width,
+            int height)
+    {
+        ZoomLabels labels = mZoomLabels.get(zoom);
+        if (null == labels) {
+            return;
+        }
+
+        float left = (float) (originX - labels.mOriginX), top = (float) (originY - labels.mOriginY);
+        mRegion.set(left, top, left + width, top + height);
+        mVisibleLabels.clear();
+        labels.mIndex.query(mRegion, mVisibleLabels);
+
+        for (Label label : mVisibleLabels) {
+            float x = (float) (labels.mOriginX + label.mBounds.left - originX);
+            float y = (float) (label.mBaseline - originY);
+            canvas.drawText(label.mText, x, y, mHaloPaint);
+            canvas.drawText(label.mText, x, y, mTextPaint);
+        }
+        mVisibleLabels.clear();
+    }
+
+
+    protected static String getTileKey(
+            int layerId,
+            MapTile tile)
+    {
+        return layerId + "/" + tile.getColumn() + "/" + tile.getRow();
+    }
+
+
+    /**
+     * A label candidate anchored at the feature in world pixels of the tile zoom
+     */
+    public static class Label
+    {
+        protected final String  mText;
+        protected final double  mX, mY;
+        protected final boolean mIsPoint;
+        protected final RectF   mBounds;
+
+        protected double mBaseline;
+
+
+        public Label(
+                String text,
+                double x,
+                double y,
+                boolean isPoint)
+        {
+            mText = text;
+            mX = x;
+            mY = y;
+            mIsPoint = isPoint;
+            mBounds = new RectF();
+        }
+
+
+        public String getText()
+        {
+            return mText;
+        }
+
+
+        /**
+         * @return the label bounds in pixels relative to the origin of the zoom level placements,
+         * set when the label is placed
+         */
+        public RectF getBounds()
+        {
+            return mBounds;
+        }
+    }
+
+
+    protected static class ZoomLabels
+    {
+        protected final LabelCollisionIndex mIndex       = new LabelCollisionIndex();
+        protected final Set<String>         mPlacedTiles = new HashSet<>();
+        protected final double              mOriginX, mOriginY;
+
+
+        protected ZoomLabels(
+                double originX,
+                double originY)
+        {
+            mOriginX = originX;
+            mOriginY = originY;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.nextgis.maplib.map.MapBase;
+import com.nextgis.maplib.map.MapContentProviderHelper;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.nextgis.maplib.util.Constants.FIELD_GEOM;
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Log of the feature changes of a layer table kept by table triggers, so the changes are
+ * recorded whoever writes the table, e.g. a sync, and whether or not anybody observes it. Every
+ * insert, geometry update or delete adds the feature id with a new version, the version only
+ * grows. The log keeps the last {@link #MAX_ENTRIES} changes, a reader behind them reads the
+ * layer again.
+ * <p/>
+ * The triggers go with the layer table, the log is emptied when the table is created again and is
+ * dropped by {@link #dropOrphans()} after the table is deleted.
+ */
+public class LayerChangeLog
+{
+    protected static final int    MAX_ENTRIES    = 10000;
+    protected static final String TABLE_SUFFIX   = "_changes";
+    protected static final String COLUMN_VERSION = "version";
+    protected static final String COLUMN_FEATURE = "feature_id";
+
+    protected static final String[] TRIGGER_SUFFIXES =
+            {"_changes_insert", "_changes_update", "_changes_delete", "_changes_trim"};
+
+
+    /**
+     * @return the version of the last change, 0 if there is none, or -1 if the log is not
+     * available
+     */
+    public static long getVersion(VectorLayer layer)
+    {
+        String table = getTable(layer);
+        if (!prepare(table)) {
+            return -1;
+        }
+
+        try {
+            return getSequence(getDatabase(), table);
+        } catch (SQLException e) {
+            Log.w(TAG, "Failed to read the changes of " + table + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+
+    /**
+     * @return the features changed after the version or null if the log does not reach back to
+     * it or is not available
+     */
+    public static Changes getChanges(
+            VectorLayer layer,
+            long version)
+    {
+        String table = getTable(layer);
+        if (version < 0 || !prepare(table)) {
+            return null;
+        }
+
+        String log = "\"" + table + TABLE_SUFFIX + "\"";
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getDatabase();
+            cursor = db.rawQuery("SELECT MIN(" + COLUMN_VERSION + "), MAX(" + COLUMN_VERSION
+                    + ") FROM " + log, null);
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                // no change is logged since the log is created or emptied
+                return version == getSequence(db, table)
+                       ? new Changes(version, Collections.<Long>emptySet()) : null;
+            }
+            long first = cursor.getLong(0), last = cursor.getLong(1);
+            cursor.close();
+            if (version < first - 1 || version > last) {
+                return null;
+            }
+
+            Set<Long> featureIds = new LinkedHashSet<>();
+            cursor = db.rawQuery("SELECT " + COLUMN_VERSION + ", " + COLUMN_FEATURE + " FROM " + log
+                    + " WHERE " + COLUMN_VERSION + " > ? ORDER BY " + COLUMN_VERSION,
+                    new String[] {version + ""});
+            long current = version;
+            while (cursor.moveToNext()) {
+                current = cursor.getLong(0);
+                featureIds.add(cursor.getLong(1));
+            }
+            return new Changes(current, featureIds);
+        } catch (SQLException e) {
+            Log.w(TAG, "Failed to read the changes of " + table + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+
+    /**
+     * Create the log and its triggers if the table has none, e.g. the layer is new or created
+     * again
+     *
+     * @return false if the table cannot be changed
+     */
+    protected static synchronized boolean prepare(String table)
+    {
+        try {
+            SQLiteDatabase db = getDatabase();
+            String[] names = new String[TRIGGER_SUFFIXES.length + 1];
+            names[0] = table + TABLE_SUFFIX;
+            for (int i = 0; i < TRIGGER_SUFFIXES.length; i++) {
+                names[i + 1] = table + TRIGGER_SUFFIXES[i];
+            }
+
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE name IN (?, ?, "
+                    + "?, ?, ?)", names);
+            try {
+                if (cursor.moveToFirst() && cursor.getInt(0) == names.length) {
+                    return true;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            String quoted = "\"" + table + "\"";
+            String log = "\"" + table + TABLE_SUFFIX + "\"";
+            String insert = "INSERT INTO " + log + " (" + COLUMN_FEATURE + ") VALUES ";
+            db.beginTransaction();
+            try {
+                // a log without the table triggers is left from a deleted table of the same name,
+                // its entries are dropped and the version skips one, so every reader of the old
+                // table reads the layer again
+                if (exists(db, names[0])) {
+                    db.execSQL(insert + "(NULL)");
+                    db.execSQL("DELETE FROM " + log);
+                }
+
+                db.execSQL("CREATE TABLE IF NOT EXISTS " + log + " (" + COLUMN_VERSION
+                        + " INTEGER PRIMARY KEY AUTOINCREMENT, " + COLUMN_FEATURE + " INTEGER)");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + names[1] + "\" AFTER INSERT ON "
+                        + quoted + " BEGIN " + insert + "(NEW." + FIELD_ID + "); END");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + names[2] + "\" AFTER UPDATE OF \""
+                        + FIELD_GEOM + "\", " + FIELD_ID + " ON " + quoted + " BEGIN " + insert
+                        + "(OLD." + FIELD_ID + "); " + insert + "(NEW." + FIELD_ID + "); END");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + names[3] + "\" AFTER DELETE ON "
+                        + quoted + " BEGIN " + insert + "(OLD." + FIELD_ID + "); END");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + names[4] + "\" AFTER INSERT ON "
+                        + log + " BEGIN DELETE FROM " + log + " WHERE " + COLUMN_VERSION
+                        + " <= NEW." + COLUMN_VERSION + " - " + MAX_ENTRIES + "; END");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        } catch (SQLException | ClassCastException e) {
+            Log.w(TAG, "Failed to add the change log to " + table + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    /**
+     * Drop the logs of the deleted layer tables, the triggers are dropped with the tables
+     */
+    public static synchronized void dropOrphans()
+    {
+        try {
+            SQLiteDatabase db = getDatabase();
+            List<String> logs = new ArrayList<>();
+            Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master AS log "
+                    + "WHERE type = 'table' AND name LIKE ? ESCAPE '\\' AND NOT EXISTS (SELECT 1 "
+                    + "FROM sqlite_master WHERE type = 'table' AND name || ? = log.name)",
+                    new String[] {"%\\" + TABLE_SUFFIX, TABLE_SUFFIX});
+            try {
+                while (cursor.moveToNext()) {
+                    logs.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (String log : logs) {
+                db.execSQL("DROP TABLE IF EXISTS \"" + log + "\"");
+            }
+        } catch (SQLException | ClassCastException e) {
+            Log.w(TAG, "Failed to drop the change logs of the deleted layers: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * @return the last version given by the log, the entries may be trimmed or emptied
+     */
+    protected static long getSequence(
+            SQLiteDatabase db,
+            String table)
+    {
+        Cursor cursor = db.rawQuery("SELECT seq FROM sqlite_sequence WHERE name = ?",
+                new String[] {table + TABLE_SUFFIX});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    protected static boolean exists(
+            SQLiteDatabase db,
+            String table)
+    {
+        Cursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] {table});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    protected static String getTable(VectorLayer layer)
+    {
+        return layer.getPath().getName();
+    }
+
+
+    protected static SQLiteDatabase getDatabase()
+    {
+        return ((MapContentProviderHelper) MapBase.getInstance()).getDatabase(false);
+    }
+
+
+    public static class Changes
+    {
+        protected final long      mVersion;
+        protected final Set<Long> mFeatureIds;
+
+
+        public Changes(
+                long version,
+                Set<Long> featureIds)
+        {
+            mVersion = version;
+            mFeatureIds = featureIds;
+        }
+
+
+        /**
+         * @return the version of the last change read
+         */
+        public long getVersion()
+        {
+            return mVersion;
+        }
+
+
+        /**
+         * @return the ids of the inserted, changed and deleted features, every id once
+         */
+        public Set<Long> getFeatureIds()
+        {
+            return mFeatureIds;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Offscreen rasters of single layers keyed by layer id and tile (zoom and extent). A change of a
+ * layer drops only its own rasters, other layers are composited from the cache.
+ */
+public class LayerRasterCache
+{
+    protected final LruCache<String, Bitmap> mCache;
+    protected final Map<Integer, Set<String>> mLayerKeys;
+
+
+    /**
+     * @param maxBytes
+     *         The cache size limit in bytes
+     */
+    public LayerRasterCache(int maxBytes)
+    {
+        mLayerKeys = new HashMap<>();
+        mCache = new LruCache<String, Bitmap>(maxBytes)
+        {
+            @Override
+            protected int sizeOf(
+                    String key,
+                    Bitmap value)
+            {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+
+            @Override
+            protected void entryRemoved(
+                    boolean evicted,
+                    String key,
+                    Bitmap oldValue,
+                    Bitmap newValue)
+            {
+                if (evicted) {
+                    synchronized (mLayerKeys) {
+                        Set<String> keys = mLayerKeys.get(getLayerId(key));
+                        if (null != keys) {
+                            keys.remove(key);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+
+    public Bitmap get(
+            int layerId,
+            MapTile tile)
+    {
+        return mCache.get(getKey(layerId, tile));
+    }
+
+
+    public void put(
+            int layerId,
+            MapTile tile,
+            Bitmap raster)
+    {
+        String key = getKey(layerId, tile);
+        synchronized (mLayerKeys) {
+            Set<String> keys = mLayerKeys.get(layerId);
+            if (null == keys) {
+                keys = new HashSet<>();
+                mLayerKeys.put(layerId, keys);
+            }
+            keys.add(key);
+        }
+        mCache.put(key, raster);
+    }
+
+
+    /**
+     * Drop all rasters of the layer
+     */
+    public void invalidateLayer(int layerId)
+    {
+        Set<String> keys;
+        synchronized (mLayerKeys) {
+            keys = mLayerKeys.remove(layerId);
+        }
+
+        if (null != keys) {
+            for (String key : keys) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+
+    public void clear()
+    {
+        synchronized (mLayerKeys) {
+            mLayerKeys.clear();
+        }
+        mCache.evictAll();
+    }
+
+
+    protected static String getKey(
+            int layerId,
+            MapTile tile)
+    {
+        return layerId + "/" + tile;
+    }
+
+
+    protected static int getLayerId(String key)
+    {
+        return Integer.parseInt(key.substring(0, key.indexOf('/')));
+    }
+}
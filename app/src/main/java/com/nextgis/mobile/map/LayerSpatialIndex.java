@@ -0,0 +1,437 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.nextgis.maplib.util.Constants.FIELD_GEOM;
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Feature envelope R-tree of a vector layer stored in the layer directory.
+ * <p/>
+ * The stored tree carries the {@link LayerChangeLog} version it reflects. On open the features
+ * changed after that version are read again, e.g. the changes of a sync or the changes not stored
+ * before a crash, and the tree is built again in the background if the log does not reach back to
+ * the version. Until the tree is ready {@link #query(GeoEnvelope, FeatureIdList)} returns false.
+ */
+public class LayerSpatialIndex
+{
+    protected static final String INDEX_FILE    = "spatial_index";
+    protected static final String TEMP_SUFFIX   = ".tmp";
+    protected static final int    FORMAT        = 0x4E475232;
+    protected static final int    SAVE_DELAY_MS = 2000;
+
+    protected final VectorLayer              mLayer;
+    protected final File                     mFile;
+    protected final ScheduledExecutorService mExecutor;
+
+    protected FeatureRTree mTree;
+    protected long         mVersion;
+    protected boolean      mBuilding;
+    protected boolean      mRebuildPending;
+    protected boolean      mDirty;
+    protected boolean      mSaveScheduled;
+    protected boolean      mSyncScheduled;
+
+
+    public LayerSpatialIndex(
+            VectorLayer layer,
+            ScheduledExecutorService executor)
+    {
+        mLayer = layer;
+        mFile = new File(layer.getPath(), INDEX_FILE);
+        mExecutor = executor;
+        mVersion = -1;
+        mBuilding = true;
+    }
+
+
+    public VectorLayer getLayer()
+    {
+        return mLayer;
+    }
+
+
+    /**
+     * Read the stored tree or build it in the background
+     */
+    public void open()
+    {
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (load()) {
+                    sync();
+                } else {
+                    build();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Collect the ids of the features which envelopes intersect the envelope
+     *
+     * @return false if the tree is not ready yet
+     */
+    public synchronized boolean query(
+            GeoEnvelope envelope,
+            FeatureIdList result)
+    {
+        return query(envelope, result, null);
+    }
+
+
+    /**
+     * @param envelopes
+     *         The list to collect the feature envelopes in the order of the ids or null
+     *
+     * @return false if the tree is not ready yet
+     */
+    public synchronized boolean query(
+            GeoEnvelope envelope,
+            FeatureIdList result,
+            List<GeoEnvelope> envelopes)
+    {
+        if (null == mTree) {
+            return false;
+        }
+
+        mTree.search(envelope, result, envelopes);
+        return true;
+    }
+
+
+    /**
+     * Read the features changed after the tree version again in the background, e.g. the layer
+     * change is notified
+     */
+    public synchronized void requestSync()
+    {
+        if (mSyncScheduled || mExecutor.isShutdown()) {
+            return;
+        }
+
+        mSyncScheduled = true;
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sync();
+            }
+        });
+    }
+
+
+    /**
+     * Build the tree again in the background, e.g. the layer is changed in bulk
+     */
+    public synchronized void rebuild()
+    {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+
+        if (mBuilding) {
+            // the running build may have read the features already
+            mRebuildPending = true;
+            return;
+        }
+
+        mBuilding = true;
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                build();
+            }
+        });
+    }
+
+
+    /**
+     * @return false if there is no valid stored tree
+     */
+    protected boolean load()
+    {
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (input.readInt() != FORMAT) {
+                return false;
+            }
+
+            long version = input.readLong();
+            setTree(FeatureRTree.read(input), version);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the spatial index of " + mLayer.getName(), e);
+            return false;
+        } finally {
+            close(input);
+        }
+    }
+
+
+    protected void build()
+    {
+        // the changes made while the features are read are read again by the sync
+        long version = LayerChangeLog.getVersion(mLayer);
+        FeatureIdList ids = new FeatureIdList();
+        List<GeoEnvelope> envelopes = new ArrayList<>();
+
+        Cursor cursor = mLayer.query(new String[] {FIELD_ID, FIELD_GEOM}, null, null, null, null);
+        if (null != cursor) {
+            try {
+                while (cursor.moveToNext()) {
+                    if (cursor.isNull(1)) {
+                        continue;
+                    }
+
+                    try {
+                        GeoGeometry geometry = GeoGeometryFactory.fromBlob(cursor.getBlob(1));
+                        if (null != geometry) {
+                            ids.add(cursor.getLong(0));
+                            envelopes.add(geometry.getEnvelope());
+                        }
+                    } catch (IOException | ClassNotFoundException e) {
+                        Log.w(TAG, "Failed to read the geometry of " + cursor.getLong(0), e);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        setTree(FeatureRTree.build(ids, envelopes), version);
+        synchronized (this) {
+            mDirty = true;
+            scheduleSave();
+        }
+
+        // without the log every change builds the tree again
+        if (version >= 0) {
+            sync();
+        }
+    }
+
+
+    protected synchronized void setTree(
+            FeatureRTree tree,
+            long version)
+    {
+        if (mRebuildPending && !mExecutor.isShutdown()) {
+            mRebuildPending = false;
+            mExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    build();
+                }
+            });
+            return;
+        }
+
+        mTree = tree;
+        mVersion = version;
+        mBuilding = false;
+    }
+
+
+    /**
+     * Apply the logged changes after the tree version, called on the executor thread only
+     */
+    protected void sync()
+    {
+        long version;
+        synchronized (this) {
+            mSyncScheduled = false;
+            // the build reads the changes after it is done
+            if (mBuilding) {
+                return;
+            }
+            version = mVersion;
+        }
+
+        LayerChangeLog.Changes changes = LayerChangeLog.getChanges(mLayer, version);
+        if (null == changes) {
+            rebuild();
+            return;
+        }
+        if (changes.getVersion() == version) {
+            return;
+        }
+
+        // the geometries are read without blocking the queries
+        Map<Long, GeoEnvelope> envelopes = new HashMap<>();
+        for (Long featureId : changes.getFeatureIds()) {
+            GeoGeometry geometry = mLayer.getGeometryForId(featureId);
+            envelopes.put(featureId, null == geometry ? null : geometry.getEnvelope());
+        }
+
+        synchronized (this) {
+            if (mBuilding) {
+                return;
+            }
+
+            for (Map.Entry<Long, GeoEnvelope> entry : envelopes.entrySet()) {
+                if (null == entry.getValue()) {
+                    mTree.remove(entry.getKey());
+                } else {
+                    mTree.insert(entry.getKey(), entry.getValue());
+                }
+            }
+            mVersion = changes.getVersion();
+            mDirty = true;
+            scheduleSave();
+        }
+    }
+
+
+    protected void scheduleSave()
+    {
+        if (mSaveScheduled || mExecutor.isShutdown()) {
+            return;
+        }
+
+        mSaveScheduled = true;
+        mExecutor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                save();
+            }
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Store the tree if it has changes, the stored tree is replaced only by a complete new file.
+     * The tree is copied under the lock and is written without blocking the queries.
+     */
+    public void save()
+    {
+        byte[] data;
+        synchronized (this) {
+            mSaveScheduled = false;
+            // a tree without the log version cannot be checked on open
+            if (!mDirty || mBuilding || mVersion < 0) {
+                return;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            try {
+                output.writeInt(FORMAT);
+                output.writeLong(mVersion);
+                mTree.write(output);
+                output.flush();
+            } catch (IOException e) {
+                return;
+            }
+            data = bytes.toByteArray();
+            mDirty = false;
+        }
+
+        File tempFile = new File(mFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream output = null;
+        boolean stored = false;
+        try {
+            output = new FileOutputStream(tempFile);
+            output.write(data);
+            output.flush();
+            output.getFD().sync();
+            output.close();
+            output = null;
+            stored = tempFile.renameTo(mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store the spatial index of " + mLayer.getName(), e);
+        } finally {
+            close(output);
+        }
+
+        if (!stored) {
+            synchronized (this) {
+                mDirty = true;
+            }
+        }
+    }
+
+
+    /**
+     * Remove the stored tree, e.g. the layer is deleted
+     */
+    public synchronized void delete()
+    {
+        mFile.delete();
+    }
+
+
+    protected static void close(Closeable closeable)
+    {
+        if (null == closeable) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
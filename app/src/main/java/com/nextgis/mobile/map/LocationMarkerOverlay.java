@@ -0,0 +1,139 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.location.Location;
+
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplibui.overlay.CurrentLocationOverlay;
+
+/**
+ * Current location overlay which repaints only the screen bounds of the old and the new location
+ * marker (with the accuracy circle) on a location change instead of the whole map view.
+ */
+public class LocationMarkerOverlay
+        extends CurrentLocationOverlay
+{
+    /**
+     * Extra pixels around the marker for the accuracy circle stroke and antialiasing
+     */
+    protected static final int BOUNDS_PADDING_PX = 4;
+
+    protected final TiledMapView mMapView;
+    protected final Context      mViewContext;
+    protected final Rect         mChangeBounds;
+
+    protected Location mLocation;
+    protected int      mMarkerSize;
+
+
+    public LocationMarkerOverlay(
+            Context context,
+            TiledMapView mapView)
+    {
+        super(context, mapView);
+        mMapView = mapView;
+        mViewContext = context;
+        mChangeBounds = new Rect();
+    }
+
+
+    @Override
+    public void setStandingMarker(int standingMarkerRes)
+    {
+        super.setStandingMarker(standingMarkerRes);
+        updateMarkerSize(standingMarkerRes);
+    }
+
+
+    @Override
+    public void setMovingMarker(int movingMarkerRes)
+    {
+        super.setMovingMarker(movingMarkerRes);
+        updateMarkerSize(movingMarkerRes);
+    }
+
+
+    @Override
+    public void onLocationChanged(Location location)
+    {
+        GeoPoint center = mMapView.getMapCenter();
+        mChangeBounds.setEmpty();
+        addMarkerBounds(mChangeBounds);
+
+        mMapView.beginChange();
+        try {
+            super.onLocationChanged(location);
+        } finally {
+            mLocation = location;
+            addMarkerBounds(mChangeBounds);
+
+            // the map was autopanned to the new location, everything is moved
+            GeoPoint newCenter = mMapView.getMapCenter();
+            boolean panned = center.getX() != newCenter.getX() || center.getY() != newCenter.getY();
+            mMapView.endChange(panned ? null : mChangeBounds);
+        }
+    }
+
+
+    protected void updateMarkerSize(int markerRes)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(mViewContext.getResources(), markerRes, options);
+        mMarkerSize = Math.max(mMarkerSize, Math.max(options.outWidth, options.outHeight));
+    }
+
+
+    /**
+     * Add the screen bounds of the marker at the last known location
+     */
+    protected void addMarkerBounds(Rect bounds)
+    {
+        if (null == mLocation) {
+            return;
+        }
+
+        GeoPoint point = new GeoPoint(mLocation.getLongitude(), mLocation.getLatitude());
+        point.setCRS(GeoConstants.CRS_WGS84);
+        if (!point.project(GeoConstants.CRS_WEB_MERCATOR)) {
+            return;
+        }
+
+        // mercator scale grows to the poles
+        double resolution = TiledBackBuffer.getResolution(mMapView.getZoomLevel());
+        double accuracy = mLocation.getAccuracy() / Math.cos(Math.toRadians(mLocation.getLatitude()))
+                / resolution;
+        int radius = (int) Math.ceil(Math.max(mMarkerSize / 2.0, accuracy)) + BOUNDS_PADDING_PX;
+
+        GeoPoint screenPoint = mMapView.getMap().mapToScreen(point);
+        int x = (int) screenPoint.getX();
+        int y = (int) screenPoint.getY();
+        bounds.union(x - radius, y - radius, x + radius, y + radius);
+    }
+}
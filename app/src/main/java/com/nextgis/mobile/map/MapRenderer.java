@@ -0,0 +1,699 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.ILayerView;
+import com.nextgis.maplib.api.IRenderer;
+import com.nextgis.maplib.map.LayerGroup;
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplibui.api.MapViewEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the missing tiles of the back buffer in the background and notifies map view listeners
+ * about the draw progress the same way the map drawable does. Every tile is composited from
+ * per layer rasters, which are rendered only if they are not in the raster cache. Layer rasters
+ * are rendered by a pool with a worker per core and composited in the z-order as soon as they
+ * are ready. Tiles with vector layers are shown twice: with the base (tile) layers as soon as
+ * they are ready and then with all layers.
+ * <p/>
+ * Every render pass belongs to a generation. {@link #cancelRender()} starts a new generation, so
+ * the passes of older ones stop at the next tile and layers being drawn are cancelled at the next
+ * feature. Cancelled tiles go back to the missing ones of the back buffer.
+ */
+public class MapRenderer
+{
+    /**
+     * About 500 thousand points, tens of megabytes of the heap
+     */
+    protected static final int GEOMETRY_CACHE_VERTICES = 500000;
+
+    protected final MapDrawable                mMap;
+    protected final TiledBackBuffer            mBuffer;
+    protected final LayerRasterCache           mRasterCache;
+    protected final SimplifiedGeometryCache    mGeometryCache;
+    protected final LabelEngine                mLabelEngine;
+    protected final PointClusterRegistry       mClusters;
+    protected final FeatureFilterRegistry      mFilters;
+    protected final RenderMetrics              mMetrics;
+    protected final TiledMapView               mView;
+    protected final Handler                    mHandler;
+    protected final List<MapViewEventListener> mListeners;
+    protected final ExecutorService            mExecutor;
+    protected final ExecutorService            mRenderPool;
+    protected final ThreadLocal<TileRasterizer> mRasterizers;
+    protected final Map<Integer, Object>       mLayerLocks;
+    protected final Map<Integer, Integer>      mLayerVersions;
+    protected final Set<ILayer>                mDrawingLayers;
+    protected final AtomicInteger              mGeneration;
+
+    protected Bitmap mBackground;
+    protected int    mActiveTasks;
+    protected int    mRastersVersion;
+
+
+    public MapRenderer(
+            MapDrawable map,
+            TiledBackBuffer buffer,
+            TiledMapView view)
+    {
+        mMap = map;
+        mBuffer = buffer;
+        mRasterCache = new LayerRasterCache(getRasterCacheSize());
+        mGeometryCache = new SimplifiedGeometryCache(GEOMETRY_CACHE_VERTICES);
+        mLabelEngine = new LabelEngine(view.getContext());
+        mMetrics = new RenderMetrics();
+        mFilters = FeatureFilterRegistry.getInstance(view.getContext());
+        mClusters = new PointClusterRegistry(
+                view.getContext(), new PointClusterRegistry.OnClustersChangeListener()
+        {
+            @Override
+            public void onClustersChanged(int layerId)
+            {
+                invalidateRasters(layerId);
+                mView.postRecomposite();
+            }
+        });
+        mView = view;
+        mHandler = new Handler(Looper.getMainLooper());
+        mListeners = new ArrayList<>();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mRenderPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        mRasterizers = new ThreadLocal<>();
+        mLayerLocks = new HashMap<>();
+        mLayerVersions = new HashMap<>();
+        mDrawingLayers = new HashSet<>();
+        mGeneration = new AtomicInteger();
+    }
+
+
+    public void addListener(MapViewEventListener listener)
+    {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+
+    public void removeListener(MapViewEventListener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+
+    public synchronized void setBackground(Bitmap background)
+    {
+        mBackground = background;
+    }
+
+
+    /**
+     * Queue rendering of the tiles missing in the back buffer
+     */
+    public void requestRender()
+    {
+        final List<MapTile> tiles = mBuffer.getMissingTiles();
+        if (tiles.isEmpty()) {
+            return;
+        }
+
+        final int generation = mGeneration.get();
+        onRenderStarted();
+        mExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    renderTiles(tiles, generation);
+                } catch (RuntimeException e) {
+                    Log.w(Constants.TAG, "Map tiles render failed", e);
+                    for (MapTile tile : tiles) {
+                        mBuffer.cancelTile(tile);
+                    }
+                } finally {
+                    onRenderFinished();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Stop the render passes queued or running for the previous extent
+     */
+    public void cancelRender()
+    {
+        mGeneration.incrementAndGet();
+
+        synchronized (mDrawingLayers) {
+            for (ILayer layer : mDrawingLayers) {
+                ((IRenderer) layer).cancelDraw();
+            }
+        }
+    }
+
+
+    protected boolean isCancelled(int generation)
+    {
+        return generation != mGeneration.get();
+    }
+
+
+    public void shutdown()
+    {
+        mExecutor.shutdownNow();
+        mRenderPool.shutdownNow();
+        mRasterCache.clear();
+        mGeometryCache.clear();
+        mLabelEngine.clear();
+        mClusters.clear();
+    }
+
+
+    public LabelEngine getLabelEngine()
+    {
+        return mLabelEngine;
+    }
+
+
+    public PointClusterRegistry getClusters()
+    {
+        return mClusters;
+    }
+
+
+    public RenderMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+
+
+    /**
+     * Drop cached rasters, simplified geometries and labels of the layer, other layers will be
+     * composited from the cache
+     */
+    public void invalidateLayer(int layerId)
+    {
+        invalidateRasters(layerId);
+        mGeometryCache.invalidateLayer(layerId);
+        mLabelEngine.invalidateLayer(layerId);
+    }
+
+
+    /**
+     * Forget the deleted layer
+     */
+    public void removeLayer(int layerId)
+    {
+        invalidateLayer(layerId);
+        mClusters.removeLayer(layerId);
+    }
+
+
+    public void invalidateLayers()
+    {
+        synchronized (mLayerVersions) {
+            mRastersVersion++;
+            mRasterCache.clear();
+        }
+        mGeometryCache.clear();
+        mLabelEngine.clear();
+    }
+
+
+    protected static int getRasterCacheSize()
+    {
+        // a quarter of the heap, the rest is for the back buffer and the application
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+
+    protected void renderTiles(
+            List<MapTile> tiles,
+            int generation)
+    {
+        TileRasterizer rasterizer = getRasterizer();
+        if (null == rasterizer) {
+            for (MapTile tile : tiles) {
+                mBuffer.cancelTile(tile);
+            }
+            return;
+        }
+
+        List<ILayer> layers = new ArrayList<>();
+        collectLayers(mMap, tiles.get(0).getZoom(), layers);
+        LayerProgress progress = new LayerProgress(tiles.size());
+
+        boolean[] baseLayers = new boolean[layers.size()];
+        int baseCount = 0;
+        for (int i = 0; i < layers.size(); i++) {
+            baseLayers[i] = !(layers.get(i) instanceof VectorLayer);
+            if (baseLayers[i]) {
+                baseCount++;
+            }
+        }
+        // show the base (tile) layers first if there are vector layers over them
+        boolean progressive = baseCount > 0 && baseCount < layers.size();
+
+        // queue all rasters at once, the pool renders different layers at the same time; the
+        // base layers of all tiles are queued before the vector ones
+        List<List<Future<Bitmap>>> jobs = new ArrayList<>(tiles.size());
+        for (MapTile tile : tiles) {
+            List<Future<Bitmap>> tileJobs = new ArrayList<>(layers.size());
+            for (int i = 0; i < layers.size(); i++) {
+                tileJobs.add(progressive && !baseLayers[i] ? null : mRenderPool.submit(
+                        new LayerRasterTask(tile, layers.get(i), progress, generation)));
+            }
+            jobs.add(tileJobs);
+        }
+        if (progressive) {
+            for (int i = 0; i < tiles.size(); i++) {
+                List<Future<Bitmap>> tileJobs = jobs.get(i);
+                for (int j = 0; j < layers.size(); j++) {
+                    if (!baseLayers[j]) {
+                        tileJobs.set(j, mRenderPool.submit(
+                                new LayerRasterTask(tiles.get(i), layers.get(j), progress,
+                                        generation)));
+                    }
+                }
+            }
+        }
+
+        // composite every tile in the z-order as soon as its rasters are ready
+        Rect tileBounds = new Rect();
+        if (progressive) {
+            for (int i = 0; i < tiles.size(); i++) {
+                compositeTile(tiles.get(i), jobs.get(i), baseLayers, rasterizer, generation,
+                        tileBounds);
+            }
+        }
+        for (int i = 0; i < tiles.size(); i++) {
+            compositeTile(tiles.get(i), jobs.get(i), null, rasterizer, generation, tileBounds);
+        }
+    }
+
+
+    /**
+     * Composite the tile from its layer rasters and put it into the back buffer
+     *
+     * @param layerMask
+     *         The layers of the partial tile or null to composite the final tile from all layers
+     */
+    protected void compositeTile(
+            MapTile tile,
+            List<Future<Bitmap>> jobs,
+            boolean[] layerMask,
+            TileRasterizer rasterizer,
+            int generation,
+            Rect tileBounds)
+    {
+        List<Bitmap> rasters = new ArrayList<>(jobs.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            if (null != layerMask && !layerMask[i]) {
+                continue;
+            }
+
+            Bitmap raster = getRaster(jobs.get(i));
+            if (null != raster) {
+                rasters.add(raster);
+            }
+        }
+
+        if (isCancelled(generation) || !mBuffer.isTileNeeded(tile)) {
+            if (null == layerMask) {
+                mBuffer.cancelTile(tile);
+            }
+            return;
+        }
+
+        Bitmap bitmap = mBuffer.obtainBitmap();
+        rasterizer.composite(tile, rasters, bitmap);
+        if (null == layerMask) {
+            mBuffer.putTile(tile, bitmap);
+        } else {
+            mBuffer.putPartialTile(tile, bitmap);
+        }
+
+        if (mBuffer.getTileBounds(tile, tileBounds)) {
+            mView.invalidateRegion(tileBounds);
+        }
+    }
+
+
+    protected Bitmap getRaster(Future<Bitmap> job)
+    {
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(Constants.TAG, "Layer raster render failed", e.getCause());
+        }
+        return null;
+    }
+
+
+    /**
+     * Drop the cached rasters of the layer, the rasters of the draws started before are not
+     * cached
+     */
+    protected void invalidateRasters(int layerId)
+    {
+        synchronized (mLayerVersions) {
+            Integer version = mLayerVersions.get(layerId);
+            mLayerVersions.put(layerId, null == version ? 1 : version + 1);
+            mRasterCache.invalidateLayer(layerId);
+        }
+    }
+
+
+    /**
+     * @return the count of the raster invalidations of the layer, both of its own and of all
+     * layers
+     */
+    protected int getLayerVersion(int layerId)
+    {
+        synchronized (mLayerVersions) {
+            Integer version = mLayerVersions.get(layerId);
+            return (null == version ? 0 : version) + mRastersVersion;
+        }
+    }
+
+
+    /**
+     * Cache the raster unless the layer is invalidated after its draw has started
+     */
+    protected void putRaster(
+            int layerId,
+            int version,
+            MapTile tile,
+            Bitmap raster)
+    {
+        synchronized (mLayerVersions) {
+            if (version == getLayerVersion(layerId)) {
+                mRasterCache.put(layerId, tile, raster);
+            }
+        }
+    }
+
+
+    protected Object getLayerLock(int layerId)
+    {
+        synchronized (mLayerLocks) {
+            Object lock = mLayerLocks.get(layerId);
+            if (null == lock) {
+                lock = new Object();
+                mLayerLocks.put(layerId, lock);
+            }
+            return lock;
+        }
+    }
+
+
+    /**
+     * @return the rasterizer of the current thread
+     */
+    protected TileRasterizer getRasterizer()
+    {
+        Bitmap background;
+        synchronized (this) {
+            background = mBackground;
+        }
+
+        if (null == background) {
+            return null;
+        }
+
+        TileRasterizer rasterizer = mRasterizers.get();
+        if (null == rasterizer || rasterizer.getBackground() != background) {
+            rasterizer = new TileRasterizer(background, mGeometryCache, mLabelEngine, mClusters,
+                    mFilters);
+            mRasterizers.set(rasterizer);
+        }
+        return rasterizer;
+    }
+
+
+    /**
+     * Collect visible layers for the zoom level in the drawing (bottom to top) order
+     */
+    public static void collectLayers(
+            LayerGroup group,
+            float zoom,
+            List<ILayer> layers)
+    {
+        for (int i = 0; i < group.getLayerCount(); i++) {
+            ILayer layer = group.getLayer(i);
+            if (layer instanceof LayerGroup) {
+                collectLayers((LayerGroup) layer, zoom, layers);
+                continue;
+            }
+
+            if (!(layer instanceof ILayerView) || !layer.isValid()) {
+                continue;
+            }
+
+            ILayerView layerView = (ILayerView) layer;
+            if (layerView.isVisible() && zoom >= layerView.getMinZoom()
+                    && zoom <= layerView.getMaxZoom()) {
+                layers.add(layer);
+            }
+        }
+    }
+
+
+    protected class LayerRasterTask
+            implements Callable<Bitmap>, TileRasterizer.CancelSignal
+    {
+        protected final MapTile       mTile;
+        protected final ILayer        mLayer;
+        protected final LayerProgress mProgress;
+        protected final int           mGeneration;
+
+
+        public LayerRasterTask(
+                MapTile tile,
+                ILayer layer,
+                LayerProgress progress,
+                int generation)
+        {
+            mTile = tile;
+            mLayer = layer;
+            mProgress = progress;
+            mGeneration = generation;
+        }
+
+
+        @Override
+        public Bitmap call()
+                throws Exception
+        {
+            if (isCancelled(mGeneration) || !mBuffer.isTileNeeded(mTile)) {
+                mProgress.onTileDone(mLayer.getId());
+                return null;
+            }
+
+            int layerId = mLayer.getId();
+            int version = getLayerVersion(layerId);
+            List<LabelEngine.Label> labels = null;
+            if (mLayer instanceof VectorLayer && !mLabelEngine.isTilePlaced(layerId, mTile)) {
+                labels = new ArrayList<>();
+            }
+
+            Bitmap raster = mRasterCache.get(layerId, mTile);
+            if (null == raster) {
+                TileRasterizer rasterizer = getRasterizer();
+                if (null == rasterizer) {
+                    mProgress.onTileDone(layerId);
+                    return null;
+                }
+
+                raster = Bitmap.createBitmap(
+                        TiledBackBuffer.TILE_SIZE, TiledBackBuffer.TILE_SIZE,
+                        Bitmap.Config.ARGB_8888);
+                // layer renderers keep the draw state, so one layer is drawn by one thread
+                synchronized (getLayerLock(layerId)) {
+                    if (isCancelled(mGeneration)) {
+                        mProgress.onTileDone(layerId);
+                        return null;
+                    }
+
+                    synchronized (mDrawingLayers) {
+                        mDrawingLayers.add(mLayer);
+                    }
+                    try {
+                        long start = System.nanoTime();
+                        int features = rasterizer.renderLayer(mTile, mLayer, raster, this, labels);
+                        mMetrics.onLayerDrawn(mLayer, System.nanoTime() - start, features);
+                    } finally {
+                        synchronized (mDrawingLayers) {
+                            mDrawingLayers.remove(mLayer);
+                        }
+                    }
+                }
+
+                // the raster of a cancelled draw is incomplete
+                if (isCancelled(mGeneration)) {
+                    mProgress.onTileDone(layerId);
+                    return null;
+                }
+                putRaster(layerId, version, mTile, raster);
+            } else {
+                mMetrics.onLayerCached(mLayer);
+                if (null != labels) {
+                    collectLabels(labels);
+                }
+            }
+
+            // labels are placed only from complete passes, so the tile is not marked as placed
+            // with a part of its labels
+            if (null != labels && !isCancelled(mGeneration)
+                    && version == getLayerVersion(layerId)
+                    && mLabelEngine.placeTile(mTile, layerId, labels)) {
+                mView.postInvalidate();
+            }
+
+            mProgress.onTileDone(layerId);
+            return raster;
+        }
+
+
+        /**
+         * Collect the labels of the cached layer raster
+         */
+        protected void collectLabels(List<LabelEngine.Label> labels)
+        {
+            TileRasterizer rasterizer = getRasterizer();
+            if (null != rasterizer) {
+                synchronized (getLayerLock(mLayer.getId())) {
+                    rasterizer.collectLabels(mTile, (VectorLayer) mLayer, this, labels);
+                }
+            }
+        }
+
+
+        @Override
+        public boolean isCancelled()
+        {
+            return MapRenderer.this.isCancelled(mGeneration);
+        }
+    }
+
+
+    /**
+     * Counts rendered tiles of every layer and reports the layer draw progress
+     */
+    protected class LayerProgress
+    {
+        protected final int                   mTileCount;
+        protected final Map<Integer, Integer> mDone;
+
+
+        public LayerProgress(int tileCount)
+        {
+            mTileCount = tileCount;
+            mDone = new HashMap<>();
+        }
+
+
+        public void onTileDone(int layerId)
+        {
+            int done;
+            synchronized (mDone) {
+                Integer count = mDone.get(layerId);
+                done = null == count ? 1 : count + 1;
+                mDone.put(layerId, done);
+            }
+            notifyDrawFinished(layerId, (float) done / mTileCount);
+        }
+    }
+
+
+    protected synchronized void onRenderStarted()
+    {
+        if (mActiveTasks++ == 0) {
+            mHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (MapViewEventListener listener : new ArrayList<>(mListeners)) {
+                        listener.onLayerDrawStarted();
+                    }
+                }
+            });
+        }
+    }
+
+
+    protected synchronized void onRenderFinished()
+    {
+        if (--mActiveTasks == 0) {
+            notifyDrawFinished(mMap.getId(), 1.0f);
+            // show the metrics of the finished pass
+            if (mMetrics.isEnabled()) {
+                mView.postInvalidate();
+            }
+        }
+    }
+
+
+    protected void notifyDrawFinished(
+            final int id,
+            final float percent)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (MapViewEventListener listener : new ArrayList<>(mListeners)) {
+                    listener.onLayerDrawFinished(id, percent);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+/**
+ * Screen tile address: a square of {@link TiledBackBuffer#TILE_SIZE} pixels in the world pixel
+ * grid of the zoom level.
+ */
+public class MapTile
+{
+    protected final float mZoom;
+    protected final int   mColumn;
+    protected final int   mRow;
+
+
+    public MapTile(
+            float zoom,
+            int column,
+            int row)
+    {
+        mZoom = zoom;
+        mColumn = column;
+        mRow = row;
+    }
+
+
+    public float getZoom()
+    {
+        return mZoom;
+    }
+
+
+    public int getColumn()
+    {
+        return mColumn;
+    }
+
+
+    public int getRow()
+    {
+        return mRow;
+    }
+
+
+    public long getKey()
+    {
+        return getKey(mColumn, mRow);
+    }
+
+
+    public static long getKey(
+            int column,
+            int row)
+    {
+        return ((long) column << 32) | (row & 0xffffffffL);
+    }
+
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MapTile)) {
+            return false;
+        }
+
+        MapTile other = (MapTile) o;
+        return mZoom == other.mZoom && mColumn == other.mColumn && mRow == other.mRow;
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+        int result = Float.floatToIntBits(mZoom);
+        result = 31 * result + mColumn;
+        result = 31 * result + mRow;
+        return result;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return mZoom + "/" + mColumn + "/" + mRow;
+    }
+}
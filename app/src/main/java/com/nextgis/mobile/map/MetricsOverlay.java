@@ -0,0 +1,142 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplibui.api.Overlay;
+import com.nextgis.maplibui.mapui.MapViewOverlays;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Debug panel with the render metrics: frame time percentiles and draw time, drawn features and
+ * rendered versus cached rasters of every layer.
+ */
+public class MetricsOverlay
+        extends Overlay
+{
+    protected static final float TEXT_SIZE_DP = 11;
+    protected static final float PADDING_DP   = 6;
+
+    protected final RenderMetrics mMetrics;
+    protected final Paint         mTextPaint;
+    protected final Paint         mPanelPaint;
+    protected final float         mPadding;
+    protected final Rect          mPanelBounds;
+
+
+    public MetricsOverlay(
+            Context context,
+            MapViewOverlays mapViewOverlays,
+            RenderMetrics metrics)
+    {
+        super(context, mapViewOverlays);
+        mMetrics = metrics;
+
+        float density = context.getResources().getDisplayMetrics().density;
+        mPadding = PADDING_DP * density;
+        mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(TEXT_SIZE_DP * density);
+        mPanelPaint = new Paint();
+        mPanelPaint.setColor(Color.argb(160, 0, 0, 0));
+        mPanelBounds = new Rect();
+    }
+
+
+    /**
+     * Add the screen bounds of the last drawn panel
+     */
+    public void addBounds(Rect bounds)
+    {
+        bounds.union(mPanelBounds);
+    }
+
+
+    @Override
+    public void draw(
+            Canvas canvas,
+            MapDrawable mapDrawable)
+    {
+        if (!mMetrics.isEnabled()) {
+            return;
+        }
+
+        List<RenderMetrics.LayerMetrics> layers = mMetrics.getLayerMetrics();
+        String[] lines = new String[layers.size() + 1];
+        lines[0] = String.format(Locale.US, "frame p50 %.1f p90 %.1f p99 %.1f ms (%d)",
+                mMetrics.getFramePercentile(50), mMetrics.getFramePercentile(90),
+                mMetrics.getFramePercentile(99), mMetrics.getFrameCount());
+        for (int i = 0; i < layers.size(); i++) {
+            RenderMetrics.LayerMetrics metrics = layers.get(i);
+            lines[i + 1] = String.format(Locale.US, "%s: %.1f ms avg, %.1f max, %d ftr, %d/%d drawn/cached",
+                    metrics.getLayerName(), metrics.getAverageDrawMillis(),
+                    metrics.getMaxDrawMillis(), metrics.getFeatures(), metrics.getRendered(),
+                    metrics.getCached());
+        }
+
+        float width = 0;
+        for (String line : lines) {
+            width = Math.max(width, mTextPaint.measureText(line));
+        }
+        Paint.FontMetrics fontMetrics = mTextPaint.getFontMetrics();
+        float lineHeight = fontMetrics.descent - fontMetrics.ascent;
+
+        mPanelBounds.set(0, 0, (int) Math.ceil(width + mPadding * 2),
+                (int) Math.ceil(lineHeight * lines.length + mPadding * 2));
+        canvas.drawRect(mPanelBounds, mPanelPaint);
+        float y = mPadding - fontMetrics.ascent;
+        for (String line : lines) {
+            canvas.drawText(line, mPadding, y, mTextPaint);
+            y += lineHeight;
+        }
+    }
+
+
+    @Override
+    public void drawOnPanning(
+            Canvas canvas,
+            PointF currentMouseOffset)
+    {
+        draw(canvas, null);
+    }
+
+
+    @Override
+    public void drawOnZooming(
+            Canvas canvas,
+            PointF currentFocusLocation,
+            float scale)
+    {
+        draw(canvas, null);
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.support.v4.util.LongSparseArray;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.nextgis.maplib.util.GeoConstants.MERCATOR_MAX;
+
+/**
+ * Hierarchical grid of the points of a point layer. Every zoom level up to
+ * {@link #MAX_CLUSTER_ZOOM} has a grid of {@link #CELL_SIZE_PX} pixel cells and every cell with
+ * points is a cluster, so a screen shows a few hundred clusters at most. The points are read once
+ * per layer, a level grid is built on its first use and all built grids are updated with the
+ * features changed since, read from the {@link LayerChangeLog}.
+ */
+public class PointClusterIndex
+{
+    public static final int MAX_CLUSTER_ZOOM = 16;
+    public static final int CELL_SIZE_PX     = 80;
+
+    protected final VectorLayer                      mLayer;
+    protected final LongSparseArray<GeoPoint>        mPoints;
+    protected final Map<Integer, Map<Long, Cluster>> mLevels;
+
+    protected volatile boolean mLoaded;
+    protected long             mVersion;
+
+
+    public PointClusterIndex(VectorLayer layer)
+    {
+        mLayer = layer;
+        mPoints = new LongSparseArray<>();
+        mLevels = new HashMap<>();
+    }
+
+
+    public VectorLayer getLayer()
+    {
+        return mLayer;
+    }
+
+
+    /**
+     * @return true if the points are read, a query of the index does not read the layer then
+     */
+    public boolean isLoaded()
+    {
+        return mLoaded;
+    }
+
+
+    /**
+     * Collect the clusters of the zoom level with the center inside the envelope
+     */
+    public synchronized void query(
+            int level,
+            GeoEnvelope envelope,
+            List<Cluster> result)
+    {
+        Map<Long, Cluster> cells = getLevel(level);
+        int minColumn = getCell(envelope.getMinX(), level, true);
+        int maxColumn = getCell(envelope.getMaxX(), level, true);
+        int minRow = getCell(envelope.getMaxY(), level, false);
+        int maxRow = getCell(envelope.getMinY(), level, false);
+
+        for (int column = minColumn; column <= maxColumn; column++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                Cluster cluster = cells.get(MapTile.getKey(column, row));
+                if (null == cluster) {
+                    continue;
+                }
+
+                double x = cluster.getX(), y = cluster.getY();
+                if (x >= envelope.getMinX() && x <= envelope.getMaxX() && y >= envelope.getMinY()
+                        && y <= envelope.getMaxY()) {
+                    result.add(cluster);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Read the features changed after the loaded points again, all points are read again on the
+     * next use if the change log does not reach back to them
+     *
+     * @return true if the points are changed
+     */
+    public synchronized boolean sync()
+    {
+        if (!mLoaded) {
+            return false;
+        }
+
+        LayerChangeLog.Changes changes = LayerChangeLog.getChanges(mLayer, mVersion);
+        if (null == changes) {
+            reset();
+            return true;
+        }
+        if (changes.getVersion() == mVersion) {
+            return false;
+        }
+
+        for (Long featureId : changes.getFeatureIds()) {
+            removePoint(featureId);
+            GeoPoint point = getPoint(mLayer.getGeometryForId(featureId));
+            if (null != point) {
+                addPoint(featureId, point);
+            }
+        }
+        mVersion = changes.getVersion();
+        return true;
+    }
+
+
+    /**
+     * Read all points again on the next use, e.g. the layer is changed in bulk
+     */
+    public synchronized void reset()
+    {
+        mPoints.clear();
+        mLevels.clear();
+        mLoaded = false;
+    }
+
+
+    protected Map<Long, Cluster> getLevel(int level)
+    {
+        if (!mLoaded) {
+            loadPoints();
+        }
+
+        Map<Long, Cluster> cells = mLevels.get(level);
+        if (null == cells) {
+            cells = new HashMap<>();
+            for (int i = 0; i < mPoints.size(); i++) {
+                addToLevel(cells, level, mPoints.valueAt(i));
+            }
+            mLevels.put(level, cells);
+        }
+        return cells;
+    }
+
+
+    protected void loadPoints()
+    {
+        // the changes made while the points are read are read again by the sync
+        mVersion = LayerChangeLog.getVersion(mLayer);
+        FeatureIdList featureIds = FeatureIdList.fromLayer(mLayer);
+        for (int i = 0; i < featureIds.size(); i++) {
+            long featureId = featureIds.get(i);
+            GeoPoint point = getPoint(mLayer.getGeometryForId(featureId));
+            if (null != point) {
+                mPoints.put(featureId, point);
+            }
+        }
+        mLoaded = true;
+    }
+
+
+    protected void addPoint(
+            long featureId,
+            GeoPoint point)
+    {
+        mPoints.put(featureId, point);
+        for (Map.Entry<Integer, Map<Long, Cluster>> level : mLevels.entrySet()) {
+            addToLevel(level.getValue(), level.getKey(), point);
+        }
+    }
+
+
+    protected void removePoint(long featureId)
+    {
+        GeoPoint point = mPoints.get(featureId);
+        if (null == point) {
+            return;
+        }
+
+        mPoints.remove(featureId);
+        for (Map.Entry<Integer, Map<Long, Cluster>> level : mLevels.entrySet()) {
+            long key = getCellKey(point, level.getKey());
+            Cluster cluster = level.getValue().get(key);
+            if (null != cluster && cluster.remove(point)) {
+                level.getValue().remove(key);
+            }
+        }
+    }
+
+
+    protected static void addToLevel(
+            Map<Long, Cluster> cells,
+            int level,
+            GeoPoint point)
+    {
+        long key = getCellKey(point, level);
+        Cluster cluster = cells.get(key);
+        if (null == cluster) {
+            cluster = new Cluster();
+            cells.put(key, cluster);
+        }
+        cluster.add(point);
+    }
+
+
+    protected static GeoPoint getPoint(GeoGeometry geometry)
+    {
+        if (geometry instanceof GeoPoint) {
+            return (GeoPoint) geometry;
+        }
+
+        if (geometry instanceof GeoMultiPoint && ((GeoMultiPoint) geometry).size() > 0) {
+            return ((GeoMultiPoint) geometry).get(0);
+        }
+        return null;
+    }
+
+
+    protected static long getCellKey(
+            GeoPoint point,
+            int level)
+    {
+        return MapTile.getKey(
+                getCell(point.getX(), level, true), getCell(point.getY(), level, false));
+    }
+
+
+    protected static int getCell(
+            double coordinate,
+            int level,
+            boolean isX)
+    {
+        double resolution = TiledBackBuffer.getResolution(level);
+        double pixel = isX ? (coordinate + MERCATOR_MAX) / resolution
+                           : (MERCATOR_MAX - coordinate) / resolution;
+        return (int) Math.floor(pixel / CELL_SIZE_PX);
+    }
+
+
+    /**
+     * Points of a grid cell
+     */
+    public static class Cluster
+    {
+        protected int    mCount;
+        protected double mSumX, mSumY;
+        protected double mMinX, mMaxX, mMinY, mMaxY;
+
+
+        protected void add(GeoPoint point)
+        {
+            if (mCount == 0) {
+                mMinX = mMaxX = point.getX();
+                mMinY = mMaxY = point.getY();
+            } else {
+                mMinX = Math.min(mMinX, point.getX());
+                mMaxX = Math.max(mMaxX, point.getX());
+                mMinY = Math.min(mMinY, point.getY());
+                mMaxY = Math.max(mMaxY, point.getY());
+            }
+
+            mCount++;
+            mSumX += point.getX();
+            mSumY += point.getY();
+        }
+
+
+        /**
+         * The bounds are not shrunk on a removal, they still cover all points of the cluster
+         *
+         * @return true if the cluster is empty
+         */
+        protected boolean remove(GeoPoint point)
+        {
+            mCount--;
+            mSumX -= point.getX();
+            mSumY -= point.getY();
+            return mCount == 0;
+        }
+
+
+        public int getCount()
+        {
+            return mCount;
+        }
+
+
+        /**
+         * @return the cluster center (the mean of its points) x
+         */
+        public double getX()
+        {
+            return mSumX / mCount;
+        }
+
+
+        public double getY()
+        {
+            return mSumY / mCount;
+        }
+
+
+        public GeoEnvelope getBounds()
+        {
+            return new GeoEnvelope(mMinX, mMaxX, mMinY, mMaxY);
+        }
+    }
+}
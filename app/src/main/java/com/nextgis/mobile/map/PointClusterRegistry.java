@@ -0,0 +1,250 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import com.nextgis.maplib.api.IGISApplication;
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.ILayerView;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Point cluster indexes of the point layers drawn in the clustering mode. An index is created on
+ * the first draw of its layer and is kept up to date by a content observer of the layer features.
+ */
+public class PointClusterRegistry
+{
+    protected static final float SYMBOL_RADIUS_DP = 14;
+    protected static final float SYMBOL_GROWTH_DP = 4;
+
+    protected final Context                         mContext;
+    protected final OnClustersChangeListener        mListener;
+    protected final Map<Integer, PointClusterIndex> mIndexes;
+    protected final Map<Integer, ContentObserver>   mObservers;
+    protected final float                           mDensity;
+
+    protected boolean mEnabled;
+
+
+    public PointClusterRegistry(
+            Context context,
+            OnClustersChangeListener listener)
+    {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mIndexes = new HashMap<>();
+        mObservers = new HashMap<>();
+        mDensity = context.getResources().getDisplayMetrics().density;
+    }
+
+
+    /**
+     * @return true if the mode is changed
+     */
+    public synchronized boolean setEnabled(boolean enabled)
+    {
+        if (mEnabled == enabled) {
+            return false;
+        }
+
+        mEnabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the cluster index of the layer or null if the layer is not clustered at the zoom
+     */
+    public synchronized PointClusterIndex getIndex(
+            ILayer layer,
+            float zoom)
+    {
+        if (!mEnabled || !(layer instanceof VectorLayer)
+                || zoom >= PointClusterIndex.MAX_CLUSTER_ZOOM + 1) {
+            return null;
+        }
+
+        VectorLayer vectorLayer = (VectorLayer) layer;
+        int type = vectorLayer.getGeometryType();
+        if (type != GeoConstants.GTPoint && type != GeoConstants.GTMultiPoint) {
+            return null;
+        }
+
+        PointClusterIndex index = mIndexes.get(layer.getId());
+        if (null == index) {
+            index = new PointClusterIndex(vectorLayer);
+            mIndexes.put(layer.getId(), index);
+            observe(vectorLayer, index);
+        }
+        return index;
+    }
+
+
+    /**
+     * Find the cluster of several points nearest to the map point. It is called on the main
+     * thread, so the layers with the points not read yet are skipped instead of waiting for them
+     *
+     * @param tolerance
+     *         The search distance in pixels besides the symbol radius
+     *
+     * @return the cluster bounds or null if there is no cluster near the point
+     */
+    public GeoEnvelope findCluster(
+            float zoom,
+            double x,
+            double y,
+            float tolerance)
+    {
+        List<PointClusterIndex> indexes;
+        synchronized (this) {
+            if (!mEnabled || zoom >= PointClusterIndex.MAX_CLUSTER_ZOOM + 1) {
+                return null;
+            }
+            indexes = new ArrayList<>(mIndexes.values());
+        }
+
+        double resolution = TiledBackBuffer.getResolution(zoom);
+        double distance = (getMaxSymbolRadius() + tolerance) * resolution;
+        GeoEnvelope envelope = new GeoEnvelope(x - distance, x + distance, y - distance,
+                y + distance);
+
+        PointClusterIndex.Cluster nearest = null;
+        double minDistance = Double.MAX_VALUE;
+        List<PointClusterIndex.Cluster> clusters = new ArrayList<>();
+        for (PointClusterIndex index : indexes) {
+            if (!index.isLoaded() || !((ILayerView) index.getLayer()).isVisible()) {
+                continue;
+            }
+
+            clusters.clear();
+            index.query(getLevel(zoom), envelope, clusters);
+            for (PointClusterIndex.Cluster cluster : clusters) {
+                double dx = cluster.getX() - x, dy = cluster.getY() - y;
+                double clusterDistance = Math.sqrt(dx * dx + dy * dy);
+                double radius = (getSymbolRadius(cluster.getCount()) + tolerance) * resolution;
+                if (cluster.getCount() > 1 && clusterDistance <= radius
+                        && clusterDistance < minDistance) {
+                    nearest = cluster;
+                    minDistance = clusterDistance;
+                }
+            }
+        }
+        return null == nearest ? null : nearest.getBounds();
+    }
+
+
+    public synchronized void removeLayer(int layerId)
+    {
+        mIndexes.remove(layerId);
+        ContentObserver observer = mObservers.remove(layerId);
+        if (null != observer) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+    }
+
+
+    public synchronized void clear()
+    {
+        for (ContentObserver observer : mObservers.values()) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+        mObservers.clear();
+        mIndexes.clear();
+    }
+
+
+    /**
+     * @return the cluster symbol radius in pixels, it grows with the order of the point count
+     */
+    public float getSymbolRadius(int count)
+    {
+        return (SYMBOL_RADIUS_DP + SYMBOL_GROWTH_DP * (float) Math.floor(Math.log10(count)))
+               * mDensity;
+    }
+
+
+    public float getMaxSymbolRadius()
+    {
+        return getSymbolRadius(1000000);
+    }
+
+
+    public float getDensity()
+    {
+        return mDensity;
+    }
+
+
+    public static int getLevel(float zoom)
+    {
+        return Math.min((int) Math.floor(zoom), PointClusterIndex.MAX_CLUSTER_ZOOM);
+    }
+
+
+    protected void observe(
+            final VectorLayer layer,
+            final PointClusterIndex index)
+    {
+        if (!(mContext instanceof IGISApplication)) {
+            return;
+        }
+
+        String authority = ((IGISApplication) mContext).getAuthority();
+        Uri uri = Uri.parse("content://" + authority + "/" + layer.getPath().getName());
+
+        // changes are delivered on a binder thread, geometries are read off the main thread. The
+        // change log tells the changed features, the uri of the change is not passed before API 16
+        ContentObserver observer = new ContentObserver(null)
+        {
+            @Override
+            public void onChange(boolean selfChange)
+            {
+                if (index.sync()) {
+                    mListener.onClustersChanged(layer.getId());
+                }
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        mObservers.put(layer.getId(), observer);
+    }
+
+
+    public interface OnClustersChangeListener
+    {
+        void onClustersChanged(int layerId);
+    }
+}
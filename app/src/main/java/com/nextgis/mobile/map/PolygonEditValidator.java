@@ -0,0 +1,539 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.nextgis.mobile.map.PolygonValidator.RINGS_INTERSECTION;
+import static com.nextgis.mobile.map.PolygonValidator.SELF_INTERSECTION;
+
+/**
+ * Self-intersection checks of a polygon or multipolygon while it is edited. The ring segments are
+ * kept in an R-tree and the touching segment pairs are remembered, so a vertex move, insert or
+ * delete re-tests only the segments ending at the vertex against the segments near them, in a
+ * logarithmic time of the vertex count. The geometry has no intersections when no pair is left.
+ * <p/>
+ * The nesting of holes and polygons is not tracked, {@link PolygonValidator} checks it on save.
+ */
+public class PolygonEditValidator
+{
+    /**
+     * The edited vertex count above which an update builds the index again
+     */
+    protected static final int MIN_REBUILD_COUNT = 32;
+
+    protected final List<Ring>           mRings;
+    protected final Map<Long, Vertex>    mSegments;
+    protected final Map<Long, Set<Long>> mContacts;
+    protected final Set<Vertex>          mDirty;
+    protected final FeatureIdList        mCandidates;
+
+    protected FeatureRTree mIndex;
+    protected int          mVertexCount;
+    protected long         mNextId;
+
+
+    public PolygonEditValidator()
+    {
+        mRings = new ArrayList<>();
+        mSegments = new HashMap<>();
+        mContacts = new HashMap<>();
+        mDirty = new LinkedHashSet<>();
+        mCandidates = new FeatureIdList();
+        mIndex = new FeatureRTree();
+    }
+
+
+    public void clear()
+    {
+        mRings.clear();
+        mSegments.clear();
+        mContacts.clear();
+        mDirty.clear();
+        mIndex = new FeatureRTree();
+        mVertexCount = 0;
+    }
+
+
+    /**
+     * Index the geometry at once, the geometries other than polygons are not checked
+     */
+    public void setGeometry(GeoGeometry geometry)
+    {
+        List<double[]> coordinates = new ArrayList<>();
+        List<Integer> polygons = new ArrayList<>();
+        if (readRings(geometry, coordinates, polygons)) {
+            build(coordinates, polygons);
+        } else {
+            clear();
+        }
+    }
+
+
+    /**
+     * Apply the changes of the edited geometry. The changed vertices of a ring are found by
+     * comparing its vertices from both ends, a cheap linear pass next to the segment tests, and
+     * the changes of the ring set build the index again.
+     */
+    public void update(GeoGeometry geometry)
+    {
+        List<double[]> coordinates = new ArrayList<>();
+        List<Integer> polygons = new ArrayList<>();
+        if (!readRings(geometry, coordinates, polygons)) {
+            clear();
+            return;
+        }
+
+        boolean sameRings = coordinates.size() == mRings.size();
+        for (int i = 0; sameRings && i < mRings.size(); i++) {
+            sameRings = mRings.get(i).mPolygon == polygons.get(i);
+        }
+        if (!sameRings) {
+            build(coordinates, polygons);
+            return;
+        }
+
+        int[] prefixes = new int[mRings.size()];
+        int[] suffixes = new int[mRings.size()];
+        int changed = 0;
+        for (int i = 0; i < mRings.size(); i++) {
+            List<Vertex> vertices = mRings.get(i).mVertices;
+            double[] points = coordinates.get(i);
+            int oldCount = vertices.size();
+            int newCount = points.length / 2;
+            int common = Math.min(oldCount, newCount);
+
+            int prefix = 0;
+            while (prefix < common && vertices.get(prefix).isAt(points, prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < common - prefix && vertices.get(oldCount - 1 - suffix)
+                    .isAt(points, newCount - 1 - suffix)) {
+                suffix++;
+            }
+
+            prefixes[i] = prefix;
+            suffixes[i] = suffix;
+            changed += Math.max(oldCount, newCount) - prefix - suffix;
+        }
+
+        // e.g. the other feature is selected
+        if (changed > Math.max(MIN_REBUILD_COUNT, mVertexCount / 2)) {
+            build(coordinates, polygons);
+            return;
+        }
+
+        for (int i = 0; i < mRings.size(); i++) {
+            double[] points = coordinates.get(i);
+            int oldEnd = mRings.get(i).mVertices.size() - suffixes[i];
+            int newEnd = points.length / 2 - suffixes[i];
+
+            int index = prefixes[i];
+            for (; index < oldEnd && index < newEnd; index++) {
+                moveVertex(i, index, points[index * 2], points[index * 2 + 1]);
+            }
+            for (; index < newEnd; index++) {
+                insertVertex(i, index, points[index * 2], points[index * 2 + 1]);
+            }
+            for (int j = index; j < oldEnd; j++) {
+                removeVertex(i, index);
+            }
+        }
+    }
+
+
+    public void moveVertex(
+            int ring,
+            int index,
+            double x,
+            double y)
+    {
+        Vertex vertex = mRings.get(ring).mVertices.get(index);
+        vertex.mX = x;
+        vertex.mY = y;
+        mDirty.add(vertex);
+        mDirty.add(vertex.mPrev);
+    }
+
+
+    /**
+     * Insert the vertex before the vertex at the index, the index may be the vertex count
+     */
+    public void insertVertex(
+            int ring,
+            int index,
+            double x,
+            double y)
+    {
+        Ring owner = mRings.get(ring);
+        Vertex vertex = new Vertex(mNextId++, owner, x, y);
+        List<Vertex> vertices = owner.mVertices;
+        if (vertices.isEmpty()) {
+            vertex.mPrev = vertex;
+            vertex.mNext = vertex;
+        } else {
+            Vertex next = vertices.get(index % vertices.size());
+            vertex.mPrev = next.mPrev;
+            vertex.mNext = next;
+            next.mPrev.mNext = vertex;
+            next.mPrev = vertex;
+            mDirty.add(vertex.mPrev);
+        }
+        vertices.add(index, vertex);
+        mSegments.put(vertex.mId, vertex);
+        mDirty.add(vertex);
+        mVertexCount++;
+        markSmallRing(owner);
+    }
+
+
+    public void removeVertex(
+            int ring,
+            int index)
+    {
+        Ring owner = mRings.get(ring);
+        Vertex vertex = owner.mVertices.remove(index);
+        vertex.mPrev.mNext = vertex.mNext;
+        vertex.mNext.mPrev = vertex.mPrev;
+        if (vertex.mPrev != vertex) {
+            mDirty.add(vertex.mPrev);
+        }
+
+        removeContacts(vertex);
+        mSegments.remove(vertex.mId);
+        mIndex.remove(vertex.mId);
+        mDirty.remove(vertex);
+        mVertexCount--;
+        markSmallRing(owner);
+    }
+
+
+    /**
+     * @return a self-intersection of the geometry or null if there is none
+     */
+    public PolygonValidator.Fault getFault()
+    {
+        refresh();
+
+        for (Map.Entry<Long, Set<Long>> entry : mContacts.entrySet()) {
+            for (long other : entry.getValue()) {
+                PolygonValidator.Fault fault =
+                        testSegments(mSegments.get(entry.getKey()), mSegments.get(other));
+                if (null != fault) {
+                    return fault;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    protected void build(
+            List<double[]> coordinates,
+            List<Integer> polygons)
+    {
+        clear();
+
+        FeatureIdList ids = new FeatureIdList();
+        List<GeoEnvelope> envelopes = new ArrayList<>();
+        for (int i = 0; i < coordinates.size(); i++) {
+            Ring ring = new Ring(polygons.get(i));
+            mRings.add(ring);
+
+            double[] points = coordinates.get(i);
+            for (int j = 0; j < points.length / 2; j++) {
+                Vertex vertex = new Vertex(mNextId++, ring, points[j * 2], points[j * 2 + 1]);
+                ring.mVertices.add(vertex);
+                mSegments.put(vertex.mId, vertex);
+            }
+
+            List<Vertex> vertices = ring.mVertices;
+            for (int j = 0; j < vertices.size(); j++) {
+                Vertex vertex = vertices.get(j);
+                vertex.mNext = vertices.get((j + 1) % vertices.size());
+                vertex.mNext.mPrev = vertex;
+                ids.add(vertex.mId);
+                envelopes.add(getEnvelope(vertex));
+            }
+            mVertexCount += vertices.size();
+        }
+        mIndex = FeatureRTree.build(ids, envelopes);
+
+        for (Ring ring : mRings) {
+            for (Vertex vertex : ring.mVertices) {
+                findContacts(vertex, true);
+            }
+        }
+    }
+
+
+    /**
+     * The neighbour segments of a ring up to 3 vertices are tested in another way, so all its
+     * segments are tested again
+     */
+    protected void markSmallRing(Ring ring)
+    {
+        if (ring.mVertices.size() <= 3) {
+            mDirty.addAll(ring.mVertices);
+        }
+    }
+
+
+    /**
+     * Index the changed segments and test them against the segments near them
+     */
+    protected void refresh()
+    {
+        if (mDirty.isEmpty()) {
+            return;
+        }
+
+        for (Vertex vertex : mDirty) {
+            removeContacts(vertex);
+            mIndex.insert(vertex.mId, getEnvelope(vertex));
+        }
+        for (Vertex vertex : mDirty) {
+            findContacts(vertex, false);
+        }
+        mDirty.clear();
+    }
+
+
+    /**
+     * @param once
+     *         Test a pair only from the segment with the smaller id, all segments are tested
+     */
+    protected void findContacts(
+            Vertex segment,
+            boolean once)
+    {
+        mCandidates.clear();
+        mIndex.search(getEnvelope(segment), mCandidates);
+        for (int i = 0; i < mCandidates.size(); i++) {
+            long id = mCandidates.get(i);
+            if (id == segment.mId || once && id < segment.mId) {
+                continue;
+            }
+
+            Vertex other = mSegments.get(id);
+            if (null != testSegments(segment, other)) {
+                addContact(segment.mId, id);
+                addContact(id, segment.mId);
+            }
+        }
+    }
+
+
+    protected void addContact(
+            long segment,
+            long other)
+    {
+        Set<Long> contacts = mContacts.get(segment);
+        if (null == contacts) {
+            contacts = new HashSet<>();
+            mContacts.put(segment, contacts);
+        }
+        contacts.add(other);
+    }
+
+
+    protected void removeContacts(Vertex segment)
+    {
+        Set<Long> contacts = mContacts.remove(segment.mId);
+        if (null == contacts) {
+            return;
+        }
+
+        for (long other : contacts) {
+            Set<Long> otherContacts = mContacts.get(other);
+            if (null != otherContacts) {
+                otherContacts.remove(segment.mId);
+                if (otherContacts.isEmpty()) {
+                    mContacts.remove(other);
+                }
+            }
+        }
+    }
+
+
+    protected PolygonValidator.Fault testSegments(
+            Vertex a,
+            Vertex b)
+    {
+        Ring ringA = a.mRing;
+        Ring ringB = b.mRing;
+
+        GeoPoint contact;
+        if (ringA == ringB && (a.mNext == b || b.mNext == a)) {
+            // the neighbours share a vertex, they may only fold back onto each other
+            if (ringA.mVertices.size() < 3) {
+                return null;
+            }
+            Vertex start = a.mNext == b ? a : b;
+            Vertex shared = start.mNext;
+            Vertex end = shared.mNext;
+            contact = PolygonValidator.getFold(start.mX, start.mY, shared.mX, shared.mY, end.mX,
+                    end.mY);
+        } else {
+            contact = PolygonValidator.getContact(a.mX, a.mY, a.mNext.mX, a.mNext.mY, b.mX, b.mY,
+                    b.mNext.mX, b.mNext.mY);
+        }
+
+        if (null == contact) {
+            return null;
+        }
+
+        int type;
+        if (ringA.mPolygon != ringB.mPolygon || ringA == ringB) {
+            type = SELF_INTERSECTION;
+        } else {
+            type = RINGS_INTERSECTION;
+        }
+        return new PolygonValidator.Fault(type, contact);
+    }
+
+
+    protected static GeoEnvelope getEnvelope(Vertex segment)
+    {
+        Vertex next = segment.mNext;
+        return new GeoEnvelope(Math.min(segment.mX, next.mX), Math.max(segment.mX, next.mX),
+                Math.min(segment.mY, next.mY), Math.max(segment.mY, next.mY));
+    }
+
+
+    /**
+     * Read the ring vertices as x, y pairs without the repeated and the closing points
+     *
+     * @return false if the geometry is not a polygon
+     */
+    protected static boolean readRings(
+            GeoGeometry geometry,
+            List<double[]> coordinates,
+            List<Integer> polygons)
+    {
+        List<GeoPolygon> parts = PolygonValidator.getPolygons(geometry);
+        if (null == parts) {
+            return false;
+        }
+
+        for (int i = 0; i < parts.size(); i++) {
+            GeoPolygon polygon = parts.get(i);
+            coordinates.add(readRing(polygon.getOuterRing()));
+            polygons.add(i);
+            for (int j = 0; j < polygon.getInnerRingCount(); j++) {
+                coordinates.add(readRing(polygon.getInnerRing(j)));
+                polygons.add(i);
+            }
+        }
+        return true;
+    }
+
+
+    protected static double[] readRing(GeoLinearRing ring)
+    {
+        List<GeoPoint> points = ring.getPoints();
+        double[] coordinates = new double[points.size() * 2];
+        int count = 0;
+        for (GeoPoint point : points) {
+            double x = point.getX(), y = point.getY();
+            if (count > 0 && x == coordinates[count * 2 - 2] && y == coordinates[count * 2 - 1]) {
+                continue;
+            }
+            coordinates[count * 2] = x;
+            coordinates[count * 2 + 1] = y;
+            count++;
+        }
+        if (count > 1 && coordinates[count * 2 - 2] == coordinates[0]
+                && coordinates[count * 2 - 1] == coordinates[1]) {
+            count--;
+        }
+
+        double[] result = new double[count * 2];
+        System.arraycopy(coordinates, 0, result, 0, count * 2);
+        return result;
+    }
+
+
+    protected static class Ring
+    {
+        protected final int          mPolygon;
+        protected final List<Vertex> mVertices;
+
+
+        public Ring(int polygon)
+        {
+            mPolygon = polygon;
+            mVertices = new ArrayList<>();
+        }
+    }
+
+
+    /**
+     * A ring vertex and the segment to the next vertex, the id is kept while the vertex exists
+     */
+    protected static class Vertex
+    {
+        protected final long mId;
+        protected final Ring mRing;
+
+        protected double mX;
+        protected double mY;
+        protected Vertex mPrev;
+        protected Vertex mNext;
+
+
+        public Vertex(
+                long id,
+                Ring ring,
+                double x,
+                double y)
+        {
+            mId = id;
+            mRing = ring;
+            mX = x;
+            mY = y;
+        }
+
+
+        public boolean isAt(
+                double[] coordinates,
+                int index)
+        {
+            return mX == coordinates[index * 2] && mY == coordinates[index * 2 + 1];
+        }
+    }
+}
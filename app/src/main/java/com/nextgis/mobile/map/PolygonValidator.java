@@ -0,0 +1,602 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Validity checks of polygons and multipolygons in O(n log n) time for the rings of evenly long
+ * segments, e.g. walked or digitized ones. The ring segments are bucketed into a uniform grid and
+ * only the segments sharing a cell are tested against each other, then one vertex of each hole is
+ * located in its outer ring and one vertex of each polygon in the other polygons.
+ * <p/>
+ * Any contact of two segments is a fault except the common vertex of the neighbour segments of a
+ * ring, so rings must not touch each other or themselves.
+ */
+public class PolygonValidator
+{
+    /**
+     * A ring crosses or touches itself, or polygons of a multipolygon overlap
+     */
+    public static final int SELF_INTERSECTION  = 1;
+    /**
+     * A hole is outside of its outer ring
+     */
+    public static final int RING_OUTSIDE       = 2;
+    /**
+     * A hole crosses or touches another ring of the polygon
+     */
+    public static final int RINGS_INTERSECTION = 3;
+
+    /**
+     * The grid side limit, the cell index times the vertex count fits into a long
+     */
+    protected static final int MAX_CELLS = 1 << 16;
+
+    protected final List<GeoPolygon> mPolygons;
+    // ring vertices without the closing point, ring by ring
+    protected double[] mX;
+    protected double[] mY;
+    protected int[]    mRingStart;
+    protected int[]    mRingPolygon;
+    protected int[]    mPolygonFirstRing;
+    protected int      mVertexCount;
+    protected int[]    mSegmentRing;
+
+    // the grid of the segments, a cell entry is the cell index times the vertex count plus the
+    // segment index
+    protected double mCellSize;
+    protected double mOriginX;
+    protected double mOriginY;
+    protected int    mColumns;
+    protected long[] mEntries;
+    protected int    mEntryCount;
+
+
+    protected PolygonValidator(List<GeoPolygon> polygons)
+    {
+        mPolygons = polygons;
+    }
+
+
+    /**
+     * @return the first fault found or null if the geometry is valid or is not a polygon
+     */
+    public static Fault validate(GeoGeometry geometry)
+    {
+        List<GeoPolygon> polygons = getPolygons(geometry);
+        if (null == polygons) {
+            return null;
+        }
+
+        return new PolygonValidator(polygons).validate();
+    }
+
+
+    /**
+     * @return the polygons of a polygon or multipolygon or null for the other geometries
+     */
+    protected static List<GeoPolygon> getPolygons(GeoGeometry geometry)
+    {
+        List<GeoPolygon> polygons = new ArrayList<>();
+        if (geometry instanceof GeoPolygon) {
+            polygons.add((GeoPolygon) geometry);
+        } else if (geometry instanceof GeoMultiPolygon) {
+            GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+            for (int i = 0; i < multiPolygon.size(); i++) {
+                polygons.add(multiPolygon.get(i));
+            }
+        } else {
+            return null;
+        }
+        return polygons;
+    }
+
+
+    protected Fault validate()
+    {
+        collectRings();
+
+        Fault fault = findIntersection();
+        if (null == fault) {
+            fault = findOutsideHole();
+        }
+        if (null == fault) {
+            fault = findNestedPolygon();
+        }
+        return fault;
+    }
+
+
+    protected void collectRings()
+    {
+        List<GeoLinearRing> rings = new ArrayList<>();
+        List<Integer> ringPolygons = new ArrayList<>();
+        mPolygonFirstRing = new int[mPolygons.size() + 1];
+        for (int i = 0; i < mPolygons.size(); i++) {
+            GeoPolygon polygon = mPolygons.get(i);
+            mPolygonFirstRing[i] = rings.size();
+            rings.add(polygon.getOuterRing());
+            ringPolygons.add(i);
+            for (int j = 0; j < polygon.getInnerRingCount(); j++) {
+                rings.add(polygon.getInnerRing(j));
+                ringPolygons.add(i);
+            }
+        }
+        mPolygonFirstRing[mPolygons.size()] = rings.size();
+
+        int capacity = 0;
+        for (GeoLinearRing ring : rings) {
+            capacity += ring.getPointCount();
+        }
+
+        mX = new double[capacity];
+        mY = new double[capacity];
+        mRingStart = new int[rings.size() + 1];
+        mRingPolygon = new int[rings.size()];
+        mVertexCount = 0;
+        for (int i = 0; i < rings.size(); i++) {
+            mRingStart[i] = mVertexCount;
+            mRingPolygon[i] = ringPolygons.get(i);
+
+            // the repeated points, e.g. of a walked ring, and the closing point are dropped
+            for (GeoPoint point : rings.get(i).getPoints()) {
+                double x = point.getX(), y = point.getY();
+                if (mVertexCount > mRingStart[i] && x == mX[mVertexCount - 1]
+                        && y == mY[mVertexCount - 1]) {
+                    continue;
+                }
+                mX[mVertexCount] = x;
+                mY[mVertexCount] = y;
+                mVertexCount++;
+            }
+            if (mVertexCount - mRingStart[i] > 1 && mX[mVertexCount - 1] == mX[mRingStart[i]]
+                    && mY[mVertexCount - 1] == mY[mRingStart[i]]) {
+                mVertexCount--;
+            }
+        }
+        mRingStart[rings.size()] = mVertexCount;
+    }
+
+
+    /**
+     * Test the segments sharing a grid cell. A segment is identified by its start vertex, it ends
+     * at the next vertex of its ring. The cell size is the mean segment length, so a segment
+     * covers a few cells along its path and a cell holds a few segments, the cell entries are
+     * grouped by sorting.
+     */
+    protected Fault findIntersection()
+    {
+        int segmentCount = mVertexCount;
+        if (segmentCount < 2) {
+            return null;
+        }
+
+        mSegmentRing = new int[segmentCount];
+        for (int ring = 0; ring < mRingStart.length - 1; ring++) {
+            for (int i = mRingStart[ring]; i < mRingStart[ring + 1]; i++) {
+                mSegmentRing[i] = ring;
+            }
+        }
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        double length = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            minX = Math.min(minX, mX[i]);
+            maxX = Math.max(maxX, mX[i]);
+            minY = Math.min(minY, mY[i]);
+            maxY = Math.max(maxY, mY[i]);
+            int next = getNext(i, mSegmentRing[i]);
+            length += Math.hypot(mX[next] - mX[i], mY[next] - mY[i]);
+        }
+
+        double extent = Math.max(maxX - minX, maxY - minY);
+        mCellSize = Math.max(length / segmentCount, extent / MAX_CELLS);
+        if (mCellSize <= 0) {
+            mCellSize = 1;
+        }
+        mOriginX = minX;
+        mOriginY = minY;
+        mColumns = getCell(maxX, minX) + 1;
+
+        mEntries = new long[segmentCount * 4];
+        mEntryCount = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            addSegment(i);
+        }
+        Arrays.sort(mEntries, 0, mEntryCount);
+
+        for (int first = 0; first < mEntryCount; ) {
+            long cell = mEntries[first] / segmentCount;
+            int last = first + 1;
+            while (last < mEntryCount && mEntries[last] / segmentCount == cell) {
+                last++;
+            }
+
+            for (int a = first; a < last; a++) {
+                for (int b = a + 1; b < last; b++) {
+                    Fault fault = testSegments((int) (mEntries[a] % segmentCount),
+                            (int) (mEntries[b] % segmentCount));
+                    if (null != fault) {
+                        return fault;
+                    }
+                }
+            }
+            first = last;
+        }
+        return null;
+    }
+
+
+    /**
+     * Add the cells the segment passes through column by column, slightly widened so the
+     * segments touching at a cell border share a cell
+     */
+    protected void addSegment(int segment)
+    {
+        int next = getNext(segment, mSegmentRing[segment]);
+        double x0 = mX[segment], y0 = mY[segment];
+        double x1 = mX[next], y1 = mY[next];
+        double margin = mCellSize * 1e-6;
+
+        int col0 = getCell(Math.min(x0, x1) - margin, mOriginX);
+        int col1 = getCell(Math.max(x0, x1) + margin, mOriginX);
+        for (int col = col0; col <= col1; col++) {
+            double ya, yb;
+            if (x0 == x1 || col0 == col1) {
+                ya = y0;
+                yb = y1;
+            } else {
+                double left = Math.max(Math.min(x0, x1), mOriginX + col * mCellSize);
+                double right = Math.min(Math.max(x0, x1), mOriginX + (col + 1) * mCellSize);
+                ya = y0 + (y1 - y0) * (left - x0) / (x1 - x0);
+                yb = y0 + (y1 - y0) * (right - x0) / (x1 - x0);
+            }
+
+            int row0 = getCell(Math.min(ya, yb) - margin, mOriginY);
+            int row1 = getCell(Math.max(ya, yb) + margin, mOriginY);
+            for (int row = row0; row <= row1; row++) {
+                if (mEntryCount == mEntries.length) {
+                    long[] entries = new long[mEntryCount * 2];
+                    System.arraycopy(mEntries, 0, entries, 0, mEntryCount);
+                    mEntries = entries;
+                }
+                long cell = (long) row * mColumns + col;
+                mEntries[mEntryCount++] = cell * mVertexCount + segment;
+            }
+        }
+    }
+
+
+    protected int getCell(
+            double value,
+            double origin)
+    {
+        return (int) Math.max(Math.min((value - origin) / mCellSize, MAX_CELLS), 0);
+    }
+
+
+    protected int getNext(
+            int vertex,
+            int ring)
+    {
+        return vertex + 1 < mRingStart[ring + 1] ? vertex + 1 : mRingStart[ring];
+    }
+
+
+    protected Fault testSegments(
+            int a,
+            int b)
+    {
+        int ringA = mSegmentRing[a];
+        int ringB = mSegmentRing[b];
+        int nextA = getNext(a, ringA);
+        int nextB = getNext(b, ringB);
+
+        GeoPoint contact;
+        if (ringA == ringB && (nextA == b || nextB == a)) {
+            // the neighbours share a vertex, they may only fold back onto each other
+            if (mRingStart[ringA + 1] - mRingStart[ringA] < 3) {
+                return null;
+            }
+            int shared = nextA == b ? b : a;
+            int start = nextA == b ? a : b;
+            int end = nextA == b ? nextB : nextA;
+            contact = getFold(start, shared, end);
+        } else {
+            contact = getContact(a, nextA, b, nextB);
+        }
+
+        if (null == contact) {
+            return null;
+        }
+
+        // the rings of one polygon, other contacts are of one ring or of the multipolygon parts
+        boolean rings = ringA != ringB && mRingPolygon[ringA] == mRingPolygon[ringB];
+        return new Fault(rings ? RINGS_INTERSECTION : SELF_INTERSECTION, contact);
+    }
+
+
+    protected GeoPoint getFold(
+            int start,
+            int shared,
+            int end)
+    {
+        return getFold(mX[start], mY[start], mX[shared], mY[shared], mX[end], mY[end]);
+    }
+
+
+    protected GeoPoint getContact(
+            int a0,
+            int a1,
+            int b0,
+            int b1)
+    {
+        return getContact(mX[a0], mY[a0], mX[a1], mY[a1], mX[b0], mY[b0], mX[b1], mY[b1]);
+    }
+
+
+    /**
+     * @return the shared vertex if the neighbour segments start-shared and shared-end overlap or
+     * null
+     */
+    protected static GeoPoint getFold(
+            double startX,
+            double startY,
+            double sharedX,
+            double sharedY,
+            double endX,
+            double endY)
+    {
+        double cross =
+                (sharedX - startX) * (endY - sharedY) - (sharedY - startY) * (endX - sharedX);
+        double dot =
+                (sharedX - startX) * (endX - sharedX) + (sharedY - startY) * (endY - sharedY);
+        if (cross != 0 || dot >= 0) {
+            return null;
+        }
+        return new GeoPoint(sharedX, sharedY);
+    }
+
+
+    /**
+     * @return a common point of the segments a0-a1 and b0-b1 or null if they do not touch
+     */
+    protected static GeoPoint getContact(
+            double ax0,
+            double ay0,
+            double ax1,
+            double ay1,
+            double bx0,
+            double by0,
+            double bx1,
+            double by1)
+    {
+        double d1 = orientation(bx0, by0, bx1, by1, ax0, ay0);
+        double d2 = orientation(bx0, by0, bx1, by1, ax1, ay1);
+        double d3 = orientation(ax0, ay0, ax1, ay1, bx0, by0);
+        double d4 = orientation(ax0, ay0, ax1, ay1, bx1, by1);
+
+        if ((d1 > 0 && d2 < 0 || d1 < 0 && d2 > 0) && (d3 > 0 && d4 < 0 || d3 < 0 && d4 > 0)) {
+            double t = d1 / (d1 - d2);
+            return new GeoPoint(ax0 + t * (ax1 - ax0), ay0 + t * (ay1 - ay0));
+        }
+
+        if (d1 == 0 && isOnSegment(bx0, by0, bx1, by1, ax0, ay0)) {
+            return new GeoPoint(ax0, ay0);
+        }
+        if (d2 == 0 && isOnSegment(bx0, by0, bx1, by1, ax1, ay1)) {
+            return new GeoPoint(ax1, ay1);
+        }
+        if (d3 == 0 && isOnSegment(ax0, ay0, ax1, ay1, bx0, by0)) {
+            return new GeoPoint(bx0, by0);
+        }
+        if (d4 == 0 && isOnSegment(ax0, ay0, ax1, ay1, bx1, by1)) {
+            return new GeoPoint(bx1, by1);
+        }
+        return null;
+    }
+
+
+    protected static double orientation(
+            double fromX,
+            double fromY,
+            double toX,
+            double toY,
+            double x,
+            double y)
+    {
+        return (toX - fromX) * (y - fromY) - (toY - fromY) * (x - fromX);
+    }
+
+
+    /**
+     * @return true if the point collinear with the segment is within its bounds
+     */
+    protected static boolean isOnSegment(
+            double fromX,
+            double fromY,
+            double toX,
+            double toY,
+            double x,
+            double y)
+    {
+        return Math.min(fromX, toX) <= x && x <= Math.max(fromX, toX) && Math.min(fromY, toY) <= y
+                && y <= Math.max(fromY, toY);
+    }
+
+
+    /**
+     * The rings do not cross, so a hole is inside if any its vertex is
+     */
+    protected Fault findOutsideHole()
+    {
+        for (int polygon = 0; polygon < mPolygons.size(); polygon++) {
+            int outer = mPolygonFirstRing[polygon];
+            for (int hole = outer + 1; hole < mPolygonFirstRing[polygon + 1]; hole++) {
+                int vertex = mRingStart[hole];
+                if (vertex < mRingStart[hole + 1] && !isInRing(mX[vertex], mY[vertex], outer)) {
+                    return new Fault(RING_OUTSIDE, new GeoPoint(mX[vertex], mY[vertex]));
+                }
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * A polygon inside another one and not in its hole overlaps it
+     */
+    protected Fault findNestedPolygon()
+    {
+        int count = mPolygons.size();
+        if (count < 2) {
+            return null;
+        }
+
+        double[][] bounds = new double[count][];
+        for (int polygon = 0; polygon < count; polygon++) {
+            bounds[polygon] = getRingBounds(mPolygonFirstRing[polygon]);
+        }
+
+        for (int inner = 0; inner < count; inner++) {
+            int vertex = mRingStart[mPolygonFirstRing[inner]];
+            if (vertex >= mRingStart[mPolygonFirstRing[inner] + 1]) {
+                continue;
+            }
+
+            double x = mX[vertex], y = mY[vertex];
+            for (int outer = 0; outer < count; outer++) {
+                double[] box = bounds[outer];
+                if (outer == inner || x < box[0] || x > box[1] || y < box[2] || y > box[3]) {
+                    continue;
+                }
+
+                if (isInPolygon(x, y, outer)) {
+                    return new Fault(SELF_INTERSECTION, new GeoPoint(x, y));
+                }
+            }
+        }
+        return null;
+    }
+
+
+    protected boolean isInPolygon(
+            double x,
+            double y,
+            int polygon)
+    {
+        int outer = mPolygonFirstRing[polygon];
+        if (!isInRing(x, y, outer)) {
+            return false;
+        }
+        for (int hole = outer + 1; hole < mPolygonFirstRing[polygon + 1]; hole++) {
+            if (isInRing(x, y, hole)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @return minX, maxX, minY, maxY of the ring
+     */
+    protected double[] getRingBounds(int ring)
+    {
+        double[] bounds = {Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int i = mRingStart[ring]; i < mRingStart[ring + 1]; i++) {
+            bounds[0] = Math.min(bounds[0], mX[i]);
+            bounds[1] = Math.max(bounds[1], mX[i]);
+            bounds[2] = Math.min(bounds[2], mY[i]);
+            bounds[3] = Math.max(bounds[3], mY[i]);
+        }
+        return bounds;
+    }
+
+
+    /**
+     * Even-odd ray casting
+     */
+    protected boolean isInRing(
+            double x,
+            double y,
+            int ring)
+    {
+        boolean inside = false;
+        int start = mRingStart[ring];
+        int end = mRingStart[ring + 1];
+        for (int i = start, j = end - 1; i < end; j = i++) {
+            if ((mY[i] > y) != (mY[j] > y)
+                    && x < (mX[j] - mX[i]) * (y - mY[i]) / (mY[j] - mY[i]) + mX[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+
+    public static class Fault
+    {
+        protected final int      mType;
+        protected final GeoPoint mLocation;
+
+
+        public Fault(
+                int type,
+                GeoPoint location)
+        {
+            mType = type;
+            mLocation = location;
+        }
+
+
+        /**
+         * @return one of {@link #SELF_INTERSECTION}, {@link #RING_OUTSIDE} or {@link
+         * #RINGS_INTERSECTION}
+         */
+        public int getType()
+        {
+            return mType;
+        }
+
+
+        /**
+         * @return the point of the fault in the geometry coordinates
+         */
+        public GeoPoint getLocation()
+        {
+            return mLocation;
+        }
+    }
+}
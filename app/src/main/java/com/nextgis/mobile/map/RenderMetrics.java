@@ -0,0 +1,303 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.mobile.util.ArrayUtil;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Render pipeline counters: draw time and drawn features of every layer, rendered versus cached
+ * layer rasters and the view frame times. Nothing is recorded until the metrics are enabled.
+ * <p/>
+ * The cached counts are hits of the renderer raster cache, the tile fetches of the tile layers are
+ * not seen outside of the layers and are not counted.
+ */
+public class RenderMetrics
+{
+    protected static final int FRAME_HISTORY = 240;
+
+    protected final Map<Integer, LayerMetrics> mLayers;
+    protected final long[]                     mFrameTimes;
+
+    protected volatile boolean mEnabled;
+    protected int mFrameCount;
+
+
+    public RenderMetrics()
+    {
+        mLayers = new LinkedHashMap<>();
+        mFrameTimes = new long[FRAME_HISTORY];
+    }
+
+
+    public boolean isEnabled()
+    {
+        return mEnabled;
+    }
+
+
+    public synchronized void setEnabled(boolean enabled)
+    {
+        if (mEnabled != enabled) {
+            mEnabled = enabled;
+            reset();
+        }
+    }
+
+
+    public synchronized void reset()
+    {
+        mLayers.clear();
+        mFrameCount = 0;
+    }
+
+
+    /**
+     * @param features
+     *         The number of drawn features or -1 if the layer renderer does not report it
+     */
+    public void onLayerDrawn(
+            ILayer layer,
+            long nanos,
+            int features)
+    {
+        if (!mEnabled) {
+            return;
+        }
+
+        synchronized (this) {
+            LayerMetrics metrics = getLayerMetrics(layer);
+            metrics.mRendered++;
+            metrics.mDrawNanos += nanos;
+            metrics.mMaxDrawNanos = Math.max(metrics.mMaxDrawNanos, nanos);
+            if (features >= 0) {
+                metrics.mFeatures += features;
+            }
+        }
+    }
+
+
+    public void onLayerCached(ILayer layer)
+    {
+        if (!mEnabled) {
+            return;
+        }
+
+        synchronized (this) {
+            getLayerMetrics(layer).mCached++;
+        }
+    }
+
+
+    public void onFrame(long nanos)
+    {
+        if (!mEnabled) {
+            return;
+        }
+
+        synchronized (this) {
+            mFrameTimes[mFrameCount % FRAME_HISTORY] = nanos;
+            mFrameCount++;
+        }
+    }
+
+
+    /**
+     * @return the frame time percentile of the recent frames in milliseconds or 0 if there are
+     * no frames
+     */
+    public synchronized float getFramePercentile(int percentile)
+    {
+        int count = Math.min(mFrameCount, FRAME_HISTORY);
+        if (count == 0) {
+            return 0;
+        }
+
+        long[] times = ArrayUtil.copyOf(mFrameTimes, count);
+        Arrays.sort(times);
+        int index = Math.min(count - 1, (int) Math.ceil(percentile / 100.0 * count) - 1);
+        return times[Math.max(index, 0)] / 1000000f;
+    }
+
+
+    public synchronized int getFrameCount()
+    {
+        return Math.min(mFrameCount, FRAME_HISTORY);
+    }
+
+
+    /**
+     * @return the copies of the layer metrics in the order the layers were drawn first
+     */
+    public synchronized List<LayerMetrics> getLayerMetrics()
+    {
+        List<LayerMetrics> result = new ArrayList<>(mLayers.size());
+        for (LayerMetrics metrics : mLayers.values()) {
+            result.add(new LayerMetrics(metrics));
+        }
+        return result;
+    }
+
+
+    /**
+     * Write the layer metrics and the frame time percentiles to the CSV file
+     */
+    public void exportCsv(File file)
+            throws IOException
+    {
+        List<LayerMetrics> layers = getLayerMetrics();
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("layer_id,layer_name,rasters_rendered,rasters_cached,features_drawn,"
+                    + "draw_ms_total,draw_ms_avg,draw_ms_max");
+            for (LayerMetrics metrics : layers) {
+                writer.println(String.format(Locale.US, "%d,\"%s\",%d,%d,%d,%.2f,%.2f,%.2f",
+                        metrics.getLayerId(), metrics.getLayerName().replace("\"", "\"\""),
+                        metrics.getRendered(), metrics.getCached(), metrics.getFeatures(),
+                        metrics.getDrawMillis(), metrics.getAverageDrawMillis(),
+                        metrics.getMaxDrawMillis()));
+            }
+
+            writer.println();
+            writer.println("frames,frame_ms_p50,frame_ms_p90,frame_ms_p99,frame_ms_max");
+            writer.println(String.format(Locale.US, "%d,%.2f,%.2f,%.2f,%.2f", getFrameCount(),
+                    getFramePercentile(50), getFramePercentile(90), getFramePercentile(99),
+                    getFramePercentile(100)));
+        } finally {
+            writer.close();
+        }
+
+        if (writer.checkError()) {
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+
+    protected LayerMetrics getLayerMetrics(ILayer layer)
+    {
+        LayerMetrics metrics = mLayers.get(layer.getId());
+        if (null == metrics) {
+            metrics = new LayerMetrics(layer.getId(), layer.getName());
+            mLayers.put(layer.getId(), metrics);
+        }
+        return metrics;
+    }
+
+
+    public static class LayerMetrics
+    {
+        protected final int    mLayerId;
+        protected final String mLayerName;
+
+        protected int  mRendered, mCached;
+        protected long mFeatures;
+        protected long mDrawNanos, mMaxDrawNanos;
+
+
+        public LayerMetrics(
+                int layerId,
+                String layerName)
+        {
+            mLayerId = layerId;
+            mLayerName = null == layerName ? "" : layerName;
+        }
+
+
+        public LayerMetrics(LayerMetrics metrics)
+        {
+            this(metrics.mLayerId, metrics.mLayerName);
+            mRendered = metrics.mRendered;
+            mCached = metrics.mCached;
+            mFeatures = metrics.mFeatures;
+            mDrawNanos = metrics.mDrawNanos;
+            mMaxDrawNanos = metrics.mMaxDrawNanos;
+        }
+
+
+        public int getLayerId()
+        {
+            return mLayerId;
+        }
+
+
+        public String getLayerName()
+        {
+            return mLayerName;
+        }
+
+
+        /**
+         * @return the number of layer rasters drawn. The tiles of a tile layer are read by the
+         * layer from its own disk cache or the server, the renderer does not tell them apart
+         */
+        public int getRendered()
+        {
+            return mRendered;
+        }
+
+
+        /**
+         * @return the number of layer rasters taken from the raster cache
+         */
+        public int getCached()
+        {
+            return mCached;
+        }
+
+
+        public long getFeatures()
+        {
+            return mFeatures;
+        }
+
+
+        public float getDrawMillis()
+        {
+            return mDrawNanos / 1000000f;
+        }
+
+
+        public float getAverageDrawMillis()
+        {
+            return mRendered == 0 ? 0 : mDrawNanos / 1000000f / mRendered;
+        }
+
+
+        public float getMaxDrawMillis()
+        {
+            return mMaxDrawNanos / 1000000f;
+        }
+    }
+}
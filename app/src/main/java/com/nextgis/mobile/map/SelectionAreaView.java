@@ -0,0 +1,198 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Transparent view over the map to draw a selection box or a freehand lasso. It takes all touches
+ * while it is shown, so the map does not pan.
+ */
+public class SelectionAreaView
+        extends View
+{
+    protected static final float MIN_STEP_DP   = 4;
+    protected static final float MIN_SIZE_DP   = 8;
+    protected static final float LINE_WIDTH_DP = 2;
+
+    protected final Paint mPaint;
+    protected final Path  mPath;
+    protected final float mMinStep;
+    protected final float mMinSize;
+
+    protected boolean             mIsBox;
+    protected float[]             mPoints;
+    protected int                 mPointCount;
+    protected OnAreaDrawnListener mListener;
+
+
+    public interface OnAreaDrawnListener
+    {
+        /**
+         * @param points
+         *         The area vertices in screen pixels as x, y pairs, a box is given by two opposite
+         *         corners
+         */
+        void onAreaDrawn(
+                float[] points,
+                boolean isBox);
+    }
+
+
+    public SelectionAreaView(Context context)
+    {
+        super(context);
+        float density = context.getResources().getDisplayMetrics().density;
+        mMinStep = MIN_STEP_DP * density;
+        mMinSize = MIN_SIZE_DP * density;
+
+        mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeWidth(LINE_WIDTH_DP * density);
+        mPaint.setColor(Color.rgb(0x1e, 0x88, 0xe5));
+
+        mPath = new Path();
+        mPoints = new float[256];
+        mIsBox = true;
+    }
+
+
+    public void setBox(boolean isBox)
+    {
+        mIsBox = isBox;
+    }
+
+
+    public boolean isBox()
+    {
+        return mIsBox;
+    }
+
+
+    public void setOnAreaDrawnListener(OnAreaDrawnListener listener)
+    {
+        mListener = listener;
+    }
+
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event)
+    {
+        float x = event.getX();
+        float y = event.getY();
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mPointCount = 0;
+                addPoint(x, y);
+                addPoint(x, y);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (mIsBox) {
+                    mPoints[2] = x;
+                    mPoints[3] = y;
+                } else {
+                    float dx = x - mPoints[mPointCount * 2 - 2];
+                    float dy = y - mPoints[mPointCount * 2 - 1];
+                    if (dx * dx + dy * dy >= mMinStep * mMinStep) {
+                        addPoint(x, y);
+                    }
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+                finish();
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                mPointCount = 0;
+                break;
+        }
+
+        invalidate();
+        return true;
+    }
+
+
+    protected void addPoint(
+            float x,
+            float y)
+    {
+        if (mPointCount * 2 + 2 > mPoints.length) {
+            float[] points = new float[mPoints.length * 2];
+            System.arraycopy(mPoints, 0, points, 0, mPointCount * 2);
+            mPoints = points;
+        }
+
+        mPoints[mPointCount * 2] = x;
+        mPoints[mPointCount * 2 + 1] = y;
+        mPointCount++;
+    }
+
+
+    protected void finish()
+    {
+        boolean isValid;
+        if (mIsBox) {
+            isValid = Math.abs(mPoints[2] - mPoints[0]) >= mMinSize
+                      && Math.abs(mPoints[3] - mPoints[1]) >= mMinSize;
+        } else {
+            // the first point is doubled on touch down
+            isValid = mPointCount > 3;
+        }
+
+        if (isValid && null != mListener) {
+            float[] points = new float[mPointCount * 2];
+            System.arraycopy(mPoints, 0, points, 0, points.length);
+            mListener.onAreaDrawn(points, mIsBox);
+        }
+        mPointCount = 0;
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        if (mPointCount < 2) {
+            return;
+        }
+
+        if (mIsBox) {
+            canvas.drawRect(Math.min(mPoints[0], mPoints[2]), Math.min(mPoints[1], mPoints[3]),
+                    Math.max(mPoints[0], mPoints[2]), Math.max(mPoints[1], mPoints[3]), mPaint);
+            return;
+        }
+
+        mPath.rewind();
+        mPath.moveTo(mPoints[0], mPoints[1]);
+        for (int i = 1; i < mPointCount; i++) {
+            mPath.lineTo(mPoints[i * 2], mPoints[i * 2 + 1]);
+        }
+        canvas.drawPath(mPath, mPaint);
+    }
+}
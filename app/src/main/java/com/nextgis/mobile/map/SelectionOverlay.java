@@ -0,0 +1,235 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplibui.api.Overlay;
+import com.nextgis.maplibui.mapui.MapViewOverlays;
+
+import static com.nextgis.maplib.util.GeoConstants.MERCATOR_MAX;
+
+/**
+ * Draws the area of a multiple selection and a marker at each selected feature, and a ring at the
+ * fault of an edited geometry
+ */
+public class SelectionOverlay
+        extends Overlay
+{
+    protected static final float MARKER_SIZE_DP = 8;
+    protected static final float LINE_WIDTH_DP  = 2;
+
+    protected final TiledBackBuffer mBuffer;
+    protected final Paint           mAreaPaint;
+    protected final Paint           mAreaFillPaint;
+    protected final Paint           mMarkerPaint;
+    protected final Paint           mFaultPaint;
+    protected final Path            mPath;
+
+    protected AreaSelector.Selection mSelection;
+    protected float[]                mPoints;
+    protected GeoPoint               mFault;
+
+
+    public SelectionOverlay(
+            Context context,
+            MapViewOverlays mapViewOverlays,
+            TiledBackBuffer buffer)
+    {
+        super(context, mapViewOverlays);
+        mBuffer = buffer;
+        float density = context.getResources().getDisplayMetrics().density;
+
+        mAreaPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mAreaPaint.setStyle(Paint.Style.STROKE);
+        mAreaPaint.setStrokeWidth(LINE_WIDTH_DP * density);
+        mAreaPaint.setColor(Color.rgb(0x1e, 0x88, 0xe5));
+
+        mAreaFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mAreaFillPaint.setStyle(Paint.Style.FILL);
+        mAreaFillPaint.setColor(Color.argb(0x30, 0x1e, 0x88, 0xe5));
+
+        mMarkerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mMarkerPaint.setStrokeCap(Paint.Cap.ROUND);
+        mMarkerPaint.setStrokeWidth(MARKER_SIZE_DP * density);
+        mMarkerPaint.setColor(Color.rgb(0xff, 0x98, 0x00));
+
+        mFaultPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mFaultPaint.setStyle(Paint.Style.STROKE);
+        mFaultPaint.setStrokeWidth(LINE_WIDTH_DP * density);
+        mFaultPaint.setColor(Color.rgb(0xe5, 0x39, 0x35));
+
+        mPath = new Path();
+        mPoints = new float[0];
+    }
+
+
+    public void setSelection(AreaSelector.Selection selection)
+    {
+        mSelection = selection;
+    }
+
+
+    public AreaSelector.Selection getSelection()
+    {
+        return mSelection;
+    }
+
+
+    public void setFault(GeoPoint fault)
+    {
+        mFault = fault;
+    }
+
+
+    /**
+     * Add the screen bounds of the selection area, the markers and the fault mark
+     */
+    public void addBounds(Rect bounds)
+    {
+        double resolution = TiledBackBuffer.getResolution(mBuffer.getZoom());
+        double originX = mBuffer.getOriginX();
+        double originY = mBuffer.getOriginY();
+        // the marker radius and the line width
+        int padding = (int) Math.ceil(mMarkerPaint.getStrokeWidth() * 1.5f
+                + mFaultPaint.getStrokeWidth());
+
+        AreaSelector.Selection selection = mSelection;
+        if (null != selection) {
+            // the markers are inside the area envelope
+            AreaSelector.Area area = selection.getArea();
+            for (int i = 0; i < area.getVertexCount(); i++) {
+                int x = (int) ((area.getX(i) + MERCATOR_MAX) / resolution - originX);
+                int y = (int) ((MERCATOR_MAX - area.getY(i)) / resolution - originY);
+                bounds.union(x - padding, y - padding, x + padding, y + padding);
+            }
+        }
+
+        GeoPoint fault = mFault;
+        if (null != fault) {
+            int x = (int) ((fault.getX() + MERCATOR_MAX) / resolution - originX);
+            int y = (int) ((MERCATOR_MAX - fault.getY()) / resolution - originY);
+            bounds.union(x - padding, y - padding, x + padding, y + padding);
+        }
+    }
+
+
+    @Override
+    public void draw(
+            Canvas canvas,
+            MapDrawable mapDrawable)
+    {
+        drawSelection(canvas, 0, 0);
+        drawFault(canvas, 0, 0);
+    }
+
+
+    @Override
+    public void drawOnPanning(
+            Canvas canvas,
+            PointF currentMouseOffset)
+    {
+        drawSelection(canvas, currentMouseOffset.x, currentMouseOffset.y);
+        drawFault(canvas, currentMouseOffset.x, currentMouseOffset.y);
+    }
+
+
+    @Override
+    public void drawOnZooming(
+            Canvas canvas,
+            PointF currentFocusLocation,
+            float scale)
+    {
+
+    }
+
+
+    protected void drawSelection(
+            Canvas canvas,
+            float offsetX,
+            float offsetY)
+    {
+        AreaSelector.Selection selection = mSelection;
+        if (null == selection) {
+            return;
+        }
+
+        double resolution = TiledBackBuffer.getResolution(mBuffer.getZoom());
+        double originX = mBuffer.getOriginX() + offsetX;
+        double originY = mBuffer.getOriginY() + offsetY;
+
+        AreaSelector.Area area = selection.getArea();
+        mPath.rewind();
+        for (int i = 0; i < area.getVertexCount(); i++) {
+            float x = (float) ((area.getX(i) + MERCATOR_MAX) / resolution - originX);
+            float y = (float) ((MERCATOR_MAX - area.getY(i)) / resolution - originY);
+            if (i == 0) {
+                mPath.moveTo(x, y);
+            } else {
+                mPath.lineTo(x, y);
+            }
+        }
+        mPath.close();
+        canvas.drawPath(mPath, mAreaFillPaint);
+        canvas.drawPath(mPath, mAreaPaint);
+
+        int count = selection.getCenterCount();
+        if (mPoints.length < count * 2) {
+            mPoints = new float[count * 2];
+        }
+        for (int i = 0; i < count; i++) {
+            mPoints[i * 2] = (float) ((selection.getCenterX(i) + MERCATOR_MAX) / resolution - originX);
+            mPoints[i * 2 + 1] =
+                    (float) ((MERCATOR_MAX - selection.getCenterY(i)) / resolution - originY);
+        }
+        canvas.drawPoints(mPoints, 0, count * 2, mMarkerPaint);
+    }
+
+
+    protected void drawFault(
+            Canvas canvas,
+            float offsetX,
+            float offsetY)
+    {
+        GeoPoint fault = mFault;
+        if (null == fault) {
+            return;
+        }
+
+        double resolution = TiledBackBuffer.getResolution(mBuffer.getZoom());
+        double originX = mBuffer.getOriginX() + offsetX;
+        double originY = mBuffer.getOriginY() + offsetY;
+        float x = (float) ((fault.getX() + MERCATOR_MAX) / resolution - originX);
+        float y = (float) ((MERCATOR_MAX - fault.getY()) / resolution - originY);
+        canvas.drawCircle(x, y, mMarkerPaint.getStrokeWidth() * 1.5f, mFaultPaint);
+    }
+}
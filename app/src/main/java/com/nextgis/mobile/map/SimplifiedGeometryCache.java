@@ -0,0 +1,174 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.support.v4.util.LruCache;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Simplified feature geometries of vector layers for every integer zoom level. The geometries are
+ * built lazily on the first draw of the feature at the zoom and are kept beside the layer rasters
+ * until the layer changes. The dropped vertices are at most {@link #TOLERANCE_PX} pixels of the
+ * integer zoom (one pixel of a fractional zoom) away from the simplified shape.
+ */
+public class SimplifiedGeometryCache
+{
+    public static final float TOLERANCE_PX = 0.5f;
+
+    /**
+     * Geometries which keep most of the vertices are not copied
+     */
+    protected static final float MIN_REDUCTION = 0.75f;
+
+    protected final LruCache<String, GeoGeometry> mCache;
+    protected final Map<Integer, Set<String>>     mLayerKeys;
+
+
+    /**
+     * @param maxVertices
+     *         The cache size limit in vertices
+     */
+    public SimplifiedGeometryCache(int maxVertices)
+    {
+        mLayerKeys = new HashMap<>();
+        mCache = new LruCache<String, GeoGeometry>(maxVertices)
+        {
+            @Override
+            protected int sizeOf(
+                    String key,
+                    GeoGeometry value)
+            {
+                return GeometrySimplifier.getVertexCount(value);
+            }
+
+
+            @Override
+            protected void entryRemoved(
+                    boolean evicted,
+                    String key,
+                    GeoGeometry oldValue,
+                    GeoGeometry newValue)
+            {
+                if (evicted) {
+                    synchronized (mLayerKeys) {
+                        Set<String> keys = mLayerKeys.get(getLayerId(key));
+                        if (null != keys) {
+                            keys.remove(key);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+
+    /**
+     * @return the feature geometry simplified for the zoom level or null if the feature has no
+     * geometry
+     */
+    public GeoGeometry get(
+            VectorLayer layer,
+            long featureId,
+            float zoom)
+    {
+        int level = (int) Math.floor(zoom);
+        String key = getKey(layer.getId(), level, featureId);
+        GeoGeometry geometry = mCache.get(key);
+        if (null != geometry) {
+            return geometry;
+        }
+
+        geometry = layer.getGeometryForId(featureId);
+        if (null == geometry) {
+            return null;
+        }
+
+        double tolerance = TOLERANCE_PX * TiledBackBuffer.getResolution(level);
+        GeoGeometry simplified = GeometrySimplifier.simplify(geometry, tolerance);
+        if (GeometrySimplifier.getVertexCount(simplified)
+                < GeometrySimplifier.getVertexCount(geometry) * MIN_REDUCTION) {
+            geometry = simplified;
+        }
+
+        synchronized (mLayerKeys) {
+            Set<String> keys = mLayerKeys.get(layer.getId());
+            if (null == keys) {
+                keys = new HashSet<>();
+                mLayerKeys.put(layer.getId(), keys);
+            }
+            keys.add(key);
+        }
+        mCache.put(key, geometry);
+        return geometry;
+    }
+
+
+    /**
+     * Drop the simplified geometries of the layer, e.g. its features are changed
+     */
+    public void invalidateLayer(int layerId)
+    {
+        Set<String> keys;
+        synchronized (mLayerKeys) {
+            keys = mLayerKeys.remove(layerId);
+        }
+
+        if (null != keys) {
+            for (String key : keys) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+
+    public void clear()
+    {
+        synchronized (mLayerKeys) {
+            mLayerKeys.clear();
+        }
+        mCache.evictAll();
+    }
+
+
+    protected static String getKey(
+            int layerId,
+            int level,
+            long featureId)
+    {
+        return layerId + "/" + level + "/" + featureId;
+    }
+
+
+    protected static int getLayerId(String key)
+    {
+        return Integer.parseInt(key.substring(0, key.indexOf('/')));
+    }
+}
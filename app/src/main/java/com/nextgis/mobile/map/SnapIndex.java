@@ -0,0 +1,724 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.mobile.util.ArrayUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.nextgis.maplib.util.GeoConstants.MERCATOR_MAX;
+
+/**
+ * Vertices and segments of the visible vector layers near the viewport to snap the edited
+ * geometry to.
+ * <p/>
+ * The index is split into tiles of the map tile grid at the integer zoom level. A viewport change
+ * loads only the missing tiles in the background and drops the tiles far from the viewport, so
+ * the index is never rebuilt on a touch. Each tile keeps a k-d tree of its vertices and a grid of
+ * its segments. Queries use the loaded tiles and do not wait for the others.
+ */
+public class SnapIndex
+{
+    protected static final int TILE_MARGIN = 1;
+    protected static final int GRID_SIZE   = 8;
+
+    protected final SpatialIndexRegistry mIndexes;
+    protected final ExecutorService      mExecutor;
+    protected final Map<Long, SnapTile>  mTiles;
+    protected final Set<Long>            mLoading;
+
+    protected List<VectorLayer> mLayers;
+    protected int               mLevel;
+    protected int               mGeneration;
+    protected int               mMinColumn, mMaxColumn, mMinRow, mMaxRow;
+
+
+    public SnapIndex(SpatialIndexRegistry indexes)
+    {
+        mIndexes = indexes;
+        mExecutor = Executors.newSingleThreadExecutor();
+        mTiles = new HashMap<>();
+        mLoading = new HashSet<>();
+        mLayers = new ArrayList<>();
+        mLevel = -1;
+    }
+
+
+    /**
+     * Load the tiles of the viewport which are not loaded yet and drop the tiles outside of it
+     *
+     * @param layers
+     *         The layers to snap to
+     */
+    public synchronized void setViewport(
+            List<VectorLayer> layers,
+            GeoEnvelope viewport,
+            float zoom)
+    {
+        int level = (int) Math.floor(zoom);
+        if (level != mLevel || !layers.equals(mLayers)) {
+            clear();
+            mLevel = level;
+            mLayers = new ArrayList<>(layers);
+        }
+
+        double size = getTileSize(level);
+        mMinColumn = (int) Math.floor((viewport.getMinX() + MERCATOR_MAX) / size) - TILE_MARGIN;
+        mMaxColumn = (int) Math.floor((viewport.getMaxX() + MERCATOR_MAX) / size) + TILE_MARGIN;
+        mMinRow = (int) Math.floor((MERCATOR_MAX - viewport.getMaxY()) / size) - TILE_MARGIN;
+        mMaxRow = (int) Math.floor((MERCATOR_MAX - viewport.getMinY()) / size) + TILE_MARGIN;
+
+        Iterator<Long> iterator = mTiles.keySet().iterator();
+        while (iterator.hasNext()) {
+            long key = iterator.next();
+            if (!isInRange((int) (key >> 32), (int) key)) {
+                iterator.remove();
+            }
+        }
+
+        List<MapTile> missing = new ArrayList<>();
+        for (int column = mMinColumn; column <= mMaxColumn; column++) {
+            for (int row = mMinRow; row <= mMaxRow; row++) {
+                long key = MapTile.getKey(column, row);
+                if (!mTiles.containsKey(key) && !mLoading.contains(key)) {
+                    missing.add(new MapTile(level, column, row));
+                }
+            }
+        }
+
+        // the viewport center first
+        final double centerColumn = (mMinColumn + mMaxColumn) / 2.0;
+        final double centerRow = (mMinRow + mMaxRow) / 2.0;
+        Collections.sort(missing, new Comparator<MapTile>()
+        {
+            @Override
+            public int compare(
+                    MapTile lhs,
+                    MapTile rhs)
+            {
+                return Double.compare(getDistance(lhs), getDistance(rhs));
+            }
+
+
+            protected double getDistance(MapTile tile)
+            {
+                double dx = tile.getColumn() - centerColumn, dy = tile.getRow() - centerRow;
+                return dx * dx + dy * dy;
+            }
+        });
+
+        for (MapTile tile : missing) {
+            mLoading.add(tile.getKey());
+            mExecutor.submit(new LoadTask(tile, mLayers, mGeneration));
+        }
+    }
+
+
+    /**
+     * Drop all tiles, e.g. the features are changed. The tiles are loaded again on the next
+     * viewport change.
+     */
+    public synchronized void clear()
+    {
+        mTiles.clear();
+        mLoading.clear();
+        mGeneration++;
+    }
+
+
+    public void shutdown()
+    {
+        clear();
+        mExecutor.shutdownNow();
+    }
+
+
+    /**
+     * @param tolerance
+     *         The maximum snap distance in map units
+     * @param excludeLayerId
+     *         The layer of the excluded feature
+     * @param excludeFeatureId
+     *         The feature not to snap to, e.g. the edited one
+     *
+     * @return the nearest vertex or, if there is no vertex within the tolerance, the nearest point
+     * of a segment, null if there is nothing to snap to
+     */
+    public GeoPoint snap(
+            double x,
+            double y,
+            double tolerance,
+            int excludeLayerId,
+            long excludeFeatureId)
+    {
+        List<SnapTile> tiles = new ArrayList<>();
+        synchronized (this) {
+            if (mLevel < 0) {
+                return null;
+            }
+
+            double size = getTileSize(mLevel);
+            int minColumn = (int) Math.floor((x - tolerance + MERCATOR_MAX) / size);
+            int maxColumn = (int) Math.floor((x + tolerance + MERCATOR_MAX) / size);
+            int minRow = (int) Math.floor((MERCATOR_MAX - y - tolerance) / size);
+            int maxRow = (int) Math.floor((MERCATOR_MAX - y + tolerance) / size);
+            for (int column = minColumn; column <= maxColumn; column++) {
+                for (int row = minRow; row <= maxRow; row++) {
+                    SnapTile tile = mTiles.get(MapTile.getKey(column, row));
+                    if (null != tile) {
+                        tiles.add(tile);
+                    }
+                }
+            }
+        }
+
+        // the squared distance and the coordinates of the nearest point
+        double[] nearest = new double[] {tolerance * tolerance, 0, 0};
+        boolean found = false;
+        for (SnapTile tile : tiles) {
+            found |= tile.findVertex(x, y, tile.getOwner(excludeLayerId, excludeFeatureId),
+                    nearest);
+        }
+
+        if (!found) {
+            for (SnapTile tile : tiles) {
+                found |= tile.findSegmentPoint(x, y, tolerance,
+                        tile.getOwner(excludeLayerId, excludeFeatureId), nearest);
+            }
+        }
+
+        return found ? new GeoPoint(nearest[1], nearest[2]) : null;
+    }
+
+
+    protected boolean isInRange(
+            int column,
+            int row)
+    {
+        return column >= mMinColumn && column <= mMaxColumn && row >= mMinRow && row <= mMaxRow;
+    }
+
+
+    protected static double getTileSize(int level)
+    {
+        return TiledBackBuffer.TILE_SIZE * TiledBackBuffer.getResolution(level);
+    }
+
+
+    protected class LoadTask
+            implements Runnable
+    {
+        protected final MapTile           mTile;
+        protected final List<VectorLayer> mLayers;
+        protected final int               mGeneration;
+
+
+        public LoadTask(
+                MapTile tile,
+                List<VectorLayer> layers,
+                int generation)
+        {
+            mTile = tile;
+            mLayers = layers;
+            mGeneration = generation;
+        }
+
+
+        @Override
+        public void run()
+        {
+            synchronized (SnapIndex.this) {
+                if (mGeneration != SnapIndex.this.mGeneration || !isInRange(mTile.getColumn(),
+                        mTile.getRow())) {
+                    mLoading.remove(mTile.getKey());
+                    return;
+                }
+            }
+
+            SnapTile tile = load();
+
+            synchronized (SnapIndex.this) {
+                if (mGeneration != SnapIndex.this.mGeneration) {
+                    return;
+                }
+
+                mLoading.remove(mTile.getKey());
+                if (isInRange(mTile.getColumn(), mTile.getRow())) {
+                    mTiles.put(mTile.getKey(), tile);
+                }
+            }
+        }
+
+
+        protected SnapTile load()
+        {
+            GeoEnvelope envelope = TiledBackBuffer.getTileEnvelope(mTile);
+            SnapTile tile = new SnapTile(envelope);
+            FeatureIdList ids = new FeatureIdList();
+
+            for (VectorLayer layer : mLayers) {
+                ids.clear();
+                if (!mIndexes.query(layer, envelope, ids)) {
+                    // the stored index is being built, the layer cache is used meanwhile
+                    List<Long> cachedIds = layer.query(envelope);
+                    if (null != cachedIds) {
+                        ids.addAll(cachedIds);
+                    }
+                }
+
+                for (int i = 0; i < ids.size(); i++) {
+                    GeoGeometry geometry = layer.getGeometryForId(ids.get(i));
+                    if (null != geometry) {
+                        tile.addGeometry(geometry, tile.addOwner(layer.getId(), ids.get(i)));
+                    }
+                }
+            }
+
+            tile.build();
+            return tile;
+        }
+    }
+
+
+    /**
+     * The vertices inside the tile envelope and the segments crossing it
+     */
+    protected static class SnapTile
+    {
+        protected final GeoEnvelope mEnvelope;
+
+        protected int[]    mOwnerLayers;
+        protected long[]   mOwnerFeatures;
+        protected int      mOwnerCount;
+        protected double[] mVertices;
+        protected int[]    mVertexOwners;
+        protected int      mVertexCount;
+        protected double[] mSegments;
+        protected int[]    mSegmentOwners;
+        protected int      mSegmentCount;
+        protected int[]    mCellStarts;
+        protected int[]    mCellSegments;
+
+
+        public SnapTile(GeoEnvelope envelope)
+        {
+            mEnvelope = envelope;
+            mOwnerLayers = new int[16];
+            mOwnerFeatures = new long[16];
+            mVertices = new double[64];
+            mVertexOwners = new int[32];
+            mSegments = new double[128];
+            mSegmentOwners = new int[32];
+        }
+
+
+        public int addOwner(
+                int layerId,
+                long featureId)
+        {
+            if (mOwnerCount == mOwnerLayers.length) {
+                mOwnerLayers = ArrayUtil.copyOf(mOwnerLayers, mOwnerCount * 2);
+                mOwnerFeatures = ArrayUtil.copyOf(mOwnerFeatures, mOwnerCount * 2);
+            }
+            mOwnerLayers[mOwnerCount] = layerId;
+            mOwnerFeatures[mOwnerCount] = featureId;
+            return mOwnerCount++;
+        }
+
+
+        /**
+         * @return the owner index of the feature or -1 if the tile has no such feature
+         */
+        public int getOwner(
+                int layerId,
+                long featureId)
+        {
+            for (int i = 0; i < mOwnerCount; i++) {
+                if (mOwnerFeatures[i] == featureId && mOwnerLayers[i] == layerId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+
+        public void addGeometry(
+                GeoGeometry geometry,
+                int owner)
+        {
+            if (geometry instanceof GeoPoint) {
+                GeoPoint point = (GeoPoint) geometry;
+                addVertex(point.getX(), point.getY(), owner);
+            } else if (geometry instanceof GeoLineString) {
+                addLine(((GeoLineString) geometry).getPoints(), owner);
+            } else if (geometry instanceof GeoPolygon) {
+                GeoPolygon polygon = (GeoPolygon) geometry;
+                addLine(polygon.getOuterRing().getPoints(), owner);
+                for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+                    addLine(polygon.getInnerRing(i).getPoints(), owner);
+                }
+            } else if (geometry instanceof GeoMultiPoint) {
+                GeoMultiPoint multiPoint = (GeoMultiPoint) geometry;
+                for (int i = 0; i < multiPoint.size(); i++) {
+                    addGeometry(multiPoint.get(i), owner);
+                }
+            } else if (geometry instanceof GeoMultiLineString) {
+                GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+                for (int i = 0; i < multiLine.size(); i++) {
+                    addGeometry(multiLine.get(i), owner);
+                }
+            } else if (geometry instanceof GeoMultiPolygon) {
+                GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+                for (int i = 0; i < multiPolygon.size(); i++) {
+                    addGeometry(multiPolygon.get(i), owner);
+                }
+            }
+        }
+
+
+        protected void addLine(
+                List<GeoPoint> points,
+                int owner)
+        {
+            for (int i = 0; i < points.size(); i++) {
+                GeoPoint point = points.get(i);
+                addVertex(point.getX(), point.getY(), owner);
+                if (i > 0) {
+                    GeoPoint previous = points.get(i - 1);
+                    addSegment(previous.getX(), previous.getY(), point.getX(), point.getY(),
+                            owner);
+                }
+            }
+        }
+
+
+        protected void addVertex(
+                double x,
+                double y,
+                int owner)
+        {
+            // a vertex belongs to one tile only
+            if (x < mEnvelope.getMinX() || x >= mEnvelope.getMaxX() || y <= mEnvelope.getMinY()
+                    || y > mEnvelope.getMaxY()) {
+                return;
+            }
+
+            if (mVertexCount == mVertexOwners.length) {
+                mVertices = ArrayUtil.copyOf(mVertices, mVertexCount * 4);
+                mVertexOwners = ArrayUtil.copyOf(mVertexOwners, mVertexCount * 2);
+            }
+            mVertices[mVertexCount * 2] = x;
+            mVertices[mVertexCount * 2 + 1] = y;
+            mVertexOwners[mVertexCount++] = owner;
+        }
+
+
+        protected void addSegment(
+                double ax,
+                double ay,
+                double bx,
+                double by,
+                int owner)
+        {
+            if (Math.max(ax, bx) < mEnvelope.getMinX() || Math.min(ax, bx) > mEnvelope.getMaxX()
+                    || Math.max(ay, by) < mEnvelope.getMinY()
+                    || Math.min(ay, by) > mEnvelope.getMaxY()) {
+                return;
+            }
+
+            if (mSegmentCount == mSegmentOwners.length) {
+                mSegments = ArrayUtil.copyOf(mSegments, mSegmentCount * 8);
+                mSegmentOwners = ArrayUtil.copyOf(mSegmentOwners, mSegmentCount * 2);
+            }
+            int index = mSegmentCount * 4;
+            mSegments[index] = ax;
+            mSegments[index + 1] = ay;
+            mSegments[index + 2] = bx;
+            mSegments[index + 3] = by;
+            mSegmentOwners[mSegmentCount++] = owner;
+        }
+
+
+        /**
+         * Order the vertices as a k-d tree and put the segments into the grid cells
+         */
+        public void build()
+        {
+            buildTree(0, mVertexCount, 0);
+
+            int cellCount = GRID_SIZE * GRID_SIZE;
+            mCellStarts = new int[cellCount + 1];
+            for (int i = 0; i < mSegmentCount; i++) {
+                int[] cells = getSegmentCells(i);
+                for (int row = cells[1]; row <= cells[3]; row++) {
+                    for (int column = cells[0]; column <= cells[2]; column++) {
+                        mCellStarts[row * GRID_SIZE + column + 1]++;
+                    }
+                }
+            }
+            for (int i = 0; i < cellCount; i++) {
+                mCellStarts[i + 1] += mCellStarts[i];
+            }
+
+            mCellSegments = new int[mCellStarts[cellCount]];
+            int[] fill = ArrayUtil.copyOf(mCellStarts, cellCount);
+            for (int i = 0; i < mSegmentCount; i++) {
+                int[] cells = getSegmentCells(i);
+                for (int row = cells[1]; row <= cells[3]; row++) {
+                    for (int column = cells[0]; column <= cells[2]; column++) {
+                        mCellSegments[fill[row * GRID_SIZE + column]++] = i;
+                    }
+                }
+            }
+        }
+
+
+        protected void buildTree(
+                int start,
+                int end,
+                int depth)
+        {
+            while (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                select(start, end - 1, middle, depth & 1);
+                buildTree(start, middle, depth + 1);
+                start = middle + 1;
+                depth++;
+            }
+        }
+
+
+        /**
+         * Move the vertex of the rank to its position, the lesser ones before it (quickselect)
+         */
+        protected void select(
+                int left,
+                int right,
+                int rank,
+                int axis)
+        {
+            while (right > left) {
+                double pivot = mVertices[((left + right) >>> 1) * 2 + axis];
+                int i = left, j = right;
+                while (i <= j) {
+                    while (mVertices[i * 2 + axis] < pivot) {
+                        i++;
+                    }
+                    while (mVertices[j * 2 + axis] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swapVertices(i++, j--);
+                    }
+                }
+
+                if (rank <= j) {
+                    right = j;
+                } else if (rank >= i) {
+                    left = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+
+        protected void swapVertices(
+                int i,
+                int j)
+        {
+            double x = mVertices[i * 2], y = mVertices[i * 2 + 1];
+            mVertices[i * 2] = mVertices[j * 2];
+            mVertices[i * 2 + 1] = mVertices[j * 2 + 1];
+            mVertices[j * 2] = x;
+            mVertices[j * 2 + 1] = y;
+
+            int owner = mVertexOwners[i];
+            mVertexOwners[i] = mVertexOwners[j];
+            mVertexOwners[j] = owner;
+        }
+
+
+        /**
+         * @return the grid cell range of the segment envelope as min column, min row, max column,
+         * max row
+         */
+        protected int[] getSegmentCells(int segment)
+        {
+            int index = segment * 4;
+            double ax = mSegments[index], ay = mSegments[index + 1];
+            double bx = mSegments[index + 2], by = mSegments[index + 3];
+            return new int[] {
+                    getColumn(Math.min(ax, bx)), getRow(Math.max(ay, by)),
+                    getColumn(Math.max(ax, bx)), getRow(Math.min(ay, by))};
+        }
+
+
+        protected int getColumn(double x)
+        {
+            double width = mEnvelope.getMaxX() - mEnvelope.getMinX();
+            int column = (int) Math.floor((x - mEnvelope.getMinX()) / width * GRID_SIZE);
+            return Math.max(0, Math.min(GRID_SIZE - 1, column));
+        }
+
+
+        protected int getRow(double y)
+        {
+            double height = mEnvelope.getMaxY() - mEnvelope.getMinY();
+            int row = (int) Math.floor((mEnvelope.getMaxY() - y) / height * GRID_SIZE);
+            return Math.max(0, Math.min(GRID_SIZE - 1, row));
+        }
+
+
+        /**
+         * @param nearest
+         *         The squared distance limit and the coordinates of the nearest point found
+         *
+         * @return true if a nearer vertex is found
+         */
+        public boolean findVertex(
+                double x,
+                double y,
+                int excludeOwner,
+                double[] nearest)
+        {
+            return findVertex(0, mVertexCount, 0, x, y, excludeOwner, nearest);
+        }
+
+
+        protected boolean findVertex(
+                int start,
+                int end,
+                int depth,
+                double x,
+                double y,
+                int excludeOwner,
+                double[] nearest)
+        {
+            if (start >= end) {
+                return false;
+            }
+
+            int middle = (start + end) >>> 1;
+            double vx = mVertices[middle * 2], vy = mVertices[middle * 2 + 1];
+            boolean found = false;
+            if (mVertexOwners[middle] != excludeOwner) {
+                double distance = (vx - x) * (vx - x) + (vy - y) * (vy - y);
+                if (distance <= nearest[0]) {
+                    nearest[0] = distance;
+                    nearest[1] = vx;
+                    nearest[2] = vy;
+                    found = true;
+                }
+            }
+
+            double delta = (depth & 1) == 0 ? x - vx : y - vy;
+            if (delta < 0) {
+                found |= findVertex(start, middle, depth + 1, x, y, excludeOwner, nearest);
+                if (delta * delta <= nearest[0]) {
+                    found |= findVertex(middle + 1, end, depth + 1, x, y, excludeOwner, nearest);
+                }
+            } else {
+                found |= findVertex(middle + 1, end, depth + 1, x, y, excludeOwner, nearest);
+                if (delta * delta <= nearest[0]) {
+                    found |= findVertex(start, middle, depth + 1, x, y, excludeOwner, nearest);
+                }
+            }
+            return found;
+        }
+
+
+        /**
+         * @return true if a nearer segment point is found
+         */
+        public boolean findSegmentPoint(
+                double x,
+                double y,
+                double tolerance,
+                int excludeOwner,
+                double[] nearest)
+        {
+            boolean found = false;
+            int minColumn = getColumn(x - tolerance), maxColumn = getColumn(x + tolerance);
+            int minRow = getRow(y + tolerance), maxRow = getRow(y - tolerance);
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int column = minColumn; column <= maxColumn; column++) {
+                    int cell = row * GRID_SIZE + column;
+                    for (int i = mCellStarts[cell]; i < mCellStarts[cell + 1]; i++) {
+                        int segment = mCellSegments[i];
+                        if (mSegmentOwners[segment] != excludeOwner) {
+                            found |= projectOnSegment(segment, x, y, nearest);
+                        }
+                    }
+                }
+            }
+            return found;
+        }
+
+
+        protected boolean projectOnSegment(
+                int segment,
+                double x,
+                double y,
+                double[] nearest)
+        {
+            int index = segment * 4;
+            double ax = mSegments[index], ay = mSegments[index + 1];
+            double dx = mSegments[index + 2] - ax, dy = mSegments[index + 3] - ay;
+            double length = dx * dx + dy * dy;
+            double t = length == 0 ? 0 : ((x - ax) * dx + (y - ay) * dy) / length;
+            t = Math.max(0, Math.min(1, t));
+
+            double px = ax + t * dx, py = ay + t * dy;
+            double distance = (px - x) * (px - x) + (py - y) * (py - y);
+            if (distance > nearest[0]) {
+                return false;
+            }
+
+            nearest[0] = distance;
+            nearest[1] = px;
+            nearest[2] = py;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.view.MotionEvent;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplibui.overlay.EditLayerOverlay;
+
+/**
+ * Edit overlay which snaps the dragged vertex to the nearest vertex or segment of the visible
+ * features. The touch point of a drag is moved to the snapped point before the overlay handles
+ * it, so the edited geometry gets the snapped coordinates.
+ * <p/>
+ * The self-intersections of an edited polygon are checked after each edit and marked on the map.
+ * A vertex drag repaints only the screen bounds of the edited geometry.
+ */
+public class SnappingEditLayerOverlay
+        extends EditLayerOverlay
+{
+    protected static final int SNAP_TOLERANCE_DP = 12;
+    /**
+     * The vertex anchors and the line width around the geometry envelope
+     */
+    protected static final int BOUNDS_PADDING_DP = 32;
+
+    protected final TiledMapView         mMapView;
+    protected final float                mSnapTolerance;
+    protected final int                  mBoundsPadding;
+    protected final PolygonEditValidator mValidator;
+    protected final Rect                 mChangeBounds;
+
+    protected VectorLayer mEditedLayer;
+
+
+    public SnappingEditLayerOverlay(
+            Context context,
+            TiledMapView mapView)
+    {
+        super(context, mapView);
+        mMapView = mapView;
+        float density = context.getResources().getDisplayMetrics().density;
+        mSnapTolerance = SNAP_TOLERANCE_DP * density;
+        mBoundsPadding = (int) Math.ceil(BOUNDS_PADDING_DP * density);
+        mValidator = new PolygonEditValidator();
+        mChangeBounds = new Rect();
+    }
+
+
+    /**
+     * Snap the edited features of the layer to the visible ones
+     */
+    public void startSnapping(VectorLayer editedLayer)
+    {
+        mEditedLayer = editedLayer;
+        mMapView.setSnapping(true);
+        validateEdits();
+    }
+
+
+    public void stopSnapping()
+    {
+        mEditedLayer = null;
+        mMapView.setSnapping(false);
+        mValidator.clear();
+    }
+
+
+    @Override
+    public void panStart(MotionEvent event)
+    {
+        MotionEvent snapped = snap(event);
+        super.panStart(snapped);
+        if (snapped != event) {
+            snapped.recycle();
+        }
+    }
+
+
+    @Override
+    public void panMoveTo(MotionEvent event)
+    {
+        MotionEvent snapped = snap(event);
+        mChangeBounds.setEmpty();
+        boolean bounded = addGeometryBounds(mChangeBounds);
+        mMapView.beginChange();
+        try {
+            super.panMoveTo(snapped);
+        } finally {
+            bounded &= addGeometryBounds(mChangeBounds);
+            mMapView.endChange(bounded ? mChangeBounds : null);
+        }
+        if (snapped != event) {
+            snapped.recycle();
+        }
+        validateEdits();
+    }
+
+
+    @Override
+    public void saveToHistory()
+    {
+        super.saveToHistory();
+        validateEdits();
+    }
+
+
+    @Override
+    public boolean onOptionsItemSelected(int id)
+    {
+        boolean result = super.onOptionsItemSelected(id);
+        validateEdits();
+        return result;
+    }
+
+
+    /**
+     * Check the edited geometry for the self-intersections and mark the first one
+     */
+    protected void validateEdits()
+    {
+        if (null == mEditedLayer) {
+            return;
+        }
+
+        GeoGeometry geometry = getSelectedFeatureGeometry();
+        if (null == geometry) {
+            mValidator.clear();
+            mMapView.setFault(null);
+            return;
+        }
+
+        mValidator.update(geometry);
+        PolygonValidator.Fault fault = mValidator.getFault();
+        mMapView.setFault(null == fault ? null : fault.getLocation());
+    }
+
+
+    /**
+     * Add the screen bounds of the edited geometry with its vertex anchors
+     *
+     * @return false if there is no edited geometry
+     */
+    protected boolean addGeometryBounds(Rect bounds)
+    {
+        GeoGeometry geometry = getSelectedFeatureGeometry();
+        if (null == geometry) {
+            return false;
+        }
+
+        GeoEnvelope envelope = geometry.getEnvelope();
+        GeoPoint topLeft =
+                mMapView.getMap().mapToScreen(new GeoPoint(envelope.getMinX(), envelope.getMaxY()));
+        GeoPoint bottomRight =
+                mMapView.getMap().mapToScreen(new GeoPoint(envelope.getMaxX(), envelope.getMinY()));
+        bounds.union((int) Math.floor(topLeft.getX()) - mBoundsPadding,
+                (int) Math.floor(topLeft.getY()) - mBoundsPadding,
+                (int) Math.ceil(bottomRight.getX()) + mBoundsPadding,
+                (int) Math.ceil(bottomRight.getY()) + mBoundsPadding);
+        return true;
+    }
+
+
+    /**
+     * @return the copy of the event moved to the snapped point or the event itself if there is
+     * nothing to snap to, the event is shared with the other overlays and is not changed
+     */
+    protected MotionEvent snap(MotionEvent event)
+    {
+        if (null == mEditedLayer) {
+            return event;
+        }
+
+        // the edited feature would snap to itself
+        PointF point = mMapView.snap(event.getX(), event.getY(), mSnapTolerance, mEditedLayer,
+                getSelectedFeatureId());
+        if (null == point) {
+            return event;
+        }
+
+        MotionEvent snapped = MotionEvent.obtain(event);
+        snapped.setLocation(point.x, point.y);
+        return snapped;
+    }
+}
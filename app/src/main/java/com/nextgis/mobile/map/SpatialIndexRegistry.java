@@ -0,0 +1,180 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import com.nextgis.maplib.api.IGISApplication;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Stored spatial indexes of the vector layers. An index is opened on the first query of its
+ * layer and is kept up to date with the {@link LayerChangeLog} when a layer change is observed.
+ */
+public class SpatialIndexRegistry
+{
+    protected final Context                         mContext;
+    protected final Map<Integer, LayerSpatialIndex> mIndexes;
+    protected final Map<Integer, ContentObserver>   mObservers;
+    protected final ScheduledExecutorService        mExecutor;
+
+
+    public SpatialIndexRegistry(Context context)
+    {
+        mContext = context.getApplicationContext();
+        mIndexes = new HashMap<>();
+        mObservers = new HashMap<>();
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+
+    /**
+     * Collect the ids of the layer features which envelopes intersect the envelope. Unlike the
+     * layer cache the index has no ids of the deleted features.
+     *
+     * @return false if the layer index is not ready yet
+     */
+    public boolean query(
+            VectorLayer layer,
+            GeoEnvelope envelope,
+            FeatureIdList result)
+    {
+        return getIndex(layer).query(envelope, result);
+    }
+
+
+    /**
+     * @param envelopes
+     *         The list to collect the feature envelopes in the order of the ids
+     */
+    public boolean query(
+            VectorLayer layer,
+            GeoEnvelope envelope,
+            FeatureIdList result,
+            List<GeoEnvelope> envelopes)
+    {
+        return getIndex(layer).query(envelope, result, envelopes);
+    }
+
+
+    protected synchronized LayerSpatialIndex getIndex(VectorLayer layer)
+    {
+        LayerSpatialIndex index = mIndexes.get(layer.getId());
+        if (null == index || index.getLayer() != layer) {
+            removeLayer(layer.getId());
+            index = new LayerSpatialIndex(layer, mExecutor);
+            mIndexes.put(layer.getId(), index);
+            observe(layer, index);
+            index.open();
+        }
+        return index;
+    }
+
+
+    /**
+     * Forget the index of the layer and drop the change logs of the deleted layer tables in the
+     * background
+     */
+    public synchronized void removeLayer(int layerId)
+    {
+        mIndexes.remove(layerId);
+        ContentObserver observer = mObservers.remove(layerId);
+        if (null != observer) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+
+        if (!mExecutor.isShutdown()) {
+            mExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    LayerChangeLog.dropOrphans();
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Stop observing the layers and store the changed indexes in the background
+     */
+    public synchronized void close()
+    {
+        for (ContentObserver observer : mObservers.values()) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+        mObservers.clear();
+
+        final List<LayerSpatialIndex> indexes = new ArrayList<>(mIndexes.values());
+        mIndexes.clear();
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (LayerSpatialIndex index : indexes) {
+                    index.save();
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+
+    protected void observe(
+            VectorLayer layer,
+            final LayerSpatialIndex index)
+    {
+        if (!(mContext instanceof IGISApplication)) {
+            return;
+        }
+
+        String authority = ((IGISApplication) mContext).getAuthority();
+        Uri uri = Uri.parse("content://" + authority + "/" + layer.getPath().getName());
+
+        // the change log tells the changed features, the uri of the change is not passed before
+        // API 16
+        ContentObserver observer = new ContentObserver(null)
+        {
+            @Override
+            public void onChange(boolean selfChange)
+            {
+                index.requestSync();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        mObservers.put(layer.getId(), observer);
+    }
+}
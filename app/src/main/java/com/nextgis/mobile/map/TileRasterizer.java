@@ -0,0 +1,431 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.IRenderer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.display.GISDisplay;
+import com.nextgis.maplib.display.SimpleFeatureRenderer;
+import com.nextgis.maplib.display.Style;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static com.nextgis.maplib.util.GeoConstants.MERCATOR_MAX;
+import static com.nextgis.mobile.map.TiledBackBuffer.TILE_SIZE;
+
+/**
+ * Renders map layers of a single screen tile into separate rasters and composites them. The
+ * display is not thread safe, so each render thread owns its own rasterizer.
+ * <p/>
+ * Vector layers with a single style are drawn feature by feature from the simplified geometries of
+ * the tile zoom, other layers are drawn by their own renderers. Label candidates of the features
+ * anchored in the tile are collected for the {@link LabelEngine}. Point layers in the clustering
+ * mode are drawn as cluster symbols with the point counts. The features rejected by the layer
+ * filter are skipped, the layers drawn by their own renderers are drawn unfiltered.
+ */
+public class TileRasterizer
+{
+    /**
+     * Features this far outside of the tile still may be drawn into it by a wide line or a marker
+     */
+    protected static final int FEATURE_MARGIN_PX = 16;
+
+    protected final SimplifiedGeometryCache         mGeometryCache;
+    protected final LabelEngine                     mLabelEngine;
+    protected final PointClusterRegistry            mClusters;
+    protected final FeatureFilterRegistry           mFilters;
+    protected final Paint                           mClusterPaint;
+    protected final Paint                           mClusterTextPaint;
+    protected final List<PointClusterIndex.Cluster> mClusterList;
+    protected final GISDisplay mDisplay;
+    protected final Paint      mBackgroundPaint;
+    protected final Paint      mRasterPaint;
+    protected final Matrix     mShaderMatrix;
+    protected final Bitmap     mBackground;
+
+
+    public TileRasterizer(
+            Bitmap background,
+            SimplifiedGeometryCache geometryCache,
+            LabelEngine labelEngine,
+            PointClusterRegistry clusters,
+            FeatureFilterRegistry filters)
+    {
+        mBackground = background;
+        mGeometryCache = geometryCache;
+        mLabelEngine = labelEngine;
+        mClusters = clusters;
+        mFilters = filters;
+        mDisplay = new GISDisplay(background);
+        mDisplay.setSize(TILE_SIZE, TILE_SIZE);
+
+        mBackgroundPaint = new Paint();
+        mBackgroundPaint.setShader(
+                new BitmapShader(background, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT));
+        mShaderMatrix = new Matrix();
+        mRasterPaint = new Paint();
+
+        mClusterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mClusterTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mClusterTextPaint.setColor(Color.WHITE);
+        mClusterTextPaint.setTextAlign(Paint.Align.CENTER);
+        mClusterTextPaint.setFakeBoldText(true);
+        mClusterTextPaint.setTextSize(12 * clusters.getDensity());
+        mClusterList = new ArrayList<>();
+    }
+
+
+    public Bitmap getBackground()
+    {
+        return mBackground;
+    }
+
+
+    /**
+     * Render the layer alone into the transparent raster
+     *
+     * @param signal
+     *         The vector layer draw stops at the next feature when the signal is cancelled
+     * @param labels
+     *         The label candidates of the tile or null if the labels are not needed
+     *
+     * @return the number of drawn features (or cluster symbols) or -1 if the layer is drawn by
+     * its own renderer
+     */
+    public int renderLayer(
+            MapTile tile,
+            ILayer layer,
+            Bitmap raster,
+            CancelSignal signal,
+            List<LabelEngine.Label> labels)
+    {
+        raster.eraseColor(0);
+        if (!(layer instanceof IRenderer)) {
+            return 0;
+        }
+
+        mDisplay.setZoomAndCenter(tile.getZoom(), TiledBackBuffer.getTileCenter(tile));
+        mDisplay.clearLayer();
+
+        // a filtered layer is drawn feature by feature, the clusters hold all points
+        boolean filtered = layer instanceof VectorLayer && isFiltered((VectorLayer) layer);
+        PointClusterIndex clusters =
+                filtered ? null : mClusters.getIndex(layer, tile.getZoom());
+        if (null != clusters) {
+            return drawClusters(tile, (VectorLayer) layer, clusters, raster);
+        }
+
+        int features = -1;
+        if (layer instanceof VectorLayer) {
+            features = drawFeatures(tile, (VectorLayer) layer, signal, labels);
+        }
+        if (features < 0) {
+            ((IRenderer) layer).runDraw(mDisplay);
+            if (layer instanceof VectorLayer && null != labels) {
+                collectLabels(tile, (VectorLayer) layer, signal, labels);
+            }
+        }
+        mDisplay.draw(new Canvas(raster), 0, 0, false);
+        return features;
+    }
+
+
+    /**
+     * Collect the label candidates of the features anchored in the tile without drawing, e.g. the
+     * layer raster is taken from the cache
+     */
+    public void collectLabels(
+            MapTile tile,
+            VectorLayer layer,
+            CancelSignal signal,
+            List<LabelEngine.Label> labels)
+    {
+        // clusters have no labels
+        String field = LabelEngine.getLabelField(layer);
+        if (null == field || !isFiltered(layer)
+                && null != mClusters.getIndex(layer, tile.getZoom())) {
+            return;
+        }
+
+        GeoEnvelope envelope = TiledBackBuffer.getTileEnvelope(tile);
+        FeatureIdList accepted = mFilters.getIds(layer);
+        Set<Long> hidden = mFilters.getHiddenIds(layer);
+        for (Long featureId : layer.query(envelope)) {
+            if (signal.isCancelled()) {
+                break;
+            }
+            if (null != accepted && !accepted.contains(featureId)
+                    || null != hidden && hidden.contains(featureId)) {
+                continue;
+            }
+
+            GeoGeometry geometry = mGeometryCache.get(layer, featureId, tile.getZoom());
+            if (null != geometry) {
+                addLabel(tile, envelope, layer, field, featureId, geometry, labels);
+            }
+        }
+    }
+
+
+    /**
+     * Draw the simplified features of the layer with its style
+     *
+     * @return the number of drawn features or -1 if the layer has to be drawn by its renderer
+     */
+    protected int drawFeatures(
+            MapTile tile,
+            VectorLayer layer,
+            CancelSignal signal,
+            List<LabelEngine.Label> labels)
+    {
+        Style style = getStyle(layer);
+        if (null == style) {
+            return -1;
+        }
+
+        GeoEnvelope tileEnvelope = TiledBackBuffer.getTileEnvelope(tile);
+        double margin = FEATURE_MARGIN_PX * TiledBackBuffer.getResolution(tile.getZoom());
+        GeoEnvelope envelope = new GeoEnvelope(
+                tileEnvelope.getMinX() - margin, tileEnvelope.getMaxX() + margin,
+                tileEnvelope.getMinY() - margin, tileEnvelope.getMaxY() + margin);
+        String labelField = null == labels ? null : LabelEngine.getLabelField(layer);
+
+        int features = 0;
+        FeatureIdList accepted = mFilters.getIds(layer);
+        Set<Long> hidden = mFilters.getHiddenIds(layer);
+        for (Long featureId : layer.query(envelope)) {
+            if (signal.isCancelled()) {
+                break;
+            }
+            if (null != accepted && !accepted.contains(featureId)
+                    || null != hidden && hidden.contains(featureId)) {
+                continue;
+            }
+
+            GeoGeometry geometry = mGeometryCache.get(layer, featureId, tile.getZoom());
+            if (null != geometry) {
+                style.onDraw(geometry, mDisplay);
+                features++;
+                if (null != labelField) {
+                    addLabel(tile, tileEnvelope, layer, labelField, featureId, geometry, labels);
+                }
+            }
+        }
+        return features;
+    }
+
+
+    /**
+     * @return true if some features of the layer are filtered out or hidden, the clusters are not
+     * used then
+     */
+    protected boolean isFiltered(VectorLayer layer)
+    {
+        return mFilters.isFiltered(layer) || null != mFilters.getHiddenIds(layer);
+    }
+
+
+    /**
+     * @return the style of all layer features or null if the layer has no single style
+     */
+    protected static Style getStyle(VectorLayer layer)
+    {
+        // the rule based renderers choose a style per feature
+        Object renderer = layer.getRenderer();
+        if (null == renderer || renderer.getClass() != SimpleFeatureRenderer.class) {
+            return null;
+        }
+        return ((SimpleFeatureRenderer) renderer).getStyle();
+    }
+
+
+    /**
+     * Draw the clusters of the tile zoom centered in the tile or near it. Single points are drawn
+     * with the layer style, clusters of several points as circles of the style color with the
+     * point count.
+     *
+     * @return the number of drawn symbols
+     */
+    protected int drawClusters(
+            MapTile tile,
+            VectorLayer layer,
+            PointClusterIndex clusters,
+            Bitmap raster)
+    {
+        double resolution = TiledBackBuffer.getResolution(tile.getZoom());
+        GeoEnvelope tileEnvelope = TiledBackBuffer.getTileEnvelope(tile);
+        double margin = mClusters.getMaxSymbolRadius() * resolution;
+        GeoEnvelope envelope = new GeoEnvelope(
+                tileEnvelope.getMinX() - margin, tileEnvelope.getMaxX() + margin,
+                tileEnvelope.getMinY() - margin, tileEnvelope.getMaxY() + margin);
+
+        mClusterList.clear();
+        clusters.query(PointClusterRegistry.getLevel(tile.getZoom()), envelope, mClusterList);
+
+        Style style = getStyle(layer);
+        if (null != style) {
+            for (PointClusterIndex.Cluster cluster : mClusterList) {
+                if (cluster.getCount() == 1) {
+                    style.onDraw(new GeoPoint(cluster.getX(), cluster.getY()), mDisplay);
+                }
+            }
+        }
+
+        Canvas canvas = new Canvas(raster);
+        mDisplay.draw(canvas, 0, 0, false);
+
+        mClusterPaint.setColor(null == style ? Color.DKGRAY : style.getColor());
+        Paint.FontMetrics metrics = mClusterTextPaint.getFontMetrics();
+        for (PointClusterIndex.Cluster cluster : mClusterList) {
+            if (cluster.getCount() == 1 && null != style) {
+                continue;
+            }
+
+            float x = (float) ((cluster.getX() - tileEnvelope.getMinX()) / resolution);
+            float y = (float) ((tileEnvelope.getMaxY() - cluster.getY()) / resolution);
+            canvas.drawCircle(x, y, mClusters.getSymbolRadius(cluster.getCount()), mClusterPaint);
+            canvas.drawText(String.valueOf(cluster.getCount()), x,
+                    y - (metrics.ascent + metrics.descent) / 2, mClusterTextPaint);
+        }
+
+        int symbols = mClusterList.size();
+        mClusterList.clear();
+        return symbols;
+    }
+
+
+    /**
+     * Add the label candidate of the feature if its anchor is inside the tile, so every label is
+     * collected only once
+     */
+    protected void addLabel(
+            MapTile tile,
+            GeoEnvelope tileEnvelope,
+            VectorLayer layer,
+            String field,
+            long featureId,
+            GeoGeometry geometry,
+            List<LabelEngine.Label> labels)
+    {
+        GeoPoint anchor = getLabelAnchor(geometry);
+        if (null == anchor || anchor.getX() < tileEnvelope.getMinX()
+                || anchor.getX() >= tileEnvelope.getMaxX()
+                || anchor.getY() <= tileEnvelope.getMinY()
+                || anchor.getY() > tileEnvelope.getMaxY()) {
+            return;
+        }
+
+        String text = mLabelEngine.getLabelText(layer, field, featureId);
+        if (null == text) {
+            return;
+        }
+
+        double resolution = TiledBackBuffer.getResolution(tile.getZoom());
+        labels.add(new LabelEngine.Label(
+                text, (anchor.getX() + MERCATOR_MAX) / resolution,
+                (MERCATOR_MAX - anchor.getY()) / resolution,
+                geometry instanceof GeoPoint || geometry instanceof GeoMultiPoint));
+    }
+
+
+    protected static GeoPoint getLabelAnchor(GeoGeometry geometry)
+    {
+        if (geometry instanceof GeoPoint) {
+            return (GeoPoint) geometry;
+        }
+
+        if (geometry instanceof GeoMultiPoint) {
+            GeoMultiPoint multiPoint = (GeoMultiPoint) geometry;
+            return multiPoint.size() > 0 ? multiPoint.get(0) : null;
+        }
+
+        if (geometry instanceof GeoLineString) {
+            List<GeoPoint> points = ((GeoLineString) geometry).getPoints();
+            return points.isEmpty() ? null : points.get(points.size() / 2);
+        }
+
+        GeoEnvelope envelope = geometry.getEnvelope();
+        if (null == envelope || !envelope.isInit()) {
+            return null;
+        }
+        return new GeoPoint(
+                (envelope.getMinX() + envelope.getMaxX()) / 2,
+                (envelope.getMinY() + envelope.getMaxY()) / 2);
+    }
+
+
+    /**
+     * Draw the layer rasters (bottom to top) into the tile bitmap over the map background
+     */
+    public void composite(
+            MapTile tile,
+            List<Bitmap> rasters,
+            Bitmap target)
+    {
+        Canvas canvas = new Canvas(target);
+        drawBackground(canvas, tile);
+        for (Bitmap raster : rasters) {
+            canvas.drawBitmap(raster, 0, 0, mRasterPaint);
+        }
+    }
+
+
+    protected void drawBackground(
+            Canvas canvas,
+            MapTile tile)
+    {
+        // keep the background pattern continuous across the tiles, in long as the pixel offset
+        // of a deep zoom tile overflows an int
+        mShaderMatrix.setTranslate(
+                -((long) tile.getColumn() * TILE_SIZE % mBackground.getWidth()),
+                -((long) tile.getRow() * TILE_SIZE % mBackground.getHeight()));
+        mBackgroundPaint.getShader().setLocalMatrix(mShaderMatrix);
+        canvas.drawPaint(mBackgroundPaint);
+    }
+
+
+    /**
+     * Tells a running layer draw that its result is not needed anymore
+     */
+    public interface CancelSignal
+    {
+        boolean isCancelled();
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.nextgis.maplib.util.GeoConstants.MERCATOR_MAX;
+
+/**
+ * Map back buffer split into screen tiles. Tiles are aligned to the world pixel grid of the
+ * current zoom level, so after a pan every tile which is still in the viewport stays valid and
+ * only the strips uncovered by the pan have to be rendered.
+ */
+public class TiledBackBuffer
+{
+    public static final int TILE_SIZE   = 256;
+    /** tiles rendered around the viewport to hide short pans */
+    public static final int TILE_MARGIN = 1;
+
+    protected static final int MAX_FREE_BITMAPS = 8;
+
+    protected final Map<Long, Bitmap> mTiles;
+    protected final Map<Long, Bitmap> mPreviewTiles;
+    protected final Set<Long>         mPending;
+    protected final Set<Long>         mStale;
+    protected final List<Bitmap>      mFreeBitmaps;
+    protected final Paint             mPaint;
+    protected final RectF             mPreviewRect;
+
+    protected float  mZoom;
+    protected float  mPreviewZoom;
+    protected double mOriginX, mOriginY;
+    protected int    mWidth, mHeight;
+
+
+    public TiledBackBuffer()
+    {
+        mTiles = new HashMap<>();
+        mPreviewTiles = new HashMap<>();
+        mPreviewRect = new RectF();
+        mPending = new HashSet<>();
+        mStale = new HashSet<>();
+        mFreeBitmaps = new LinkedList<>();
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mZoom = Float.NaN;
+    }
+
+
+    /**
+     * Set the current viewport. Tiles which went too far from the viewport are released. On a zoom
+     * change the tiles of the previous zoom become a preview, it is drawn scaled to the new zoom
+     * until the new tiles cover the viewport.
+     */
+    public synchronized void setViewport(
+            float zoom,
+            GeoPoint center,
+            int width,
+            int height)
+    {
+        if (zoom != mZoom) {
+            // keep the older preview if no tile of the previous zoom is rendered
+            if (!mTiles.isEmpty()) {
+                releasePreview();
+                mPreviewTiles.putAll(mTiles);
+                mPreviewZoom = mZoom;
+                mTiles.clear();
+            }
+            releaseTiles();
+            mZoom = zoom;
+        }
+
+        double resolution = getResolution(zoom);
+        mOriginX = (center.getX() + MERCATOR_MAX) / resolution - width / 2.0;
+        mOriginY = (MERCATOR_MAX - center.getY()) / resolution - height / 2.0;
+        mWidth = width;
+        mHeight = height;
+
+        Iterator<Map.Entry<Long, Bitmap>> iterator = mTiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Bitmap> entry = iterator.next();
+            long key = entry.getKey();
+            if (!isInRange((int) (key >> 32), (int) key)) {
+                recycle(entry.getValue());
+                iterator.remove();
+                mStale.remove(key);
+            }
+        }
+    }
+
+
+    /**
+     * @return tiles of the viewport (and its margin) which are missing or stale and are not being
+     * rendered, nearest to the viewport center first. Returned tiles are marked as pending.
+     */
+    public synchronized List<MapTile> getMissingTiles()
+    {
+        List<MapTile> result = new ArrayList<>();
+        if (Float.isNaN(mZoom) || mWidth == 0 || mHeight == 0) {
+            return result;
+        }
+
+        int minColumn = getMinColumn(), maxColumn = getMaxColumn();
+        int minRow = getMinRow(), maxRow = getMaxRow();
+
+        for (int column = minColumn; column <= maxColumn; column++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                long key = MapTile.getKey(column, row);
+                if ((!mTiles.containsKey(key) || mStale.contains(key)) && !mPending.contains(key)) {
+                    result.add(new MapTile(mZoom, column, row));
+                    mPending.add(key);
+                }
+            }
+        }
+
+        final double centerX = (mOriginX + mWidth / 2.0) / TILE_SIZE - 0.5;
+        final double centerY = (mOriginY + mHeight / 2.0) / TILE_SIZE - 0.5;
+        Collections.sort(result, new Comparator<MapTile>()
+        {
+            @Override
+            public int compare(
+                    MapTile lhs,
+                    MapTile rhs)
+            {
+                return Double.compare(getDistance(lhs), getDistance(rhs));
+            }
+
+
+            protected double getDistance(MapTile tile)
+            {
+                double dx = tile.getColumn() - centerX;
+                double dy = tile.getRow() - centerY;
+                return dx * dx + dy * dy;
+            }
+        });
+
+        return result;
+    }
+
+
+    public synchronized boolean isTileNeeded(MapTile tile)
+    {
+        return tile.getZoom() == mZoom && isInRange(tile.getColumn(), tile.getRow());
+    }
+
+
+    /**
+     * Store a rendered tile. The bitmap goes back to the pool if the tile is not needed anymore.
+     */
+    public synchronized void putTile(
+            MapTile tile,
+            Bitmap bitmap)
+    {
+        if (tile.getZoom() == mZoom) {
+            mPending.remove(tile.getKey());
+            mStale.remove(tile.getKey());
+        }
+
+        if (!isTileNeeded(tile)) {
+            recycle(bitmap);
+            return;
+        }
+
+        Bitmap old = mTiles.put(tile.getKey(), bitmap);
+        if (null != old && old != bitmap) {
+            recycle(old);
+        }
+
+        if (!mPreviewTiles.isEmpty() && isViewportCovered()) {
+            releasePreview();
+        }
+    }
+
+
+    /**
+     * Store a tile rendered without some of its layers in place of a missing one, a stale tile
+     * with all layers is kept. The tile stays pending and is rendered again if its rendering is
+     * cancelled.
+     */
+    public synchronized void putPartialTile(
+            MapTile tile,
+            Bitmap bitmap)
+    {
+        if (!isTileNeeded(tile) || mTiles.containsKey(tile.getKey())) {
+            recycle(bitmap);
+            return;
+        }
+
+        mTiles.put(tile.getKey(), bitmap);
+        mStale.add(tile.getKey());
+    }
+
+
+    /**
+     * Forget the tile was requested, e.g. its rendering was skipped.
+     */
+    public synchronized void cancelTile(MapTile tile)
+    {
+        if (tile.getZoom() == mZoom) {
+            mPending.remove(tile.getKey());
+        }
+    }
+
+
+    public synchronized Bitmap obtainBitmap()
+    {
+        if (!mFreeBitmaps.isEmpty()) {
+            Bitmap bitmap = mFreeBitmaps.remove(0);
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+
+        return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+    }
+
+
+    /**
+     * Mark all rendered tiles as stale, e.g. the map content was changed. Stale tiles are still
+     * drawn until they are rendered again, so the map does not blink.
+     */
+    public synchronized void invalidate()
+    {
+        mStale.addAll(mTiles.keySet());
+        mPending.clear();
+    }
+
+
+    /**
+     * Draw the tiles into the view canvas
+     *
+     * @param canvas
+     *         The canvas of the map view
+     * @param offsetX
+     *         Horizontal pan offset in pixels
+     * @param offsetY
+     *         Vertical pan offset in pixels
+     */
+    public synchronized void draw(
+            Canvas canvas,
+            float offsetX,
+            float offsetY)
+    {
+        if (!mPreviewTiles.isEmpty()) {
+            float size = (float) (TILE_SIZE * Math.pow(2, mZoom - mPreviewZoom));
+            for (Map.Entry<Long, Bitmap> entry : mPreviewTiles.entrySet()) {
+                long key = entry.getKey();
+                float left = (float) ((int) (key >> 32) * size - mOriginX) - offsetX;
+                float top = (float) ((int) key * size - mOriginY) - offsetY;
+                mPreviewRect.set(left, top, left + size, top + size);
+                canvas.drawBitmap(entry.getValue(), null, mPreviewRect, mPaint);
+            }
+        }
+
+        for (Map.Entry<Long, Bitmap> entry : mTiles.entrySet()) {
+            long key = entry.getKey();
+            float left = (float) ((int) (key >> 32) * TILE_SIZE - mOriginX) - offsetX;
+            float top = (float) ((int) key * TILE_SIZE - mOriginY) - offsetY;
+            canvas.drawBitmap(entry.getValue(), left, top, mPaint);
+        }
+    }
+
+
+    /**
+     * Get the screen bounds of the tile
+     *
+     * @return false if the tile is not of the current zoom level
+     */
+    public synchronized boolean getTileBounds(
+            MapTile tile,
+            Rect bounds)
+    {
+        if (tile.getZoom() != mZoom) {
+            return false;
+        }
+
+        int left = (int) Math.floor(tile.getColumn() * TILE_SIZE - mOriginX);
+        int top = (int) Math.floor(tile.getRow() * TILE_SIZE - mOriginY);
+        bounds.set(left, top, left + TILE_SIZE + 1, top + TILE_SIZE + 1);
+        return true;
+    }
+
+
+    public synchronized float getZoom()
+    {
+        return mZoom;
+    }
+
+
+    /**
+     * @return the world pixel of the left view edge
+     */
+    public synchronized double getOriginX()
+    {
+        return mOriginX;
+    }
+
+
+    /**
+     * @return the world pixel of the top view edge
+     */
+    public synchronized double getOriginY()
+    {
+        return mOriginY;
+    }
+
+
+    public synchronized boolean isEmpty()
+    {
+        return mTiles.isEmpty();
+    }
+
+
+    protected boolean isInRange(
+            int column,
+            int row)
+    {
+        return column >= getMinColumn() && column <= getMaxColumn() && row >= getMinRow()
+               && row <= getMaxRow();
+    }
+
+
+    /**
+     * @return true if all visible tiles are rendered with all layers
+     */
+    protected boolean isViewportCovered()
+    {
+        int maxColumn = getMaxColumn() - TILE_MARGIN;
+        int maxRow = getMaxRow() - TILE_MARGIN;
+        for (int column = getMinColumn() + TILE_MARGIN; column <= maxColumn; column++) {
+            for (int row = getMinRow() + TILE_MARGIN; row <= maxRow; row++) {
+                long key = MapTile.getKey(column, row);
+                if (!mTiles.containsKey(key) || mStale.contains(key)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    protected void releasePreview()
+    {
+        for (Bitmap bitmap : mPreviewTiles.values()) {
+            recycle(bitmap);
+        }
+        mPreviewTiles.clear();
+    }
+
+
+    protected int getMinColumn()
+    {
+        return (int) Math.floor(mOriginX / TILE_SIZE) - TILE_MARGIN;
+    }
+
+
+    protected int getMaxColumn()
+    {
+        return (int) Math.floor((mOriginX + mWidth - 1) / TILE_SIZE) + TILE_MARGIN;
+    }
+
+
+    protected int getMinRow()
+    {
+        return (int) Math.floor(mOriginY / TILE_SIZE) - TILE_MARGIN;
+    }
+
+
+    protected int getMaxRow()
+    {
+        return (int) Math.floor((mOriginY + mHeight - 1) / TILE_SIZE) + TILE_MARGIN;
+    }
+
+
+    protected void releaseTiles()
+    {
+        for (Bitmap bitmap : mTiles.values()) {
+            recycle(bitmap);
+        }
+        mTiles.clear();
+        mPending.clear();
+        mStale.clear();
+    }
+
+
+    protected void recycle(Bitmap bitmap)
+    {
+        if (mFreeBitmaps.size() < MAX_FREE_BITMAPS) {
+            mFreeBitmaps.add(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+
+    /**
+     * @return map units (web mercator meters) per screen pixel at the zoom level
+     */
+    public static double getResolution(float zoom)
+    {
+        return MERCATOR_MAX * 2 / (TILE_SIZE * Math.pow(2, zoom));
+    }
+
+
+    public static GeoPoint getTileCenter(MapTile tile)
+    {
+        double resolution = getResolution(tile.getZoom());
+        double x = (tile.getColumn() + 0.5) * TILE_SIZE * resolution - MERCATOR_MAX;
+        double y = MERCATOR_MAX - (tile.getRow() + 0.5) * TILE_SIZE * resolution;
+        return new GeoPoint(x, y);
+    }
+
+
+    public static GeoEnvelope getTileEnvelope(MapTile tile)
+    {
+        double resolution = getResolution(tile.getZoom());
+        double minX = tile.getColumn() * TILE_SIZE * resolution - MERCATOR_MAX;
+        double maxY = MERCATOR_MAX - tile.getRow() * TILE_SIZE * resolution;
+        double size = TILE_SIZE * resolution;
+        return new GeoEnvelope(minX, minX + size, maxY - size, maxY);
+    }
+}
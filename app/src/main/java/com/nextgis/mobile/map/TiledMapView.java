@@ -0,0 +1,746 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.os.Looper;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.ILayerView;
+import com.nextgis.maplib.api.MapEventListener;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplibui.api.MapViewEventListener;
+import com.nextgis.maplibui.mapui.MapViewOverlays;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Map view which keeps the rendered map in a tiled back buffer. Only the tiles uncovered by a
+ * pan are rendered instead of the whole viewport.
+ * <p/>
+ * Invalidations are merged into a dirty region and applied once per frame. Rendered tiles and
+ * overlays which report their changed screen bounds (see {@link #invalidateRegion(Rect)} and
+ * {@link #beginChange()}) repaint only that region, a plain {@link #postInvalidate()} repaints
+ * the whole view.
+ * <p/>
+ * A zoom change shows the previous frame scaled to the new zoom and renders the new zoom only
+ * after the extent has not changed for {@link #RENDER_DELAY_MS}, so the intermediate zoom levels
+ * of a gesture or of several zoom button taps are not rendered.
+ */
+public class TiledMapView
+        extends MapViewOverlays
+{
+    protected static final int RENDER_DELAY_MS     = 250;
+    protected static final int MAX_LASSO_VERTICES = 256;
+
+    protected static final double MIN_FEATURE_EXTENT = 200;
+
+    protected final TiledBackBuffer       mBackBuffer;
+    protected final MapRenderer           mRenderer;
+    protected final SpatialIndexRegistry  mSpatialIndexes;
+    protected final FeatureFilterRegistry mFilters;
+    protected final FeatureHitTester      mHitTester;
+    protected final AttributeSearchIndex  mSearchIndex;
+    protected final AreaSelector          mAreaSelector;
+    protected final SnapIndex             mSnapIndex;
+    protected final SelectionOverlay      mSelectionOverlay;
+    protected final MapChangeListener     mMapChangeListener;
+    protected final DirtyRegion           mDirtyRegion;
+    protected final Rect                  mDirtyBounds;
+    protected final AtomicBoolean         mInvalidatePosted;
+    protected final Runnable              mInvalidateRunnable;
+    protected final Runnable              mRenderRunnable;
+
+    protected int            mChangeDepth;
+    protected boolean        mRenderScheduled;
+    protected boolean        mSnapping;
+    protected MetricsOverlay mMetricsOverlay;
+
+
+    public TiledMapView(
+            Context context,
+            MapDrawable map)
+    {
+        super(context, map);
+        mDirtyRegion = new DirtyRegion();
+        mDirtyBounds = new Rect();
+        mInvalidatePosted = new AtomicBoolean();
+        mInvalidateRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mInvalidatePosted.set(false);
+                if (!mDirtyRegion.take(mDirtyBounds)) {
+                    invalidate();
+                } else if (!mDirtyBounds.isEmpty()) {
+                    invalidate(mDirtyBounds);
+                }
+            }
+        };
+
+        mRenderRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mRenderScheduled = false;
+                mRenderer.requestRender();
+                updateSnapIndex();
+            }
+        };
+
+        mBackBuffer = new TiledBackBuffer();
+        mRenderer = new MapRenderer(map, mBackBuffer, this);
+        mSpatialIndexes = new SpatialIndexRegistry(context);
+        mFilters = FeatureFilterRegistry.getInstance(context);
+        mHitTester = new FeatureHitTester(mSpatialIndexes, mFilters);
+        mSearchIndex = new AttributeSearchIndex();
+        mAreaSelector = new AreaSelector(mSpatialIndexes);
+        mSnapIndex = new SnapIndex(mSpatialIndexes);
+        mSelectionOverlay = new SelectionOverlay(context, this, mBackBuffer);
+        addOverlay(new BackBufferOverlay(context, this, mBackBuffer));
+        addOverlay(new LabelOverlay(context, this, mBackBuffer, mRenderer.getLabelEngine()));
+        addOverlay(mSelectionOverlay);
+
+        // listen the map directly: layers may change while the view listeners are paused
+        mMapChangeListener = new MapChangeListener();
+        map.addListener(mMapChangeListener);
+        mFilters.addListener(mMapChangeListener);
+    }
+
+
+    @Override
+    public void drawMapDrawable()
+    {
+        if (getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+
+        float zoom = getZoomLevel();
+        boolean zoomChanged = zoom != mBackBuffer.getZoom();
+        // nothing to preview on the first draw
+        boolean defer = mRenderScheduled || zoomChanged && !mBackBuffer.isEmpty();
+
+        mBackBuffer.setViewport(zoom, getMapCenter(), getWidth(), getHeight());
+        if (!defer) {
+            mRenderer.requestRender();
+            updateSnapIndex();
+            return;
+        }
+
+        if (zoomChanged) {
+            mRenderer.cancelRender();
+            postInvalidate();
+        }
+        scheduleRender();
+    }
+
+
+    /**
+     * Render the viewport after the extent settles, a new extent change postpones the render
+     */
+    protected void scheduleRender()
+    {
+        removeCallbacks(mRenderRunnable);
+        mRenderScheduled = true;
+        postDelayed(mRenderRunnable, RENDER_DELAY_MS);
+    }
+
+
+    /**
+     * Render the viewport again from scratch
+     */
+    public void refresh()
+    {
+        mRenderer.invalidateLayers();
+        recomposite();
+    }
+
+
+    /**
+     * Mark all rendered tiles as stale and composite them again from the cached layer rasters
+     */
+    public void recomposite()
+    {
+        mBackBuffer.invalidate();
+        drawMapDrawable();
+    }
+
+
+    /**
+     * Stop rendering of the current extent, e.g. the map is being panned
+     */
+    public void cancelRender()
+    {
+        mRenderer.cancelRender();
+    }
+
+
+    /**
+     * Repaint the screen region on the next frame, may be called from any thread
+     */
+    public void invalidateRegion(Rect bounds)
+    {
+        mDirtyRegion.add(bounds);
+        scheduleInvalidate();
+    }
+
+
+    @Override
+    public void postInvalidate()
+    {
+        // the overlay reports the changed bounds itself
+        if (mChangeDepth > 0 && Looper.myLooper() == Looper.getMainLooper()) {
+            return;
+        }
+
+        mDirtyRegion.addAll();
+        scheduleInvalidate();
+    }
+
+
+    /**
+     * An overlay starts a change of its screen bounds. The view invalidations posted by the
+     * overlay until {@link #endChange(Rect)} are replaced by the bounds it reports. Must be called
+     * on the main thread.
+     */
+    public void beginChange()
+    {
+        mChangeDepth++;
+    }
+
+
+    /**
+     * @param bounds
+     *         The screen bounds changed by the overlay or null to repaint the whole view
+     */
+    public void endChange(Rect bounds)
+    {
+        mChangeDepth--;
+        if (null == bounds) {
+            mDirtyRegion.addAll();
+            scheduleInvalidate();
+        } else {
+            invalidateRegion(bounds);
+        }
+    }
+
+
+    protected void scheduleInvalidate()
+    {
+        if (mInvalidatePosted.compareAndSet(false, true)) {
+            post(mInvalidateRunnable);
+        }
+    }
+
+
+    protected void postRecomposite()
+    {
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                recomposite();
+                // the layers are added, removed or changed
+                updateSnapIndex();
+            }
+        });
+    }
+
+
+    /**
+     * Turn the clustering mode of point layers on or off
+     *
+     * @return true if the mode is changed and the map has to be refreshed
+     */
+    public boolean setClusterPoints(boolean clusterPoints)
+    {
+        return mRenderer.getClusters().setEnabled(clusterPoints);
+    }
+
+
+    /**
+     * Zoom to the bounds of the point cluster at the screen point
+     *
+     * @param tolerance
+     *         The tap tolerance in pixels
+     *
+     * @return false if there is no cluster of several points at the screen point
+     */
+    public boolean zoomToCluster(
+            float x,
+            float y,
+            float tolerance)
+    {
+        GeoEnvelope envelope = screenToMap(new GeoEnvelope(x, x, y, y));
+        if (null == envelope) {
+            return false;
+        }
+
+        float zoom = getZoomLevel();
+        GeoEnvelope bounds = mRenderer.getClusters().findCluster(
+                zoom, envelope.getMinX(), envelope.getMinY(), tolerance);
+        if (null == bounds) {
+            return false;
+        }
+
+        // fit the bounds into the view, but zoom in at least by one level
+        float newZoom = (float) Math.min(Math.max(getFitZoom(bounds, 1), zoom + 1), getMaxZoom());
+
+        setZoomAndCenter(newZoom, new GeoPoint(
+                (bounds.getMinX() + bounds.getMaxX()) / 2,
+                (bounds.getMinY() + bounds.getMaxY()) / 2));
+        return true;
+    }
+
+
+    /**
+     * Fit the feature into the view, a point is shown at the street level
+     *
+     * @return false if the feature has no geometry
+     */
+    public boolean zoomToFeature(
+            VectorLayer layer,
+            long featureId)
+    {
+        GeometryMeasureStore.Measures measures =
+                GeometryMeasureStore.getInstance(getContext()).get(layer, featureId);
+        if (null == measures) {
+            return false;
+        }
+
+        GeoEnvelope bounds = measures.getEnvelope();
+        float newZoom = (float) Math.min(getFitZoom(bounds, MIN_FEATURE_EXTENT), getMaxZoom());
+
+        setZoomAndCenter(newZoom, new GeoPoint(
+                (bounds.getMinX() + bounds.getMaxX()) / 2,
+                (bounds.getMinY() + bounds.getMaxY()) / 2));
+        return true;
+    }
+
+
+    /**
+     * @param minSize
+     *         The minimum size of the bounds in map units
+     *
+     * @return the zoom level the bounds fit into the view at with a margin
+     */
+    protected double getFitZoom(
+            GeoEnvelope bounds,
+            double minSize)
+    {
+        double width = Math.max(bounds.getMaxX() - bounds.getMinX(), minSize);
+        double height = Math.max(bounds.getMaxY() - bounds.getMinY(), minSize);
+        double fitResolution = Math.max(width / getWidth(), height / getHeight()) * 1.2;
+        return Math.log(TiledBackBuffer.getResolution(0) / fitResolution) / Math.log(2);
+    }
+
+
+    /**
+     * Find the features of the visible vector layers near the screen point in the background
+     *
+     * @return false if the point is outside of the map
+     */
+    public boolean hitTest(
+            float x,
+            float y,
+            float tolerance,
+            FeatureHitTester.OnHitTestListener listener)
+    {
+        GeoEnvelope envelope = screenToMap(
+                new GeoEnvelope(x - tolerance, x + tolerance, y - tolerance, y + tolerance));
+        if (null == envelope) {
+            return false;
+        }
+
+        GeoPoint point = new GeoPoint((envelope.getMinX() + envelope.getMaxX()) / 2,
+                (envelope.getMinY() + envelope.getMaxY()) / 2);
+        mHitTester.hitTest(getVisibleVectorLayers(), point,
+                (envelope.getMaxX() - envelope.getMinX()) / 2, listener);
+        return true;
+    }
+
+
+    public void cancelHitTest()
+    {
+        mHitTester.cancel();
+    }
+
+
+    /**
+     * Find the features of all vector layers by the words of their string attributes in the
+     * background
+     */
+    public void searchAttributes(
+            String text,
+            int limit,
+            AttributeSearchIndex.OnSearchListener listener)
+    {
+        mSearchIndex.search(getValidVectorLayers(), text, limit, listener);
+    }
+
+
+    /**
+     * Build the outdated search indexes in the background before the search
+     */
+    public void prepareAttributeSearch()
+    {
+        mSearchIndex.prepare(getValidVectorLayers());
+    }
+
+
+    public void cancelAttributeSearch()
+    {
+        mSearchIndex.cancel();
+    }
+
+
+    protected List<VectorLayer> getValidVectorLayers()
+    {
+        List<VectorLayer> vectorLayers = new ArrayList<>();
+        for (ILayer layer : getVectorLayersByType(GeoConstants.GTAnyCheck)) {
+            if (layer.isValid()) {
+                vectorLayers.add((VectorLayer) layer);
+            }
+        }
+        return vectorLayers;
+    }
+
+
+    protected List<VectorLayer> getVisibleVectorLayers()
+    {
+        List<VectorLayer> vectorLayers = new ArrayList<>();
+        for (ILayer layer : getVectorLayersByType(GeoConstants.GTAnyCheck)) {
+            if (layer.isValid() && ((ILayerView) layer).isVisible()) {
+                vectorLayers.add((VectorLayer) layer);
+            }
+        }
+        return vectorLayers;
+    }
+
+
+    /**
+     * Keep the snap index of the visible vector layers for the viewport, it is updated with the
+     * render and dropped when the snapping is off
+     */
+    public void setSnapping(boolean snapping)
+    {
+        mSnapping = snapping;
+        if (snapping) {
+            updateSnapIndex();
+        } else {
+            mSnapIndex.clear();
+        }
+    }
+
+
+    protected void updateSnapIndex()
+    {
+        if (!mSnapping || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+
+        GeoEnvelope viewport = screenToMap(new GeoEnvelope(0, getWidth(), 0, getHeight()));
+        if (null != viewport) {
+            mSnapIndex.setViewport(getVisibleVectorLayers(), viewport, getZoomLevel());
+        }
+    }
+
+
+    /**
+     * Snap the screen point to the nearest vertex or segment of the visible features
+     *
+     * @param excludeLayer
+     *         The layer of the feature not to snap to, may be null
+     *
+     * @return the snapped screen point or null if there is nothing within the tolerance
+     */
+    public PointF snap(
+            float x,
+            float y,
+            float tolerance,
+            VectorLayer excludeLayer,
+            long excludeFeatureId)
+    {
+        if (!mSnapping) {
+            return null;
+        }
+
+        // the drag does not move the map, so the back buffer transform is current
+        double resolution = TiledBackBuffer.getResolution(mBackBuffer.getZoom());
+        double originX = mBackBuffer.getOriginX(), originY = mBackBuffer.getOriginY();
+        GeoPoint point = mSnapIndex.snap((x + originX) * resolution - GeoConstants.MERCATOR_MAX,
+                GeoConstants.MERCATOR_MAX - (y + originY) * resolution, tolerance * resolution,
+                null == excludeLayer ? -1 : excludeLayer.getId(), excludeFeatureId);
+        if (null == point) {
+            return null;
+        }
+
+        return new PointF(
+                (float) ((point.getX() + GeoConstants.MERCATOR_MAX) / resolution - originX),
+                (float) ((GeoConstants.MERCATOR_MAX - point.getY()) / resolution - originY));
+    }
+
+
+    /**
+     * Select the layer features inside the screen area in the background
+     *
+     * @param points
+     *         The area vertices in screen pixels as x, y pairs, a box is given by two opposite
+     *         corners
+     */
+    public void selectArea(
+            VectorLayer layer,
+            float[] points,
+            boolean isBox,
+            AreaSelector.OnSelectionListener listener)
+    {
+        int count = points.length / 2;
+        int step = Math.max(1, (count + MAX_LASSO_VERTICES - 1) / MAX_LASSO_VERTICES);
+        List<GeoPoint> area = new ArrayList<>(count / step + 1);
+        for (int i = 0; i < count; i += step) {
+            float x = points[i * 2], y = points[i * 2 + 1];
+            GeoEnvelope envelope = screenToMap(new GeoEnvelope(x, x, y, y));
+            if (null != envelope) {
+                area.add(new GeoPoint(envelope.getMinX(), envelope.getMinY()));
+            }
+        }
+
+        if (area.size() < (isBox ? 2 : 3)) {
+            return;
+        }
+        mAreaSelector.select(layer, area, isBox, listener);
+    }
+
+
+    /**
+     * Show the selected features, null hides the selection and drops the running one
+     */
+    public void setSelection(AreaSelector.Selection selection)
+    {
+        if (null == selection) {
+            mAreaSelector.cancel();
+        }
+
+        Rect bounds = new Rect();
+        mSelectionOverlay.addBounds(bounds);
+        mSelectionOverlay.setSelection(selection);
+        mSelectionOverlay.addBounds(bounds);
+        invalidateRegion(bounds);
+    }
+
+
+    public AreaSelector.Selection getSelection()
+    {
+        return mSelectionOverlay.getSelection();
+    }
+
+
+    /**
+     * Mark the location of a geometry fault, null removes the mark
+     */
+    public void setFault(GeoPoint fault)
+    {
+        Rect bounds = new Rect();
+        mSelectionOverlay.addBounds(bounds);
+        mSelectionOverlay.setFault(fault);
+        mSelectionOverlay.addBounds(bounds);
+        invalidateRegion(bounds);
+    }
+
+
+    /**
+     * Show or hide the render metrics panel, the metrics are recorded only while it is shown
+     */
+    public void setShowMetrics(boolean showMetrics)
+    {
+        RenderMetrics metrics = mRenderer.getMetrics();
+        if (showMetrics && null == mMetricsOverlay) {
+            // added after the other overlays, so the panel is on top
+            mMetricsOverlay = new MetricsOverlay(getContext(), this, metrics);
+            addOverlay(mMetricsOverlay);
+        }
+
+        if (showMetrics != metrics.isEnabled()) {
+            metrics.setEnabled(showMetrics);
+            // the size of a shown panel is known after it is drawn
+            if (showMetrics) {
+                postInvalidate();
+            } else {
+                Rect bounds = new Rect();
+                mMetricsOverlay.addBounds(bounds);
+                invalidateRegion(bounds);
+            }
+        }
+    }
+
+
+    public RenderMetrics getMetrics()
+    {
+        return mRenderer.getMetrics();
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        long start = System.nanoTime();
+        super.onDraw(canvas);
+        mRenderer.getMetrics().onFrame(System.nanoTime() - start);
+    }
+
+
+    public void setMapBackground(Bitmap background)
+    {
+        getMap().setBackground(background);
+        mRenderer.setBackground(background);
+    }
+
+
+    @Override
+    public void addListener(MapViewEventListener listener)
+    {
+        super.addListener(listener);
+        mRenderer.addListener(listener);
+    }
+
+
+    @Override
+    public void removeListener(MapViewEventListener listener)
+    {
+        super.removeListener(listener);
+        mRenderer.removeListener(listener);
+    }
+
+
+    @Override
+    protected void onSizeChanged(
+            int w,
+            int h,
+            int oldw,
+            int oldh)
+    {
+        super.onSizeChanged(w, h, oldw, oldh);
+        drawMapDrawable();
+    }
+
+
+    public void release()
+    {
+        getMap().removeListener(mMapChangeListener);
+        mFilters.removeListener(mMapChangeListener);
+        removeCallbacks(mRenderRunnable);
+        mHitTester.shutdown();
+        mSearchIndex.shutdown();
+        mAreaSelector.shutdown();
+        mSnapIndex.shutdown();
+        mSpatialIndexes.close();
+        mRenderer.shutdown();
+    }
+
+
+    protected class MapChangeListener
+            implements MapEventListener, FeatureFilterRegistry.OnFilterChangeListener
+    {
+        @Override
+        public void onFilterChanged(VectorLayer layer)
+        {
+            onLayerChanged(layer.getId());
+        }
+
+
+        @Override
+        public void onLayerAdded(int id)
+        {
+            postRecomposite();
+        }
+
+
+        @Override
+        public void onLayerDeleted(int id)
+        {
+            mRenderer.removeLayer(id);
+            mSpatialIndexes.removeLayer(id);
+            mSearchIndex.dropOrphans();
+            GeometryMeasureStore.getInstance(getContext()).dropOrphans();
+            postRecomposite();
+        }
+
+
+        @Override
+        public void onLayerChanged(int id)
+        {
+            mRenderer.invalidateLayer(id);
+            mSnapIndex.clear();
+            postRecomposite();
+        }
+
+
+        @Override
+        public void onExtentChanged(
+                float zoom,
+                GeoPoint center)
+        {
+            if (mRenderScheduled) {
+                scheduleRender();
+            }
+        }
+
+
+        @Override
+        public void onLayersReordered()
+        {
+            // the rasters are still valid, only the composition order is changed
+            postRecomposite();
+        }
+
+
+        @Override
+        public void onLayerDrawFinished(
+                int id,
+                float percent)
+        {
+
+        }
+
+
+        @Override
+        public void onLayerDrawStarted()
+        {
+
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.preference.PreferenceManager;
+import android.text.Html;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.URLSpan;
+
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.util.LocationUtil;
+import com.nextgis.maplibui.util.SettingsConstantsUI;
+
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import static com.nextgis.maplib.util.GeoConstants.CRS_WEB_MERCATOR;
+import static com.nextgis.maplib.util.GeoConstants.CRS_WGS84;
+import static com.nextgis.maplib.util.GeoConstants.FTDate;
+import static com.nextgis.maplib.util.GeoConstants.FTDateTime;
+import static com.nextgis.maplib.util.GeoConstants.FTTime;
+
+/**
+ * Shared formatters of the displayed attribute values. The url pattern is compiled once, the
+ * number and date formats are kept per thread and the coordinate preferences are read once and
+ * refreshed on change, so formatting a value allocates only the result.
+ */
+public class AttributeFormatters
+{
+    protected static final String IP_ADDRESS = "((25[0-5]|2[0-4][0-9]|[0-1][0-9]{2}|[1-9][0-9]|[1-9])\\.(25[0-5]|2[0-4]"
+            + "[0-9]|[0-1][0-9]{2}|[1-9][0-9]|[1-9]|0)\\.(25[0-5]|2[0-4][0-9]|[0-1]"
+            + "[0-9]{2}|[1-9][0-9]|[1-9]|0)\\.(25[0-5]|2[0-4][0-9]|[0-1][0-9]{2}"
+            + "|[1-9][0-9]|[0-9]))";
+    protected static final String URL_PATTERN = "^(?i)(https?://)?(([\\da-z\\.-]+)\\.([a-z\\.]{2,6})|" + IP_ADDRESS + ")([\\/\\w\\,\\s \\.-]*)*\\/?$";
+
+    protected static final Pattern URL = Pattern.compile(URL_PATTERN);
+
+    protected static final int REAL_FRACTION_DIGITS   = 4;
+    protected static final int DEFAULT_COORD_FRACTION = 6;
+
+    protected static AttributeFormatters sInstance;
+
+    protected final Context              mContext;
+    protected final SharedPreferences    mPreferences;
+    protected final ThreadLocal<Formats> mFormats;
+    protected final String               mLatitudeCaption;
+    protected final String               mLongitudeCaption;
+
+    protected final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener;
+
+    protected volatile int mCoordinatesFormat;
+    protected volatile int mCoordinatesFraction;
+
+
+    protected AttributeFormatters(Context context)
+    {
+        mContext = context.getApplicationContext();
+        mLatitudeCaption = mContext.getString(com.nextgis.maplibui.R.string.latitude_caption_short) + ": ";
+        mLongitudeCaption = mContext.getString(com.nextgis.maplibui.R.string.longitude_caption_short) + ": ";
+        mFormats = new ThreadLocal<Formats>()
+        {
+            @Override
+            protected Formats initialValue()
+            {
+                return new Formats();
+            }
+        };
+
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        // the preferences keep a weak reference only
+        mPreferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener()
+        {
+            @Override
+            public void onSharedPreferenceChanged(
+                    SharedPreferences preferences,
+                    String key)
+            {
+                if (SettingsConstantsUI.KEY_PREF_COORD_FORMAT.equals(key)
+                        || SettingsConstantsUI.KEY_PREF_COORD_FRACTION.equals(key)) {
+                    readPreferences();
+                }
+            }
+        };
+        mPreferences.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+        readPreferences();
+    }
+
+
+    public static synchronized AttributeFormatters getInstance(Context context)
+    {
+        if (null == sInstance) {
+            sInstance = new AttributeFormatters(context);
+        }
+        return sInstance;
+    }
+
+
+    protected void readPreferences()
+    {
+        mCoordinatesFormat = Integer.parseInt(mPreferences.getString(SettingsConstantsUI.KEY_PREF_COORD_FORMAT, Location.FORMAT_DEGREES + ""));
+        mCoordinatesFraction = mPreferences.getInt(SettingsConstantsUI.KEY_PREF_COORD_FRACTION, DEFAULT_COORD_FRACTION);
+    }
+
+
+    public String formatReal(double value)
+    {
+        return mFormats.get().getReal().format(value);
+    }
+
+
+    public String formatDateTime(long millis, int type)
+    {
+        SimpleDateFormat sdf = mFormats.get().getDateFormat(type);
+        if (null == sdf)
+            return millis + "";
+
+        try {
+            return sdf.format(new Date(millis));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return millis + "";
+        }
+    }
+
+
+    /**
+     * @param pt
+     *         The point in web mercator, it is projected to WGS84 in place
+     */
+    public String formatCoordinates(GeoPoint pt)
+    {
+        pt.setCRS(CRS_WEB_MERCATOR);
+        pt.project(CRS_WGS84);
+
+        int format = mCoordinatesFormat, fraction = mCoordinatesFraction;
+        return mLatitudeCaption + LocationUtil.formatLatitude(pt.getY(), format, fraction, mContext.getResources()) + "\n"
+                + mLongitudeCaption + LocationUtil.formatLongitude(pt.getX(), format, fraction, mContext.getResources());
+    }
+
+
+    /**
+     * @return the text without the html markup
+     */
+    public String stripHtml(String text)
+    {
+        if (text == null)
+            return "";
+
+        // a plain text needs no parsing
+        if (text.indexOf('<') < 0 && text.indexOf('&') < 0)
+            return text;
+
+        return Html.fromHtml(text).toString();
+    }
+
+
+    /**
+     * @return the text as a link if it is an url
+     */
+    public CharSequence linkify(String text)
+    {
+        if (!URL.matcher(text).matches())
+            return text;
+
+        String url = text.trim();
+        if (!url.regionMatches(true, 0, "http", 0, 4))
+            url = "http://" + url;
+
+        SpannableString link = new SpannableString(text);
+        link.setSpan(new URLSpan(url), 0, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return link;
+    }
+
+
+    /**
+     * The formats of a thread, recreated on a locale change
+     */
+    protected static class Formats
+    {
+        protected Locale           mLocale;
+        protected NumberFormat     mReal;
+        protected SimpleDateFormat mDate;
+        protected SimpleDateFormat mTime;
+        protected SimpleDateFormat mDateTime;
+
+
+        protected void checkLocale()
+        {
+            Locale locale = Locale.getDefault();
+            if (locale.equals(mLocale))
+                return;
+
+            mLocale = locale;
+            mReal = NumberFormat.getInstance(locale);
+            mReal.setMaximumFractionDigits(REAL_FRACTION_DIGITS);
+            mReal.setGroupingUsed(false);
+            mDate = new SimpleDateFormat("dd/MM/yyyy", locale);
+            mTime = new SimpleDateFormat("HH:mm", locale);
+            mDateTime = new SimpleDateFormat("dd/MM/yyyy HH:mm", locale);
+        }
+
+
+        public NumberFormat getReal()
+        {
+            checkLocale();
+            return mReal;
+        }
+
+
+        public SimpleDateFormat getDateFormat(int type)
+        {
+            checkLocale();
+            switch (type) {
+                case FTDate:
+                    return mDate;
+                case FTTime:
+                    return mTime;
+                case FTDateTime:
+                    return mDateTime;
+                default:
+                    return null;
+            }
+        }
+    }
+}
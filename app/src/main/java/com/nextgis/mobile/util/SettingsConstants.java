@@ -58,8 +58,10 @@ public interface SettingsConstants
     String KEY_PREF_COMPASS_SHOW_MAGNET = "compass_show_magnetic";
     String KEY_PREF_COMPASS_WAKE_LOCK   = "compass_wake_lock";
     String KEY_PREF_SHOW_ZOOM_CONTROLS  = "show_zoom_controls";
+    String KEY_PREF_SHOW_RENDER_METRICS = "show_render_metrics";
     String KEY_PREF_SHOW_SCALE_RULER    = "show_scale_ruler";
     String KEY_PREF_SHOW_MEASURING      = "show_ruler_measuring";
+    String KEY_PREF_CLUSTER_POINTS      = "cluster_points";
 
     int FIRSTSTART_DOWNLOADZOOM = 5;
 }
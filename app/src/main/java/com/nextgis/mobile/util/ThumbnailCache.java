@@ -0,0 +1,311 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.mobile.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Thumbnails of the attached photos. The decoded thumbnails are kept in a memory cache limited by
+ * bytes, the encoded ones in a folder next to the attachments, so a photo is read in full only
+ * once. The thumbnails are made in the background with the subsampled decoding.
+ */
+public class ThumbnailCache
+{
+    protected static final String THUMBNAILS_DIR = ".thumbnails";
+    protected static final int    QUALITY        = 85;
+    protected static final int    THREADS        = 2;
+    protected static final String TEMP_SUFFIX    = ".tmp";
+
+    protected static ThumbnailCache sInstance;
+
+    protected final LruCache<String, Bitmap> mCache;
+    protected final ExecutorService          mExecutor;
+    protected final Handler                  mHandler;
+
+
+    protected ThumbnailCache(int maxBytes)
+    {
+        mCache = new LruCache<String, Bitmap>(maxBytes)
+        {
+            @Override
+            protected int sizeOf(
+                    String key,
+                    Bitmap value)
+            {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        mExecutor = Executors.newFixedThreadPool(THREADS);
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    public static synchronized ThumbnailCache getInstance()
+    {
+        if (null == sInstance) {
+            sInstance = new ThumbnailCache((int) (Runtime.getRuntime().maxMemory() / 8));
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * Show the thumbnail of the photo in the image view, now if it is in memory or later when it
+     * is loaded. The view may be reused for another photo meanwhile.
+     *
+     * @param path
+     *         The photo path
+     * @param size
+     *         The thumbnail size in pixels, the shorter side of the photo is scaled to it
+     */
+    public void load(
+            final String path,
+            final int size,
+            final ImageView view)
+    {
+        final String key = getKey(path, size);
+        view.setTag(key);
+
+        Bitmap thumbnail = mCache.get(key);
+        if (null != thumbnail) {
+            view.setImageBitmap(thumbnail);
+            return;
+        }
+
+        view.setImageDrawable(null);
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!key.equals(view.getTag())) {
+                    return;
+                }
+
+                final Bitmap thumbnail = get(path, size);
+                mHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (null != thumbnail && key.equals(view.getTag())) {
+                            view.setImageBitmap(thumbnail);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * @return the thumbnail of the photo from one of the caches or made now, null if the photo
+     * cannot be decoded
+     */
+    public Bitmap get(
+            String path,
+            int size)
+    {
+        String key = getKey(path, size);
+        Bitmap thumbnail = mCache.get(key);
+        if (null != thumbnail) {
+            return thumbnail;
+        }
+
+        File photo = new File(path);
+        File file = getThumbnailFile(photo, size);
+        if (file.exists() && file.lastModified() >= photo.lastModified()) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            thumbnail = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+
+        if (null == thumbnail) {
+            thumbnail = decode(photo, size);
+            if (null == thumbnail) {
+                return null;
+            }
+            save(thumbnail, file);
+        }
+
+        mCache.put(key, thumbnail);
+        return thumbnail;
+    }
+
+
+    /**
+     * Drop the memory cache, the thumbnails on disk stay
+     */
+    public void clear()
+    {
+        mCache.evictAll();
+    }
+
+
+    protected static Bitmap decode(
+            File photo,
+            int size)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(photo.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // the largest power of two the decoder subsamples by without going below the size
+        int shorter = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (shorter / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(photo.getPath(), options);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Not enough memory to decode " + photo.getPath());
+            return null;
+        }
+        if (null == bitmap) {
+            return null;
+        }
+
+        Matrix matrix = new Matrix();
+        float scale = (float) size / Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1) {
+            matrix.postScale(scale, scale);
+        }
+        matrix.postRotate(getRotation(photo));
+
+        if (matrix.isIdentity()) {
+            return bitmap;
+        }
+
+        Bitmap thumbnail =
+                Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix,
+                        true);
+        if (thumbnail != bitmap) {
+            bitmap.recycle();
+        }
+        return thumbnail;
+    }
+
+
+    protected static int getRotation(File photo)
+    {
+        try {
+            ExifInterface exif = new ExifInterface(photo.getPath());
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+
+    protected static void save(
+            Bitmap thumbnail,
+            File file)
+    {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+
+        // written aside and renamed, so a concurrent save or a killed process does not leave a
+        // truncated thumbnail which is taken as valid later
+        File tempFile = null;
+        OutputStream out = null;
+        boolean saved = false;
+        try {
+            tempFile = File.createTempFile(file.getName(), TEMP_SUFFIX, dir);
+            out = new FileOutputStream(tempFile);
+            if (thumbnail.compress(Bitmap.CompressFormat.JPEG, QUALITY, out)) {
+                out.close();
+                out = null;
+                saved = tempFile.renameTo(file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the thumbnail: " + e.getMessage());
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!saved && null != tempFile) {
+                tempFile.delete();
+            }
+        }
+    }
+
+
+    protected static File getThumbnailFile(
+            File photo,
+            int size)
+    {
+        return new File(new File(photo.getParentFile(), THUMBNAILS_DIR),
+                photo.getName() + "_" + size + ".jpg");
+    }
+
+
+    protected static String getKey(
+            String path,
+            int size)
+    {
+        return path + "#" + size;
+    }
+}